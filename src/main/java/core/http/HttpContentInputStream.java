@@ -0,0 +1,178 @@
+package core.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import core.io.StreamReader;
+import core.io.StreamTimeoutException;
+import core.lang.Hex;
+
+/**
+ * The content of an HTTP message as an input stream.
+ * <p>
+ * The content is framed by its length, by chunked transfer encoding or by the end of the
+ * stream. Chunk headers and the trailer are consumed as the content is read, so a decoder can
+ * be stacked directly on top and the message is decoded in a single pass. The deadline is
+ * checked on every read.
+ */
+final class HttpContentInputStream extends InputStream {
+
+	/** The input. */
+	private final StreamReader in;
+	/** The content length, or -1 if not known. */
+	private final long length;
+	/** Indicates if the content is chunked. */
+	private final boolean chunked;
+	/** The time (millis) by which the content must have been read, or 0 for none. */
+	private final long deadline;
+	/** The bytes remaining in the content or the current chunk. */
+	private long remaining;
+	/** The number of content bytes read. */
+	private long count = 0;
+	/** Indicates if the end of the content has been reached. */
+	private boolean finished = false;
+	/** A buffer for single byte reads. */
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Creates a new content input stream.
+	 * @param in the input.
+	 * @param length the content length, or -1 if chunked or read to the end of the stream.
+	 * @param chunked true if the content is chunked.
+	 * @param deadline the time (millis) by which the content must have been read, or 0 for none.
+	 */
+	HttpContentInputStream(StreamReader in, long length, boolean chunked, long deadline) {
+		if (in == null) {
+			throw new NullPointerException();
+		}
+		this.in = in;
+		this.length = chunked ? -1 : length;
+		this.chunked = chunked;
+		this.deadline = deadline;
+		this.remaining = chunked ? 0 : this.length;
+	}
+
+	/**
+	 * Returns the number of content bytes read.
+	 * @return the number of bytes read.
+	 */
+	long count() {
+		return count;
+	}
+
+	public int read() throws IOException {
+		int read = read(single, 0, 1);
+		if (read == -1) {
+			return -1;
+		}
+		return single[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		checkDeadline();
+		if (chunked && remaining == 0) {
+			readChunkSize();
+			if (finished) {
+				return -1;
+			}
+		}
+		if (remaining >= 0 && remaining < len) {
+			len = (int) remaining;
+		}
+		int read = in.read(b, off, len);
+		if (read == -1) {
+			in.close();
+			if (remaining == -1) {
+				finished = true;
+				return -1;
+			}
+			throw new IOException("end of stream reached (" + count + "/" + (chunked ? "chunked" : String.valueOf(length)) + ")");
+		}
+		count += read;
+		if (remaining > 0) {
+			remaining -= read;
+			if (remaining == 0) {
+				if (chunked) {
+					in.readLineBytes();
+				} else {
+					finished = true;
+				}
+			}
+		}
+		return read;
+	}
+
+	public int available() throws IOException {
+		if (finished) {
+			return 0;
+		}
+		int available = in.available();
+		if (remaining >= 0 && remaining < available) {
+			return (int) remaining;
+		}
+		return available;
+	}
+
+	/**
+	 * Reads and discards the rest of the content, so the input is left at the next message.
+	 */
+	void skipToEnd() throws IOException {
+		byte[] buffer = new byte[1024];
+		while (read(buffer, 0, buffer.length) != -1) {
+		}
+	}
+
+	/**
+	 * Closes the content, the input is not closed.
+	 */
+	public void close() {
+		finished = true;
+	}
+
+	/**
+	 * Reads the next chunk size, and the trailer after the last chunk.
+	 */
+	private void readChunkSize() throws IOException {
+		String line = in.readLine();
+		if (line == null) {
+			throw new IOException("end of stream reached (" + count + "/chunked)");
+		}
+		int index = 0;
+		while (index < line.length() && Hex.isHexDigit(line.charAt(index))) {
+			index++;
+		}
+		if (index == 0) {
+			throw new IOException("Illegal HTTP chunk size: \"" + line + "\"");
+		}
+		remaining = Long.parseLong(line.substring(0, index), 16);
+		if (remaining == 0) {
+
+			// Skip the trailer so a keep-alive connection is left at the next message
+			while (true) {
+				line = in.readLine();
+				if (line == null || line.length() == 0) {
+					break;
+				}
+			}
+			finished = true;
+		}
+	}
+
+	/**
+	 * Throws a timeout exception if the deadline has passed.
+	 */
+	private void checkDeadline() throws StreamTimeoutException {
+		if (deadline > 0) {
+			long time = System.currentTimeMillis();
+			if (time > deadline) {
+				throw new StreamTimeoutException("Content read " + (time - deadline) + " millis past the deadline (" + count + " bytes read)");
+			}
+		}
+	}
+}
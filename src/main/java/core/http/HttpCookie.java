@@ -1,17 +1,22 @@
 package core.http;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
-import core.util.UtilDate;
-
 /**
  * An HTTP Cookie.
  */
 public class HttpCookie implements Cloneable {
 	
 	private static final Logger log = LoggerFactory.getLogger(HttpCookie.class);
+
+	/** The formats of the expires attribute (the two digit year pattern also reads four digits). */
+	private static final String[] EXPIRES_FORMATS = { "EEE, dd-MMM-yy HH:mm:ss z", "EEE, dd MMM yy HH:mm:ss z" };
 	
 	private final String name;
 	private final String value;
@@ -87,15 +92,43 @@ public class HttpCookie implements Cloneable {
 	}
 
 	public void setExpires(String expires) {
+		if (expires != null && parseExpires(expires) == -1) {
+			throw new IllegalArgumentException("invalid date format for expires: '" + expires + "'");
+		}
+		this.expires = expires;
+	}
+
+	/**
+	 * Returns the time this cookie expires, max-age taking precedence over expires.
+	 * @param now the time (millis) the cookie was received.
+	 * @return the time (millis), or -1 if the cookie lasts for the session.
+	 */
+	public long getExpiryTime(long now) {
+		if (maxAge >= 0) {
+			return now + maxAge * 1000L;
+		}
 		if (expires != null) {
+			return parseExpires(expires);
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the given expires date.
+	 * @param expires the date.
+	 * @return the time (millis), or -1 if invalid.
+	 */
+	private static long parseExpires(String expires) {
+		for (String pattern : EXPIRES_FORMATS) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
 			try {
-				new UtilDate("EEE, dd-MMM-yy HH:mm:ss z", expires);
-			} catch (Exception e) {
-				if (log.isErrorEnabled()) log.error(e.getMessage(),e);
-				throw new IllegalArgumentException("invalid date format for expires: '" + expires + "'");
+				return format.parse(expires).getTime();
+			} catch (ParseException pe) {
+				// Try the next format
 			}
 		}
-		this.expires = expires;
+		return -1;
 	}
 
 	public HttpCookie() {
@@ -199,31 +232,36 @@ public class HttpCookie implements Cloneable {
 				}
 				equalsIndex = info.indexOf('=');
 				if (equalsIndex == -1) {
-					name = info;
+					name = info.toLowerCase();
 					value = info;
 				} else {
 					name = info.substring(0, equalsIndex).trim().toLowerCase();
 					value = info.substring(equalsIndex + 1);
 				}
 
-				if (name.equals("domain")) {
-					cookie.setDomain(value.trim());
-				} else {
-					if (name.equals("path")) {
-						cookie.setPath(value.trim());
+				try {
+					if (name.equals("domain")) {
+						cookie.setDomain(value.trim());
 					} else {
-						if (name.equals("expires")) {
-							cookie.setExpires(value.trim());
+						if (name.equals("path")) {
+							cookie.setPath(value.trim());
 						} else {
-							if (name.equals("max-age")) {
-								cookie.setMaxAge(value.trim());
+							if (name.equals("expires")) {
+								cookie.setExpires(value.trim());
 							} else {
-								if (name.equals("secure")) {
-									cookie.setSecure(true);
+								if (name.equals("max-age")) {
+									cookie.setMaxAge(value.trim());
+								} else {
+									if (name.equals("secure")) {
+										cookie.setSecure(true);
+									}
 								}
 							}
 						}
 					}
+				} catch (IllegalArgumentException iae) {
+					// A malformed attribute is ignored, as browsers do
+					if (log.isDebugEnabled()) log.debug("Ignoring cookie attribute: " + iae.getMessage());
 				}
 
 				if (colonIndex == text.length()) {
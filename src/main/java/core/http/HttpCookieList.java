@@ -1,19 +1,52 @@
 package core.http;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import core.http.request.HttpRequest;
 import core.http.response.HttpResponse;
+import core.io.ByteReader;
+import core.io.ByteWriter;
+import core.net.NetUrl;
 import core.text.Text;
-import core.util.PairList;
 
 /**
  * An HTTP Cookie List.
+ * <p>
+ * The cookies are indexed by domain (reversed, so <code>www.example.com</code> is held under
+ * <code>com.example.www</code>), each domain keeping its cookies longest path first. The
+ * cookies for a request are found by looking up the domains the host belongs to, so building
+ * the header costs the number of matching cookies rather than the number held. Cookies with
+ * no domain, such as those set by hand, are sent with every request.
+ * <p>
+ * Cookies read from a response along with its request keep their domain, path, secure flag
+ * and expiry: a cookie with no domain is sent back only to the host that set it, an expired
+ * cookie deletes the cookie it replaces, and expired cookies are dropped as they are found.
+ * The list can be written to a compact byte array and read back, to copy it to another spider.
  */
 public class HttpCookieList {
 
-	/** The cookie list. * */
-	private final ArrayList<HttpCookie> cookieList = new ArrayList<HttpCookie>();
+	/** The domain of the cookies with no domain. */
+	private static final String ANY_DOMAIN = "";
+
+	/** Orders cookies longest path first. */
+	private static final Comparator<Entry> PATH_ORDER = new Comparator<Entry>() {
+
+		public int compare(Entry entry1, Entry entry2) {
+			return entry2.cookie.getPath().length() - entry1.cookie.getPath().length();
+		}
+	};
+
+	/** The cookies in the order they were first set, by name, domain and path. */
+	private final LinkedHashMap<String, Entry> cookieList = new LinkedHashMap<String, Entry>();
+	/** The cookies by reversed domain, longest path first. */
+	private final Map<String, List<Entry>> domains = new HashMap<String, List<Entry>>();
 
 	/**
 	 * Returns the size of the list.
@@ -24,17 +57,55 @@ public class HttpCookieList {
 	}
 
 	/**
-	 * Adds the given cookie.
+	 * Adds the given cookie, replacing any cookie with the same name, domain and path. A cookie
+	 * with no domain replaces every cookie with the same name.
 	 * @param cookie the cookie.
 	 */
 	public void set(HttpCookie cookie) {
-		for (int i = 0; i < cookieList.size(); i++) {
-			if (cookieList.get(i).getName().equals(cookie.getName())) {
-				cookieList.set(i, cookie);
-				return;
+		set(cookie, -1);
+	}
+
+	/**
+	 * Adds the given cookie, replacing any cookie with the same name, domain and path.
+	 * @param cookie the cookie.
+	 * @param expires the time (millis) the cookie expires, -1 for the session.
+	 */
+	private void set(HttpCookie cookie, long expires) {
+		String domain = getDomain(cookie);
+		if (domain.length() == 0) {
+			remove(cookie.getName());
+		} else {
+			// A cookie with the same name and no domain is replaced too
+			List<Entry> any = domains.get(ANY_DOMAIN);
+			if (any != null) {
+				for (int i = any.size() - 1; i >= 0; i--) {
+					if (any.get(i).cookie.getName().equals(cookie.getName())) {
+						removeEntry(any.get(i));
+					}
+				}
 			}
 		}
-		add(cookie);
+		String key = cookie.getName() + '\n' + (cookie.getDomain() == null ? "" : cookie.getDomain()) + '\n' + cookie.getPath();
+		Entry existing = cookieList.get(key);
+		if (existing != null) {
+			removeEntry(existing);
+		}
+		if (expires != -1 && expires <= System.currentTimeMillis()) {
+			// An expired cookie only deletes the cookie it replaces
+			return;
+		}
+		Entry entry = new Entry(key, domain, cookie, expires);
+		cookieList.put(key, entry);
+		List<Entry> entries = domains.get(domain);
+		if (entries == null) {
+			entries = new ArrayList<Entry>(4);
+			domains.put(domain, entries);
+		}
+		int index = entries.size();
+		while (index > 0 && entries.get(index - 1).cookie.getPath().length() < cookie.getPath().length()) {
+			index--;
+		}
+		entries.add(index, entry);
 	}
 
 	/**
@@ -42,7 +113,7 @@ public class HttpCookieList {
 	 * @param cookie the cookie.
 	 */
 	public void add(HttpCookie cookie) {
-		cookieList.add(cookie);
+		set(cookie);
 	}
 
 	/**
@@ -52,21 +123,36 @@ public class HttpCookieList {
 	public void remove(Object key) {
 		if (key == null)
 			throw new NullPointerException();
-		for (int i = 0; i < size(); i++) {
-			HttpCookie cookie = getCookie(i);
-			if (cookie.getName().equals(key)) {
-				cookieList.remove(i--);
+		for (Entry entry : new ArrayList<Entry>(cookieList.values())) {
+			if (entry.cookie.getName().equals(key)) {
+				removeEntry(entry);
 			}
 		}
 	}
 
+	private void removeEntry(Entry entry) {
+		cookieList.remove(entry.key);
+		List<Entry> entries = domains.get(entry.domain);
+		entries.remove(entry);
+		if (entries.isEmpty()) {
+			domains.remove(entry.domain);
+		}
+	}
+
 	/**
 	 * Returns the cookie at the given index.
 	 * @param index the index.
 	 * @return the cookie.
 	 */
 	public HttpCookie getCookie(int index) {
-		return (HttpCookie) cookieList.get(index);
+		if (index < 0 || index >= cookieList.size()) {
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + cookieList.size());
+		}
+		Iterator<Entry> iterator = cookieList.values().iterator();
+		for (int i = 0; i < index; i++) {
+			iterator.next();
+		}
+		return iterator.next().cookie;
 	}
 
 	/**
@@ -75,10 +161,7 @@ public class HttpCookieList {
 	 */
 	public int getCookiesFrom(HttpCookieList list) {
 		if (list != null) {
-			for (int i = 0; i < list.size(); i++) {
-				set((HttpCookie) list.getCookie(i).clone());
-			}
-			return list.size();
+			return readFrom(new ByteReader(list.toByteArray()));
 		}
 		return 0;
 	}
@@ -107,7 +190,8 @@ public class HttpCookieList {
 	}
 
 	/**
-	 * Gets cookies from the given response.
+	 * Gets cookies from the given response, ignoring their attributes so they are sent with
+	 * every request.
 	 * @param response the HTTP response.
 	 * @return the number of cookies found.
 	 */
@@ -125,6 +209,43 @@ public class HttpCookieList {
 		return number;
 	}
 
+	/**
+	 * Gets cookies from the given response to the given request, with their attributes. A
+	 * cookie for a domain the request host does not belong to is ignored.
+	 * @param response the HTTP response.
+	 * @param request the HTTP request.
+	 * @return the number of cookies found.
+	 */
+	public int getCookiesFrom(HttpResponse response, HttpRequest request) {
+		String host = request.getUrl().getNetUrl().getHost();
+		if (host == null) {
+			return getCookiesFrom(response);
+		}
+		host = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		int number = 0;
+		for (int i = 0; i < response.getHeaderList().size(); i++) {
+			HttpHeader header = response.getHeaderList().getHeader(i);
+			if (header.hasName(HttpResponse.HEADER_SET_COOKIE)) {
+				HttpCookie cookie = HttpCookie.parseHttpCookie(header.getValue(), true);
+				String domain = cookie.getDomain();
+				if (domain == null || domain.length() == 0) {
+					// Host only
+					cookie.setDomain(host);
+				} else {
+					domain = domain.toLowerCase();
+					cookie.setDomain(domain.startsWith(".") ? domain : "." + domain);
+					if (!cookie.isValidDomain(host)) {
+						continue;
+					}
+				}
+				set(cookie, cookie.getExpiryTime(now));
+				number++;
+			}
+		}
+		return number;
+	}
+
 	/**
 	 * Set cookies in the given request.
 	 * @param request the request.
@@ -132,11 +253,15 @@ public class HttpCookieList {
 	public void setCookiesIn(HttpRequest request) {
 		if (size() == 0)
 			return;
+		List<Entry> entries = getEntries(request.getUrl().getNetUrl());
+		if (entries.isEmpty()) {
+			return;
+		}
 		StringBuilder buffer = new StringBuilder();
-		for (int i = 0; i < size(); i++) {
+		for (int i = 0; i < entries.size(); i++) {
 			if (i > 0)
 				buffer.append("; ");
-			HttpCookie cookie = getCookie(i);
+			HttpCookie cookie = entries.get(i).cookie;
 			buffer.append(cookie.getName());
 			buffer.append('=');
 			buffer.append(cookie.getValue());
@@ -145,12 +270,177 @@ public class HttpCookieList {
 		request.getHeaderList().set(header);
 	}
 
+	/**
+	 * Returns the cookies to send to the given URL, longest path first, dropping expired cookies.
+	 */
+	private List<Entry> getEntries(NetUrl url) {
+		List<Entry> matches = new ArrayList<Entry>();
+		String host = url.getHost();
+		if (host == null) {
+			// No host to match, send them all as before
+			matches.addAll(cookieList.values());
+			return matches;
+		}
+		host = host.toLowerCase();
+		String path = url.getPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		boolean secure = "https".equals(url.getProtocol()) || url.getPort() == 443;
+		long now = System.currentTimeMillis();
+		int buckets = 0;
+
+		// The host and each domain it belongs to, then the cookies with no domain
+		String domain = reverse(host);
+		while (true) {
+			buckets += addMatches(domains.get(domain), host, path, secure, now, matches);
+			int index = domain.lastIndexOf('.');
+			if (index == -1) {
+				break;
+			}
+			domain = domain.substring(0, index);
+		}
+		buckets += addMatches(domains.get(ANY_DOMAIN), host, path, secure, now, matches);
+		if (buckets > 1) {
+			Collections.sort(matches, PATH_ORDER);
+		}
+		return matches;
+	}
+
+	/**
+	 * Adds the cookies of a domain that match the request.
+	 * @return 1 if any were added, otherwise 0.
+	 */
+	private int addMatches(List<Entry> entries, String host, String path, boolean secure, long now, List<Entry> matches) {
+		if (entries == null) {
+			return 0;
+		}
+		int added = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (entry.expires != -1 && entry.expires <= now) {
+				removeEntry(entry);
+				i--;
+				continue;
+			}
+			HttpCookie cookie = entry.cookie;
+			if ((secure || !cookie.isSecure()) && cookie.isValidDomain(host) && isValidPath(cookie.getPath(), path)) {
+				matches.add(entry);
+				added = 1;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Returns true if the given request path is within the given cookie path.
+	 */
+	private static boolean isValidPath(String cookiePath, String path) {
+		if (!path.startsWith(cookiePath)) {
+			return false;
+		}
+		return path.length() == cookiePath.length() || cookiePath.endsWith("/") || path.charAt(cookiePath.length()) == '/';
+	}
+
+	/**
+	 * Returns the index domain of the given cookie.
+	 */
+	private static String getDomain(HttpCookie cookie) {
+		String domain = cookie.getDomain();
+		if (domain == null || domain.length() == 0) {
+			return ANY_DOMAIN;
+		}
+		domain = domain.toLowerCase();
+		return reverse(domain.startsWith(".") ? domain.substring(1) : domain);
+	}
+
+	/**
+	 * Returns the given domain with its labels reversed.
+	 */
+	private static String reverse(String domain) {
+		StringBuilder reversed = new StringBuilder(domain.length());
+		int end = domain.length();
+		for (int index = domain.lastIndexOf('.'); index != -1; index = domain.lastIndexOf('.', index - 1)) {
+			reversed.append(domain, index + 1, end).append('.');
+			end = index;
+			if (index == 0) {
+				break;
+			}
+		}
+		return reversed.append(domain, 0, end).toString();
+	}
+
+	/**
+	 * Writes the cookies to a byte array.
+	 * @return the byte array.
+	 */
+	public byte[] toByteArray() {
+		ByteWriter writer = new ByteWriter(64 + cookieList.size() * 64);
+		writer.writeNumber(cookieList.size());
+		for (Entry entry : cookieList.values()) {
+			HttpCookie cookie = entry.cookie;
+			writer.writeString(cookie.getName());
+			writer.writeString(cookie.getValue());
+			writer.writeString(cookie.getDomain() == null ? "" : cookie.getDomain());
+			writer.writeString(cookie.getPath());
+			writer.writeBoolean(cookie.isSecure());
+			writer.writeNumber(entry.expires + 1);
+		}
+		return writer.toByteArray(true);
+	}
+
+	/**
+	 * Reads cookies written by {@link #toByteArray()}, expired cookies are skipped.
+	 * @param reader the reader.
+	 * @return the number of cookies read.
+	 */
+	public int readFrom(ByteReader reader) {
+		int count = (int) reader.readNumber();
+		for (int i = 0; i < count; i++) {
+			HttpCookie cookie = new HttpCookie(reader.readString(), reader.readString());
+			String domain = reader.readString();
+			if (domain.length() > 0) {
+				cookie.setDomain(domain);
+			}
+			cookie.setPath(reader.readString());
+			cookie.setSecure(reader.readBoolean());
+			set(cookie, reader.readNumber() - 1);
+		}
+		return count;
+	}
+
 	public String toString() {
-		return cookieList.toString();
+		List<HttpCookie> cookies = new ArrayList<HttpCookie>(cookieList.size());
+		for (Entry entry : cookieList.values()) {
+			cookies.add(entry.cookie);
+		}
+		return cookies.toString();
 	}
 
 	public void clear() {
 		cookieList.clear();
+		domains.clear();
 	}
 
+	/**
+	 * A cookie held in the list.
+	 */
+	private static final class Entry {
+
+		/** The key (name, domain and path). */
+		private final String key;
+		/** The index domain. */
+		private final String domain;
+		/** The cookie. */
+		private final HttpCookie cookie;
+		/** The time (millis) the cookie expires, -1 for the session. */
+		private final long expires;
+
+		private Entry(String key, String domain, HttpCookie cookie, long expires) {
+			this.key = key;
+			this.domain = domain;
+			this.cookie = cookie;
+			this.expires = expires;
+		}
+	}
 }
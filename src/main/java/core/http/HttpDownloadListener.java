@@ -0,0 +1,33 @@
+package core.http;
+
+import core.http.request.HttpRequest;
+
+/**
+ * A listener for a non-blocking HTTP download.
+ * <p>
+ * All methods are called on the non-blocking request thread, they must not block.
+ */
+public interface HttpDownloadListener {
+
+	/**
+	 * Returns the request to follow the redirect response held by the downloader, or null to
+	 * complete the download with the redirect response.
+	 * @param downloader the downloader.
+	 * @return the redirect request or null.
+	 * @throws Exception if the redirect should fail the download.
+	 */
+	HttpRequest getRedirectRequest(HttpDownloader downloader) throws Exception;
+
+	/**
+	 * Called when the response has been downloaded, it is held by the downloader.
+	 * @param downloader the downloader.
+	 */
+	void downloadCompleted(HttpDownloader downloader);
+
+	/**
+	 * Called when the download failed.
+	 * @param downloader the downloader.
+	 * @param throwable the cause.
+	 */
+	void downloadFailed(HttpDownloader downloader, Throwable throwable);
+}
@@ -2,6 +2,9 @@ package core.http;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,11 +20,16 @@ import core.io.ConnectTimeoutException;
 import core.io.DownloadTimeoutException;
 import core.io.ProxyServerSideException;
 import core.io.StreamReader;
+import core.io.StreamTimeoutException;
 import core.net.HttpsProtocol;
 import core.net.NetSocket;
+import core.net.NetSocketPool;
 import core.net.NetUrl;
+import core.nonblocking.NonBlockingRequestThreadManagerFactory;
 import core.text.Charsets;
 import core.util.WatchDog;
+import engine.ProxyHealth;
+import engine.ProxyManager;
 import engine.WebSpider;
 
 /**
@@ -37,7 +45,7 @@ public final class HttpDownloader {
 	/** The number of connect retries. */
 	private final int connectRetries;
 	/** The socket */
-	private NetSocket socket = null;
+	private volatile NetSocket socket = null;
 	/** The HTTP request. */
 	private HttpRequest request = null;
 	/** The HTTP response. */
@@ -67,6 +75,8 @@ public final class HttpDownloader {
 	private boolean i_isNonBlocking = false;
 	/** The WebSpider that created this Downloader. */
 	private WebSpider i_spider;
+	/** The transfer statistics of the download in progress, null if none. */
+	private HttpTransferStats transferStats = null;
 	/** The supplier name used by proxy cloud solution for gathering statistics */
 	private String proxyCloudSupplier = null;
 	/** the supplier proxy instance usage pool, if such available */
@@ -74,6 +84,14 @@ public final class HttpDownloader {
 	private boolean downloadInProgress = false;
 	/** List of custom defined HTTP headers that will be applied to the HTTP Requests this instance do */
 	private HttpHeaderList headerList = null;
+	/** The response cache, null if responses are not cached. */
+	private HttpResponseCache responseCache = null;
+	/** The proxies hedges are sent through, null to send them as the request. */
+	private ProxyManager hedgeProxies = null;
+	/** Indicates if this downloader sends a hedge, which is never hedged itself. */
+	private boolean hedge = false;
+	/** Indicates if the download was cancelled. */
+	private volatile boolean cancelled = false;
 
 	/**
 	 * Sets the custom defined HTTP headers to this instance
@@ -294,6 +312,32 @@ public final class HttpDownloader {
 		this.response = null;
 	}
 
+	/**
+	 * Sets the cache the responses to GET requests are served from and stored in.
+	 * @param cache the cache, null to not cache responses.
+	 */
+	public void setResponseCache(HttpResponseCache cache) {
+		this.responseCache = cache;
+	}
+
+	/**
+	 * Returns the response cache.
+	 * @return the cache, null if responses are not cached.
+	 */
+	public HttpResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets the proxies hedged requests are sent through, each hedge going through a proxy
+	 * other than the one of the request it hedges.
+	 * @param proxies the proxies, null to send hedges as the request.
+	 * @see HttpHedging
+	 */
+	public void setHedgeProxies(ProxyManager proxies) {
+		this.hedgeProxies = proxies;
+	}
+
 	/**
 	 * Sets the HTTP response.
 	 * @param response the response to set.
@@ -379,11 +423,7 @@ public final class HttpDownloader {
 		if (log.isDebugEnabled()) {
 			if (log.isDebugEnabled()) log.debug("[PHP Proxy Response]\n{}", phpResponse.toString(false));
 		}
-		if (i_spider != null) {
-			i_spider.addBytesReceived(phpResponse.bytes());
-		} else {
-			bytesReceived += phpResponse.bytes();
-		}
+		addBytesReceived(phpResponse.bytes());
 		if (phpResponse.getCode().equals(HttpCode.CODE_503)) {
 			// If there was an issue detected by the php proxy side it returns "HTTP/1.0 503
 			// [description message]"
@@ -393,6 +433,7 @@ public final class HttpDownloader {
 			return phpResponse;
 		}
 		HttpResponse response = new HttpResponse();
+		response.setContentDecoding(true);
 		response.readFrom(new StreamReader(new ByteArrayInputStream(phpResponse.getContent().toByteArray())), "HttpDownloader.handlePHPProxyResponse - response: " + (i_spider == null? "null": i_spider.getSpiderName()));
 		return response;
 	}
@@ -403,7 +444,7 @@ public final class HttpDownloader {
 	 * @param downloadTimeout timeout (millis)
 	 * @throws NullPointerException
 	 */
-	private final void setProxyCloudRequestConfiguration(HttpRequest request, int downloadTimeout) throws NullPointerException {
+	final void setProxyCloudRequestConfiguration(HttpRequest request, int downloadTimeout) throws NullPointerException {
 		if (request == null) {
 			throw new NullPointerException();
 		}
@@ -468,19 +509,98 @@ public final class HttpDownloader {
 			throw ex;
 		}
 		
-		if (i_isNonBlocking) {
-			// Re-use the various download methods to set up the request on the downloader
-			// and then carry out the actual download via a channel in the non-blocking 
-			// thread. We will return an empty response which we endeavour to populate 
-			// correctly elsewhere after we have carried out the download. 
-			if (log.isDebugEnabled()) log.debug("Non-blocking request in HttpDownloader");
-			// Mimic proxy logic.
-			if (isProxyRequest()) {
-				request.addHeader("X-TFRequest", "true");
+		long timeStarted = System.currentTimeMillis();
+		long nanoStarted = System.nanoTime();
+		HttpHostLimiter.Permit permit = null;
+		ProxyHealth proxyHealth = null;
+		boolean failed = true;
+		transferStats = HttpMetrics.get(i_spider == null ? null : i_spider.getSpiderName(), request.getUrl().getNetUrl().getHost());
+		try {
+			downloadInProgress = true;
+
+			// Wait for the supplier host to accept another request
+			permit = acquirePermit(request, timeStarted + downloadTimeout);
+			if (proxyUrl != null) {
+				proxyHealth = ProxyHealth.get(proxyUrl);
+				proxyHealth.start();
+			}
+			int limitTime = (int) (downloadTimeout - System.currentTimeMillis() + timeStarted);
+			HttpResponse response;
+			try {
+				response = download(request, limitTime, protocols, true);
+			} catch (StaleSocketException sse) {
+				// The server closed a pooled keep-alive connection before the request, or before responding to an idempotent one
+				if (cancelled) {
+					throw new InterruptedIOException("Download cancelled");
+				}
+				if (log.isDebugEnabled()) log.debug("[Stale Socket] retrying with a new connection: " + sse.getMessage());
+				int restTime = (int) (downloadTimeout - System.currentTimeMillis() + timeStarted);
+				if (restTime <= 0) {
+					throw new DownloadTimeoutException("Stale pooled connection", sse.getCause());
+				}
+				response = download(request, restTime, protocols, false);
+			}
+			if (permit != null) {
+				Integer code = response.getCode().getInteger();
+				permit.release(code == null ? 0 : code);
+			}
+			failed = false;
+			if (proxyHealth != null) {
+				proxyHealth.success(System.currentTimeMillis() - timeStarted);
+			}
+			String host = request.getUrl().getNetUrl().getHost();
+			if (host != null) {
+				HttpHedging.record(host, System.currentTimeMillis() - timeStarted);
+			}
+			return response;
+		} finally {
+			if (permit != null && failed) {
+				// A cancelled download says nothing about the host
+				permit.release(!cancelled);
 			}
-			setProxyCloudRequestConfiguration(request, downloadTimeout);
-			return new HttpResponse();
+			if (proxyHealth != null && failed) {
+				if (cancelled) {
+					proxyHealth.abandon();
+				} else {
+					proxyHealth.failure();
+				}
+			}
+			if (!failed || !cancelled) {
+				transferStats.recordDownload(System.nanoTime() - nanoStarted, !failed);
+			}
+			downloadInProgress = false;
+			addDownload(System.currentTimeMillis() - timeStarted);
+		}
+	}
+
+	/**
+	 * Returns a permit to send the given request to its host, or null if hosts are not limited.
+	 * @param request the request.
+	 * @param deadline the time (millis) by which the download must complete.
+	 * @throws HttpHostLimitException if the host limiter rejected the request.
+	 */
+	private static HttpHostLimiter.Permit acquirePermit(HttpRequest request, long deadline) throws IOException {
+		String host = request.getUrl().getNetUrl().getHost();
+		if (!HttpHostLimiter.isEnabled() || host == null) {
+			return null;
+		}
+		try {
+			return HttpHostLimiter.getLimiter(host).acquire(deadline);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + host);
 		}
+	}
+
+	/**
+	 * Downloads an returns the response to the given request over a single connection.
+	 * @param request the request.
+	 * @param downloadTimeout the timeout (millis) to read the response.
+	 * @param protocols the https protocols.
+	 * @param reuse true to try an idle keep-alive connection first.
+	 * @throws StaleSocketException if a pooled connection failed before any response was read, and the request was not written or is idempotent.
+	 */
+	private final HttpResponse download(HttpRequest request, int downloadTimeout, HttpsProtocol[] protocols, boolean reuse) throws IOException, HttpBadRequestException {
 
 		// URL
 		NetUrl requestUrl = request.getUrl().getNetUrl();
@@ -522,13 +642,29 @@ public final class HttpDownloader {
 			secure = true;
 			port = 443;
 		}
+
+		// Keep-Alive
+		NetSocketPool.Key poolKey = getPoolKey(requestUrl, host, port, secure);
+		if (poolKey != null && !request.getHeaderList().contains(HttpRequest.HEADER_CONNECTION)) {
+			request.setHeader(HttpRequest.HEADER_CONNECTION, "keep-alive");
+		}
+
 		long timeStarted = System.currentTimeMillis();
+		long connectStarted = System.nanoTime();
 		WatchDog.Info watchinfo = null;
+		boolean reused = false;
+		boolean requestWritten = false;
+		boolean responseStarted = false;
 		try {
-			downloadInProgress = true;
-			// Normal Connect
-			int connectionTimout = Math.min(downloadTimeout, CONNECTION_TIMEOUT);
-			socket = new NetSocket(host, port, secure, connectionTimout, protocols);
+			if (reuse && poolKey != null) {
+				socket = NetSocketPool.getPool().acquire(poolKey);
+				reused = socket != null;
+			}
+			if (!reused) {
+				// Normal Connect
+				int connectionTimout = Math.min(downloadTimeout, CONNECTION_TIMEOUT);
+				socket = new NetSocket(host, port, secure, connectionTimout, protocols);
+			}
 			int restTime = (int) (downloadTimeout - System.currentTimeMillis() + timeStarted);
 			if (restTime <= 0) {
 				throw new ConnectTimeoutException("Establishing connection took too long than expected [" + downloadTimeout + " millis]");
@@ -541,108 +677,104 @@ public final class HttpDownloader {
 			// Proxy Connect
 			if (isProxyRequest()) {
 				if ("https".equals(requestUrl.getProtocol())) {
-					HttpRequest connectRequest = getConnectRequest(requestUrl.getHost(), 443);
-					connectRequest.addHeader("X-TFRequest", "true");
-					setProxyCloudRequestConfiguration(connectRequest, restTime);
-					getBrowser().setHeaders(connectRequest);
-					setHttpHeaders(connectRequest);
-					if (log.isDebugEnabled() && proxyCloudSupplier != null) {
-						log.debug("[Proxy Cloud Request]\n" + connectRequest.toString(false));
-					}
-					connectRequest.writeTo(socket.getWriter());
-					if (i_spider != null) {
-						i_spider.addBytesSent(connectRequest.bytes());
-					} else {
-						bytesSent += connectRequest.bytes();
+					if (!reused) {
+						HttpRequest connectRequest = getConnectRequest(requestUrl.getHost(), 443);
+						connectRequest.addHeader("X-TFRequest", "true");
+						setProxyCloudRequestConfiguration(connectRequest, restTime);
+						getBrowser().setHeaders(connectRequest);
+						setHttpHeaders(connectRequest);
+						if (log.isDebugEnabled() && proxyCloudSupplier != null) {
+							log.debug("[Proxy Cloud Request]\n" + connectRequest.toString(false));
+						}
+						connectRequest.writeTo(socket.getWriter());
+						addBytesSent(connectRequest.bytes());
+						HttpResponse connectResponse = new HttpResponse();
+						connectResponse.readFrom(socket.getReader(), "HttpDownloader - connectResponse: " + (i_spider == null? "null": i_spider.getSpiderName()));
+						addBytesReceived(connectResponse.bytes());
+						assertProxyResponse(connectResponse);
+						socket = socket.toSecureSocket(requestUrl.getHost(), 443);
+						socket.setReadTimeout(restTime);
+						socket.getReader().setStreamTimeout(restTime);
 					}
-					HttpResponse connectResponse = new HttpResponse();
-					connectResponse.readFrom(socket.getReader(), "HttpDownloader - connectResponse: " + (i_spider == null? "null": i_spider.getSpiderName()));
-					if (i_spider != null) {
-						i_spider.addBytesReceived(connectResponse.bytes());
-					} else {
-						bytesReceived += connectResponse.bytes();
-					}
-					assertProxyResponse(connectResponse);
-					socket = socket.toSecureSocket(requestUrl.getHost(), 443);
-					socket.setReadTimeout(restTime);
-					socket.getReader().setStreamTimeout(restTime);
 					requestUrl.setAbsolute(false);
 				} else {
-					request.addHeader("X-TFRequest", "true");
+					request.setHeader("X-TFRequest", "true");
 					setProxyCloudRequestConfiguration(request, restTime);
 				}
 			}
+			if (!reused && transferStats != null) {
+				transferStats.recordConnect(System.nanoTime() - connectStarted);
+			}
 
 			// Send Request, Read Response
 			// if (log.isDebugEnabled()) log.debug ("[Http Request]", request);
+			long requestStarted = System.nanoTime();
 			if (isPHPProxyRequest()) {
 				HttpRequest phpRequest = generatePHPProxyRequest(request);
 				phpRequest.writeTo(socket.getWriter());
-				if (i_spider != null) {
-					i_spider.addBytesSent(phpRequest.bytes());
-				} else {
-					bytesSent += phpRequest.bytes();
-				}
+				addBytesSent(phpRequest.bytes());
 			} else {
 				if (log.isDebugEnabled() && proxyCloudSupplier != null && !"https".equals(requestUrl.getProtocol())) {
 					log.debug("[Proxy Cloud Request]\n" + request.toString(false));
 				}
 				request.writeTo(socket.getWriter());
-				if (i_spider != null) {
-					i_spider.addBytesSent(request.bytes());
-				} else {
-					bytesSent += request.bytes();
-				}
+				addBytesSent(request.bytes());
 			}
+			requestWritten = true;
 			HttpResponse response = new HttpResponse();
 			if (isPHPProxyRequest()) {
 				response = handlePHPProxyResponse(socket.getReader());
 			} else {
+				// Wait for the first byte, a closed keep-alive connection fails here
+				socket.getReader().mark(1);
+				if (socket.getReader().read() == -1 && reused) {
+					throw new IOException("end of stream reached on pooled connection");
+				}
+				socket.getReader().reset();
+				if (transferStats != null) {
+					transferStats.recordFirstByte(System.nanoTime() - requestStarted);
+				}
+				responseStarted = true;
+				response.setHeadResponse("HEAD".equals(request.getMethod().toString()));
+				response.setContentDecoding(true);
+				response.setContentDeadline(timeStarted + downloadTimeout);
 				response.readFrom(socket.getReader(), "HttpDownloader - response: " + (i_spider == null? "null": i_spider.getSpiderName()));
-				if (i_spider != null) {
-					i_spider.addBytesReceived(response.bytes());
-				} else {
-					bytesReceived += response.bytes();
+				addBytesReceived(response.bytes());
+				if (transferStats != null && response.getDecodeNanos() != 0) {
+					transferStats.recordDecode(response.getDecodeNanos());
 				}
 				if (isProxyRequest()) {
 					assertProxyResponse(response);
 				}
 			}
 			// if (log.isDebugEnabled()) log.debug ("[Http Response]", response);
-			HttpHeader header = response.getHeaderList().getHeader(HttpResponse.HEADER_CONTENT_TYPE);
-			if (header != null) {
-				String contentType = header.getValue().toLowerCase();
-				int indexBegin = contentType.indexOf("charset=");
-				if (indexBegin != -1) {
-					indexBegin += 8;
-					int indexEnd = contentType.indexOf(';', indexBegin);
-					if (indexEnd == -1) {
-						indexEnd = contentType.length();
-					}
-					String charset = contentType.substring(indexBegin, indexEnd);
-					response.getContent().setCharset(charset);
+			setContentCharset(response);
+
+			// Return the connection to the pool if the server keeps it alive
+			if (poolKey != null) {
+				watchinfo.cancel();
+				if (!watchinfo.isTimedOut() && isKeepAlive(request, response) && !socket.getReader().isClosed()) {
+					NetSocketPool.getPool().release(poolKey, socket, getKeepAliveMillis(response));
+					socket = null;
 				}
 			}
-			downloadInProgress = false;
 			return response;
 		} catch (IOException ioe) {
 			if (watchinfo != null && watchinfo.isTimedOut()) {
 				throw new DownloadTimeoutException("Watchdog terminated thread", ioe);
 			}
+			if (ioe instanceof StreamTimeoutException) {
+				throw new DownloadTimeoutException(ioe.getMessage(), ioe);
+			}
+			// Once written, only an idempotent request may be sent again
+			if (reused && !responseStarted && !(ioe instanceof SocketTimeoutException) && (!requestWritten || isIdempotent(request))) {
+				throw new StaleSocketException(ioe);
+			}
 			throw ioe;
 		} finally {
 			if (watchinfo != null) {
 				watchinfo.cancel();
 			}
-			long downloadTime = System.currentTimeMillis() - timeStarted;
-			this.timeToDownload = downloadTime;
-			if (i_spider != null) {
-				i_spider.addDownloadTime(downloadTime);
-				i_spider.addDownload();
-			} else {
-				numberOfDownloads++;
-				durationOfDownloads += downloadTime;
-			}
 			if (socket != null) {
 				socket.close();
 			}
@@ -650,13 +782,156 @@ public final class HttpDownloader {
 		}
 	}
 
+	/**
+	 * Sets the content character set from the Content-Type header of the given response.
+	 * @param response the response.
+	 */
+	static void setContentCharset(HttpResponse response) {
+		HttpHeader header = response.getHeaderList().getHeader(HttpResponse.HEADER_CONTENT_TYPE);
+		if (header != null) {
+			String contentType = header.getValue().toLowerCase();
+			int indexBegin = contentType.indexOf("charset=");
+			if (indexBegin != -1) {
+				indexBegin += 8;
+				int indexEnd = contentType.indexOf(';', indexBegin);
+				if (indexEnd == -1) {
+					indexEnd = contentType.length();
+				}
+				String charset = contentType.substring(indexBegin, indexEnd);
+				response.getContent().setCharset(charset);
+			}
+		}
+	}
+
+	/**
+	 * Returns the keep-alive pool key for this request, or null if the connection should not be pooled.
+	 * @param requestUrl the request URL.
+	 * @param host the host connected to.
+	 * @param port the port connected to.
+	 * @param secure true if the connection is secure.
+	 * @return the pool key or null.
+	 */
+	private NetSocketPool.Key getPoolKey(NetUrl requestUrl, String host, int port, boolean secure) {
+		if (!NetSocketPool.isEnabled() || isPHPProxyRequest()) {
+			return null;
+		}
+		if (isProxyRequest()) {
+			boolean tunnel = "https".equals(requestUrl.getProtocol());
+			if (tunnel) {
+				return new NetSocketPool.Key(requestUrl.getHost(), 443, true, proxyUrl.toString(true));
+			}
+			return new NetSocketPool.Key(host, port, secure, proxyUrl.toString(true));
+		}
+		return new NetSocketPool.Key(host, port, secure, null);
+	}
+
+	/**
+	 * Returns true if the connection can be reused after the given response.
+	 * The response must have no content by its code or request method, or content delimited
+	 * by its length or chunks, and neither side may have asked to close.
+	 * @param request the request.
+	 * @param response the response.
+	 * @return true if the connection can be kept alive.
+	 */
+	private static boolean isKeepAlive(HttpRequest request, HttpResponse response) {
+		if (hasToken(request.getHeaderList().getHeader(HttpRequest.HEADER_CONNECTION), "close")) {
+			return false;
+		}
+		HttpHeader connection = response.getHeaderList().getHeader(HttpResponse.HEADER_CONNECTION);
+		if (hasToken(connection, "close")) {
+			return false;
+		}
+		if (!HttpVersion.VERSION_11.equals(response.getVersion().toString()) && !hasToken(connection, "keep-alive")) {
+			return false;
+		}
+		if (!response.hasContent()) {
+			return true;
+		}
+		if (hasToken(response.getHeaderList().getHeader(HttpResponse.HEADER_TRANSFER_ENCODING), "chunked")) {
+			return true;
+		}
+		return response.getHeaderList().contains(HttpResponse.HEADER_CONTENT_LENGTH);
+	}
+
+	/**
+	 * Returns the keep-alive time (millis) from the Keep-Alive header, or -1 if not given.
+	 * One second is taken off to allow for the server closing first.
+	 * @param response the response.
+	 * @return the keep-alive time.
+	 */
+	private static long getKeepAliveMillis(HttpResponse response) {
+		HttpHeader header = response.getHeaderList().getHeader("Keep-Alive");
+		if (header == null) {
+			return -1;
+		}
+		String value = header.getValue().toLowerCase();
+		int index = value.indexOf("timeout=");
+		if (index == -1) {
+			return -1;
+		}
+		index += 8;
+		int end = index;
+		while (end < value.length() && Character.isDigit(value.charAt(end))) {
+			end++;
+		}
+		try {
+			long seconds = Long.parseLong(value.substring(index, end));
+			return Math.max(0, seconds * 1000 - 1000);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns true if the given comma separated header contains the given token.
+	 * @param header the header, may be null.
+	 * @param token the token.
+	 * @return true if the header contains the token.
+	 */
+	private static boolean hasToken(HttpHeader header, String token) {
+		if (header == null) {
+			return false;
+		}
+		String[] values = header.getValue().split(",");
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the given request can safely be sent twice (GET, HEAD or OPTIONS).
+	 * @param request the request.
+	 * @return true if idempotent.
+	 */
+	private static boolean isIdempotent(HttpRequest request) {
+		String method = request.getMethod().toString();
+		return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+	}
+
+	/**
+	 * Thrown when a pooled keep-alive connection fails before any of the response was read,
+	 * and the request was not written or can be sent again.
+	 */
+	private static final class StaleSocketException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private StaleSocketException(IOException cause) {
+			super(cause.getMessage());
+			initCause(cause);
+		}
+	}
+
 	/**
 	 * Returns the connect request.
 	 * @param host the host.
 	 * @param port the port.
 	 * @return the connect request.
 	 */
-	private HttpRequest getConnectRequest(String host, int port) {
+	HttpRequest getConnectRequest(String host, int port) {
 		String url = host + ':' + port;
 		HttpRequest connectRequest = new HttpRequest(HttpRequest.METHOD_CONNECT, url);
 		return connectRequest;
@@ -683,7 +958,214 @@ public final class HttpDownloader {
 	 * @param downloadTimeout the timeout (millis) to read the response.
 	 */
 	public void download(int downloadTimeout, HttpsProtocol[] protocols) throws IOException, HttpBadRequestException {
-		this.response = download(request, connectRetries, downloadTimeout, protocols);
+		HttpResponseCache cache = (i_isNonBlocking || request == null) ? null : responseCache;
+		if (cache == null) {
+			this.response = downloadHedged(downloadTimeout, protocols);
+			return;
+		}
+
+		// Serve a fresh response locally, revalidate a stale one
+		HttpResponseCache.Entry cached = cache.lookup(request);
+		if (cached != null && cache.isFresh(request, cached)) {
+			this.response = cached.getResponse();
+			return;
+		}
+		boolean conditional = cached != null && cache.addValidators(request, cached);
+		try {
+			HttpResponse response = downloadHedged(downloadTimeout, protocols);
+			this.response = cache.update(request, response, cached);
+		} finally {
+			if (conditional) {
+				cache.removeValidators(request);
+			}
+		}
+	}
+
+	/**
+	 * Downloads the response to the stored request, sending a hedge if the download runs
+	 * slower than most to the same host.
+	 * @param downloadTimeout the timeout (millis) to read the response.
+	 * @param protocols the https protocols.
+	 */
+	private HttpResponse downloadHedged(int downloadTimeout, HttpsProtocol[] protocols) throws IOException, HttpBadRequestException {
+		cancelled = false;
+		long delay = -1;
+		if (!hedge && !i_isNonBlocking && !isPHPProxyRequest() && request != null && request.getMethod().equals(HttpRequest.METHOD_GET)) {
+			String host = request.getUrl().getNetUrl().getHost();
+			if (host != null) {
+				delay = HttpHedging.getDelay(host);
+			}
+		}
+		if (delay < 0 || delay >= downloadTimeout) {
+			return download(request, connectRetries, downloadTimeout, protocols);
+		}
+
+		HttpHedgedDownload hedged = new HttpHedgedDownload(this, copyRequest(request), protocols, System.currentTimeMillis() + downloadTimeout);
+		ScheduledFuture<?> scheduled = HttpHedging.schedule(hedged, delay);
+		try {
+			HttpResponse response = download(request, connectRetries, downloadTimeout, protocols);
+			HttpResponse hedgeResponse = hedged.completed();
+			return (hedgeResponse != null) ? hedgeResponse : response;
+		} catch (IOException ioe) {
+			HttpResponse hedgeResponse;
+			try {
+				hedgeResponse = hedged.failed();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw ioe;
+			}
+			if (hedgeResponse == null) {
+				throw ioe;
+			}
+			return hedgeResponse;
+		} finally {
+			scheduled.cancel(false);
+		}
+	}
+
+	/**
+	 * Returns a new downloader to send the given hedge of this downloader's request.
+	 * @param request the copy of the request.
+	 * @return the downloader.
+	 */
+	HttpDownloader newHedge(HttpRequest request) {
+		HttpDownloader downloader = new HttpDownloader(0, i_spider);
+		downloader.hedge = true;
+		downloader.browser = browser;
+		downloader.headerList = headerList;
+		downloader.maximumRefreshSeconds = maximumRefreshSeconds;
+		downloader.proxyCloudSupplier = proxyCloudSupplier;
+		NetUrl proxy = proxyUrl;
+		if (hedgeProxies != null && hedgeProxies.proxies() > 0) {
+			// The healthier of two proxies, or failing that any other than the request's
+			NetUrl candidate = hedgeProxies.getRandomProxy();
+			if (isSameProxy(candidate, proxyUrl)) {
+				int proxies = hedgeProxies.proxies();
+				int start = core.util.Random.getRandom().nextInt(proxies);
+				for (int i = 0; i < proxies && isSameProxy(candidate, proxyUrl); i++) {
+					candidate = hedgeProxies.getProxy((start + i) % proxies);
+				}
+			}
+			proxy = candidate;
+		}
+		if (proxy != null) {
+			downloader.setProxyUrl(proxy);
+		}
+		downloader.setRequest(request);
+		return downloader;
+	}
+
+	private static boolean isSameProxy(NetUrl proxy1, NetUrl proxy2) {
+		return proxy1 != null && proxy2 != null && proxy1.getHost().equalsIgnoreCase(proxy2.getHost()) && proxy1.getPort() == proxy2.getPort();
+	}
+
+	/**
+	 * Returns a copy of the given request (without content) with an absolute URL.
+	 */
+	private static HttpRequest copyRequest(HttpRequest request) {
+		HttpRequest copy = new HttpRequest(request.getMethod().toString(), request.getUrl().getNetUrl().toString(true), request.getVersion().toString());
+		HttpHeaderList headers = request.getHeaderList();
+		for (int i = 0; i < headers.size(); i++) {
+			HttpHeader header = headers.getHeader(i);
+			copy.addHeader(header.getName(), header.getValue());
+		}
+		return copy;
+	}
+
+	/**
+	 * Cancels the download in progress, closing its connection.
+	 */
+	void cancel() {
+		cancelled = true;
+		NetSocket socket = this.socket;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Downloads the response to the stored request on the non-blocking request threads.
+	 * Returns as soon as the request is queued, the listener is called from the non-blocking
+	 * thread once the response (after any redirects) has been read or the download failed.
+	 * @param downloadTimeout the timeout (millis) to read the response.
+	 * @param protocols the https protocols.
+	 * @param listener the listener.
+	 * @throws Exception if the request could not be queued.
+	 */
+	public void downloadNonBlocking(int downloadTimeout, HttpsProtocol[] protocols, HttpDownloadListener listener) throws Exception {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		if (request == null) {
+			throw new HttpBadRequestException("request not set");
+		}
+		if (downloadTimeout <= 0) {
+			throw new IllegalArgumentException("downloadTimeout should be greater then 0");
+		}
+		if (isPHPProxyRequest()) {
+			throw new HttpBadRequestException("php proxy requests can not be downloaded non-blocking");
+		}
+		downloadInProgress = true;
+		try {
+			NonBlockingRequestThreadManagerFactory.getNonBlockingRequestThreadManager().addRequest(new HttpNonBlockingDownload(this, downloadTimeout, protocols, listener));
+		} catch (Exception e) {
+			downloadInProgress = false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Called by the non-blocking download once it has finished.
+	 * @param downloadTime the time (millis) taken.
+	 */
+	void finishNonBlocking(long downloadTime) {
+		downloadInProgress = false;
+		addDownload(downloadTime);
+	}
+
+	/**
+	 * Adds the given bytes sent to the spider, or to this downloader if there is no spider.
+	 * @param bytes the bytes sent.
+	 */
+	void addBytesSent(long bytes) {
+		if (transferStats != null) {
+			transferStats.addBytesSent(bytes);
+		}
+		if (i_spider != null) {
+			i_spider.addBytesSent(bytes);
+		} else {
+			bytesSent += bytes;
+		}
+	}
+
+	/**
+	 * Adds the given bytes received to the spider, or to this downloader if there is no spider.
+	 * @param bytes the bytes received.
+	 */
+	void addBytesReceived(long bytes) {
+		if (transferStats != null) {
+			transferStats.addBytesReceived(bytes);
+		}
+		if (i_spider != null) {
+			i_spider.addBytesReceived(bytes);
+		} else {
+			bytesReceived += bytes;
+		}
+	}
+
+	/**
+	 * Records a download on the spider, or on this downloader if there is no spider.
+	 * @param downloadTime the time (millis) taken.
+	 */
+	private void addDownload(long downloadTime) {
+		this.timeToDownload = downloadTime;
+		if (i_spider != null) {
+			i_spider.addDownloadTime(downloadTime);
+			i_spider.addDownload();
+		} else {
+			numberOfDownloads++;
+			durationOfDownloads += downloadTime;
+		}
 	}
 
 	/**
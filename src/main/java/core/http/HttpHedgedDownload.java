@@ -0,0 +1,134 @@
+package core.http;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.http.request.HttpRequest;
+import core.http.response.HttpResponse;
+import core.net.HttpsProtocol;
+
+/**
+ * The hedge of one download: a duplicate of the request sent by another downloader once the
+ * original has run past the hedging delay. The first of the two to complete wins and the
+ * other is cancelled.
+ * @see HttpHedging
+ */
+final class HttpHedgedDownload implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpHedgedDownload.class);
+
+	/** Neither download has completed. */
+	private static final int RUNNING = 0;
+	/** The original download completed first. */
+	private static final int ORIGINAL = 1;
+	/** The hedge completed first. */
+	private static final int HEDGE = 2;
+
+	/** The original downloader. */
+	private final HttpDownloader original;
+	/** The hedge downloader, null until the hedge is sent. */
+	private HttpDownloader hedge = null;
+	/** The request. */
+	private final HttpRequest request;
+	/** The https protocols. */
+	private final HttpsProtocol[] protocols;
+	/** The time (millis) by which the download must complete. */
+	private final long deadline;
+	/** The download that completed first. */
+	private int winner = RUNNING;
+	/** Indicates if the hedge has finished, successfully or not. */
+	private boolean finished = false;
+	/** The response of the hedge. */
+	private HttpResponse response = null;
+
+	/**
+	 * Creates a new hedge.
+	 * @param original the original downloader.
+	 * @param request the request.
+	 * @param protocols the https protocols.
+	 * @param deadline the time (millis) by which the download must complete.
+	 */
+	HttpHedgedDownload(HttpDownloader original, HttpRequest request, HttpsProtocol[] protocols, long deadline) {
+		this.original = original;
+		this.request = request;
+		this.protocols = protocols;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Sends the hedge, unless the original has completed or the budget is spent.
+	 */
+	public void run() {
+		HttpDownloader downloader;
+		synchronized (this) {
+			int timeout = (int) (deadline - System.currentTimeMillis());
+			if (winner != RUNNING || timeout <= 0 || !HttpHedging.acquire()) {
+				finished = true;
+				return;
+			}
+			hedge = downloader = original.newHedge(request);
+		}
+		if (log.isDebugEnabled()) log.debug("[Hedge] " + request.getUrl().getNetUrl().toString(true));
+		try {
+			downloader.download((int) (deadline - System.currentTimeMillis()), protocols);
+			synchronized (this) {
+				if (winner == RUNNING) {
+					winner = HEDGE;
+					response = downloader.getResponse();
+					HttpHedging.recordWin();
+					original.cancel();
+				}
+			}
+		} catch (Throwable t) {
+			if (log.isDebugEnabled()) log.debug("[Hedge] failed: " + t.getMessage());
+		} finally {
+			synchronized (this) {
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Called when the original download completes.
+	 * @return the response of the hedge if it completed first, otherwise null.
+	 */
+	synchronized HttpResponse completed() {
+		if (winner == RUNNING) {
+			winner = ORIGINAL;
+			if (hedge != null) {
+				hedge.cancel();
+			}
+		}
+		return (winner == HEDGE) ? response : null;
+	}
+
+	/**
+	 * Called when the original download fails, waits for the hedge if it was sent.
+	 * @return the response of the hedge, or null if the hedge was not sent or failed.
+	 */
+	synchronized HttpResponse failed() throws InterruptedException {
+		if (winner == RUNNING && hedge == null) {
+			// The hedge can no longer be sent
+			winner = ORIGINAL;
+			return null;
+		}
+		while (winner == RUNNING && !finished) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			wait(wait);
+		}
+		if (winner == HEDGE) {
+			return response;
+		}
+		winner = ORIGINAL;
+		if (hedge != null) {
+			hedge.cancel();
+		}
+		return null;
+	}
+}
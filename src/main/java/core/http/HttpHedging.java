@@ -0,0 +1,279 @@
+package core.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.lang.thread.Background;
+import core.util.LatencyHistogram;
+
+/**
+ * Hedges slow requests: when a request has taken longer than most requests to its host, one
+ * duplicate request is sent and whichever response arrives first is used.
+ * <p>
+ * While hedging is enabled, the latency of every download is recorded in a histogram per
+ * host covering its last thousand or so downloads, and hosts left idle are dropped. Once a
+ * host has enough samples, a GET request still running past the given
+ * percentile of its latency (the 95th by default) is hedged. The hedges are capped at a
+ * percentage of the requests, so a host that slows down as a whole does not get twice the
+ * traffic. Hedging is disabled by default.
+ * @see HttpHedgedDownload
+ */
+public final class HttpHedging {
+
+	/** The time (millis) between looking for idle hosts. */
+	private static final long PRUNE_INTERVAL = 60000;
+
+	/** The latencies by host. */
+	private static final ConcurrentMap<String, Latency> LATENCIES = new ConcurrentHashMap<String, Latency>();
+
+	/** The time (millis) a host may be idle before its latencies are dropped. */
+	private static volatile long maximumIdle = 60L * 60 * 1000;
+	/** The time (millis) idle hosts were last looked for. */
+	private static final AtomicLong pruned = new AtomicLong(System.currentTimeMillis());
+
+	/** Indicates if hedging is enabled. */
+	private static volatile boolean enabled = false;
+	/** The latency percentile after which a request is hedged. */
+	private static volatile double percentile = 0.95;
+	/** The hedges allowed per request. */
+	private static volatile double budget = 0.05;
+	/** The minimum number of samples of a host before its requests are hedged. */
+	private static volatile int minimumSamples = 50;
+	/** The minimum delay (millis) before a request is hedged. */
+	private static volatile long minimumDelay = 50;
+
+	/** The maximum number of hedges that may be sent at once after a quiet period. */
+	private static final double MAXIMUM_TOKENS = 10;
+	/** The hedges that may be sent. */
+	private static double tokens = 0;
+	/** The number of hedges sent. */
+	private static long hedges = 0;
+	/** The number of hedges that won. */
+	private static long wins = 0;
+
+	/**
+	 * Enables or disables hedging.
+	 * @param state true to enable.
+	 */
+	public static void setEnabled(boolean state) {
+		enabled = state;
+	}
+
+	/**
+	 * Returns true if hedging is enabled.
+	 * @return true if enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the latency percentile after which a request is hedged.
+	 * @param percentile the percentile (between 0 and 1, exclusive).
+	 */
+	public static void setPercentile(double percentile) {
+		if (percentile <= 0 || percentile >= 1) {
+			throw new IllegalArgumentException("percentile=" + percentile);
+		}
+		HttpHedging.percentile = percentile;
+	}
+
+	/**
+	 * Caps the hedges at the given percentage of the requests.
+	 * @param percent the percentage.
+	 */
+	public static void setBudget(double percent) {
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("percent=" + percent);
+		}
+		budget = percent / 100;
+	}
+
+	/**
+	 * Sets the number of samples of a host and the delay needed before its requests are hedged.
+	 * @param samples the minimum number of samples.
+	 * @param delay the minimum delay (millis).
+	 */
+	public static void setMinimums(int samples, long delay) {
+		if (samples < 1 || delay < 0) {
+			throw new IllegalArgumentException("samples=" + samples + ", delay=" + delay);
+		}
+		minimumSamples = samples;
+		minimumDelay = delay;
+	}
+
+	/**
+	 * Sets the time a host may be idle before its latencies are dropped.
+	 * @param millis the time (millis).
+	 */
+	public static void setMaximumIdle(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("millis=" + millis);
+		}
+		maximumIdle = millis;
+	}
+
+	/**
+	 * Records the latency of a download, if hedging is enabled.
+	 * @param host the host.
+	 * @param millis the latency (millis).
+	 */
+	public static void record(String host, long millis) {
+		if (!enabled) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		prune(now);
+		host = host.toLowerCase();
+		Latency latency = LATENCIES.get(host);
+		if (latency == null) {
+			latency = new Latency();
+			Latency existing = LATENCIES.putIfAbsent(host, latency);
+			if (existing != null) {
+				latency = existing;
+			}
+		}
+		latency.lastUsed = now;
+		latency.record(millis);
+	}
+
+	/**
+	 * Returns the delay after which a request to the given host is hedged, and adds the
+	 * request to the budget.
+	 * @param host the host.
+	 * @return the delay (millis), or -1 if the request is not to be hedged.
+	 */
+	static long getDelay(String host) {
+		if (!enabled) {
+			return -1;
+		}
+		synchronized (HttpHedging.class) {
+			tokens = Math.min(MAXIMUM_TOKENS, tokens + budget);
+		}
+		Latency latency = LATENCIES.get(host.toLowerCase());
+		LatencyHistogram histogram = (latency == null) ? null : latency.getHistogram(minimumSamples);
+		if (histogram == null) {
+			return -1;
+		}
+		return Math.max(minimumDelay, histogram.getPercentile(percentile) / 1000);
+	}
+
+	/**
+	 * Takes a hedge from the budget.
+	 * @return true if a hedge may be sent.
+	 */
+	static synchronized boolean acquire() {
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		hedges++;
+		return true;
+	}
+
+	/**
+	 * Records a hedge that won.
+	 */
+	static synchronized void recordWin() {
+		wins++;
+	}
+
+	/**
+	 * Schedules the given hedge, run on its own thread once the delay has passed.
+	 * @param hedge the hedge.
+	 * @param delay the delay (millis).
+	 * @return the scheduled hedge.
+	 */
+	static ScheduledFuture<?> schedule(final Runnable hedge, long delay) {
+		return Background.getTimer().schedule(new Runnable() {
+
+			public void run() {
+				Background.getWorkers().execute(hedge);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the number of hedges sent.
+	 * @return the number of hedges.
+	 */
+	public static synchronized long getHedges() {
+		return hedges;
+	}
+
+	/**
+	 * Returns the number of hedges that completed before the request they hedged.
+	 * @return the number of wins.
+	 */
+	public static synchronized long getWins() {
+		return wins;
+	}
+
+	/**
+	 * Drops the latencies of idle hosts, at most once per prune interval.
+	 */
+	private static void prune(long now) {
+		long last = pruned.get();
+		if (now - last < PRUNE_INTERVAL || !pruned.compareAndSet(last, now)) {
+			return;
+		}
+		for (Map.Entry<String, Latency> entry : LATENCIES.entrySet()) {
+			Latency latency = entry.getValue();
+			if (now - latency.lastUsed > maximumIdle) {
+				LATENCIES.remove(entry.getKey(), latency);
+			}
+		}
+	}
+
+	private HttpHedging() {
+	}
+
+	/**
+	 * The latencies of a host: a new histogram is started every thousand samples and the
+	 * previous one is kept until the new one has enough samples, so the percentiles follow
+	 * the host.
+	 */
+	private static final class Latency {
+
+		/** The number of samples after which a new histogram is started. */
+		private static final int WINDOW = 1000;
+
+		/** The histogram being recorded. */
+		private volatile LatencyHistogram current = new LatencyHistogram();
+		/** The previous histogram, null if none. */
+		private volatile LatencyHistogram previous = null;
+		/** The samples recorded in the current histogram. */
+		private final AtomicInteger samples = new AtomicInteger();
+		/** The time (millis) a latency was last recorded. */
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private void record(long millis) {
+			current.record(millis * 1000);
+			if (samples.incrementAndGet() == WINDOW) {
+				previous = current;
+				current = new LatencyHistogram();
+				samples.set(0);
+			}
+		}
+
+		/**
+		 * Returns the current histogram, or the previous one if the current has fewer than
+		 * the given samples.
+		 * @param minimum the minimum number of samples.
+		 * @return the histogram, null if neither has enough samples.
+		 */
+		private LatencyHistogram getHistogram(int minimum) {
+			LatencyHistogram histogram = current;
+			if (histogram.getCount() >= minimum) {
+				return histogram;
+			}
+			histogram = previous;
+			return (histogram != null && histogram.getCount() >= minimum) ? histogram : null;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package core.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link HttpHostLimiter} when a request to a host is rejected, either because too
+ * many requests are already waiting or because it could not be sent in time to meet its deadline.
+ * @see HttpHostLimiter
+ */
+public class HttpHostLimitException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public HttpHostLimitException(String message) {
+		super(message);
+	}
+
+}
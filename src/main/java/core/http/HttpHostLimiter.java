@@ -0,0 +1,390 @@
+package core.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the requests in flight to each host.
+ * <p>
+ * The concurrency limit of a host adapts to it (additive increase, multiplicative decrease):
+ * it grows by about one per limit's worth of successful requests while the host is kept busy,
+ * and shrinks when the host answers 429 or 503, when a request fails or times out, or when the
+ * latency climbs well above the lowest latency recently seen. A host may also be given a rate
+ * cap, enforced with a token bucket.
+ * <p>
+ * A request over the limit waits in a bounded queue. It is rejected at once if the queue is
+ * full, or as soon as it can no longer be sent in time to complete before its deadline.
+ * <p>
+ * Limiting is off until enabled. The limiter of a host left idle, with no rate cap, is dropped
+ * after a while and the host starts again from the initial limit.
+ */
+public final class HttpHostLimiter {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpHostLimiter.class);
+
+	/** The limiters by host. */
+	private static final Map<String, HttpHostLimiter> LIMITERS = new ConcurrentHashMap<String, HttpHostLimiter>();
+
+	/** Indicates if limiting is enabled. */
+	private static volatile boolean enabled = false;
+	/** The initial concurrency limit of a host. */
+	private static volatile int initialLimit = 20;
+	/** The minimum concurrency limit of a host. */
+	private static volatile int minimumLimit = 1;
+	/** The maximum concurrency limit of a host. */
+	private static volatile int maximumLimit = 200;
+	/** The maximum number of requests waiting per host. */
+	private static volatile int maximumQueue = 1000;
+
+	/** The factor the limit is multiplied by on a failure. */
+	private static final double BACKOFF = 0.75;
+	/** The factor the limit is multiplied by when the latency climbs. */
+	private static final double LATENCY_BACKOFF = 0.9;
+	/** The multiple of the lowest latency above which the host is congested. */
+	private static final double LATENCY_TOLERANCE = 1.5;
+	/** The time (millis) a limiter may be idle before it is dropped. */
+	private static final long MAXIMUM_IDLE = 10 * 60 * 1000;
+	/** The time (millis) between looking for idle limiters. */
+	private static final long PRUNE_INTERVAL = 60 * 1000;
+
+	/** The time (millis) idle limiters were last looked for. */
+	private static final AtomicLong pruned = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * Enables or disables limiting, requests are not limited while disabled.
+	 * @param state true to enable.
+	 */
+	public static void setEnabled(boolean state) {
+		enabled = state;
+	}
+
+	/**
+	 * Returns true if limiting is enabled.
+	 * @return true if enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the concurrency limits of hosts first used after the call.
+	 * @param initial the initial limit.
+	 * @param minimum the minimum limit.
+	 * @param maximum the maximum limit.
+	 * @param queue the maximum number of requests waiting.
+	 */
+	public static void setLimits(int initial, int minimum, int maximum, int queue) {
+		if (minimum < 1 || initial < minimum || maximum < initial || queue < 0) {
+			throw new IllegalArgumentException("initial=" + initial + ", minimum=" + minimum + ", maximum=" + maximum + ", queue=" + queue);
+		}
+		initialLimit = initial;
+		minimumLimit = minimum;
+		maximumLimit = maximum;
+		maximumQueue = queue;
+	}
+
+	/**
+	 * Caps the request rate to the given host.
+	 * @param host the host.
+	 * @param perSecond the requests per second, zero for no cap.
+	 * @param burst the number of requests that may be sent at once after an idle period.
+	 */
+	public static void setRate(String host, double perSecond, int burst) {
+		if (perSecond < 0 || burst < 1) {
+			throw new IllegalArgumentException("perSecond=" + perSecond + ", burst=" + burst);
+		}
+		getLimiter(host).setRate(perSecond, burst);
+	}
+
+	/**
+	 * Returns the limiter for the given host.
+	 * @param host the host.
+	 * @return the limiter.
+	 */
+	public static HttpHostLimiter getLimiter(String host) {
+		prune(System.currentTimeMillis());
+		host = host.toLowerCase();
+		HttpHostLimiter limiter = LIMITERS.get(host);
+		if (limiter == null) {
+			limiter = new HttpHostLimiter(host);
+			HttpHostLimiter existing = ((ConcurrentHashMap<String, HttpHostLimiter>) LIMITERS).putIfAbsent(host, limiter);
+			if (existing != null) {
+				limiter = existing;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Drops the limiters of idle hosts, at most once per prune interval.
+	 */
+	private static void prune(long now) {
+		long last = pruned.get();
+		if (now - last < PRUNE_INTERVAL || !pruned.compareAndSet(last, now)) {
+			return;
+		}
+		for (Map.Entry<String, HttpHostLimiter> entry : LIMITERS.entrySet()) {
+			HttpHostLimiter limiter = entry.getValue();
+			if (limiter.evictIfIdle(now)) {
+				LIMITERS.remove(entry.getKey());
+			}
+		}
+	}
+
+	/** The host. */
+	private final String host;
+	/** The concurrency limit. */
+	private double limit;
+	/** The requests in flight. */
+	private int inFlight = 0;
+	/** The requests waiting. */
+	private int waiting = 0;
+	/** The lowest latency (millis) recently seen, rises slowly so it follows the host. */
+	private double minimumLatency = 0;
+	/** The smoothed latency (millis). */
+	private double latency = 0;
+	/** The responses since the limit was last decreased, it decreases at most once per limit's worth. */
+	private int sinceDecrease = 0;
+
+	/** The rate (requests per millisecond), zero for no cap. */
+	private double ratePerMilli = 0;
+	/** The bucket size. */
+	private int burst = 1;
+	/** The tokens in the bucket. */
+	private double tokens = 0;
+	/** The time (millis) the bucket was last filled. */
+	private long filled = 0;
+
+	/** The number of requests rejected. */
+	private long rejected = 0;
+	/** The number of requests that failed or were throttled by the host. */
+	private long dropped = 0;
+	/** The time (millis) last used. */
+	private long lastUsed = System.currentTimeMillis();
+	/** Indicates if dropped as idle, requests then go to the host's new limiter. */
+	private boolean evicted = false;
+
+	private HttpHostLimiter(String host) {
+		this.host = host;
+		this.limit = initialLimit;
+		this.sinceDecrease = initialLimit;
+	}
+
+	private synchronized void setRate(double perSecond, int burst) {
+		this.ratePerMilli = perSecond / 1000.0;
+		this.burst = burst;
+		this.tokens = burst;
+		this.filled = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Marks the limiter evicted if it is idle and has no rate cap.
+	 * @return true if evicted.
+	 */
+	private synchronized boolean evictIfIdle(long now) {
+		if (inFlight == 0 && waiting == 0 && ratePerMilli == 0 && now - lastUsed > MAXIMUM_IDLE) {
+			evicted = true;
+		}
+		return evicted;
+	}
+
+	/**
+	 * Waits for a permit to send a request.
+	 * @param deadline the time (millis) by which the request must complete.
+	 * @return the permit, release it once the request completes.
+	 * @throws HttpHostLimitException if the queue is full or the deadline can not be met.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public Permit acquire(long deadline) throws HttpHostLimitException, InterruptedException {
+		HttpHostLimiter limiter = this;
+		while (true) {
+			Permit permit = limiter.acquirePermit(deadline);
+			if (permit != null) {
+				return permit;
+			}
+			limiter = getLimiter(host);
+		}
+	}
+
+	/**
+	 * Waits for a permit to send a request.
+	 * @return the permit, null if the limiter was evicted.
+	 */
+	private synchronized Permit acquirePermit(long deadline) throws HttpHostLimitException, InterruptedException {
+		if (evicted) {
+			return null;
+		}
+		lastUsed = System.currentTimeMillis();
+		if (waiting >= maximumQueue && !canSend(System.currentTimeMillis())) {
+			rejected++;
+			throw new HttpHostLimitException("Too many requests waiting for " + host + " (" + waiting + ")");
+		}
+		waiting++;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (canSend(now)) {
+					break;
+				}
+				// The time remaining must cover the time the request usually takes
+				long wait = deadline - now - (long) latency;
+				if (wait <= 0) {
+					rejected++;
+					throw new HttpHostLimitException("Deadline can not be met for " + host + " (limit " + (int) limit + ", waiting " + waiting + ")");
+				}
+				if (inFlight < (int) limit && ratePerMilli > 0) {
+					wait = Math.min(wait, (long) Math.ceil((1 - tokens) / ratePerMilli));
+				}
+				wait(Math.max(wait, 1));
+			}
+		} finally {
+			waiting--;
+		}
+		inFlight++;
+		if (ratePerMilli > 0) {
+			tokens -= 1;
+		}
+		return new Permit(this, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns true if a request may be sent now.
+	 */
+	private boolean canSend(long now) {
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+		if (ratePerMilli > 0) {
+			tokens = Math.min(burst, tokens + (now - filled) * ratePerMilli);
+			filled = now;
+			return tokens >= 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases a permit and adapts the limit to the outcome.
+	 */
+	private synchronized void release(long millis, boolean failed) {
+		boolean saturated = inFlight >= limit / 2;
+		boolean decrease = ++sinceDecrease >= (int) limit;
+		inFlight--;
+		lastUsed = System.currentTimeMillis();
+		if (failed) {
+			dropped++;
+			if (decrease) {
+				limit = Math.max(minimumLimit, limit * BACKOFF);
+				sinceDecrease = 0;
+				if (log.isDebugEnabled()) log.debug("[Host Limit] " + host + " failure, limit " + (int) limit);
+			}
+		} else {
+			latency = (latency == 0) ? millis : latency * 0.9 + millis * 0.1;
+			minimumLatency = (minimumLatency == 0 || millis < minimumLatency) ? millis : minimumLatency * 1.0001;
+			if (latency > minimumLatency * LATENCY_TOLERANCE && millis > minimumLatency * LATENCY_TOLERANCE) {
+				if (decrease) {
+					limit = Math.max(minimumLimit, limit * LATENCY_BACKOFF);
+					sinceDecrease = 0;
+					if (log.isDebugEnabled()) log.debug("[Host Limit] " + host + " latency " + (long) latency + "ms, limit " + (int) limit);
+				}
+			} else if (saturated) {
+				limit = Math.min(maximumLimit, limit + 1 / limit);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns the host.
+	 * @return the host.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the current concurrency limit.
+	 * @return the limit.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 * @return the number in flight.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of requests waiting.
+	 * @return the number waiting.
+	 */
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * Returns the number of requests rejected.
+	 * @return the number rejected.
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Returns the number of requests that failed or were throttled by the host.
+	 * @return the number dropped.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return host + " (limit=" + (int) limit + ", inFlight=" + inFlight + ", waiting=" + waiting + ", latency=" + (long) latency + "ms, rejected=" + rejected + ", dropped=" + dropped + ")";
+	}
+
+	/**
+	 * A permit to send one request.
+	 */
+	public static final class Permit {
+
+		/** The limiter. */
+		private final HttpHostLimiter limiter;
+		/** The time (millis) the request started. */
+		private final long started;
+		/** Indicates if released. */
+		private boolean released = false;
+
+		private Permit(HttpHostLimiter limiter, long started) {
+			this.limiter = limiter;
+			this.started = started;
+		}
+
+		/**
+		 * Releases the permit after a response.
+		 * @param code the response code.
+		 */
+		public void release(int code) {
+			release(code == 429 || code == 503);
+		}
+
+		/**
+		 * Releases the permit.
+		 * @param failed true if the request failed, timed out or was throttled by the host.
+		 */
+		public synchronized void release(boolean failed) {
+			if (!released) {
+				released = true;
+				limiter.release(System.currentTimeMillis() - started, failed);
+			}
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package core.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +15,7 @@ import org.slf4j.LoggerFactory;
 import core.io.StreamOutput;
 import core.io.StreamReader;
 import core.io.StreamWriter;
+import core.io.TimeoutException;
 import core.lang.Hex;
 import core.mime.MimeTypes;
 import core.text.Text;
@@ -31,11 +36,48 @@ public abstract class HttpMessage implements Http, HttpMessageHeaderList, HttpVe
 	private static final Logger log = LoggerFactory.getLogger(HttpMessage.class);
 
 	private Boolean isMultibyteWrite = null;
+	/** Indicates if gzip content is decoded as it is read. */
+	private boolean contentDecoding = false;
+	/** The time (millis) by which the content must have been read, or 0 for none. */
+	private long contentDeadline = 0;
+	/** The time (nanos) spent decoding the content, excluding reading it. */
+	private long decodeNanos = 0;
+
+	/** The content buffer size. */
+	private static final int CONTENT_BUFFER_SIZE = 8192;
+	/** The maximum initial content buffer size. */
+	private static final int MAXIMUM_CONTENT_SIZE_HINT = 4 * 1024 * 1024;
 
 	public void setStrictMode(boolean strict) {
 		this.strictMode = strict;
 	}
 
+	/**
+	 * Sets whether gzip content is decoded as it is read. The Content-Encoding header is
+	 * removed from a decoded message.
+	 * @param decode true to decode gzip content.
+	 */
+	public void setContentDecoding(boolean decode) {
+		this.contentDecoding = decode;
+	}
+
+	/**
+	 * Sets the time by which the content must have been read.
+	 * @param deadline the time (millis), or 0 for none.
+	 */
+	public void setContentDeadline(long deadline) {
+		this.contentDeadline = deadline;
+	}
+
+	/**
+	 * Returns the time spent decoding the content, excluding the time reading the encoded
+	 * bytes.
+	 * @return the time (nanos), zero if the content was not decoded.
+	 */
+	public long getDecodeNanos() {
+		return decodeNanos;
+	}
+
 	/**
 	 * Returns the first title.
 	 * @return the first title.
@@ -349,58 +391,134 @@ public abstract class HttpMessage implements Http, HttpMessageHeaderList, HttpVe
 		}
 	}
 
-	private static final void readChunkedEncoding(StreamReader in, ByteArrayOutputStream out) throws IOException {
-		while (true) {
-
-			// Read HEX data size
-			String line = in.readLine();
-			int index = 0;
-			for (int i = 0; i < line.length(); i++) {
-				char c = line.charAt(i);
-				if (!Hex.isHexDigit(c)) {
-					break;
-				}
-				index++;
-			}
-			int length = Integer.parseInt(line.substring(0, index), 16);
-			if (length == 0) {
-				break;
-			}
-
-			byte[] data = in.readToByteArray(length);
-			out.write(data, 0, length);
-			in.readLineBytes();
-		}
+	/**
+	 * Returns true if content may follow the headers of this message.
+	 * @return true if this message may have content.
+	 */
+	protected boolean hasContent() {
+		return true;
 	}
 
 	/**
 	 * Read the content from the given input.
+	 * <p>
+	 * The content is read in a single pass: the framing (content length, chunked transfer
+	 * encoding or end of stream) is removed as the bytes arrive, into one buffer. If content
+	 * decoding is enabled, gzip content is then inflated from that buffer.
 	 * @param in the input.
 	 * @throws IOException if an IO error occurs reading the title.
 	 */
 	protected void readFromContent(StreamReader in) throws IOException {
+		if (!hasContent()) {
+			return;
+		}
 		int contentLength = readFromContentLength();
-		if (contentLength >= 0) {
-			if (contentLength == 0) {
-
-				// HTTP 1.1 Chunked Transfer Encoding (only supports empty content)
-				for (int i = 0; i < getHeaderList().size(); i++) {
-					HttpHeader header = getHeaderList().getHeader(i);
-					if (header.getName().equals(HEADER_TRANSFER_ENCODING)) {
-						if (header.getValue().equalsIgnoreCase("chunked")) {
-							ByteArrayOutputStream out = new ByteArrayOutputStream();
-							readChunkedEncoding(in, out);
-							content.set(out.toByteArray());
-							return;
-						}
+		if (contentLength < 0) {
+			return;
+		}
+
+		// HTTP 1.1 Chunked Transfer Encoding
+		boolean chunked = false;
+		if (contentLength == 0) {
+			for (int i = 0; i < getHeaderList().size(); i++) {
+				HttpHeader header = getHeaderList().getHeader(i);
+				if (header.getName().equals(HEADER_TRANSFER_ENCODING)) {
+					if (header.getValue().equalsIgnoreCase("chunked")) {
+						chunked = true;
 					}
 				}
+			}
+		}
+		HttpContentInputStream framed = new HttpContentInputStream(in, contentLength == 0 ? -1 : contentLength, chunked, contentDeadline);
+		boolean gzip = contentDecoding && isGzipEncoded();
+
+		// Content Length (read straight into the final array)
+		if (contentLength > 0) {
+			byte[] bytes = new byte[contentLength];
+			int offset = 0;
+			while (offset < contentLength) {
+				offset += framed.read(bytes, offset, contentLength - offset);
+			}
+			content.set(bytes);
+		} else {
+			// Chunked or end of stream
+			boolean throwException = strictMode || chunked;
+			content.set(readToByteArray(framed, CONTENT_BUFFER_SIZE, throwException));
+		}
+		if (gzip) {
+			decodeContent();
+		}
+	}
+
+	/**
+	 * Inflates gzip content in place, from the buffer holding the encoded bytes. The
+	 * Content-Encoding header is removed from a decoded message. Content that does not inflate
+	 * is kept encoded, as it came, with its header.
+	 * @return true if the content was decoded.
+	 */
+	public final boolean decodeContent() {
+		if (!isGzipEncoded()) {
+			return false;
+		}
+		long decodeStart = System.nanoTime();
+		byte[] encoded = content.toByteArray();
+		int sizeHint = Math.min(Math.max(encoded.length * 4, CONTENT_BUFFER_SIZE), MAXIMUM_CONTENT_SIZE_HINT);
+		byte[] decoded;
+		try {
+			decoded = readToByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded), CONTENT_BUFFER_SIZE), sizeHint, true);
+		} catch (IOException ioe) {
+			// Corrupt or cut short, keep the content as it came like the old gunzip did
+			if (log.isDebugEnabled()) log.debug("[GZIP] unable to decode content, kept encoded: " + ioe.getMessage());
+			return false;
+		}
+		decodeNanos = System.nanoTime() - decodeStart;
+		content.set(decoded);
+		getHeaderList().removeHeader(HEADER_CONTENT_ENCODING);
+		if (getHeaderList().contains(HEADER_CONTENT_LENGTH)) {
+			getHeaderList().set(new HttpHeader(HEADER_CONTENT_LENGTH, String.valueOf(decoded.length)));
+		}
+		return true;
+	}
 
-				content.set(in.readToByteArray(strictMode));
-			} else {
-				content.set(in.readToByteArray(contentLength));
+	/**
+	 * Returns true if the content is gzip encoded.
+	 * @return true if the content is gzip encoded.
+	 */
+	public final boolean isGzipEncoded() {
+		HttpHeader header = getHeaderList().getHeader(HEADER_CONTENT_ENCODING);
+		return header != null && header.getValue().toLowerCase().indexOf("gzip") != -1;
+	}
+
+	/**
+	 * Reads the given input to the end into a single growing buffer.
+	 * @param input the input.
+	 * @param sizeHint the initial buffer size.
+	 * @param throwException false to return the bytes read so far if an IO error (other than a timeout) occurs.
+	 * @return the bytes read.
+	 */
+	private static final byte[] readToByteArray(InputStream input, int sizeHint, boolean throwException) throws IOException {
+		byte[] buffer = new byte[sizeHint];
+		int count = 0;
+		try {
+			while (true) {
+				if (count == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				int read = input.read(buffer, count, buffer.length - count);
+				if (read == -1) {
+					break;
+				}
+				count += read;
 			}
+		} catch (IOException ioe) {
+			if (throwException || ioe instanceof TimeoutException) {
+				throw ioe;
+			}
+		}
+		if (count == buffer.length) {
+			return buffer;
 		}
+		return Arrays.copyOf(buffer, count);
 	}
 
 	/**
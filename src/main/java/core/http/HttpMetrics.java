@@ -0,0 +1,199 @@
+package core.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.util.MBeans;
+
+/**
+ * The registry of transfer statistics, by supplier and host.
+ * <p>
+ * Each supplier and host gets its {@link HttpTransferStats} on its first download, exposed as
+ * an MBean named <code>core.http:type=HttpTransfer,supplier=...,host=...</code> on the platform
+ * MBean server. The statistics can be logged periodically, and served as plain text by an
+ * {@link HttpMetricsServer}.
+ * <p>
+ * The registry is bounded: the statistics of a host idle for longer than the maximum idle
+ * time are dropped and their MBean unregistered, and once the registry is full the hosts not
+ * yet seen are counted together under the supplier's {@link #OTHER_HOSTS}.
+ */
+public final class HttpMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpMetrics.class);
+
+	/** The supplier of downloads made outside a spider. */
+	public static final String NO_SUPPLIER = "-";
+	/** The host the hosts past the maximum are counted under. */
+	public static final String OTHER_HOSTS = "*";
+
+	/** The maximum number of statistics. */
+	private static final int MAXIMUM_STATS = 4096;
+	/** The time (millis) between looking for idle hosts. */
+	private static final long PRUNE_INTERVAL = 60000;
+
+	/** The time (millis) a host may be idle before its statistics are dropped. */
+	private static volatile long maximumIdle = 60L * 60 * 1000;
+	/** The time (millis) idle hosts were last looked for. */
+	private static final AtomicLong pruned = new AtomicLong(System.currentTimeMillis());
+
+	/** The statistics by supplier and host. */
+	private static final ConcurrentMap<String, HttpTransferStats> STATS = new ConcurrentHashMap<String, HttpTransferStats>();
+
+	/** Orders the statistics by bytes received, the heaviest first. */
+	private static final Comparator<HttpTransferStats> BY_BYTES = new Comparator<HttpTransferStats>() {
+
+		public int compare(HttpTransferStats stats1, HttpTransferStats stats2) {
+			long bytes1 = stats1.getBytesReceived() + stats1.getBytesSent();
+			long bytes2 = stats2.getBytesReceived() + stats2.getBytesSent();
+			return (bytes1 < bytes2) ? 1 : (bytes1 == bytes2 ? 0 : -1);
+		}
+	};
+
+	/** The scheduled snapshot, null if not logging. */
+	private static ScheduledFuture<?> snapshot = null;
+
+	/**
+	 * Returns the statistics of the given supplier and host.
+	 * @param supplier the supplier, null if none.
+	 * @param host the host, null if unknown.
+	 * @return the statistics.
+	 */
+	public static HttpTransferStats get(String supplier, String host) {
+		if (supplier == null) {
+			supplier = NO_SUPPLIER;
+		}
+		host = (host == null) ? "-" : host.toLowerCase();
+		long now = System.currentTimeMillis();
+		prune(now);
+		String key = supplier + ' ' + host;
+		HttpTransferStats stats = STATS.get(key);
+		if (stats == null) {
+			if (STATS.size() >= MAXIMUM_STATS) {
+				host = OTHER_HOSTS;
+				key = supplier + ' ' + host;
+				stats = STATS.get(key);
+			}
+			if (stats == null) {
+				stats = new HttpTransferStats(supplier, host);
+				HttpTransferStats existing = STATS.putIfAbsent(key, stats);
+				if (existing != null) {
+					stats = existing;
+				} else {
+					registerBean(stats);
+				}
+			}
+		}
+		stats.setLastUsed(now);
+		return stats;
+	}
+
+	/**
+	 * Sets the time a host may be idle before its statistics are dropped.
+	 * @param millis the time (millis).
+	 */
+	public static void setMaximumIdle(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("millis=" + millis);
+		}
+		maximumIdle = millis;
+	}
+
+	/**
+	 * Returns the statistics of every supplier and host, the most bytes transferred first.
+	 * @return the statistics.
+	 */
+	public static List<HttpTransferStats> getAll() {
+		prune(System.currentTimeMillis());
+		List<HttpTransferStats> all = new ArrayList<HttpTransferStats>(STATS.values());
+		Collections.sort(all, BY_BYTES);
+		return all;
+	}
+
+	/**
+	 * Returns the statistics of every supplier and host as plain text, one line each.
+	 * @return the text.
+	 */
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		for (HttpTransferStats stats : getAll()) {
+			text.append(stats).append("\r\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Resets the statistics of every supplier and host.
+	 */
+	public static void reset() {
+		for (HttpTransferStats stats : STATS.values()) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * Logs the statistics of every supplier and host at the given interval.
+	 * @param millis the interval (millis), zero to stop logging.
+	 */
+	public static synchronized void setLogInterval(long millis) {
+		snapshot = MBeans.schedule(snapshot, millis, new Runnable() {
+
+			public void run() {
+				logSnapshot();
+			}
+		});
+	}
+
+	/**
+	 * Logs the statistics of every supplier and host.
+	 */
+	public static void logSnapshot() {
+		if (log.isInfoEnabled()) {
+			for (HttpTransferStats stats : getAll()) {
+				log.info("[Http Transfer] " + stats);
+			}
+		}
+	}
+
+	/**
+	 * Drops the statistics of idle hosts, at most once per prune interval.
+	 */
+	private static void prune(long now) {
+		long last = pruned.get();
+		if (now - last < PRUNE_INTERVAL || !pruned.compareAndSet(last, now)) {
+			return;
+		}
+		for (Map.Entry<String, HttpTransferStats> entry : STATS.entrySet()) {
+			HttpTransferStats stats = entry.getValue();
+			if (now - stats.getLastUsed() > maximumIdle && STATS.remove(entry.getKey(), stats)) {
+				unregisterBean(stats);
+			}
+		}
+	}
+
+	private static String getBeanName(HttpTransferStats stats) {
+		return "core.http:type=HttpTransfer,supplier=" + ObjectName.quote(stats.getSupplier()) + ",host=" + ObjectName.quote(stats.getHost());
+	}
+
+	private static void registerBean(HttpTransferStats stats) {
+		MBeans.register(stats, getBeanName(stats));
+	}
+
+	private static void unregisterBean(HttpTransferStats stats) {
+		MBeans.unregister(getBeanName(stats));
+	}
+
+	private HttpMetrics() {
+	}
+}
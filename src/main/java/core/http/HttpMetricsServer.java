@@ -0,0 +1,191 @@
+package core.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.nioservice.HttpHandler;
+import core.nioservice.NioHandler;
+import core.nioservice.NioHandlerManager;
+import core.nioservice.NioServer;
+import core.nioservice.NioService;
+import core.nioservice.http.HttpRequest;
+import core.text.Charsets;
+
+/**
+ * Serves the {@link HttpMetrics} as plain text over HTTP, one line per supplier and host,
+ * the most bytes transferred first. Every connection gets a single response and is closed.
+ */
+public class HttpMetricsServer extends NioServer {
+
+	/**
+	 * Creates a new metrics server, start it on a thread of its own.
+	 * @param hostAddress the address to listen on, null for any.
+	 * @param port the port.
+	 */
+	public HttpMetricsServer(InetAddress hostAddress, int port) throws IOException {
+		super(hostAddress, port, new ThreadPoolExecutor(1, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>()), null);
+		setHandlerManager(new HttpMetricsHandlerManager(this));
+	}
+
+	/**
+	 * Starts a metrics server on the given port.
+	 * @param port the port.
+	 * @return the server.
+	 */
+	public static HttpMetricsServer start(int port) throws IOException {
+		HttpMetricsServer server = new HttpMetricsServer(null, port);
+		Thread thread = new Thread(server, "HttpMetricsServer-" + port);
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+
+	@Override
+	protected void writeFinished(SocketChannel socketChannel, NioHandler handler) {
+		// One response per connection
+		handlerManager.terminateHandler(socketChannel, handler);
+	}
+
+	@Override
+	protected ThreadPoolExecutor getExecutor() {
+		return (ThreadPoolExecutor) executor;
+	}
+
+	@Override
+	protected int getActiveCount() {
+		return getExecutor().getActiveCount();
+	}
+
+	@Override
+	protected int getPoolSize() {
+		return getExecutor().getPoolSize();
+	}
+
+	@Override
+	protected int getQueueSize() {
+		return getExecutor().getQueue().size();
+	}
+
+	@Override
+	protected void shutdownExecutor() {
+		getExecutor().shutdownNow();
+	}
+
+	@Override
+	protected void shutdownComplete() {
+		// Do nothing
+	}
+}
+
+class HttpMetricsHandler extends HttpHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpMetricsHandler.class);
+
+	HttpMetricsHandler(NioService service, SocketChannel channel) {
+		super(service, channel, new HttpRequest());
+	}
+
+	@Override
+	protected void handleHttpMessage() throws Exception {
+		byte[] content = HttpMetrics.toText().getBytes(Charsets.UTF_8);
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.0 200 OK\r\n");
+		head.append("Content-Type: text/plain; charset=UTF-8\r\n");
+		head.append("Content-Length: ").append(content.length).append("\r\n");
+		head.append("Connection: close\r\n\r\n");
+		httpMessage.reset();
+		httpMessage.get().write(head.toString().getBytes(Charsets.SYSTEM));
+		httpMessage.get().write(content);
+		send();
+	}
+
+	@Override
+	protected void handleException() {
+		if (log.isDebugEnabled()) log.debug("[Http Metrics] " + exception);
+		service.getHandlerManager().terminateHandler(channel, this);
+	}
+
+	@Override
+	protected void doCleanup() {
+		// Closed once written
+	}
+
+	@Override
+	protected NioService getService() {
+		return service;
+	}
+}
+
+class HttpMetricsHandlerManager implements NioHandlerManager {
+
+	private final HttpMetricsServer server;
+	private final Map<SocketChannel, NioHandler> handlers = new ConcurrentHashMap<SocketChannel, NioHandler>();
+
+	HttpMetricsHandlerManager(HttpMetricsServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public NioHandler newHandler(SocketChannel socketChannel, long acceptTime) {
+		NioHandler handler = new HttpMetricsHandler(server, socketChannel);
+		handlers.put(socketChannel, handler);
+		return handler;
+	}
+
+	@Override
+	public NioHandler getHandler(SocketChannel socketChannel) {
+		return handlers.get(socketChannel);
+	}
+
+	@Override
+	public Map<SocketChannel, NioHandler> getHandlers() {
+		return handlers;
+	}
+
+	@Override
+	public void registerHandler(SocketChannel socket, NioHandler handler) {
+		handlers.put(socket, handler);
+	}
+
+	@Override
+	public void terminateHandler(SocketChannel socketChannel, NioHandler handler) {
+		NioHandler removed = (socketChannel == null) ? null : handlers.remove(socketChannel);
+		if (removed == null) {
+			removed = handler;
+		}
+		if (removed != null) {
+			removed.terminate();
+		}
+	}
+
+	@Override
+	public void terminate() {
+		for (Iterator<SocketChannel> iterator = handlers.keySet().iterator(); iterator.hasNext();) {
+			terminateHandler(iterator.next(), null);
+		}
+	}
+
+	@Override
+	public void terminateFailedHandlers() {
+		for (Map.Entry<SocketChannel, NioHandler> entry : handlers.entrySet()) {
+			if (entry.getValue().getException() != null) {
+				terminateHandler(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	@Override
+	public String getStatsString() {
+		return "";
+	}
+}
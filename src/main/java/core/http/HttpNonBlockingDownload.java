@@ -0,0 +1,871 @@
+package core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.http.request.HttpRequest;
+import core.http.response.HttpResponse;
+import core.io.ConnectTimeoutException;
+import core.io.DownloadTimeoutException;
+import core.io.StreamWriter;
+import core.lang.thread.Background;
+import core.net.HttpsProtocol;
+import core.net.NetHostResolver;
+import core.net.NetSecureSocketFactory;
+import core.net.NetSocket;
+import core.net.NetUrl;
+import core.nonblocking.NonBlockingRequestHandler;
+import core.nonblocking.NonBlockingRequestThread;
+import core.text.Charsets;
+
+/**
+ * A non-blocking HTTP download.
+ * <p>
+ * Downloads the request held by an {@link HttpDownloader} on a {@link NonBlockingRequestThread}:
+ * the connect, proxy CONNECT tunnel, TLS handshake (through an {@link SSLEngine}), request and
+ * response are all driven by selector events, so no thread waits on the network. The host
+ * lookup, the delegated TLS tasks and the gzip decoding of the content, which may block or be
+ * slow, run on the {@link Background} workers, which wake the selector when done. The
+ * response is parsed incrementally by an {@link HttpResponseParser}, gzip content is decoded
+ * (kept encoded if it does not inflate) and redirects are followed as directed by the {@link HttpDownloadListener}, which is told once the
+ * download has completed or failed.
+ * <p>
+ * PHP proxy requests are not supported.
+ */
+public final class HttpNonBlockingDownload implements NonBlockingRequestHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpNonBlockingDownload.class);
+
+	/** Resolving the server or proxy address. */
+	private static final int STATE_RESOLVING = 0;
+	/** Connecting to the server or proxy. */
+	private static final int STATE_CONNECTING = 1;
+	/** Performing the TLS handshake. */
+	private static final int STATE_HANDSHAKING = 2;
+	/** Sending the request. */
+	private static final int STATE_SENDING = 3;
+	/** Receiving the response. */
+	private static final int STATE_RECEIVING = 4;
+	/** Finished. */
+	private static final int STATE_FINISHED = 5;
+
+	/** The buffer size for plain connections. */
+	private static final int BUFFER_SIZE = 16384;
+	/** An empty buffer for handshake wraps. */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/** The downloader. */
+	private final HttpDownloader downloader;
+	/** The listener. */
+	private final HttpDownloadListener listener;
+	/** The https protocols, or null for the defaults. */
+	private final HttpsProtocol[] protocols;
+	/** The timeout (millis) to download the response, including redirects. */
+	private final int downloadTimeout;
+	/** The socket (idle) timeout (millis). */
+	private int socketTimeout;
+	/** The selector, read by the workers to wake it. */
+	private volatile Selector selector = null;
+	/** The non-blocking thread. */
+	private NonBlockingRequestThread thread = null;
+	/** The channel. */
+	private SocketChannel channel = null;
+	/** The selection key. */
+	private SelectionKey key = null;
+	/** The TLS engine, or null for a plain connection. */
+	private SSLEngine engine = null;
+	/** The bytes read from the channel. */
+	private ByteBuffer netIn = null;
+	/** The bytes to write to the channel. */
+	private ByteBuffer netOut = null;
+	/** The decrypted bytes read. */
+	private ByteBuffer appIn = null;
+	/** The request bytes to send. */
+	private ByteBuffer appOut = null;
+	/** The response parser. */
+	private HttpResponseParser parser = null;
+	/** The state. */
+	private int state = STATE_RESOLVING;
+	/** The resolved address, set by the lookup. */
+	private volatile InetSocketAddress address = null;
+	/** The lookup failure, set by the lookup. */
+	private volatile IOException lookupFailure = null;
+	/** Indicates if the lookup has completed. */
+	private volatile boolean resolved = false;
+	/** Indicates if delegated TLS tasks are running on a worker. */
+	private volatile boolean delegating = false;
+	/** Indicates if the download waits for delegated TLS tasks. */
+	private boolean awaitingTasks = false;
+	/** Indicates if the content is being decoded on a worker. */
+	private volatile boolean decoding = false;
+	/** Indicates if the download waits for the content to be decoded. */
+	private boolean awaitingDecode = false;
+	/** Indicates if the connection is secure. */
+	private boolean secure = false;
+	/** Indicates if the request is tunnelled through the proxy. */
+	private boolean tunnel = false;
+	/** Indicates if the proxy CONNECT response is awaited. */
+	private boolean tunnelling = false;
+	/** The TLS host. */
+	private String host = null;
+	/** The TLS port. */
+	private int port = -1;
+	/** The throwable. */
+	private Throwable throwable = null;
+	/** The time started. */
+	private long timeStarted = 0;
+	/** The time the current connect started. */
+	private long timeConnectStarted = 0;
+	/** The time of the last network activity. */
+	private long timeLastActivity = 0;
+	/** The time the request was added. */
+	private long timeAdded = 0;
+	/** The time the execution timer was started. */
+	private long timerStarted = 0;
+	/** The total execution time. */
+	private long executionTime = 0;
+
+	/**
+	 * Creates a new non-blocking download.
+	 * @param downloader the downloader holding the request.
+	 * @param downloadTimeout the timeout (millis) to download the response.
+	 * @param protocols the https protocols, or null for the defaults.
+	 * @param listener the listener.
+	 */
+	public HttpNonBlockingDownload(HttpDownloader downloader, int downloadTimeout, HttpsProtocol[] protocols, HttpDownloadListener listener) {
+		if (downloader == null || listener == null) {
+			throw new NullPointerException();
+		}
+		if (downloadTimeout <= 0) {
+			throw new IllegalArgumentException("downloadTimeout=" + downloadTimeout);
+		}
+		this.downloader = downloader;
+		this.listener = listener;
+		this.protocols = protocols;
+		this.downloadTimeout = downloadTimeout;
+		this.socketTimeout = downloadTimeout;
+		this.timeAdded = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the total time (millis) spent executing on the non-blocking thread.
+	 * @return the execution time.
+	 */
+	public long getExecutionTime() {
+		return executionTime;
+	}
+
+	public void startRequest() throws Throwable {
+		timeStarted = System.currentTimeMillis();
+		connect();
+	}
+
+	public void register(Selector p_selector, NonBlockingRequestThread p_manager) throws ClosedChannelException {
+		this.selector = p_selector;
+		this.thread = p_manager;
+		register();
+	}
+
+	public void connectToServer(SelectionKey p_key) throws Exception {
+		process();
+	}
+
+	public void readData(SelectionKey p_key) throws Throwable {
+		process();
+	}
+
+	public void writeData(SelectionKey p_key) throws IOException {
+		process();
+	}
+
+	public void setThrowableOnTask(Throwable p_throwable) {
+		this.throwable = p_throwable;
+	}
+
+	public void finishRequest() throws Exception {
+		Throwable t = throwable;
+		if (t == null) {
+			t = new IOException("request finished without a response");
+		}
+		finish(t);
+	}
+
+	public void setSocketTimeout(int p_socketTimeout) {
+		this.socketTimeout = p_socketTimeout;
+	}
+
+	public void checkForTimeout() {
+		if (state == STATE_FINISHED) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - timeStarted >= downloadTimeout) {
+			finish(new DownloadTimeoutException("Download timed out after " + (now - timeStarted) + " millis [" + downloadTimeout + " millis]"));
+		} else if (awaitingDecode) {
+			// Idle while decoding, the worker wakes the selector when done
+			if (!decoding) {
+				awaitingDecode = false;
+				try {
+					decoded(parser.getResponse());
+				} catch (Throwable t) {
+					finish(t);
+				}
+			}
+		} else if ((state == STATE_RESOLVING && resolved) || (awaitingTasks && !delegating)) {
+			// The worker woke the selector, which checks every idle key
+			try {
+				if (state == STATE_RESOLVING) {
+					startConnect();
+				} else {
+					awaitingTasks = false;
+					process();
+				}
+			} catch (Throwable t) {
+				finish(t);
+			}
+		} else if ((state == STATE_RESOLVING || state == STATE_CONNECTING) && now - timeConnectStarted >= Math.min(downloadTimeout, HttpDownloader.CONNECTION_TIMEOUT)) {
+			finish(new ConnectTimeoutException(host + ":" + port + " (secure? " + secure + ") " + ((now - timeConnectStarted) / 1000) + " secs timedout"));
+		} else if (socketTimeout > 0 && now - timeLastActivity >= socketTimeout) {
+			finish(new SocketTimeoutException("Read timed out after " + (now - timeLastActivity) + " millis"));
+		}
+	}
+
+	public void startTimer() {
+		timerStarted = System.currentTimeMillis();
+	}
+
+	public void stopTimer() {
+		executionTime += System.currentTimeMillis() - timerStarted;
+	}
+
+	public void setRequestAdded(long p_time) {
+		this.timeAdded = p_time;
+	}
+
+	public long getRequestLatency() {
+		if (timeStarted == 0) {
+			return 0;
+		}
+		return timeStarted - timeAdded;
+	}
+
+	/**
+	 * Opens a channel and starts resolving the server (or proxy) of the current request, the
+	 * connect starts once resolved.
+	 */
+	private void connect() throws IOException {
+		HttpRequest request = downloader.getRequest();
+		NetUrl requestUrl = request.getUrl().getNetUrl();
+		NetUrl proxyUrl = downloader.getProxyUrl();
+
+		// Target
+		host = requestUrl.getHost();
+		if (host == null) {
+			throw new IOException("Missing host in URL: \"" + requestUrl.toString(true) + "\"");
+		}
+		port = requestUrl.getPort();
+		secure = (port == 443);
+		if ("https".equals(requestUrl.getProtocol())) {
+			secure = true;
+			if (port == 80 || port == -1) {
+				port = 443;
+			}
+		}
+		if (port == -1) {
+			throw new IOException("Missing port in URL: \"" + requestUrl.toString(true) + "\"");
+		}
+
+		// Connect to the proxy or the target
+		String connectHost = host;
+		int connectPort = port;
+		tunnel = false;
+		if (proxyUrl != null) {
+			connectHost = proxyUrl.getHost();
+			connectPort = proxyUrl.getPort();
+			tunnel = "https".equals(requestUrl.getProtocol());
+			if (tunnel) {
+				port = 443;
+				requestUrl.setAbsolute(false);
+			} else {
+				secure = false;
+				requestUrl.setAbsolute(true);
+				request.setHeader("X-TFRequest", "true");
+				downloader.setProxyCloudRequestConfiguration(request, getRestTime());
+			}
+		} else {
+			requestUrl.setAbsolute(false);
+		}
+
+		if (log.isDebugEnabled()) log.debug("[Connect] " + connectHost + ":" + connectPort + (tunnel ? " [Tunnel] " + host + ":" + port : ""));
+		engine = null;
+		parser = null;
+		state = STATE_RESOLVING;
+		timeConnectStarted = System.currentTimeMillis();
+		timeLastActivity = timeConnectStarted;
+		channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException ioe) {
+			closeChannel();
+			throw ioe;
+		}
+		resolve(connectHost, connectPort);
+	}
+
+	/**
+	 * Resolves the given host on a worker, as the lookup may block, then wakes the selector.
+	 * @param host the host.
+	 * @param port the port.
+	 */
+	private void resolve(final String host, final int port) {
+		address = null;
+		lookupFailure = null;
+		resolved = false;
+		Background.getWorkers().execute(new Runnable() {
+
+			public void run() {
+				try {
+					address = NetHostResolver.getResolver().resolve(host, port);
+				} catch (IOException ioe) {
+					lookupFailure = ioe;
+				} catch (RuntimeException re) {
+					lookupFailure = new IOException("Unable to resolve " + host + ": " + re, re);
+				}
+				resolved = true;
+				wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Starts connecting to the resolved address.
+	 */
+	private void startConnect() throws IOException {
+		if (lookupFailure != null) {
+			throw lookupFailure;
+		}
+		state = STATE_CONNECTING;
+		channel.connect(address);
+		interest(channel.isConnected() ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT);
+	}
+
+	/**
+	 * Registers the channel with the selector, without interest until the host is resolved.
+	 */
+	private void register() throws ClosedChannelException {
+		key = channel.register(selector, 0, this);
+		if (resolved) {
+			// Resolved before the selector was known
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Wakes the selector, if registered, so the idle download is checked.
+	 */
+	private void wakeup() {
+		Selector current = selector;
+		if (current != null) {
+			current.wakeup();
+		}
+	}
+
+	/**
+	 * Progresses the download as far as possible without blocking, then waits for the next event.
+	 */
+	private void process() throws IOException {
+		if (getRestTime() <= 0) {
+			throw new DownloadTimeoutException("Download timed out after " + (System.currentTimeMillis() - timeStarted) + " millis [" + downloadTimeout + " millis]");
+		}
+		while (true) {
+			if (awaitingTasks || awaitingDecode) {
+				interest(0);
+				return;
+			}
+			switch (state) {
+				case STATE_CONNECTING:
+					if (!channel.finishConnect()) {
+						interest(SelectionKey.OP_CONNECT);
+						return;
+					}
+					connected();
+					break;
+				case STATE_HANDSHAKING:
+					if (!handshake()) {
+						return;
+					}
+					send(writeRequest(downloader.getRequest()), isHeadRequest(downloader.getRequest()));
+					break;
+				case STATE_SENDING:
+					if (!flush()) {
+						interest(SelectionKey.OP_WRITE);
+						return;
+					}
+					state = STATE_RECEIVING;
+					break;
+				case STATE_RECEIVING:
+					int read = receive();
+					if (awaitingTasks) {
+						interest(0);
+						return;
+					}
+					if (!parser.isComplete()) {
+						if (read != -1) {
+							interest(SelectionKey.OP_READ);
+							return;
+						}
+						parser.endOfStream();
+					}
+					received();
+					break;
+				default:
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Called once the channel is connected.
+	 */
+	private void connected() throws IOException {
+		timeLastActivity = System.currentTimeMillis();
+		if (tunnel) {
+			HttpRequest connectRequest = downloader.getConnectRequest(host, port);
+			connectRequest.addHeader("X-TFRequest", "true");
+			downloader.setProxyCloudRequestConfiguration(connectRequest, getRestTime());
+			downloader.getBrowser().setHeaders(connectRequest);
+			downloader.setHttpHeaders(connectRequest);
+			tunnelling = true;
+			send(writeRequest(connectRequest), true);
+		} else if (secure) {
+			handshakeStarted();
+		} else {
+			send(writeRequest(downloader.getRequest()), isHeadRequest(downloader.getRequest()));
+		}
+	}
+
+	/**
+	 * Starts sending the given request bytes.
+	 * @param bytes the bytes.
+	 * @param headOnly true if the response has no content.
+	 */
+	private void send(byte[] bytes, boolean headOnly) {
+		downloader.addBytesSent(bytes.length);
+		appOut = ByteBuffer.wrap(bytes);
+		if (netIn == null) {
+			netIn = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		parser = new HttpResponseParser(headOnly);
+		state = STATE_SENDING;
+	}
+
+	/**
+	 * Writes as much of the request as possible.
+	 * @return true if all the request has been written.
+	 */
+	private boolean flush() throws IOException {
+		if (engine == null) {
+			if (channel.write(appOut) > 0) {
+				timeLastActivity = System.currentTimeMillis();
+			}
+			return !appOut.hasRemaining();
+		}
+		while (true) {
+			if (netOut.hasRemaining()) {
+				if (channel.write(netOut) > 0) {
+					timeLastActivity = System.currentTimeMillis();
+				}
+				if (netOut.hasRemaining()) {
+					return false;
+				}
+			}
+			if (!appOut.hasRemaining()) {
+				return true;
+			}
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(appOut, netOut);
+			netOut.flip();
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS connection closed while sending the request");
+			}
+			runDelegatedTasks();
+			if (awaitingTasks) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Reads and parses as much of the response as is available.
+	 * @return the result of the last read, -1 at the end of the stream.
+	 */
+	private int receive() throws IOException {
+		int read;
+		do {
+			read = channel.read(netIn);
+			if (read > 0) {
+				timeLastActivity = System.currentTimeMillis();
+			}
+			netIn.flip();
+			try {
+				if (engine == null) {
+					parser.feed(netIn);
+				} else if (!unwrap()) {
+					read = -1;
+				}
+			} finally {
+				netIn.compact();
+			}
+		} while (read > 0 && !parser.isComplete() && !awaitingTasks);
+		return read;
+	}
+
+	/**
+	 * Decrypts and parses the bytes read.
+	 * @return false if the TLS connection has been closed.
+	 */
+	private boolean unwrap() throws IOException {
+		while (netIn.hasRemaining() && !parser.isComplete()) {
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			runDelegatedTasks();
+			appIn.flip();
+			parser.feed(appIn);
+			appIn.compact();
+			if (awaitingTasks) {
+				return true;
+			}
+			switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+					break;
+				case BUFFER_UNDERFLOW:
+					return true;
+				case CLOSED:
+					return false;
+				default:
+					break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called once the response (or the proxy CONNECT response) has been read.
+	 */
+	private void received() throws IOException {
+		HttpResponse response = parser.getResponse();
+		downloader.addBytesReceived(parser.bytes());
+		if (tunnelling) {
+			tunnelling = false;
+			HttpDownloader.assertProxyResponse(response);
+			int code = response.getCode().getInteger().intValue();
+			if (code < 200 || code >= 300) {
+				throw new IOException("Proxy CONNECT to " + host + ":" + port + " failed: " + code + " " + response.getReason());
+			}
+			handshakeStarted();
+			return;
+		}
+		if (downloader.isProxyRequest()) {
+			HttpDownloader.assertProxyResponse(response);
+		}
+		HttpDownloader.setContentCharset(response);
+		if (response.isGzipEncoded()) {
+			decode(response);
+			return;
+		}
+		decoded(response);
+	}
+
+	/**
+	 * Decodes the gzip content on a worker, as it may be large, while the download waits
+	 * without interest until the worker wakes the selector.
+	 * @param response the response.
+	 */
+	private void decode(final HttpResponse response) {
+		awaitingDecode = true;
+		decoding = true;
+		interest(0);
+		Background.getWorkers().execute(new Runnable() {
+
+			public void run() {
+				try {
+					response.decodeContent();
+				} finally {
+					decoding = false;
+					wakeup();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called once the response content has been decoded, follows any redirect.
+	 * @param response the response.
+	 */
+	private void decoded(HttpResponse response) throws IOException {
+		closeChannel();
+		if (getRestTime() <= 0) {
+			throw new DownloadTimeoutException("Download timed out after " + (System.currentTimeMillis() - timeStarted) + " millis [" + downloadTimeout + " millis]");
+		}
+		downloader.setResponse(response);
+
+		// Redirects
+		if (downloader.isRedirectResponse()) {
+			HttpRequest redirect;
+			try {
+				redirect = listener.getRedirectRequest(downloader);
+			} catch (IOException ioe) {
+				throw ioe;
+			} catch (Exception e) {
+				finish(e);
+				return;
+			}
+			if (redirect != null) {
+				if (log.isDebugEnabled()) log.debug("[Redirect] " + redirect.getUrl().getNetUrl().toString(true));
+				downloader.setRequest(redirect);
+				connect();
+				register();
+				return;
+			}
+		}
+		finish(null);
+	}
+
+	/**
+	 * Creates the TLS engine and starts the handshake.
+	 */
+	private void handshakeStarted() throws IOException {
+		engine = newEngine(host, port);
+		engine.beginHandshake();
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = enlarge(netIn, packetSize);
+		netOut = ByteBuffer.allocate(packetSize);
+		netOut.flip();
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		state = STATE_HANDSHAKING;
+	}
+
+	/**
+	 * Progresses the TLS handshake as far as possible without blocking.
+	 * @return true if the handshake is finished.
+	 */
+	private boolean handshake() throws IOException {
+		while (true) {
+			if (netOut.hasRemaining()) {
+				if (channel.write(netOut) > 0) {
+					timeLastActivity = System.currentTimeMillis();
+				}
+				if (netOut.hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+			}
+			SSLEngineResult result;
+			switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					runDelegatedTasks();
+					if (awaitingTasks) {
+						interest(0);
+						return false;
+					}
+					break;
+				case NEED_WRAP:
+					netOut.clear();
+					result = engine.wrap(EMPTY, netOut);
+					netOut.flip();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("TLS handshake with " + host + ":" + port + " failed, connection closed");
+					}
+					break;
+				case NEED_UNWRAP:
+					netIn.flip();
+					try {
+						result = engine.unwrap(netIn, appIn);
+					} finally {
+						netIn.compact();
+					}
+					switch (result.getStatus()) {
+						case BUFFER_OVERFLOW:
+							appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+							break;
+						case BUFFER_UNDERFLOW:
+							netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+							int read = channel.read(netIn);
+							if (read == -1) {
+								throw new SSLException("TLS handshake with " + host + ":" + port + " failed, end of stream reached");
+							}
+							if (read == 0) {
+								interest(SelectionKey.OP_READ);
+								return false;
+							}
+							timeLastActivity = System.currentTimeMillis();
+							break;
+						case CLOSED:
+							throw new SSLException("TLS handshake with " + host + ":" + port + " failed, connection closed");
+						default:
+							break;
+					}
+					break;
+				default:
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Runs the delegated TLS tasks (certificate checks, key exchange) on a worker, as they may
+	 * be slow. The download waits, without interest, until the worker wakes the selector.
+	 */
+	private void runDelegatedTasks() {
+		final SSLEngine tasksEngine = engine;
+		final Runnable first = tasksEngine.getDelegatedTask();
+		if (first == null) {
+			return;
+		}
+		awaitingTasks = true;
+		delegating = true;
+		Background.getWorkers().execute(new Runnable() {
+
+			public void run() {
+				try {
+					for (Runnable task = first; task != null; task = tasksEngine.getDelegatedTask()) {
+						task.run();
+					}
+				} finally {
+					// A failed task is thrown by the engine's next wrap or unwrap
+					delegating = false;
+					wakeup();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a new client TLS engine.
+	 * @param host the host.
+	 * @param port the port.
+	 * @return the engine.
+	 */
+	private SSLEngine newEngine(String host, int port) throws IOException {
+		return NetSecureSocketFactory.getFactory(NetSocket.getTrustManager(), protocols).createEngine(host, port);
+	}
+
+	/**
+	 * Sets the interest of the selection key, none while waiting for delegated TLS tasks.
+	 * @param ops the operations.
+	 */
+	private void interest(int ops) {
+		key.interestOps(awaitingTasks ? 0 : ops);
+	}
+
+	/**
+	 * Finishes the download and notifies the listener.
+	 * @param t the cause of failure, or null on success.
+	 */
+	private void finish(Throwable t) {
+		if (state == STATE_FINISHED) {
+			return;
+		}
+		state = STATE_FINISHED;
+		closeChannel();
+		downloader.finishNonBlocking(System.currentTimeMillis() - (timeStarted == 0 ? timeAdded : timeStarted));
+		if (thread != null) {
+			thread.removeRequest();
+		}
+		try {
+			if (t == null) {
+				listener.downloadCompleted(downloader);
+			} else {
+				if (log.isDebugEnabled()) log.debug("[Download Failed] " + t.getMessage());
+				listener.downloadFailed(downloader, t);
+			}
+		} catch (Throwable lt) {
+			if (log.isErrorEnabled()) log.error("Download listener failed", lt);
+		}
+	}
+
+	/**
+	 * Closes the channel.
+	 */
+	private void closeChannel() {
+		if (engine != null) {
+			engine.closeOutbound();
+		}
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				if (log.isErrorEnabled()) log.error(ioe.getMessage(), ioe);
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Returns the time (millis) left to download.
+	 * @return the time left.
+	 */
+	private int getRestTime() {
+		return (int) (downloadTimeout - System.currentTimeMillis() + timeStarted);
+	}
+
+	/**
+	 * Returns the given buffer (in write mode) with at least the given capacity.
+	 * @param buffer the buffer, may be null.
+	 * @param capacity the capacity.
+	 * @return the buffer.
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+		if (buffer == null) {
+			return ByteBuffer.allocate(Math.max(capacity, BUFFER_SIZE));
+		}
+		if (buffer.capacity() >= capacity && buffer.position() < buffer.capacity()) {
+			return buffer;
+		}
+		ByteBuffer enlarged = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+		buffer.flip();
+		enlarged.put(buffer);
+		return enlarged;
+	}
+
+	/**
+	 * Returns true if the response to the given request has no content.
+	 * @param request the request.
+	 * @return true for a HEAD request.
+	 */
+	private static boolean isHeadRequest(HttpRequest request) {
+		return "HEAD".equals(request.getMethod().toString());
+	}
+
+	/**
+	 * Writes the given request to a byte array.
+	 * @param request the request.
+	 * @return the bytes.
+	 */
+	private static byte[] writeRequest(HttpRequest request) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		StreamWriter writer = new StreamWriter(stream);
+		writer.setCharset(Charsets.HTTP);
+		request.writeTo(writer);
+		return stream.toByteArray();
+	}
+}
@@ -18,6 +18,7 @@ import core.io.Gzip;
 import core.io.StreamOutput;
 import core.net.IpAddress;
 import core.net.NetOutputFlusher;
+import core.net.NetRelay;
 import core.net.NetServerSocket;
 import core.net.NetSocket;
 import core.net.NetSocketHandler;
@@ -60,6 +61,21 @@ public class HttpProxy extends NetServerSocket {
 		this(null, port, connections);
 	}
 
+	/**
+	 * Starts the proxy in relay mode, relaying the connections on a single selector thread
+	 * rather than on threads of their own.
+	 * @param localhost the local host to connect from, null for any.
+	 * @param port the port.
+	 * @return the relay.
+	 * @see HttpProxyRelay
+	 */
+	public static NetRelay startRelay(String localhost, int port) throws IOException {
+		NetRelay relay = new NetRelay("HttpProxy-Relay-" + port);
+		relay.start();
+		relay.listen(new InetSocketAddress(port), new HttpProxyRelay(relay, localhost));
+		return relay;
+	}
+
 	public static void main(String[] args) {
 		try {
 			if (args.length == 0) {
@@ -82,6 +98,10 @@ public class HttpProxy extends NetServerSocket {
 					port = Integer.parseInt(args[i].substring(portIndex + 1));
 					host = args[i].substring(0, portIndex);
 				}
+				if (Boolean.getBoolean("core.http.HttpProxy.relay")) {
+					startRelay(host, port);
+					continue;
+				}
 				HttpProxy proxy = new HttpProxy(host, port, connectionThreads);
 				new Thread(proxy).start();
 				if (log.isDebugEnabled()) log.debug ("[Http Proxy] listening on port " + port);
@@ -0,0 +1,208 @@
+package core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.http.request.HttpRequest;
+import core.http.response.HttpResponse;
+import core.io.StreamReader;
+import core.io.StreamWriter;
+import core.net.NetRelay;
+import core.net.NetUrl;
+
+/**
+ * The relay mode of the {@link HttpProxy}: the request head is read without blocking, the
+ * connection to the server is made and the two connections are then relayed by a
+ * {@link NetRelay}, so a tunnel costs no thread.
+ * <p>
+ * Unlike the threaded proxy the relay does not compress responses, plain HTTP responses are
+ * passed through as sent by the server.
+ */
+public class HttpProxyRelay implements NetRelay.Acceptor {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpProxyRelay.class);
+
+	/** The maximum size of a request head. */
+	private static final int MAXIMUM_HEAD = 65536;
+	/** The time (millis) a client may take to send the request head. */
+	private static final long HEAD_TIMEOUT = 30000;
+
+	/** The relay. */
+	private final NetRelay relay;
+	/** The local address to connect from, null for any. */
+	private final InetSocketAddress bind;
+
+	/**
+	 * Creates a new proxy relay.
+	 * @param relay the relay.
+	 * @param localhost the local host to connect from, null for any.
+	 */
+	public HttpProxyRelay(NetRelay relay, String localhost) {
+		this.relay = relay;
+		this.bind = (localhost == null) ? null : new InetSocketAddress(localhost, 0);
+	}
+
+	public void accepted(SocketChannel channel) throws IOException {
+		relay.register(channel, SelectionKey.OP_READ, new HeadReader(channel));
+	}
+
+	private static byte[] toByteArray(HttpMessage message) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		StreamWriter writer = new StreamWriter(stream);
+		message.writeTo(writer, false);
+		return stream.toByteArray();
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * Reads the request head of a client, then connects to the server.
+	 */
+	private final class HeadReader implements NetRelay.Handler, NetRelay.Connector {
+
+		private final SocketChannel client;
+		private final long deadline = System.currentTimeMillis() + HEAD_TIMEOUT;
+		private ByteBuffer head = ByteBuffer.allocate(4096);
+		/** The bytes to send to the server first. */
+		private ByteBuffer toServer = null;
+		/** The bytes to send to the client first. */
+		private ByteBuffer toClient = null;
+		/** The target. */
+		private NetUrl url = null;
+		/** Indicates if reading the head is done. */
+		private boolean done = false;
+
+		private HeadReader(SocketChannel client) {
+			this.client = client;
+		}
+
+		public void ready(SelectionKey key) throws IOException {
+			if (!head.hasRemaining()) {
+				if (head.capacity() >= MAXIMUM_HEAD) {
+					throw new IOException("Request head larger than " + MAXIMUM_HEAD + " bytes");
+				}
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(MAXIMUM_HEAD, head.capacity() * 2));
+				head.flip();
+				larger.put(head);
+				head = larger;
+			}
+			if (client.read(head) == -1) {
+				throw new IOException("End of stream before request head");
+			}
+			int end = getHeadEnd();
+			if (end != -1) {
+				done = true;
+				key.interestOps(0);
+				parse(end);
+			}
+		}
+
+		private int getHeadEnd() {
+			byte[] bytes = head.array();
+			for (int i = 3; i < head.position(); i++) {
+				if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+
+		private void parse(int end) throws IOException {
+			byte[] bytes = head.array();
+			HttpRequest request = new HttpRequest();
+			byte[] title = new byte[end];
+			System.arraycopy(bytes, 0, title, 0, end);
+			request.readFrom(new StreamReader(title), false, "HttpProxyRelay - clientRequest");
+			if (log.isDebugEnabled()) log.debug("[Http Proxy Relay] " + request.getMethod() + " " + request.getUrl());
+
+			// Close proxy to only TFRequest.
+			if (request.getHeaderList().getHeader("X-TFRequest") == null) {
+				if (log.isDebugEnabled()) log.debug("NON TFRequest Ip from: " + client.socket().getInetAddress().getHostAddress());
+				reject(new HttpResponse(HttpResponse.CODE_403, "These are not the droids you're looking for."));
+				return;
+			}
+			request.getHeaderList().removeHeader("X-TFRequest");
+
+			url = request.getUrl().getNetUrl();
+			if (request.getMethod().equals(HttpRequest.METHOD_CONNECT)) {
+				// Secure HTTP
+				HttpResponse response = new HttpResponse(HttpResponse.CODE_200, "Connection Established");
+				response.addHeader("Proxy-agent", "Apache/2.0.40 (Red Hat Linux)");
+				toClient = ByteBuffer.wrap(toByteArray(response));
+				if (end < head.position()) {
+					toServer = ByteBuffer.wrap(bytes, end, head.position() - end);
+				}
+			} else {
+				// Standard HTTP
+				if (url.isAbsolute()) {
+					url.setAbsolute(false);
+				}
+				if (request.getHeaderList().contains("Connection")) {
+					request.getHeaderList().removeHeader("Connection");
+				}
+				request.getHeaderList().add(new HttpHeader("Connection", "Close"));
+				byte[] rewritten = toByteArray(request);
+				ByteBuffer buffer = ByteBuffer.allocate(rewritten.length + head.position() - end);
+				buffer.put(rewritten);
+				buffer.put(bytes, end, head.position() - end);
+				buffer.flip();
+				toServer = buffer;
+			}
+			head = null;
+			relay.connect(url.getHost(), url.getPort(), bind, this);
+		}
+
+		private void reject(HttpResponse response) throws IOException {
+			// Best effort, the response is far smaller than the socket buffer
+			client.write(ByteBuffer.wrap(response.toString(false).getBytes("ISO-8859-1")));
+			closeQuietly(client);
+		}
+
+		public void connected(SocketChannel server) throws IOException {
+			if (!client.isOpen()) {
+				closeQuietly(server);
+				return;
+			}
+			if (log.isDebugEnabled()) log.debug("[Http Proxy Relay] connected to " + url.getHost() + ":" + url.getPort());
+			relay.relay(client, server, toServer, toClient, new NetRelay.Listener() {
+
+				public void closed(NetRelay.Tunnel tunnel) {
+					if (log.isDebugEnabled()) log.debug("[Http Proxy Relay] " + url.getHost() + ":" + url.getPort() + " " + tunnel);
+				}
+			});
+		}
+
+		public void failed(IOException cause) {
+			if (log.isDebugEnabled()) log.debug("[Http Proxy Relay] unable to connect to " + url.getHost() + ":" + url.getPort() + ": " + cause.getMessage());
+			if (client.isOpen()) {
+				try {
+					reject(new HttpResponse(HttpResponse.CODE_502, "Bad Gateway"));
+				} catch (IOException ioe) {
+					closeQuietly(client);
+				}
+			}
+		}
+
+		public boolean isExpired(long now) {
+			return !done && now > deadline;
+		}
+
+		public void close(IOException cause) {
+			if (cause != null && log.isDebugEnabled()) log.debug("[Http Proxy Relay] " + cause.getMessage());
+			closeQuietly(client);
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package core.http;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.http.request.HttpRequest;
+import core.http.request.HttpRequestHeaderList;
+import core.http.response.HttpResponse;
+import core.http.response.HttpResponseHeaderList;
+import core.io.ByteReader;
+import core.io.ByteWriter;
+import core.util.Cache;
+import core.util.CacheWeigher;
+import core.util.UniversalTimeoutCache;
+
+/**
+ * A cache of HTTP responses following the HTTP caching rules, for a client that fetches the
+ * same near-static pages over and over.
+ * <p>
+ * Only successful responses to GET requests are stored, keyed by the absolute URL. A response
+ * is fresh for the time given by <code>Cache-Control: max-age</code> (less its <code>Age</code>)
+ * or <code>Expires</code>, or failing both for a tenth of the time since it was last modified.
+ * A fresh response is served without a request. A stale response with a validator
+ * (<code>ETag</code> or <code>Last-Modified</code>) is revalidated with a conditional request,
+ * and if the server answers 304 the stored response is served with its headers and freshness
+ * updated. Responses marked <code>no-store</code>, varying on every header, or to requests with
+ * credentials are never stored, and <code>Set-Cookie</code> is never replayed.
+ * <p>
+ * The responses are stored encoded as byte arrays in any {@link Cache}: in memory by default,
+ * or off the heap or in a file with an {@link core.util.OffHeapCache}. A cache applies only to
+ * the downloaders it is set on, so each supplier opts in to it, and since the key is the URL
+ * alone it should only be set for pages that do not depend on the session.
+ */
+public final class HttpResponseCache {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpResponseCache.class);
+
+	/** The maximum time (millis) a response is fresh for when only its last modified time is known. */
+	private static volatile long maximumHeuristic = 24 * 60 * 60 * 1000L;
+
+	/** The headers never stored. */
+	private static final String[] UNSTORED_HEADERS = { HttpMessageHeaderList.HEADER_TRANSFER_ENCODING, HttpMessageHeaderList.HEADER_CONNECTION, "Keep-Alive", HttpResponseHeaderList.HEADER_SET_COOKIE };
+
+	/**
+	 * Sets the maximum time a response is fresh for when only its last modified time is known.
+	 * @param millis the time (millis).
+	 */
+	public static void setMaximumHeuristic(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("millis=" + millis);
+		}
+		maximumHeuristic = millis;
+	}
+
+	/**
+	 * Returns a cache holding the responses in memory.
+	 * @param maximumSize the maximum number of responses.
+	 * @param maximumBytes the maximum total size (bytes) of the responses.
+	 * @param timeout the time (millis) a response is kept for, fresh or not.
+	 * @return the cache.
+	 */
+	public static HttpResponseCache memory(int maximumSize, long maximumBytes, long timeout) {
+		UniversalTimeoutCache<String, byte[]> store = new UniversalTimeoutCache<String, byte[]>(0, timeout, maximumSize);
+		store.setMaximumWeight(maximumBytes, new CacheWeigher<String, byte[]>() {
+
+			public int weigh(String key, byte[] value) {
+				return key.length() * 2 + value.length;
+			}
+		});
+		return new HttpResponseCache(store);
+	}
+
+	/** The stored responses. */
+	private final Cache<String, byte[]> store;
+
+	/** The requests served from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+	/** The requests revalidated (answered 304). */
+	private final AtomicLong revalidations = new AtomicLong();
+	/** The requests not served from the cache. */
+	private final AtomicLong misses = new AtomicLong();
+	/** The responses stored. */
+	private final AtomicLong stores = new AtomicLong();
+
+	/**
+	 * Creates a new cache.
+	 * @param store the storage for the encoded responses.
+	 */
+	public HttpResponseCache(Cache<String, byte[]> store) {
+		if (store == null) {
+			throw new NullPointerException();
+		}
+		this.store = store;
+	}
+
+	/**
+	 * Returns the storage.
+	 * @return the storage.
+	 */
+	public Cache<String, byte[]> getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the stored response to the given request, if any.
+	 * @param request the request.
+	 * @return the entry, or null if none (or the request can not be served from the cache).
+	 */
+	Entry lookup(HttpRequest request) {
+		if (!isCacheable(request)) {
+			return null;
+		}
+		byte[] bytes = store.get(getKey(request));
+		if (bytes == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			Entry entry = Entry.decode(bytes);
+			if (entry.matches(request)) {
+				return entry;
+			}
+		} catch (RuntimeException re) {
+			if (log.isWarnEnabled()) log.warn("Discarding corrupt cached response: " + getKey(request), re);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Returns true if the given entry may be served without revalidation.
+	 * @param request the request.
+	 * @param entry the entry.
+	 * @return true if fresh.
+	 */
+	boolean isFresh(HttpRequest request, Entry entry) {
+		if (entry.expires <= System.currentTimeMillis() || hasDirective(request, "no-cache")) {
+			return false;
+		}
+		hits.incrementAndGet();
+		if (log.isDebugEnabled()) log.debug("[Response Cache] hit " + getKey(request));
+		return true;
+	}
+
+	/**
+	 * Makes the given request conditional on the validators of the given entry.
+	 * @param request the request.
+	 * @param entry the entry.
+	 * @return true if any validator was added, remove them with {@link #removeValidators(HttpRequest)}.
+	 */
+	boolean addValidators(HttpRequest request, Entry entry) {
+		HttpHeaderList headers = request.getHeaderList();
+		if (headers.contains(HttpRequestHeaderList.HEADER_IF_NONE_MATCH) || headers.contains(HttpRequestHeaderList.HEADER_IF_MODIFIED_SINCE)) {
+			return false;
+		}
+		if (entry.etag.length() > 0) {
+			headers.set(new HttpHeader(HttpRequestHeaderList.HEADER_IF_NONE_MATCH, entry.etag));
+		}
+		if (entry.lastModified.length() > 0) {
+			headers.set(new HttpHeader(HttpRequestHeaderList.HEADER_IF_MODIFIED_SINCE, entry.lastModified));
+		}
+		return entry.etag.length() > 0 || entry.lastModified.length() > 0;
+	}
+
+	/**
+	 * Removes the validators added to the given request.
+	 * @param request the request.
+	 */
+	void removeValidators(HttpRequest request) {
+		request.getHeaderList().removeHeader(HttpRequestHeaderList.HEADER_IF_NONE_MATCH);
+		request.getHeaderList().removeHeader(HttpRequestHeaderList.HEADER_IF_MODIFIED_SINCE);
+	}
+
+	/**
+	 * Stores the response to the given request and returns the response to serve: the stored
+	 * response if the server answered 304 to a revalidation, otherwise the response itself.
+	 * @param request the request.
+	 * @param response the response.
+	 * @param entry the stored entry revalidated, null if none.
+	 * @return the response to serve.
+	 */
+	HttpResponse update(HttpRequest request, HttpResponse response, Entry entry) {
+		if (!isCacheable(request)) {
+			return response;
+		}
+		Integer code = response.getCode().getInteger();
+		if (code == null) {
+			return response;
+		}
+		if (code.intValue() == 304 && entry != null) {
+			revalidations.incrementAndGet();
+			if (log.isDebugEnabled()) log.debug("[Response Cache] not modified " + getKey(request));
+			HttpResponse stored = entry.getResponse();
+			HttpHeaderList headers = response.getHeaderList();
+			for (int i = 0; i < headers.size(); i++) {
+				HttpHeader header = headers.getHeader(i);
+				if (!header.hasName(HttpMessageHeaderList.HEADER_CONTENT_LENGTH) && !header.hasName(HttpMessageHeaderList.HEADER_CONTENT_ENCODING)) {
+					stored.getHeaderList().set(header);
+				}
+			}
+			store(request, stored);
+			return stored;
+		}
+		if (code.intValue() == 200) {
+			store(request, response);
+		}
+		return response;
+	}
+
+	/**
+	 * Stores the given response if it is fresh or can be revalidated.
+	 */
+	private void store(HttpRequest request, HttpResponse response) {
+		if (hasDirective(request, "no-store") || hasDirective(response, "no-store")) {
+			return;
+		}
+		HttpHeader vary = response.getHeaderList().getHeader(HttpResponseHeaderList.HEADER_VARY);
+		if (vary != null && vary.getValue().indexOf('*') != -1) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long expires = now + getFreshness(response, now);
+		String etag = getValue(response, HttpResponseHeaderList.HEADER_ETAG);
+		String lastModified = getValue(response, HttpResponseHeaderList.HEADER_LAST_MODIFIED);
+		if (expires <= now && etag.length() == 0 && lastModified.length() == 0) {
+			return;
+		}
+		try {
+			store.put(getKey(request), Entry.encode(request, response, expires, etag, lastModified));
+			stores.incrementAndGet();
+		} catch (RuntimeException re) {
+			if (log.isWarnEnabled()) log.warn("Unable to cache response: " + getKey(request), re);
+		}
+	}
+
+	/**
+	 * Returns the time (millis) the given response is fresh for, zero if it must be revalidated.
+	 */
+	private static long getFreshness(HttpResponse response, long now) {
+		if (hasDirective(response, "no-cache")) {
+			return 0;
+		}
+		long age = 0;
+		String value = getValue(response, HttpResponseHeaderList.HEADER_AGE);
+		if (value.length() > 0) {
+			try {
+				age = Long.parseLong(value) * 1000;
+			} catch (NumberFormatException nfe) {
+				return 0;
+			}
+		}
+		HttpHeader cacheControl = response.getHeaderList().getHeader(HttpMessageHeaderList.HEADER_CACHE_CONTROL);
+		if (cacheControl != null) {
+			for (String directive : cacheControl.getValue().split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.startsWith("max-age=")) {
+					try {
+						return Math.max(0, Long.parseLong(directive.substring(8).trim()) * 1000 - age);
+					} catch (NumberFormatException nfe) {
+						return 0;
+					}
+				}
+			}
+		} else if (getValue(response, HttpResponseHeaderList.HEADER_PRAGMA).toLowerCase().indexOf("no-cache") != -1) {
+			return 0;
+		}
+		long date = parseDate(getValue(response, HttpMessageHeaderList.HEADER_DATE), now);
+		value = getValue(response, HttpResponseHeaderList.HEADER_EXPIRES);
+		if (value.length() > 0) {
+			return Math.max(0, parseDate(value, 0) - date - age);
+		}
+		value = getValue(response, HttpResponseHeaderList.HEADER_LAST_MODIFIED);
+		if (value.length() > 0) {
+			long lastModified = parseDate(value, date);
+			return Math.max(0, Math.min(maximumHeuristic, (date - lastModified) / 10) - age);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if the request can be answered from the cache.
+	 */
+	private static boolean isCacheable(HttpRequest request) {
+		return request.getMethod().equals(HttpRequest.METHOD_GET) && !request.getHeaderList().contains(HttpRequestHeaderList.HEADER_AUTHORIZATION);
+	}
+
+	private static boolean hasDirective(HttpMessage message, String directive) {
+		HttpHeader header = message.getHeaderList().getHeader(HttpMessageHeaderList.HEADER_CACHE_CONTROL);
+		return header != null && header.getValue().toLowerCase().indexOf(directive) != -1;
+	}
+
+	private static String getValue(HttpMessage message, String name) {
+		HttpHeader header = message.getHeaderList().getHeader(name);
+		return (header == null || header.getValue() == null) ? "" : header.getValue().trim();
+	}
+
+	private static String getKey(HttpRequest request) {
+		return request.getUrl().getNetUrl().toString(true);
+	}
+
+	/**
+	 * Parses the given HTTP date.
+	 * @param date the date.
+	 * @param invalid the time to return if the date is missing or invalid.
+	 * @return the time (millis).
+	 */
+	private static long parseDate(String date, long invalid) {
+		if (date.length() == 0) {
+			return invalid;
+		}
+		SimpleDateFormat format = new SimpleDateFormat(Http.DATE_FORMAT + " zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(date).getTime();
+		} catch (ParseException pe) {
+			return invalid;
+		}
+	}
+
+	/**
+	 * Returns the number of requests served from the cache.
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests revalidated, the server answering not modified.
+	 * @return the number of revalidations.
+	 */
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	/**
+	 * Returns the number of cacheable requests with no stored response.
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of responses stored.
+	 * @return the number stored.
+	 */
+	public long getStores() {
+		return stores.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpResponseCache (size=" + store.size() + ", hits=" + hits + ", revalidations=" + revalidations + ", misses=" + misses + ", stores=" + stores + ")";
+	}
+
+	/**
+	 * A stored response.
+	 */
+	static final class Entry {
+
+		/** The time (millis) the response is fresh until. */
+		private final long expires;
+		/** The entity tag, empty if none. */
+		private final String etag;
+		/** The last modified date, empty if none. */
+		private final String lastModified;
+		/** The request headers the response varies on, as name and value pairs. */
+		private final List<String> vary;
+		/** The encoded response. */
+		private final byte[] bytes;
+		/** The offset of the response in the bytes. */
+		private final int offset;
+
+		private Entry(long expires, String etag, String lastModified, List<String> vary, byte[] bytes, int offset) {
+			this.expires = expires;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.vary = vary;
+			this.bytes = bytes;
+			this.offset = offset;
+		}
+
+		/**
+		 * Returns true if the given request has the same values of the headers the response varies on.
+		 */
+		private boolean matches(HttpRequest request) {
+			for (int i = 0; i < vary.size(); i += 2) {
+				if (!vary.get(i + 1).equals(getValue(request, vary.get(i)))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Returns a new copy of the stored response.
+		 * @return the response.
+		 */
+		HttpResponse getResponse() {
+			ByteReader reader = new ByteReader(bytes);
+			reader.setOffset(offset);
+			int code = (int) reader.readNumber();
+			String reason = reader.readString();
+			String version = reader.readString();
+			HttpResponse response = new HttpResponse(code, reason, version);
+			int headers = (int) reader.readNumber();
+			for (int i = 0; i < headers; i++) {
+				String name = reader.readString();
+				response.addHeader(name, reader.readString());
+			}
+			response.getContent().set(reader.readByteArray());
+			return response;
+		}
+
+		private static byte[] encode(HttpRequest request, HttpResponse response, long expires, String etag, String lastModified) {
+			byte[] content = response.getContent().toByteArray();
+			ByteWriter writer = new ByteWriter(content.length + 1024);
+			writer.writeNumber(expires);
+			writer.writeString(etag);
+			writer.writeString(lastModified);
+
+			String vary = getValue(response, HttpResponseHeaderList.HEADER_VARY);
+			List<String> names = new ArrayList<String>();
+			for (String name : vary.split(",")) {
+				if (name.trim().length() > 0) {
+					names.add(name.trim());
+				}
+			}
+			writer.writeNumber(names.size());
+			for (String name : names) {
+				writer.writeString(name);
+				writer.writeString(getValue(request, name));
+			}
+
+			writer.writeNumber(response.getCode().getInteger());
+			writer.writeString(String.valueOf(response.getReason()));
+			writer.writeString(String.valueOf(response.getVersion()));
+			HttpHeaderList headers = response.getHeaderList();
+			List<HttpHeader> stored = new ArrayList<HttpHeader>(headers.size());
+			for (int i = 0; i < headers.size(); i++) {
+				HttpHeader header = headers.getHeader(i);
+				if (isStored(header)) {
+					stored.add(header);
+				}
+			}
+			writer.writeNumber(stored.size() + 1);
+			for (HttpHeader header : stored) {
+				writer.writeString(header.getName());
+				writer.writeString(header.getValue() == null ? "" : header.getValue());
+			}
+			// The content is stored whole, so the framing becomes its length
+			writer.writeString(HttpMessageHeaderList.HEADER_CONTENT_LENGTH);
+			writer.writeString(String.valueOf(content.length));
+			writer.writeByteArray(content);
+			return writer.toByteArray(true);
+		}
+
+		private static boolean isStored(HttpHeader header) {
+			if (header.hasName(HttpMessageHeaderList.HEADER_CONTENT_LENGTH)) {
+				return false;
+			}
+			for (String name : UNSTORED_HEADERS) {
+				if (header.hasName(name)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Entry decode(byte[] bytes) {
+			ByteReader reader = new ByteReader(bytes);
+			long expires = reader.readNumber();
+			String etag = reader.readString();
+			String lastModified = reader.readString();
+			int count = (int) reader.readNumber();
+			List<String> vary = new ArrayList<String>(count * 2);
+			for (int i = 0; i < count; i++) {
+				vary.add(reader.readString());
+				vary.add(reader.readString());
+			}
+			return new Entry(expires, etag, lastModified, vary, bytes, reader.getOffset());
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import core.http.response.HttpResponse;
+import core.io.StreamReader;
+import core.lang.Hex;
+import core.text.Charsets;
+
+/**
+ * An incremental HTTP response parser.
+ * <p>
+ * Bytes are fed in as they arrive from a non-blocking channel. The title and
+ * headers are buffered until the blank line, the content is then framed the
+ * same way {@link HttpMessage#readFrom(StreamReader, String)} frames it: by
+ * content length, chunked transfer encoding or the end of the stream.
+ */
+public final class HttpResponseParser {
+
+	/** Reading the title and headers. */
+	private static final int STATE_HEAD = 0;
+	/** Reading content of a known length. */
+	private static final int STATE_LENGTH = 1;
+	/** Reading a chunk size line. */
+	private static final int STATE_CHUNK_SIZE = 2;
+	/** Reading chunk data. */
+	private static final int STATE_CHUNK_DATA = 3;
+	/** Reading the line break after chunk data. */
+	private static final int STATE_CHUNK_END = 4;
+	/** Reading the trailer after the last chunk. */
+	private static final int STATE_TRAILER = 5;
+	/** Reading content until the end of the stream. */
+	private static final int STATE_UNTIL_CLOSE = 6;
+	/** The response is complete. */
+	private static final int STATE_COMPLETE = 7;
+
+	/** The maximum size of the title and headers. */
+	private static final int MAXIMUM_HEAD_SIZE = 65536;
+
+	/** Indicates if the response has no content (e.g. to a HEAD or CONNECT request). */
+	private final boolean headOnly;
+	/** The title and header bytes. */
+	private final ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+	/** The content bytes. */
+	private final ByteArrayOutputStream content = new ByteArrayOutputStream(8192);
+	/** The current line (chunk size or trailer). */
+	private final StringBuilder line = new StringBuilder();
+	/** The response. */
+	private HttpResponse response = null;
+	/** The state. */
+	private int state = STATE_HEAD;
+	/** The bytes remaining in the content or current chunk. */
+	private long remaining = 0;
+	/** The total bytes fed. */
+	private long bytes = 0;
+	/** Indicates if the current head line is empty so far. */
+	private boolean emptyLine = false;
+
+	/**
+	 * Creates a new parser.
+	 * @param headOnly true if the response has no content regardless of its headers.
+	 */
+	public HttpResponseParser(boolean headOnly) {
+		this.headOnly = headOnly;
+	}
+
+	/**
+	 * Returns true if the response is complete.
+	 * @return true if the response is complete.
+	 */
+	public boolean isComplete() {
+		return state == STATE_COMPLETE;
+	}
+
+	/**
+	 * Returns true if the title and headers have been read.
+	 * @return true if the headers have been read.
+	 */
+	public boolean hasHeaders() {
+		return response != null;
+	}
+
+	/**
+	 * Returns the total number of bytes fed to this parser.
+	 * @return the number of bytes.
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the response, its content is set once the response is complete.
+	 * @return the response, or null if the headers have not been read.
+	 */
+	public HttpResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * Feeds the given bytes to this parser. Bytes beyond the end of the response are left in the buffer.
+	 * @param buffer the buffer (ready to read).
+	 * @throws IOException if the response is malformed.
+	 */
+	public void feed(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		try {
+			while (buffer.hasRemaining() && state != STATE_COMPLETE) {
+				switch (state) {
+					case STATE_HEAD:
+						feedHead(buffer);
+						break;
+					case STATE_LENGTH:
+					case STATE_CHUNK_DATA:
+					case STATE_UNTIL_CLOSE:
+						feedContent(buffer);
+						break;
+					case STATE_CHUNK_SIZE:
+					case STATE_CHUNK_END:
+					case STATE_TRAILER:
+						if (readLine(buffer)) {
+							feedLine();
+						}
+						break;
+				}
+			}
+		} finally {
+			bytes += buffer.position() - start;
+		}
+	}
+
+	/**
+	 * Signals the end of the stream.
+	 * @throws IOException if the response is incomplete.
+	 */
+	public void endOfStream() throws IOException {
+		if (state == STATE_UNTIL_CLOSE) {
+			complete();
+			return;
+		}
+		if (state != STATE_COMPLETE) {
+			throw new IOException("end of stream reached, " + (response == null ? "headers" : "content") + " incomplete");
+		}
+	}
+
+	/**
+	 * Feeds the title and headers.
+	 * @param buffer the buffer.
+	 */
+	private void feedHead(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			head.write(b);
+			if (b == '\n') {
+				if (emptyLine) {
+					readHead();
+					return;
+				}
+				emptyLine = true;
+			} else if (b != '\r') {
+				emptyLine = false;
+			}
+			if (head.size() > MAXIMUM_HEAD_SIZE) {
+				throw new IOException("HTTP headers exceed " + MAXIMUM_HEAD_SIZE + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Reads the title and headers and decides how the content is framed.
+	 */
+	private void readHead() throws IOException {
+		StreamReader reader = new StreamReader(head.toByteArray());
+		reader.setCharset(Charsets.HTTP);
+		response = new HttpResponse();
+		response.readFrom(reader, false, "HttpResponseParser");
+
+		int code = response.getCode().getInteger().intValue();
+		if (headOnly || (code >= 100 && code < 200) || code == 204 || code == 304) {
+			complete();
+			return;
+		}
+		int contentLength = response.readFromContentLength();
+		if (contentLength < 0) {
+			complete();
+		} else if (contentLength > 0) {
+			remaining = contentLength;
+			state = STATE_LENGTH;
+		} else if (isChunked()) {
+			state = STATE_CHUNK_SIZE;
+		} else {
+			state = STATE_UNTIL_CLOSE;
+		}
+	}
+
+	/**
+	 * Returns true if the response uses chunked transfer encoding.
+	 * @return true if chunked.
+	 */
+	private boolean isChunked() {
+		HttpHeader header = response.getHeaderList().getHeader(HttpMessage.HEADER_TRANSFER_ENCODING);
+		return header != null && header.getValue().toLowerCase().indexOf("chunked") != -1;
+	}
+
+	/**
+	 * Feeds content bytes.
+	 * @param buffer the buffer.
+	 */
+	private void feedContent(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		if (state != STATE_UNTIL_CLOSE && remaining < length) {
+			length = (int) remaining;
+		}
+		if (buffer.hasArray()) {
+			content.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			content.write(bytes, 0, length);
+		}
+		if (state == STATE_UNTIL_CLOSE) {
+			return;
+		}
+		remaining -= length;
+		if (remaining == 0) {
+			if (state == STATE_LENGTH) {
+				complete();
+			} else {
+				state = STATE_CHUNK_END;
+			}
+		}
+	}
+
+	/**
+	 * Reads a line, returns true if the line is complete.
+	 * @param buffer the buffer.
+	 * @return true if a complete line has been read.
+	 */
+	private boolean readLine(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			char c = (char) (buffer.get() & 0xff);
+			if (c == '\n') {
+				return true;
+			}
+			if (c != '\r') {
+				line.append(c);
+			}
+			if (line.length() > MAXIMUM_HEAD_SIZE) {
+				throw new IOException("HTTP chunk line exceeds " + MAXIMUM_HEAD_SIZE + " bytes");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Handles a complete chunk size, chunk end or trailer line.
+	 */
+	private void feedLine() throws IOException {
+		String text = line.toString();
+		line.setLength(0);
+		if (state == STATE_CHUNK_END) {
+			state = STATE_CHUNK_SIZE;
+			return;
+		}
+		if (state == STATE_TRAILER) {
+			if (text.length() == 0) {
+				complete();
+			}
+			return;
+		}
+		int index = 0;
+		while (index < text.length() && Hex.isHexDigit(text.charAt(index))) {
+			index++;
+		}
+		if (index == 0) {
+			throw new IOException("Illegal HTTP chunk size: \"" + text + "\"");
+		}
+		remaining = Long.parseLong(text.substring(0, index), 16);
+		state = (remaining == 0) ? STATE_TRAILER : STATE_CHUNK_DATA;
+	}
+
+	/**
+	 * Completes the response.
+	 */
+	private void complete() {
+		state = STATE_COMPLETE;
+		response.getContent().set(content.toByteArray());
+	}
+}
@@ -0,0 +1,238 @@
+package core.http;
+
+import core.util.LatencyHistogram;
+import core.util.StripedCounter;
+
+/**
+ * The transfer statistics of a supplier to a host: downloads, failures, timeouts, bytes and
+ * the latency of each phase of a download.
+ * <p>
+ * The phases are the connect (including the proxy tunnel and TLS handshake), the time from
+ * sending the request to the first byte of the response, the whole download and the time
+ * spent inflating gzip content. Recording is lock free.
+ * @see HttpMetrics
+ */
+public final class HttpTransferStats implements HttpTransferStatsMBean {
+
+	/** The supplier. */
+	private final String supplier;
+	/** The host. */
+	private final String host;
+	/** The time (millis) last used. */
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	private final StripedCounter downloads = new StripedCounter();
+	private final StripedCounter failures = new StripedCounter();
+	private final StripedCounter connectTimeouts = new StripedCounter();
+	private final StripedCounter readTimeouts = new StripedCounter();
+	private final StripedCounter bytesSent = new StripedCounter();
+	private final StripedCounter bytesReceived = new StripedCounter();
+	private final LatencyHistogram connect = new LatencyHistogram();
+	private final LatencyHistogram firstByte = new LatencyHistogram();
+	private final LatencyHistogram download = new LatencyHistogram();
+	private final LatencyHistogram decode = new LatencyHistogram();
+
+	/**
+	 * Creates new statistics.
+	 * @param supplier the supplier.
+	 * @param host the host.
+	 */
+	HttpTransferStats(String supplier, String host) {
+		this.supplier = supplier;
+		this.host = host;
+	}
+
+	/**
+	 * Records a download.
+	 * @param nanos the time the download took (nanos).
+	 * @param success true if the download completed.
+	 */
+	public void recordDownload(long nanos, boolean success) {
+		downloads.increment();
+		if (success) {
+			download.recordNanos(nanos);
+		} else {
+			failures.increment();
+		}
+	}
+
+	public void recordConnect(long nanos) {
+		connect.recordNanos(nanos);
+	}
+
+	public void recordFirstByte(long nanos) {
+		firstByte.recordNanos(nanos);
+	}
+
+	public void recordDecode(long nanos) {
+		decode.recordNanos(nanos);
+	}
+
+	public void recordConnectTimeout() {
+		connectTimeouts.increment();
+	}
+
+	public void recordReadTimeout() {
+		readTimeouts.increment();
+	}
+
+	public void addBytesSent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	public void addBytesReceived(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Returns the time the statistics were last used.
+	 * @return the time (millis).
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	/**
+	 * Returns the connect latencies.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getConnect() {
+		return connect;
+	}
+
+	/**
+	 * Returns the latencies from sending the request to the first byte of the response.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getFirstByte() {
+		return firstByte;
+	}
+
+	/**
+	 * Returns the latencies of whole downloads.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getDownload() {
+		return download;
+	}
+
+	/**
+	 * Returns the time spent inflating gzip content.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getDecode() {
+		return decode;
+	}
+
+	@Override
+	public String getSupplier() {
+		return supplier;
+	}
+
+	@Override
+	public String getHost() {
+		return host;
+	}
+
+	@Override
+	public long getDownloads() {
+		return downloads.get();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public long getConnectTimeouts() {
+		return connectTimeouts.get();
+	}
+
+	@Override
+	public long getReadTimeouts() {
+		return readTimeouts.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public double getConnectMillis99() {
+		return connect.getPercentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getFirstByteMillis50() {
+		return firstByte.getPercentile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getFirstByteMillis99() {
+		return firstByte.getPercentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getDownloadMillis50() {
+		return download.getPercentile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getDownloadMillis99() {
+		return download.getPercentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getDecodeMillis99() {
+		return decode.getPercentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		downloads.reset();
+		failures.reset();
+		connectTimeouts.reset();
+		readTimeouts.reset();
+		bytesSent.reset();
+		bytesReceived.reset();
+		connect.reset();
+		firstByte.reset();
+		download.reset();
+		decode.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(supplier).append(' ').append(host);
+		text.append(": downloads=").append(getDownloads());
+		text.append(", failures=").append(getFailures());
+		text.append(", timeouts=").append(getConnectTimeouts()).append('/').append(getReadTimeouts());
+		text.append(", sent=").append(getBytesSent());
+		text.append(", received=").append(getBytesReceived());
+		appendPhase(text, "connect", connect);
+		appendPhase(text, "ttfb", firstByte);
+		appendPhase(text, "download", download);
+		appendPhase(text, "gunzip", decode);
+		return text.toString();
+	}
+
+	private static void appendPhase(StringBuilder text, String name, LatencyHistogram histogram) {
+		if (histogram.getCount() != 0) {
+			text.append(", ").append(name).append("=");
+			text.append(String.format("%.1f/%.1f/%.1f", histogram.getPercentile(0.5) / 1000.0, histogram.getPercentile(0.99) / 1000.0, histogram.getMaximum() / 1000.0));
+			text.append("ms");
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package core.http;
+
+/**
+ * The management interface of {@link HttpTransferStats}.
+ */
+public interface HttpTransferStatsMBean {
+
+	String getSupplier();
+
+	String getHost();
+
+	long getDownloads();
+
+	long getFailures();
+
+	long getConnectTimeouts();
+
+	long getReadTimeouts();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getConnectMillis99();
+
+	double getFirstByteMillis50();
+
+	double getFirstByteMillis99();
+
+	double getDownloadMillis50();
+
+	double getDownloadMillis99();
+
+	double getDecodeMillis99();
+
+	void reset();
+}
@@ -11,6 +11,9 @@ import core.http.HttpVersion;
  */
 public class HttpResponse extends HttpMessage implements HttpResponseHeaderList, HttpResponseCodeList {
 
+	/** Indicates if this is the response to a HEAD request. */
+	private boolean headResponse = false;
+
 	/**
 	 * Returns a new version title.
 	 * @return a new version title.
@@ -69,6 +72,32 @@ public class HttpResponse extends HttpMessage implements HttpResponseHeaderList,
 	public void readContent(StreamReader in) throws IOException {
 		readFromContent(in);
 	}
+
+	/**
+	 * Sets whether this is the response to a HEAD request.
+	 * @param head true if the request was a HEAD request.
+	 */
+	public void setHeadResponse(boolean head) {
+		this.headResponse = head;
+	}
+
+	/**
+	 * Returns false if no content follows the headers whatever they say: the response to a
+	 * HEAD request, or a 1xx, 204 or 304 response.
+	 * @return true if this response may have content.
+	 */
+	@Override
+	public boolean hasContent() {
+		if (headResponse) {
+			return false;
+		}
+		Integer code = getCode().getInteger();
+		if (code == null) {
+			return true;
+		}
+		int value = code.intValue();
+		return value >= 200 && value != 204 && value != 304;
+	}
 	
 	/**
 	 * Creates a new HTTP response with the given code and reason.
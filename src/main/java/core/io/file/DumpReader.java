@@ -0,0 +1,186 @@
+package core.io.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import core.util.UtilDate;
+
+/**
+ * Reads the records of a segment written by a {@link DumpWriter}.
+ * <p>
+ * Run as a tool, it lists the records of a segment, or extracts the data of the last record
+ * with a given name:
+ * <pre>
+ * java core.io.file.DumpReader segment.dump
+ * java core.io.file.DumpReader segment.dump name [file]
+ * </pre>
+ * A block cut short by a crash ends the segment, a corrupt block is an error.
+ */
+public final class DumpReader implements Closeable {
+
+	/**
+	 * A record.
+	 */
+	public static final class Record {
+
+		private final String name;
+		private final long time;
+		private final byte[] data;
+
+		private Record(String name, long time, byte[] data) {
+			this.name = name;
+			this.time = time;
+			this.data = data;
+		}
+
+		/** @return the name. */
+		public String getName() {
+			return name;
+		}
+
+		/** @return the time (millis) the record was written. */
+		public long getTime() {
+			return time;
+		}
+
+		/** @return the data. */
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	/** The segment. */
+	private final DataInputStream input;
+	/** The current block, null before the first. */
+	private DataInputStream block = null;
+	/** The inflater. */
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * Opens a segment.
+	 * @param path the path of the segment.
+	 */
+	public DumpReader(String path) throws IOException {
+		this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+	}
+
+	/**
+	 * Returns the next record.
+	 * @return the record, or null at the end of the segment.
+	 */
+	public Record next() throws IOException {
+		while (block == null || block.available() == 0) {
+			if (!readBlock()) {
+				return null;
+			}
+		}
+		String name = block.readUTF();
+		long time = block.readLong();
+		byte[] data = new byte[block.readInt()];
+		block.readFully(data);
+		return new Record(name, time, data);
+	}
+
+	/**
+	 * Returns the data of the last record with the given name.
+	 * @param name the name.
+	 * @return the data, or null if there is no such record.
+	 */
+	public byte[] find(String name) throws IOException {
+		byte[] data = null;
+		for (Record record = next(); record != null; record = next()) {
+			if (record.getName().equals(name)) {
+				data = record.getData();
+			}
+		}
+		return data;
+	}
+
+	private boolean readBlock() throws IOException {
+		int magic;
+		try {
+			magic = input.readInt();
+		} catch (EOFException eofe) {
+			return false;
+		}
+		if (magic != DumpWriter.MAGIC) {
+			throw new IOException("Not a dump block: " + Integer.toHexString(magic));
+		}
+		byte[] raw;
+		byte[] compressed;
+		int crc;
+		try {
+			raw = new byte[input.readInt()];
+			compressed = new byte[input.readInt()];
+			crc = input.readInt();
+			input.readFully(compressed);
+		} catch (EOFException eofe) {
+			// The last block was cut short
+			return false;
+		}
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int offset = 0;
+			while (offset < raw.length && !inflater.finished()) {
+				offset += inflater.inflate(raw, offset, raw.length - offset);
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Corrupt dump block", dfe);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(raw, 0, raw.length);
+		if ((int) checksum.getValue() != crc) {
+			throw new IOException("Corrupt dump block: checksum mismatch");
+		}
+		block = new DataInputStream(new ByteArrayInputStream(raw));
+		return true;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		input.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("java core.io.file.DumpReader segment [name [file]]");
+			return;
+		}
+		DumpReader reader = new DumpReader(args[0]);
+		try {
+			if (args.length == 1) {
+				for (Record record = reader.next(); record != null; record = reader.next()) {
+					System.out.println(new UtilDate(record.getTime()).toString("yyMMdd-HHmmss.SSS") + "\t" + record.getData().length + "\t" + record.getName());
+				}
+				return;
+			}
+			byte[] data = reader.find(args[1]);
+			if (data == null) {
+				System.err.println("Not found: " + args[1]);
+				return;
+			}
+			OutputStream output = (args.length > 2) ? new FileOutputStream(args[2]) : System.out;
+			try {
+				output.write(data);
+				output.flush();
+			} finally {
+				if (output != System.out) {
+					output.close();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
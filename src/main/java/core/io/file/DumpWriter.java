@@ -0,0 +1,342 @@
+package core.io.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.util.UtilDate;
+
+/**
+ * Writes named records (debug dumps) asynchronously to rolling segment files.
+ * <p>
+ * Callers only queue the record: a single writer thread packs the queued records into
+ * blocks of about 64K, deflates each block and appends it to the current segment, so
+ * thousands of small dumps become a few large files. The segment is synced to disk once per
+ * batch of blocks, at most once per sync interval, and rolled once it reaches its maximum
+ * size. When the queue is full, or holds too many bytes, records are dropped rather than
+ * making the caller wait.
+ * <p>
+ * A segment is a sequence of blocks, each an int magic number, the raw and compressed
+ * lengths, the CRC32 of the raw bytes and the compressed bytes. A raw block is a sequence of
+ * records, each the name (modified UTF-8), the time (millis), the data length and the data.
+ * @see DumpReader
+ */
+public final class DumpWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(DumpWriter.class);
+
+	/** The magic number starting each block. */
+	static final int MAGIC = 0x44554d50;
+	/** The suffix of segment files. */
+	public static final String SUFFIX = ".dump";
+
+	/** The raw size of a block. */
+	private static final int BLOCK_SIZE = 65536;
+	/** The maximum number of records written per batch. */
+	private static final int MAXIMUM_BATCH = 256;
+	/** The time (millis) the writer waits for a record. */
+	private static final long POLL_MILLIS = 200;
+
+	/** The directory. */
+	private final String directory;
+	/** The prefix of the segment files. */
+	private final String prefix;
+	/** The maximum size of a segment. */
+	private final long maximumSegment;
+	/** The maximum bytes queued. */
+	private final long maximumQueued;
+	/** The time (millis) between syncs. */
+	private final long syncInterval;
+
+	/** The queued records. */
+	private final BlockingQueue<Record> queue;
+	/** The bytes queued. */
+	private final AtomicLong queued = new AtomicLong();
+	/** The records written. */
+	private final AtomicLong written = new AtomicLong();
+	/** The records dropped. */
+	private final AtomicLong dropped = new AtomicLong();
+	/** The writer thread. */
+	private final Thread thread;
+	/** Indicates if running. */
+	private volatile boolean running = true;
+
+	/** The compressor (writer thread only). */
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	/** The current segment, null if none. */
+	private FileOutputStream segment = null;
+	/** The size of the current segment. */
+	private long segmentSize = 0;
+	/** The number of segments opened. */
+	private int segments = 0;
+	/** The time (millis) the segment was last synced. */
+	private long synced = 0;
+	/** Indicates if the segment has been written since it was last synced. */
+	private boolean dirty = false;
+
+	/**
+	 * Creates and starts a new writer.
+	 * @param directory the directory.
+	 * @param prefix the prefix of the segment files.
+	 * @param maximumSegment the maximum size of a segment.
+	 * @param maximumRecords the maximum number of records queued.
+	 * @param maximumQueued the maximum bytes queued.
+	 * @param syncInterval the time (millis) between syncs, zero to sync every batch.
+	 */
+	public DumpWriter(String directory, String prefix, long maximumSegment, int maximumRecords, long maximumQueued, long syncInterval) {
+		if (maximumSegment < BLOCK_SIZE || maximumRecords < 1 || maximumQueued < 1 || syncInterval < 0) {
+			throw new IllegalArgumentException("maximumSegment=" + maximumSegment + ", maximumRecords=" + maximumRecords + ", maximumQueued=" + maximumQueued + ", syncInterval=" + syncInterval);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maximumSegment = maximumSegment;
+		this.maximumQueued = maximumQueued;
+		this.syncInterval = syncInterval;
+		this.queue = new ArrayBlockingQueue<Record>(maximumRecords);
+		this.thread = new Thread(new Runnable() {
+
+			public void run() {
+				writeRecords();
+			}
+		}, "DumpWriter-" + prefix);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Creates and starts a new writer with 256M segments, queueing up to 10000 records and 64M.
+	 * @param directory the directory.
+	 * @param prefix the prefix of the segment files.
+	 */
+	public DumpWriter(String directory, String prefix) {
+		this(directory, prefix, 256L * 1024 * 1024, 10000, 64L * 1024 * 1024, 1000);
+	}
+
+	/**
+	 * Queues a record, never waits.
+	 * @param name the name.
+	 * @param data the data.
+	 * @return true if queued, false if dropped.
+	 */
+	public boolean write(String name, byte[] data) {
+		if (!running) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (queued.addAndGet(data.length) > maximumQueued) {
+			queued.addAndGet(-data.length);
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (!queue.offer(new Record(name, System.currentTimeMillis(), data))) {
+			queued.addAndGet(-data.length);
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the writer once the queued records are written.
+	 * @param millis the time (millis) to wait for the writer.
+	 */
+	public void close(long millis) throws InterruptedException {
+		// Not interrupted, that would close the segment's channel mid write
+		running = false;
+		thread.join(millis);
+	}
+
+	/**
+	 * Returns the number of records written.
+	 * @return the number of records.
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Returns the number of records dropped.
+	 * @return the number of records.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of records queued.
+	 * @return the number of records.
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	private void writeRecords() {
+		List<Record> batch = new ArrayList<Record>(MAXIMUM_BATCH);
+		ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+		DataOutputStream output = new DataOutputStream(block);
+		while (running || !queue.isEmpty()) {
+			try {
+				Record first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAXIMUM_BATCH - 1);
+				}
+			} catch (InterruptedException ie) {
+				// Write what was taken
+			}
+			for (Record record : batch) {
+				queued.addAndGet(-record.data.length);
+			}
+			int records = 0;
+			for (Record record : batch) {
+				try {
+					output.writeUTF(record.name);
+					output.writeLong(record.time);
+					output.writeInt(record.data.length);
+					output.write(record.data);
+				} catch (IOException ioe) {
+					// Only a name too long to encode, rejected before anything is written
+					if (log.isWarnEnabled()) log.warn("[Dump] record lost: " + ioe.getMessage());
+					dropped.incrementAndGet();
+					continue;
+				}
+				records++;
+				if (block.size() >= BLOCK_SIZE) {
+					flushBlock(block, records);
+					records = 0;
+				}
+			}
+			if (block.size() > 0) {
+				flushBlock(block, records);
+			}
+			try {
+				sync(false);
+			} catch (IOException ioe) {
+				if (log.isWarnEnabled()) log.warn("[Dump] unable to sync: " + ioe.getMessage());
+				closeSegment();
+			}
+			batch.clear();
+		}
+		try {
+			sync(true);
+		} catch (IOException ioe) {
+			if (log.isWarnEnabled()) log.warn("[Dump] unable to sync: " + ioe.getMessage());
+		}
+		closeSegment();
+		deflater.end();
+		if (log.isInfoEnabled()) log.info("[Dump] " + prefix + " closed (" + written + " written, " + dropped + " dropped)");
+	}
+
+	/**
+	 * Writes the block, only its own records are lost if it fails: the blocks already written
+	 * remain readable and the next block starts a new segment.
+	 */
+	private void flushBlock(ByteArrayOutputStream block, int records) {
+		try {
+			writeBlock(block);
+			written.addAndGet(records);
+		} catch (IOException ioe) {
+			if (log.isWarnEnabled()) log.warn("[Dump] " + records + " records lost: " + ioe.getMessage());
+			dropped.addAndGet(records);
+			block.reset();
+			closeSegment();
+		}
+	}
+
+	private void writeBlock(ByteArrayOutputStream block) throws IOException {
+		byte[] raw = block.toByteArray();
+		block.reset();
+		CRC32 crc = new CRC32();
+		crc.update(raw, 0, raw.length);
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			compressed.write(buffer, 0, length);
+		}
+
+		if (segment == null || segmentSize >= maximumSegment) {
+			openSegment();
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(compressed.size() + 16);
+		DataOutputStream header = new DataOutputStream(frame);
+		header.writeInt(MAGIC);
+		header.writeInt(raw.length);
+		header.writeInt(compressed.size());
+		header.writeInt((int) crc.getValue());
+		compressed.writeTo(frame);
+		frame.writeTo(segment);
+		segmentSize += frame.size();
+		dirty = true;
+	}
+
+	private void sync(boolean force) throws IOException {
+		long now = System.currentTimeMillis();
+		if (segment != null && dirty && (force || now - synced >= syncInterval)) {
+			segment.getChannel().force(false);
+			synced = now;
+			dirty = false;
+		}
+	}
+
+	private void openSegment() throws IOException {
+		if (segment != null) {
+			sync(true);
+			closeSegment();
+		}
+		new TextFile(directory).mkdirs();
+		String timestamp = new UtilDate().toString("yyMMdd-HHmmss");
+		String path = directory + "/" + prefix + "-" + timestamp + "-" + (segments++) + SUFFIX;
+		segment = new FileOutputStream(path, true);
+		segmentSize = segment.getChannel().size();
+		if (log.isDebugEnabled()) log.debug("[Dump] writing to " + path);
+	}
+
+	private void closeSegment() {
+		if (segment != null) {
+			try {
+				segment.close();
+			} catch (IOException ioe) {
+				if (log.isDebugEnabled()) log.debug("[Dump] unable to close segment: " + ioe.getMessage());
+			}
+			segment = null;
+			dirty = false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DumpWriter " + prefix + " (written=" + written + ", dropped=" + dropped + ", queued=" + queue.size() + ")";
+	}
+
+	/**
+	 * A queued record.
+	 */
+	private static final class Record {
+
+		private final String name;
+		private final long time;
+		private final byte[] data;
+
+		private Record(String name, long time, byte[] data) {
+			this.name = name;
+			this.time = time;
+			this.data = data;
+		}
+	}
+}
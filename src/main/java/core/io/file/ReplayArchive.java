@@ -0,0 +1,463 @@
+package core.io.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.text.Charsets;
+
+/**
+ * A single file archive of recorded responses, keyed by spider, stage and request
+ * fingerprint, for replaying spiders offline.
+ * <p>
+ * The archive is append only: a header, then one record per response (the spider, stage,
+ * fingerprint, name, time and data, uncompressed) and, once the writer is closed, an index
+ * footer holding the offset of every record. An archive whose writer did not close has no
+ * footer, its records are then found by scanning and a record cut short is ignored.
+ * <p>
+ * The archive is read through a read only memory mapping: opening it reads only the record
+ * headers, and a lookup returns a view of the mapped data without copying it. A later record
+ * with the same key replaces an earlier one. The archive is safe to read from many threads.
+ */
+public final class ReplayArchive implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(ReplayArchive.class);
+
+	/** The magic number of the archive. */
+	private static final int MAGIC = 0x54465241;
+	/** The version of the format. */
+	private static final int VERSION = 1;
+	/** The magic number starting each record. */
+	private static final int RECORD = 0x52454331;
+	/** The magic number of the footer. */
+	private static final int FOOTER = 0x494e4458;
+	/** The size of the header. */
+	private static final int HEADER_SIZE = 8;
+	/** The size of the end of the footer: its offset and magic number. */
+	private static final int TRAILER_SIZE = 12;
+
+	/** The path. */
+	private final String path;
+	/** The mapped archive. */
+	private final MappedByteBuffer buffer;
+	/** The data offset of the records by spider, stage and fingerprint. */
+	private final Map<String, Long> byFingerprint = new HashMap<String, Long>();
+	/** The data offset of the records by spider, stage and name. */
+	private final Map<String, Long> byName = new HashMap<String, Long>();
+	/** The number of records. */
+	private int records = 0;
+
+	/**
+	 * Opens an archive for reading.
+	 * @param path the path.
+	 */
+	public ReplayArchive(String path) throws IOException {
+		this.path = path;
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Archive larger than 2G, split it: " + path);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid
+			file.close();
+		}
+		checkHeader(buffer, path);
+		List<Long> offsets = readFooter(buffer, 0);
+		if (offsets == null) {
+			offsets = scan(buffer);
+			if (log.isInfoEnabled()) log.info("[Replay Archive] " + path + " has no index, scanned " + offsets.size() + " records");
+		}
+		for (long offset : offsets) {
+			index(offset);
+		}
+	}
+
+	/**
+	 * Returns the data recorded for the given request.
+	 * @param spider the spider.
+	 * @param stage the stage.
+	 * @param fingerprint the request fingerprint.
+	 * @return a read only view of the data, or null if not recorded.
+	 */
+	public ByteBuffer get(String spider, String stage, long fingerprint) {
+		return getData(byFingerprint.get(getKey(spider, stage, Long.toHexString(fingerprint))));
+	}
+
+	/**
+	 * Returns the data recorded under the given name.
+	 * @param spider the spider.
+	 * @param stage the stage.
+	 * @param name the name.
+	 * @return a read only view of the data, or null if not recorded.
+	 */
+	public ByteBuffer getByName(String spider, String stage, String name) {
+		return getData(byName.get(getKey(spider, stage, name)));
+	}
+
+	/**
+	 * Returns the number of records.
+	 * @return the number of records.
+	 */
+	public int size() {
+		return records;
+	}
+
+	/**
+	 * Returns the path.
+	 * @return the path.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Releases the archive, the mapping is released once collected.
+	 */
+	public void close() {
+		byFingerprint.clear();
+		byName.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "ReplayArchive " + path + " (" + records + " records)";
+	}
+
+	/**
+	 * Returns the fingerprint of a request: a 64 bit FNV-1a hash of the method, URL and content.
+	 * @param method the method.
+	 * @param url the absolute URL.
+	 * @param content the content, null if none.
+	 * @return the fingerprint.
+	 */
+	public static long fingerprint(String method, String url, byte[] content) {
+		long hash = 0xcbf29ce484222325L;
+		hash = fingerprint(hash, method);
+		hash = (hash ^ ' ') * 0x100000001b3L;
+		hash = fingerprint(hash, url);
+		if (content != null) {
+			hash = (hash ^ '\n') * 0x100000001b3L;
+			for (byte b : content) {
+				hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	private static long fingerprint(long hash, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+			hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns an input over the given data.
+	 * @param data the data.
+	 * @return the input.
+	 */
+	public static InputStream newInputStream(final ByteBuffer data) {
+		return new InputStream() {
+
+			@Override
+			public int read() {
+				return data.hasRemaining() ? data.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) {
+				if (length == 0) {
+					return 0;
+				}
+				if (!data.hasRemaining()) {
+					return -1;
+				}
+				length = Math.min(length, data.remaining());
+				data.get(bytes, offset, length);
+				return length;
+			}
+
+			@Override
+			public int available() {
+				return data.remaining();
+			}
+		};
+	}
+
+	private static String getKey(String spider, String stage, String id) {
+		return spider + '\u0000' + stage + '\u0000' + id;
+	}
+
+	private ByteBuffer getData(Long offset) {
+		if (offset == null) {
+			return null;
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.position(offset.intValue());
+		int length = data.getInt();
+		data.limit(data.position() + length);
+		return data.slice().asReadOnlyBuffer();
+	}
+
+	private void index(long offset) throws IOException {
+		ByteBuffer record = buffer.duplicate();
+		record.position((int) offset);
+		if (record.getInt() != RECORD) {
+			throw new IOException("Corrupt archive, no record at " + offset + ": " + path);
+		}
+		String spider = readString(record);
+		String stage = readString(record);
+		long fingerprint = record.getLong();
+		String name = readString(record);
+		record.getLong(); // time
+		Long data = Long.valueOf(record.position());
+		byFingerprint.put(getKey(spider, stage, Long.toHexString(fingerprint)), data);
+		byName.put(getKey(spider, stage, name), data);
+		records++;
+	}
+
+	private static void checkHeader(ByteBuffer buffer, String path) throws IOException {
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a replay archive: " + path);
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported replay archive version " + buffer.getInt(4) + ": " + path);
+		}
+	}
+
+	/**
+	 * Returns the record offsets held in the footer, or null if there is no footer.
+	 * @param buffer the end of the archive.
+	 * @param base the offset of the buffer in the archive.
+	 */
+	private static List<Long> readFooter(ByteBuffer buffer, long base) {
+		long end = base + buffer.limit();
+		if (buffer.limit() < TRAILER_SIZE || end < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(buffer.limit() - 4) != FOOTER) {
+			return null;
+		}
+		long footer = buffer.getLong(buffer.limit() - TRAILER_SIZE);
+		if (footer < Math.max(base, HEADER_SIZE) || footer > end - TRAILER_SIZE - 8 || buffer.getInt((int) (footer - base)) != FOOTER) {
+			return null;
+		}
+		int position = (int) (footer - base);
+		int count = buffer.getInt(position + 4);
+		if (count < 0 || footer + 8 + count * 8L != end - TRAILER_SIZE) {
+			return null;
+		}
+		List<Long> offsets = new ArrayList<Long>(count);
+		for (int i = 0; i < count; i++) {
+			offsets.add(buffer.getLong(position + 8 + i * 8));
+		}
+		return offsets;
+	}
+
+	/**
+	 * Returns the offsets of the complete records, scanning from the header.
+	 */
+	private static List<Long> scan(ByteBuffer buffer) {
+		List<Long> offsets = new ArrayList<Long>();
+		ByteBuffer record = buffer.duplicate();
+		record.position(HEADER_SIZE);
+		while (true) {
+			int offset = record.position();
+			if (record.remaining() < 4 || record.getInt() != RECORD) {
+				break;
+			}
+			try {
+				readString(record);
+				readString(record);
+				record.getLong();
+				readString(record);
+				record.getLong();
+				int length = record.getInt();
+				if (length < 0 || length > record.remaining()) {
+					break;
+				}
+				record.position(record.position() + length);
+			} catch (RuntimeException re) {
+				// A record cut short
+				break;
+			}
+			offsets.add(Long.valueOf(offset));
+		}
+		return offsets;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, Charsets.UTF_8);
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * Appends records to an archive, creating it if it does not exist. The footer of an
+	 * existing archive is replaced when the writer is closed.
+	 */
+	public static final class Writer implements Closeable {
+
+		/** The archive. */
+		private final RandomAccessFile file;
+		/** The offsets of the records. */
+		private final List<Long> offsets;
+		/** The encoded record. */
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream(8192);
+		/** Indicates if closed. */
+		private boolean closed = false;
+
+		/**
+		 * Opens an archive for appending.
+		 * @param path the path.
+		 */
+		public Writer(String path) throws IOException {
+			file = new RandomAccessFile(path, "rw");
+			try {
+				if (file.length() == 0) {
+					file.writeInt(MAGIC);
+					file.writeInt(VERSION);
+					offsets = new ArrayList<Long>();
+				} else {
+					if (file.length() > Integer.MAX_VALUE) {
+						throw new IOException("Archive larger than 2G, split it: " + path);
+					}
+					// Read rather than mapped, a mapped file can not be truncated everywhere
+					checkHeader(read(0, HEADER_SIZE), path);
+					long length = file.length();
+					List<Long> footer = null;
+					long end = length;
+					if (length >= HEADER_SIZE + TRAILER_SIZE) {
+						long offset = read(length - TRAILER_SIZE, TRAILER_SIZE).getLong(0);
+						if (offset >= HEADER_SIZE && offset <= length - TRAILER_SIZE - 8) {
+							footer = readFooter(read(offset, (int) (length - offset)), offset);
+							end = offset;
+						}
+					}
+					if (footer == null) {
+						// Not closed, find the end of the last complete record
+						ByteBuffer buffer = read(0, (int) length);
+						footer = scan(buffer);
+						end = HEADER_SIZE;
+						if (!footer.isEmpty()) {
+							ByteBuffer last = buffer.duplicate();
+							last.position(footer.get(footer.size() - 1).intValue() + 4);
+							readString(last);
+							readString(last);
+							last.getLong();
+							readString(last);
+							last.getLong();
+							end = last.position() + 4 + last.getInt();
+						}
+					}
+					offsets = footer;
+					// Drop the footer, or a record cut short, and append after the last record
+					file.setLength(end);
+					file.seek(end);
+				}
+			} catch (IOException ioe) {
+				file.close();
+				throw ioe;
+			}
+		}
+
+		/**
+		 * Appends a record.
+		 * @param spider the spider.
+		 * @param stage the stage.
+		 * @param fingerprint the request fingerprint.
+		 * @param name the name.
+		 * @param data the data.
+		 */
+		public synchronized void append(String spider, String stage, long fingerprint, String name, byte[] data) throws IOException {
+			if (closed) {
+				throw new IOException("Archive closed");
+			}
+			record.reset();
+			DataOutputStream output = new DataOutputStream(record);
+			output.writeInt(RECORD);
+			writeString(output, spider);
+			writeString(output, stage);
+			output.writeLong(fingerprint);
+			writeString(output, name);
+			output.writeLong(System.currentTimeMillis());
+			output.writeInt(data.length);
+			output.write(data);
+			long offset = file.getFilePointer();
+			if (offset + record.size() > Integer.MAX_VALUE - (offsets.size() + 1) * 8L - 64) {
+				throw new IOException("Archive full");
+			}
+			file.write(record.toByteArray());
+			offsets.add(Long.valueOf(offset));
+		}
+
+		/**
+		 * Returns the number of records.
+		 * @return the number of records.
+		 */
+		public synchronized int size() {
+			return offsets.size();
+		}
+
+		/**
+		 * Writes the index footer, forces the archive to disk and closes it.
+		 */
+		public synchronized void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				long footer = file.getFilePointer();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(offsets.size() * 8 + 20);
+				DataOutputStream output = new DataOutputStream(bytes);
+				output.writeInt(FOOTER);
+				output.writeInt(offsets.size());
+				for (long offset : offsets) {
+					output.writeLong(offset);
+				}
+				output.writeLong(footer);
+				output.writeInt(FOOTER);
+				file.write(bytes.toByteArray());
+				file.getChannel().force(false);
+			} finally {
+				file.close();
+			}
+		}
+
+		private ByteBuffer read(long offset, int length) throws IOException {
+			byte[] bytes = new byte[length];
+			file.seek(offset);
+			file.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		}
+
+		private static void writeString(DataOutputStream output, String text) throws IOException {
+			byte[] bytes = text.getBytes(Charsets.UTF_8);
+			if (bytes.length > 0xffff) {
+				throw new IOException("String too long: " + bytes.length + " bytes");
+			}
+			output.writeShort(bytes.length);
+			output.write(bytes);
+		}
+	}
+}
@@ -17,6 +17,18 @@ public final class Memory {
 		return Runtime.getRuntime().maxMemory();
 	}
 
+	/**
+	 * Returns the given share of the maximum memory, to size caches by weight.
+	 * @param percent the percentage of the maximum memory.
+	 * @return the number of bytes.
+	 */
+	public static final long share(int percent) {
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("percent=" + percent);
+		}
+		return maximum() / 100 * percent;
+	}
+
 	/**
 	 * Returns the percentage of memory used.
 	 * @return the percentage of memory used.
@@ -0,0 +1,39 @@
+package core.lang.thread;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The daemon executors shared by background work outside the {@link ThreadManager} pools,
+ * which need not be started.
+ * <p>
+ * The timer runs short periodic and delayed tasks, so it must never block: tasks that block
+ * (network, lookups) are handed to the workers, which grow as needed and shrink when idle.
+ */
+public final class Background {
+
+	/** The timer. */
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Background-Timer"));
+	/** The workers. */
+	private static final ExecutorService workers = Executors.newCachedThreadPool(new DaemonThreadFactory("Background-Worker"));
+
+	/**
+	 * Returns the timer, for short tasks that never block.
+	 * @return the timer.
+	 */
+	public static ScheduledExecutorService getTimer() {
+		return timer;
+	}
+
+	/**
+	 * Returns the workers, for tasks that may block.
+	 * @return the workers.
+	 */
+	public static ExecutorService getWorkers() {
+		return workers;
+	}
+
+	private Background() {
+	}
+}
@@ -0,0 +1,45 @@
+package core.lang.thread;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after their pool, with a sequence number.
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+	/** The name of the threads. */
+	private final String name;
+	/** The priority of the threads. */
+	private final int priority;
+	/** The number of threads created. */
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Creates a new factory of normal priority threads.
+	 * @param name the name of the threads.
+	 */
+	public DaemonThreadFactory(String name) {
+		this(name, Thread.NORM_PRIORITY);
+	}
+
+	/**
+	 * Creates a new factory.
+	 * @param name the name of the threads.
+	 * @param priority the priority of the threads.
+	 */
+	public DaemonThreadFactory(String name, int priority) {
+		if (name == null) {
+			throw new NullPointerException();
+		}
+		this.name = name;
+		this.priority = priority;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+		return thread;
+	}
+}
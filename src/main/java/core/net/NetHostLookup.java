@@ -0,0 +1,29 @@
+package core.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A Host Lookup.
+ * <p>
+ * Performs the actual name lookup for the {@link NetHostResolver}, so a test can
+ * replace the system resolver with an in-memory one.
+ */
+public interface NetHostLookup {
+
+	/** The system lookup. */
+	NetHostLookup SYSTEM = new NetHostLookup() {
+
+		public InetAddress[] lookup(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	/**
+	 * Look up all the addresses of the given host.
+	 * @param host the host.
+	 * @return the addresses (at least one).
+	 * @throws UnknownHostException if the host can not be resolved.
+	 */
+	InetAddress[] lookup(String host) throws UnknownHostException;
+}
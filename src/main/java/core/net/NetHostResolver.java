@@ -3,27 +3,107 @@ package core.net;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import core.io.StreamOutput;
-import core.util.UtilMap;
+import core.util.NullExecutorException;
+import core.util.Task;
 
 /**
  * The Network Resolver.
+ * <p>
+ * Caches the addresses of each host for a limited time. An entry that is close to expiry is
+ * refreshed in the background while the cached addresses are still handed out, so a lookup
+ * only blocks the caller the first time a host is seen or after an entry has expired. Failed
+ * lookups are cached for a shorter time.
+ * <p>
+ * A host with several addresses is handed out round-robin, starting at a different address on
+ * each call, so callers can fail over to the next address. The number of hosts is bounded,
+ * the least recently used host is dropped first.
  */
 public class NetHostResolver {
-	
+
 	private static final Logger log = LoggerFactory.getLogger(NetHostResolver.class);
 
 	/** The default timeout. */
 	private static final long MINIMUM_TIMEOUT = 300;
 
-	/** The host to address map. */
-	private final UtilMap hostToAddress = new UtilMap();
-	/** The host to timeout map. */
-	private final UtilMap hostToTimeout = new UtilMap();
+	/** The shared resolver. */
+	private static final NetHostResolver RESOLVER = new NetHostResolver();
+
+	/** The time (millis) a resolved host is cached. */
+	private static volatile long timeToLive = 300000;
+	/** The time (millis) a failed lookup is cached. */
+	private static volatile long negativeTimeToLive = 10000;
+	/** The percentage of the time to live after which an entry is refreshed in the background. */
+	private static volatile int refreshPercent = 80;
+	/** The maximum number of hosts cached. */
+	private static volatile int maximumHosts = 4096;
+
+	/**
+	 * Returns the shared resolver.
+	 * @return the shared resolver.
+	 */
+	public static NetHostResolver getResolver() {
+		return RESOLVER;
+	}
+
+	/**
+	 * Sets the cache limits.
+	 * @param ttl the time (millis) a resolved host is cached.
+	 * @param negativeTtl the time (millis) a failed lookup is cached.
+	 * @param refresh the percentage of the time to live after which an entry is refreshed.
+	 * @param hosts the maximum number of hosts cached.
+	 */
+	public static void setLimits(long ttl, long negativeTtl, int refresh, int hosts) {
+		if (ttl < 0 || negativeTtl < 0 || refresh < 1 || refresh > 100 || hosts < 1) {
+			throw new IllegalArgumentException("ttl=" + ttl + ", negativeTtl=" + negativeTtl + ", refresh=" + refresh + ", hosts=" + hosts);
+		}
+		timeToLive = ttl;
+		negativeTimeToLive = negativeTtl;
+		refreshPercent = refresh;
+		maximumHosts = hosts;
+	}
+
+	/** The lookup. */
+	private volatile NetHostLookup lookup = NetHostLookup.SYSTEM;
+	/** The host to entry map (access ordered). */
+	private final Map<String, HostEntry> hostToEntry = new LinkedHashMap<String, HostEntry>(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, HostEntry> eldest) {
+			return size() > maximumHosts;
+		}
+	};
+	/** The host to timeout map, kept apart from the entries so a timeout outlives them (guarded by hostToEntry). */
+	private final Map<String, Long> hostToTimeout = new HashMap<String, Long>();
+
+	/** The number of lookups answered from the cache. */
+	private long hits = 0;
+	/** The number of lookups that had to wait for a resolution. */
+	private long misses = 0;
+	/** The number of background refreshes. */
+	private long refreshes = 0;
+	/** The number of failed resolutions. */
+	private long failures = 0;
+	/** The total time (millis) spent resolving. */
+	private long resolveMillis = 0;
+
+	/**
+	 * Set the lookup.
+	 * @param lookup the lookup.
+	 */
+	public void setLookup(NetHostLookup lookup) {
+		if (lookup == null) {
+			throw new NullPointerException();
+		}
+		this.lookup = lookup;
+	}
 
 	/**
 	 * Get the timeout for the given host.
@@ -31,11 +111,13 @@ public class NetHostResolver {
 	 * @return the timeout.
 	 */
 	public long getTimeout(String host) {
-		Double timeout = (Double) hostToTimeout.get(host);
-		if (timeout == null) {
-			return MINIMUM_TIMEOUT;
+		synchronized (hostToEntry) {
+			Long timeout = hostToTimeout.get(host);
+			if (timeout == null) {
+				return MINIMUM_TIMEOUT;
+			}
+			return timeout.longValue();
 		}
-		return timeout.longValue();
 	}
 
 	/**
@@ -46,12 +128,10 @@ public class NetHostResolver {
 	public void setTimeout(String host, long timeout) {
 		if (timeout > MINIMUM_TIMEOUT) {
 			timeout += MINIMUM_TIMEOUT;
-			Double previousTimeout = (Double) hostToTimeout.get(host);
-			if (previousTimeout == null) {
-				hostToTimeout.put(host, new Double(timeout));
-			} else {
-				if (previousTimeout.longValue() > timeout) {
-					hostToTimeout.put(host, new Double(timeout));
+			synchronized (hostToEntry) {
+				Long previousTimeout = hostToTimeout.get(host);
+				if (previousTimeout == null || previousTimeout.longValue() > timeout) {
+					hostToTimeout.put(host, timeout);
 				}
 			}
 		}
@@ -63,15 +143,7 @@ public class NetHostResolver {
 	 * @return the address.
 	 */
 	public InetAddress resolve(String host) throws UnknownHostException {
-		byte[] address = (byte[]) hostToAddress.get(host);
-		if (address == null) {
-			long start = System.currentTimeMillis();
-			address = InetAddress.getByName(host).getAddress();
-			long finish = System.currentTimeMillis();
-			if (log.isDebugEnabled()) log.debug ("[Resolved] " + host + " (" + (finish - start) + " millis)");
-			hostToAddress.put(host, address);
-		}
-		return InetAddress.getByAddress(address);
+		return resolveAll(host)[0];
 	}
 
 	/**
@@ -83,4 +155,238 @@ public class NetHostResolver {
 		InetAddress address = resolve(host);
 		return new InetSocketAddress(address, port);
 	}
+
+	/**
+	 * Resolve all the addresses of the given host, starting with the next address in round-robin order.
+	 * @param host the host.
+	 * @return the addresses.
+	 */
+	public InetAddress[] resolveAll(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		HostEntry entry;
+		boolean refresh = false;
+		synchronized (hostToEntry) {
+			entry = hostToEntry.get(host);
+			if (entry != null && now < entry.expiry) {
+				hits++;
+				if (!entry.refreshing && entry.addresses != null && now >= entry.refresh) {
+					entry.refreshing = true;
+					refresh = true;
+				}
+			} else {
+				misses++;
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			entry = lookup(host);
+		} else if (refresh) {
+			refresh(host, entry);
+		}
+		return entry.rotate(host);
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache.
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		synchronized (hostToEntry) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that had to wait for a resolution.
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		synchronized (hostToEntry) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Returns the number of background refreshes.
+	 * @return the number of refreshes.
+	 */
+	public long getRefreshes() {
+		synchronized (hostToEntry) {
+			return refreshes;
+		}
+	}
+
+	/**
+	 * Returns the number of failed resolutions.
+	 * @return the number of failures.
+	 */
+	public long getFailures() {
+		synchronized (hostToEntry) {
+			return failures;
+		}
+	}
+
+	/**
+	 * Returns the average time (millis) taken to resolve a host.
+	 * @return the average time.
+	 */
+	public long getAverageResolveMillis() {
+		synchronized (hostToEntry) {
+			long resolved = misses + refreshes;
+			return resolved == 0 ? 0 : resolveMillis / resolved;
+		}
+	}
+
+	/**
+	 * Returns the number of hosts cached.
+	 * @return the number of hosts.
+	 */
+	public int size() {
+		synchronized (hostToEntry) {
+			return hostToEntry.size();
+		}
+	}
+
+	/**
+	 * Clear the cache.
+	 */
+	public void clear() {
+		synchronized (hostToEntry) {
+			hostToEntry.clear();
+		}
+	}
+
+	/**
+	 * Looks up the given host and caches the result.
+	 * @param host the host.
+	 * @return the new entry.
+	 */
+	private HostEntry lookup(String host) {
+		long start = System.currentTimeMillis();
+		InetAddress[] addresses = null;
+		UnknownHostException exception = null;
+		try {
+			addresses = lookup.lookup(host);
+			if (addresses == null || addresses.length == 0) {
+				throw new UnknownHostException(host);
+			}
+		} catch (UnknownHostException uhe) {
+			addresses = null;
+			exception = uhe;
+		}
+		long finish = System.currentTimeMillis();
+		if (log.isDebugEnabled()) log.debug ("[Resolved] " + host + " (" + (finish - start) + " millis) " + (exception == null ? addresses.length + " address(es)" : "failed"));
+
+		HostEntry entry = new HostEntry(addresses, exception, finish);
+		synchronized (hostToEntry) {
+			resolveMillis += finish - start;
+			if (exception != null) {
+				failures++;
+			}
+			hostToEntry.put(host, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Refreshes the given entry in the background, the entry keeps its addresses if the lookup fails.
+	 * @param host the host.
+	 * @param entry the entry.
+	 */
+	private void refresh(final String host, final HostEntry entry) {
+		Task task = new Task() {
+
+			public void runTask() {
+				long start = System.currentTimeMillis();
+				InetAddress[] addresses = null;
+				try {
+					addresses = lookup.lookup(host);
+				} catch (UnknownHostException uhe) {
+					if (log.isDebugEnabled()) log.debug ("[Refresh Failed] " + host + " " + uhe.getMessage());
+				}
+				long finish = System.currentTimeMillis();
+				synchronized (hostToEntry) {
+					refreshes++;
+					resolveMillis += finish - start;
+					if (addresses != null && addresses.length > 0) {
+						entry.set(addresses, finish);
+					}
+					entry.refreshing = false;
+				}
+			}
+		};
+		try {
+			task.start();
+		} catch (NullExecutorException nee) {
+			// No executor running, the entry is resolved again when it expires
+			synchronized (hostToEntry) {
+				entry.refreshing = false;
+			}
+		}
+	}
+
+	/**
+	 * A cached host.
+	 */
+	private static final class HostEntry {
+
+		/** The addresses, null if the lookup failed. */
+		private volatile InetAddress[] addresses;
+		/** The lookup failure. */
+		private final UnknownHostException exception;
+		/** The time (millis) after which the entry is refreshed. */
+		private long refresh;
+		/** The time (millis) at which the entry expires. */
+		private long expiry;
+		/** The round-robin index. */
+		private int next = 0;
+		/** Indicates if a refresh is in progress. */
+		private boolean refreshing = false;
+
+		private HostEntry(InetAddress[] addresses, UnknownHostException exception, long time) {
+			this.exception = exception;
+			if (addresses == null) {
+				this.expiry = time + negativeTimeToLive;
+				this.refresh = this.expiry;
+			} else {
+				set(addresses, time);
+			}
+		}
+
+		/**
+		 * Set the addresses.
+		 * @param addresses the addresses.
+		 * @param time the time resolved.
+		 */
+		private void set(InetAddress[] addresses, long time) {
+			long ttl = timeToLive;
+			this.addresses = addresses;
+			this.expiry = time + ttl;
+			this.refresh = time + ttl * refreshPercent / 100;
+		}
+
+		/**
+		 * Returns the addresses starting at the next in round-robin order.
+		 * @param host the host.
+		 * @return the addresses.
+		 */
+		private synchronized InetAddress[] rotate(String host) throws UnknownHostException {
+			InetAddress[] addresses = this.addresses;
+			if (addresses == null) {
+				UnknownHostException uhe = new UnknownHostException(host);
+				uhe.initCause(exception);
+				throw uhe;
+			}
+			int length = addresses.length;
+			InetAddress[] rotated = new InetAddress[length];
+			int start = next++ % length;
+			if (next < 0) {
+				next = 0;
+			}
+			for (int i = 0; i < length; i++) {
+				rotated[i] = addresses[(start + i) % length];
+			}
+			return rotated;
+		}
+	}
 }
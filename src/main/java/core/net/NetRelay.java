@@ -0,0 +1,744 @@
+package core.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.lang.thread.Background;
+
+/**
+ * A selector based relay: accepts connections, connects to remote hosts and copies bytes
+ * between pairs of connections (tunnels) on a single reactor thread.
+ * <p>
+ * A tunnel holds no thread and, while idle, no buffer: a direction of a tunnel takes a
+ * direct buffer from the pool when its source is readable and returns it once the bytes have
+ * been written to its target. While the target is slower than the source the direction stops
+ * reading until the buffer is drained. When one side shuts down its output the other side's
+ * output is shut down once the pending bytes are written (half close), and the tunnel closes
+ * once both directions are done, either side fails or it has been idle for too long.
+ * <p>
+ * Handlers run on the reactor thread and must never block. Host names are resolved and
+ * connects started on a small pool, other threads hand work to the reactor with
+ * {@link #execute(Runnable)}.
+ */
+public final class NetRelay implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(NetRelay.class);
+
+	/**
+	 * Handles the events of a registered channel, on the reactor thread.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called when the channel is ready for the operations of interest.
+		 * @param key the key.
+		 */
+		void ready(SelectionKey key) throws IOException;
+
+		/**
+		 * Returns true if the handler has waited too long and must be closed.
+		 * @param now the time (millis).
+		 * @return true if expired.
+		 */
+		boolean isExpired(long now);
+
+		/**
+		 * Closes the handler, after a failure, expiry or shutdown.
+		 * @param cause the failure, null if none.
+		 */
+		void close(IOException cause);
+	}
+
+	/**
+	 * Accepts connections.
+	 */
+	public interface Acceptor {
+
+		/**
+		 * Called on the reactor thread with each accepted (non-blocking) connection.
+		 * @param channel the connection.
+		 */
+		void accepted(SocketChannel channel) throws IOException;
+	}
+
+	/**
+	 * Notified of the outcome of a connect, on the reactor thread.
+	 */
+	public interface Connector {
+
+		/**
+		 * Called once connected.
+		 * @param channel the (non-blocking) connection.
+		 */
+		void connected(SocketChannel channel) throws IOException;
+
+		/**
+		 * Called if the connect failed or timed out.
+		 * @param cause the failure.
+		 */
+		void failed(IOException cause);
+	}
+
+	/**
+	 * Notified when a tunnel closes, on the reactor thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once the tunnel has closed.
+		 * @param tunnel the tunnel.
+		 */
+		void closed(Tunnel tunnel);
+	}
+
+	/** The name. */
+	private final String name;
+	/** The selector. */
+	private final Selector selector;
+	/** The tasks to run on the reactor thread. */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** The pooled buffers (reactor thread only). */
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+	/** The size of the pooled buffers. */
+	private final int bufferSize;
+	/** The maximum number of pooled buffers. */
+	private final int maximumPooled;
+	/** The time (millis) a tunnel may be idle for. */
+	private volatile long idleTimeout = 10 * 60 * 1000L;
+	/** The time (millis) a connect may take. */
+	private volatile int connectTimeout = 10000;
+	/** The reactor thread. */
+	private Thread thread = null;
+	/** Indicates if running. */
+	private volatile boolean running = false;
+
+	/** The open tunnels. */
+	private final AtomicInteger tunnels = new AtomicInteger();
+	/** The tunnels opened. */
+	private final AtomicLong totalTunnels = new AtomicLong();
+	/** The bytes relayed. */
+	private final AtomicLong bytes = new AtomicLong();
+	/** The buffers allocated. */
+	private int allocated = 0;
+
+	/**
+	 * Creates a new relay.
+	 * @param name the name (of the reactor thread).
+	 * @param bufferSize the size of the buffers.
+	 * @param maximumPooled the maximum number of idle buffers kept.
+	 */
+	public NetRelay(String name, int bufferSize, int maximumPooled) throws IOException {
+		if (bufferSize < 512 || maximumPooled < 0) {
+			throw new IllegalArgumentException("bufferSize=" + bufferSize + ", maximumPooled=" + maximumPooled);
+		}
+		this.name = name;
+		this.bufferSize = bufferSize;
+		this.maximumPooled = maximumPooled;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Creates a new relay with 16K buffers.
+	 * @param name the name (of the reactor thread).
+	 */
+	public NetRelay(String name) throws IOException {
+		this(name, 16384, 1024);
+	}
+
+	/**
+	 * Sets the timeouts.
+	 * @param idle the time (millis) a tunnel may be idle for, zero for no limit.
+	 * @param connect the time (millis) a connect may take.
+	 */
+	public void setTimeouts(long idle, int connect) {
+		if (idle < 0 || connect <= 0) {
+			throw new IllegalArgumentException("idle=" + idle + ", connect=" + connect);
+		}
+		this.idleTimeout = idle;
+		this.connectTimeout = connect;
+	}
+
+	/**
+	 * Starts the reactor thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("already started");
+		}
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the reactor, closing every channel.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the given task on the reactor thread.
+	 * @param task the task.
+	 */
+	public void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers the given channel, or updates its registration (reactor thread only).
+	 * @param channel the channel.
+	 * @param ops the operations of interest.
+	 * @param handler the handler.
+	 * @return the key.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		channel.configureBlocking(false);
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * Listens for connections on the given address.
+	 * @param address the address.
+	 * @param acceptor the acceptor.
+	 */
+	public void listen(InetSocketAddress address, final Acceptor acceptor) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address, 1024);
+		execute(new Runnable() {
+
+			public void run() {
+				try {
+					register(server, SelectionKey.OP_ACCEPT, new Handler() {
+
+						public void ready(SelectionKey key) throws IOException {
+							SocketChannel channel;
+							while ((channel = server.accept()) != null) {
+								channel.configureBlocking(false);
+								channel.socket().setTcpNoDelay(true);
+								try {
+									acceptor.accepted(channel);
+								} catch (IOException ioe) {
+									if (log.isDebugEnabled()) log.debug("[" + name + "] accept failed: " + ioe.getMessage());
+									closeQuietly(channel);
+								}
+							}
+						}
+
+						public boolean isExpired(long now) {
+							return false;
+						}
+
+						public void close(IOException cause) {
+							closeQuietly(server);
+						}
+					});
+				} catch (IOException ioe) {
+					if (log.isErrorEnabled()) log.error("[" + name + "] unable to listen", ioe);
+					closeQuietly(server);
+				}
+			}
+		});
+		if (log.isInfoEnabled()) log.info("[" + name + "] listening on " + address);
+	}
+
+	/**
+	 * Connects to the given host, the connector is called on the reactor thread.
+	 * @param host the host.
+	 * @param port the port.
+	 * @param bind the local address to bind to, null for any.
+	 * @param connector the connector.
+	 */
+	public void connect(final String host, final int port, final InetSocketAddress bind, final Connector connector) {
+		if (connector == null) {
+			throw new NullPointerException("connector");
+		}
+		Background.getWorkers().execute(new Runnable() {
+
+			public void run() {
+				SocketChannel channel = null;
+				try {
+					InetSocketAddress address = NetHostResolver.getResolver().resolve(host, port);
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					if (bind != null) {
+						channel.socket().bind(bind);
+					}
+					final boolean connected = channel.connect(address);
+					final SocketChannel opened = channel;
+					execute(new Runnable() {
+
+						public void run() {
+							Connecting connecting = new Connecting(opened, connector);
+							if (connected) {
+								connecting.connected();
+							} else {
+								try {
+									register(opened, SelectionKey.OP_CONNECT, connecting);
+								} catch (IOException ioe) {
+									connecting.close(ioe);
+								}
+							}
+						}
+					});
+				} catch (final IOException ioe) {
+					closeQuietly(channel);
+					execute(new Runnable() {
+
+						public void run() {
+							connector.failed(ioe);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Relays the bytes between the given connections (reactor thread only).
+	 * @param client the client connection.
+	 * @param server the server connection.
+	 * @param toServer the bytes to send to the server first, null if none.
+	 * @param toClient the bytes to send to the client first, null if none.
+	 * @param listener notified once the tunnel closes, null if none.
+	 * @return the tunnel.
+	 */
+	public Tunnel relay(SocketChannel client, SocketChannel server, ByteBuffer toServer, ByteBuffer toClient, Listener listener) throws IOException {
+		Tunnel tunnel = new Tunnel(client, server, listener);
+		tunnel.clientToServer.buffer = (toServer != null && toServer.hasRemaining()) ? toServer : null;
+		tunnel.serverToClient.buffer = (toClient != null && toClient.hasRemaining()) ? toClient : null;
+		tunnel.client.key = register(client, 0, tunnel.client);
+		tunnel.server.key = register(server, 0, tunnel.server);
+		tunnels.incrementAndGet();
+		totalTunnels.incrementAndGet();
+		tunnel.update();
+		return tunnel;
+	}
+
+	/**
+	 * Returns the number of open tunnels.
+	 * @return the number of tunnels.
+	 */
+	public int getTunnels() {
+		return tunnels.get();
+	}
+
+	/**
+	 * Returns the number of tunnels opened.
+	 * @return the number of tunnels.
+	 */
+	public long getTotalTunnels() {
+		return totalTunnels.get();
+	}
+
+	/**
+	 * Returns the number of bytes relayed.
+	 * @return the number of bytes.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = buffers.pollLast();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			allocated++;
+		}
+		return buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == bufferSize && buffers.size() < maximumPooled) {
+			buffer.clear();
+			buffers.addLast(buffer);
+		}
+	}
+
+	private static void closeQuietly(SelectableChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// Closing anyway
+			}
+		}
+	}
+
+	/**
+	 * The reactor loop.
+	 */
+	public void run() {
+		long swept = System.currentTimeMillis();
+		while (running) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException re) {
+					if (log.isErrorEnabled()) log.error("[" + name + "] task failed", re);
+				}
+			}
+			try {
+				selector.select(1000);
+			} catch (IOException ioe) {
+				if (log.isErrorEnabled()) log.error("[" + name + "] select failed", ioe);
+				continue;
+			}
+			for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				Handler handler = (Handler) key.attachment();
+				try {
+					if (key.isValid()) {
+						handler.ready(key);
+					}
+				} catch (IOException ioe) {
+					handler.close(ioe);
+				} catch (RuntimeException re) {
+					if (log.isErrorEnabled()) log.error("[" + name + "] handler failed", re);
+					handler.close(null);
+				}
+			}
+			long now = System.currentTimeMillis();
+			if (now - swept >= 1000) {
+				swept = now;
+				for (Handler handler : getHandlers()) {
+					if (handler.isExpired(now)) {
+						handler.close(null);
+					}
+				}
+			}
+		}
+
+		// Shutdown
+		for (Handler handler : getHandlers()) {
+			handler.close(null);
+		}
+		try {
+			selector.close();
+		} catch (IOException ioe) {
+			if (log.isDebugEnabled()) log.debug("[" + name + "] unable to close selector: " + ioe.getMessage());
+		}
+		if (log.isInfoEnabled()) log.info("[" + name + "] stopped (" + totalTunnels + " tunnels, " + bytes + " bytes, " + allocated + " buffers)");
+	}
+
+	private List<Handler> getHandlers() {
+		List<Handler> handlers = new ArrayList<Handler>(selector.keys().size());
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Handler) {
+				handlers.add((Handler) key.attachment());
+			}
+		}
+		return handlers;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (tunnels=" + tunnels + ", total=" + totalTunnels + ", bytes=" + bytes + ", buffers=" + allocated + ", pooled=" + buffers.size() + ")";
+	}
+
+	/**
+	 * A connect in progress.
+	 */
+	private final class Connecting implements Handler {
+
+		private final SocketChannel channel;
+		private final Connector connector;
+		private final long deadline;
+		private boolean done = false;
+
+		private Connecting(SocketChannel channel, Connector connector) {
+			this.channel = channel;
+			this.connector = connector;
+			this.deadline = System.currentTimeMillis() + connectTimeout;
+		}
+
+		public void ready(SelectionKey key) throws IOException {
+			if (channel.finishConnect()) {
+				key.interestOps(0);
+				connected();
+			}
+		}
+
+		private void connected() {
+			done = true;
+			try {
+				connector.connected(channel);
+			} catch (IOException ioe) {
+				closeQuietly(channel);
+				connector.failed(ioe);
+			}
+		}
+
+		public boolean isExpired(long now) {
+			return !done && now > deadline;
+		}
+
+		public void close(IOException cause) {
+			if (!done) {
+				done = true;
+				closeQuietly(channel);
+				connector.failed(cause != null ? cause : new IOException("Connect timed out after " + connectTimeout + " millis"));
+			}
+		}
+	}
+
+	/**
+	 * A pair of connections relaying bytes.
+	 */
+	public final class Tunnel {
+
+		/** The client side. */
+		private final Endpoint client;
+		/** The server side. */
+		private final Endpoint server;
+		/** The client to server direction. */
+		private final Direction clientToServer;
+		/** The server to client direction. */
+		private final Direction serverToClient;
+		/** The listener, null if none. */
+		private final Listener listener;
+		/** The time (millis) the tunnel opened. */
+		private final long opened = System.currentTimeMillis();
+		/** The time (millis) bytes were last relayed. */
+		private long active = opened;
+		/** The time (millis) the tunnel closed, zero while open. */
+		private long closed = 0;
+		/** The failure that closed the tunnel, null if none. */
+		private IOException failure = null;
+
+		private Tunnel(SocketChannel client, SocketChannel server, Listener listener) {
+			this.client = new Endpoint(this, client);
+			this.server = new Endpoint(this, server);
+			this.clientToServer = new Direction(this.client, this.server);
+			this.serverToClient = new Direction(this.server, this.client);
+			this.listener = listener;
+		}
+
+		/**
+		 * Returns the bytes sent from the client to the server.
+		 * @return the number of bytes.
+		 */
+		public long getBytesSent() {
+			return clientToServer.bytes;
+		}
+
+		/**
+		 * Returns the bytes sent from the server to the client.
+		 * @return the number of bytes.
+		 */
+		public long getBytesReceived() {
+			return serverToClient.bytes;
+		}
+
+		/**
+		 * Returns the time (millis) the tunnel was open for, so far if still open.
+		 * @return the time.
+		 */
+		public long getDuration() {
+			return ((closed == 0) ? System.currentTimeMillis() : closed) - opened;
+		}
+
+		/**
+		 * Returns the failure that closed the tunnel.
+		 * @return the failure, null if none.
+		 */
+		public IOException getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Returns true if the tunnel has closed.
+		 * @return true if closed.
+		 */
+		public boolean isClosed() {
+			return closed != 0;
+		}
+
+		/**
+		 * Sets the interest of both sides from the state of the directions.
+		 */
+		private void update() {
+			if (closed != 0) {
+				return;
+			}
+			if (clientToServer.done && serverToClient.done) {
+				close(null);
+				return;
+			}
+			client.key.interestOps(clientToServer.getReadInterest() | serverToClient.getWriteInterest());
+			server.key.interestOps(serverToClient.getReadInterest() | clientToServer.getWriteInterest());
+		}
+
+		private void close(IOException cause) {
+			if (closed != 0) {
+				return;
+			}
+			closed = System.currentTimeMillis();
+			failure = cause;
+			clientToServer.release();
+			serverToClient.release();
+			closeQuietly(client.channel);
+			closeQuietly(server.channel);
+			tunnels.decrementAndGet();
+			if (listener != null) {
+				try {
+					listener.closed(this);
+				} catch (RuntimeException re) {
+					if (log.isErrorEnabled()) log.error("[" + name + "] listener failed", re);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Tunnel (sent=" + getBytesSent() + ", received=" + getBytesReceived() + ", duration=" + getDuration() + "ms" + (failure == null ? "" : ", failure=" + failure.getMessage()) + ")";
+		}
+	}
+
+	/**
+	 * One side of a tunnel.
+	 */
+	private final class Endpoint implements Handler {
+
+		private final Tunnel tunnel;
+		private final SocketChannel channel;
+		private SelectionKey key;
+
+		private Endpoint(Tunnel tunnel, SocketChannel channel) {
+			this.tunnel = tunnel;
+			this.channel = channel;
+		}
+
+		public void ready(SelectionKey key) throws IOException {
+			Direction out = (this == tunnel.client) ? tunnel.clientToServer : tunnel.serverToClient;
+			Direction in = (this == tunnel.client) ? tunnel.serverToClient : tunnel.clientToServer;
+			if (key.isReadable()) {
+				out.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				in.write();
+			}
+			tunnel.update();
+		}
+
+		public boolean isExpired(long now) {
+			return idleTimeout > 0 && now - tunnel.active > idleTimeout;
+		}
+
+		public void close(IOException cause) {
+			tunnel.close(cause);
+		}
+	}
+
+	/**
+	 * One direction of a tunnel.
+	 */
+	private final class Direction {
+
+		private final Endpoint source;
+		private final Endpoint target;
+		/** The bytes read but not yet written (ready to write), null if none. */
+		private ByteBuffer buffer = null;
+		/** Indicates if the source has shut down its output. */
+		private boolean eof = false;
+		/** Indicates if the target's output has been shut down. */
+		private boolean done = false;
+		/** The bytes relayed. */
+		private long bytes = 0;
+
+		private Direction(Endpoint source, Endpoint target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		private int getReadInterest() {
+			return (eof || buffer != null) ? 0 : SelectionKey.OP_READ;
+		}
+
+		private int getWriteInterest() {
+			return (buffer != null) ? SelectionKey.OP_WRITE : 0;
+		}
+
+		private void read() throws IOException {
+			if (eof || buffer != null) {
+				return;
+			}
+			ByteBuffer buffer = acquireBuffer();
+			int read;
+			try {
+				read = source.channel.read(buffer);
+			} catch (IOException ioe) {
+				releaseBuffer(buffer);
+				throw ioe;
+			}
+			if (read > 0) {
+				buffer.flip();
+				this.buffer = buffer;
+				write();
+			} else {
+				releaseBuffer(buffer);
+				if (read == -1) {
+					eof = true;
+					write();
+				}
+			}
+		}
+
+		private void write() throws IOException {
+			if (buffer != null) {
+				int written = target.channel.write(buffer);
+				if (written > 0) {
+					bytes += written;
+					NetRelay.this.bytes.addAndGet(written);
+					source.tunnel.active = System.currentTimeMillis();
+				}
+				if (buffer.hasRemaining()) {
+					return;
+				}
+				releaseBuffer(buffer);
+				buffer = null;
+			}
+			if (eof && !done) {
+				done = true;
+				if (target.channel.isOpen()) {
+					target.channel.socket().shutdownOutput();
+				}
+			}
+		}
+
+		private void release() {
+			if (buffer != null) {
+				releaseBuffer(buffer);
+				buffer = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package core.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A shared secure socket factory.
+ * <p>
+ * One factory exists per trust manager and protocol set, all factories for a trust manager
+ * share its SSL context. The client session cache of each trust manager's context is sized so
+ * a session is kept for every host we connect to, which lets a repeat connection resume the
+ * session with an abbreviated handshake instead of a full one. The JVM default context, used
+ * without a trust manager, is shared with the rest of the process and keeps its own settings.
+ * Sockets are always created with the peer host and port, the session cache is keyed by them.
+ * <p>
+ * Handshakes are timed, a handshake is counted as resumed if its session was created before
+ * the handshake started.
+ */
+public final class NetSecureSocketFactory {
+
+	private static final Logger log = LoggerFactory.getLogger(NetSecureSocketFactory.class);
+
+	/** The factories by trust manager and protocol set. */
+	private static final Map<Key, NetSecureSocketFactory> FACTORIES = new HashMap<Key, NetSecureSocketFactory>();
+
+	/** The number of sessions cached per context. */
+	private static volatile int sessionCacheSize = 1024;
+	/** The time (seconds) a session is cached. */
+	private static volatile int sessionTimeout = 3600;
+
+	/** The number of handshakes. */
+	private static long handshakes = 0;
+	/** The number of resumed handshakes. */
+	private static long resumedHandshakes = 0;
+	/** The total time (millis) spent in handshakes. */
+	private static long handshakeMillis = 0;
+
+	/**
+	 * Sets the session cache limits, applied to the trust manager contexts first used after the
+	 * call.
+	 * @param size the number of sessions cached per context.
+	 * @param timeout the time (seconds) a session is cached.
+	 */
+	public static void setSessionCache(int size, int timeout) {
+		if (size < 0 || timeout < 0) {
+			throw new IllegalArgumentException("size=" + size + ", timeout=" + timeout);
+		}
+		sessionCacheSize = size;
+		sessionTimeout = timeout;
+	}
+
+	/**
+	 * Returns the factory for the given trust manager and protocols.
+	 * @param trustManager the trust manager, or null for the default context.
+	 * @param protocols the protocols, or null for the context defaults.
+	 * @return the factory.
+	 */
+	public static NetSecureSocketFactory getFactory(NetTrustManager trustManager, HttpsProtocol[] protocols) throws IOException {
+		Key key = new Key(trustManager, protocols);
+		synchronized (FACTORIES) {
+			NetSecureSocketFactory factory = FACTORIES.get(key);
+			if (factory == null) {
+				factory = new NetSecureSocketFactory(getContext(trustManager), key.protocols);
+				FACTORIES.put(key, factory);
+			}
+			return factory;
+		}
+	}
+
+	/**
+	 * Returns the number of handshakes.
+	 * @return the number of handshakes.
+	 */
+	public static synchronized long getHandshakes() {
+		return handshakes;
+	}
+
+	/**
+	 * Returns the number of resumed handshakes.
+	 * @return the number of resumed handshakes.
+	 */
+	public static synchronized long getResumedHandshakes() {
+		return resumedHandshakes;
+	}
+
+	/**
+	 * Returns the percentage of handshakes that resumed a session.
+	 * @return the resumption rate.
+	 */
+	public static synchronized int getResumptionPercent() {
+		return handshakes == 0 ? 0 : (int) (resumedHandshakes * 100 / handshakes);
+	}
+
+	/**
+	 * Returns the average handshake time (millis).
+	 * @return the average handshake time.
+	 */
+	public static synchronized long getAverageHandshakeMillis() {
+		return handshakes == 0 ? 0 : handshakeMillis / handshakes;
+	}
+
+	/**
+	 * Records a completed handshake.
+	 * @param session the session.
+	 * @param start the time (millis) the handshake started.
+	 */
+	public static void handshakeCompleted(SSLSession session, long start) {
+		long finish = System.currentTimeMillis();
+		boolean resumed = session.getCreationTime() < start;
+		synchronized (NetSecureSocketFactory.class) {
+			handshakes++;
+			handshakeMillis += finish - start;
+			if (resumed) {
+				resumedHandshakes++;
+			}
+		}
+		if (log.isDebugEnabled()) log.debug ("[Handshake] " + session.getPeerHost() + ":" + session.getPeerPort() + " " + session.getProtocol() + (resumed ? " resumed" : "") + " (" + (finish - start) + " millis)");
+	}
+
+	/**
+	 * Returns the context for the given trust manager, with its session cache sized.
+	 * @param trustManager the trust manager, or null for the JVM default context, left as is.
+	 * @return the context.
+	 */
+	private static SSLContext getContext(NetTrustManager trustManager) throws IOException {
+		if (trustManager == null) {
+			try {
+				return SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new SSLException("No default TLS context", nsae);
+			}
+		}
+		SSLContext context = trustManager.getContext();
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeout);
+		}
+		return context;
+	}
+
+	/** The context. */
+	private final SSLContext context;
+	/** The socket factory. */
+	private final SSLSocketFactory socketFactory;
+	/** The enabled protocols, or null for the context defaults. */
+	private final String[] protocols;
+
+	private NetSecureSocketFactory(SSLContext context, String[] protocols) {
+		this.context = context;
+		this.socketFactory = context.getSocketFactory();
+		this.protocols = protocols;
+	}
+
+	/**
+	 * Returns the context.
+	 * @return the context.
+	 */
+	public SSLContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Returns a secure socket layered over the given connected socket, after the handshake.
+	 * @param socket the connected socket.
+	 * @param host the host.
+	 * @param port the port.
+	 * @param timeout the handshake timeout (millis), or 0 for none.
+	 * @return the secure socket.
+	 */
+	public SSLSocket createSocket(Socket socket, String host, int port, int timeout) throws IOException {
+		SSLSocket secureSocket = (SSLSocket) socketFactory.createSocket(socket, host, port, true);
+		try {
+			if (protocols != null) {
+				secureSocket.setEnabledProtocols(protocols);
+			}
+			int soTimeout = secureSocket.getSoTimeout();
+			if (timeout > 0) {
+				secureSocket.setSoTimeout(timeout);
+			}
+			long start = System.currentTimeMillis();
+			secureSocket.startHandshake();
+			handshakeCompleted(secureSocket.getSession(), start);
+			secureSocket.setSoTimeout(soTimeout);
+			return secureSocket;
+		} catch (IOException ioe) {
+			secureSocket.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Returns a new client engine for the given host.
+	 * @param host the host.
+	 * @param port the port.
+	 * @return the engine.
+	 */
+	public SSLEngine createEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		if (protocols != null) {
+			engine.setEnabledProtocols(protocols);
+		}
+		return engine;
+	}
+
+	/**
+	 * A trust manager and protocol set.
+	 */
+	private static final class Key {
+
+		/** The trust manager. */
+		private final NetTrustManager trustManager;
+		/** The protocol names. */
+		private final String[] protocols;
+		/** The protocol names joined. */
+		private final String names;
+
+		private Key(NetTrustManager trustManager, HttpsProtocol[] protocols) {
+			this.trustManager = trustManager;
+			if (protocols == null) {
+				this.protocols = null;
+				this.names = "";
+			} else {
+				this.protocols = new String[protocols.length];
+				StringBuilder names = new StringBuilder();
+				for (int i = 0; i < protocols.length; i++) {
+					this.protocols[i] = protocols[i].name();
+					names.append(this.protocols[i]).append(',');
+				}
+				this.names = names.toString();
+			}
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(trustManager) * 31 + names.hashCode();
+		}
+
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) object;
+			return trustManager == key.trustManager && names.equals(key.names) && (protocols == null) == (key.protocols == null);
+		}
+	}
+}
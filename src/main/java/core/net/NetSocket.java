@@ -12,9 +12,6 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +28,7 @@ public class NetSocket implements Closeable {
 
 
 	/** The Network Host Resolver. */
-	private static final NetHostResolver HOST_RESOLVER = new NetHostResolver();
+	private static final NetHostResolver HOST_RESOLVER = NetHostResolver.getResolver();
 	/** The Trust Manager. */
 	private static NetTrustManager defaultTrustManager = null;
 
@@ -47,6 +44,14 @@ public class NetSocket implements Closeable {
 		defaultTrustManager = manager;
 	}
 
+	/**
+	 * Returns the trust manager.
+	 * @return the trust manager, or null to use the default.
+	 */
+	public static NetTrustManager getTrustManager() {
+		return defaultTrustManager;
+	}
+
 	/** The creation time. */
 	private final long creationTime;
 	/** The socket. * */
@@ -113,13 +118,7 @@ public class NetSocket implements Closeable {
 	 * @throws IOException if an IO error occurs creating the secure socket.
 	 */
 	public NetSocket toSecureSocket(String host, int port, NetTrustManager trustManager) throws IOException {
-		SSLSocketFactory factory;
-		if (trustManager != null) {
-			factory = trustManager.getSocketFactory();
-		} else {
-			factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-		}
-		Socket secureSocket = factory.createSocket(getSocket(), host, port, true);
+		Socket secureSocket = NetSecureSocketFactory.getFactory(trustManager, null).createSocket(getSocket(), host, port, getSocket().getSoTimeout());
 		NetSocket netSocket = new NetSocket(secureSocket);
 		return netSocket;
 	}
@@ -193,29 +192,15 @@ public class NetSocket implements Closeable {
 	private static final Socket newSocket(SocketAddress bindAddress, String host, int port, boolean ssl, int timeout, NetTrustManager trustManager, HttpsProtocol[] protocols) throws IOException {
 		long start = System.currentTimeMillis();
 		try {
-			InetSocketAddress address = HOST_RESOLVER.resolve(host, port);
+			InetAddress[] addresses = HOST_RESOLVER.resolveAll(host);
 			int connectTimeout = (int) HOST_RESOLVER.getTimeout(host) * 2;
 			start = System.currentTimeMillis();
-			for (int i = 0; i < 6; i++) {
+			Socket connected = null;
+			for (int i = 0; i < 6 && connected == null; i++) {
+				InetSocketAddress address = new InetSocketAddress(addresses[i % addresses.length], port);
 				try {
 					// if (log.isDebugEnabled()) log.debug ("[Connect Attempt] " + (i + 1) + " " + host + ":" + port);
-					Socket socket;
-					if (ssl) {
-						if (trustManager != null) {
-							socket = trustManager.getSocketFactory().createSocket();
-						} else {
-							socket = SSLSocketFactory.getDefault().createSocket();
-						}
-						if (protocols != null) {
-							final String[] prots = new String[protocols.length];
-							for (short j = 0; j < protocols.length; j++)
-								prots[j] = protocols[j].name();
-							((SSLSocket) socket).setEnabledProtocols(prots);
-						}
-
-					} else {
-						socket = new Socket(Proxy.NO_PROXY);
-					}
+					Socket socket = new Socket(Proxy.NO_PROXY);
 
 					SocketAddress newSocketBindingAddress = getNewSocketBindingAddress();
 
@@ -231,16 +216,33 @@ public class NetSocket implements Closeable {
 					HOST_RESOLVER.setTimeout(host, finish - start);
 					// if (log.isDebugEnabled()) log.debug ("[Connected] " + address + " (" + (finish - start) + " millis) after " + i + " retries");
 					// if (log.isDebugEnabled()) log.debug ("[Connect Success] " + host + ":" + port + " (" + connectTimeout + ")");
-					return socket;
+					connected = socket;
+				} catch (ConnectException ce) {
+					if (i + 1 >= addresses.length) {
+						throw ce;
+					}
+					if (log.isDebugEnabled()) log.debug ("[Connect Failover] " + address + " " + ce.getMessage());
 				} catch (SocketTimeoutException ste) {
 					long finish = System.currentTimeMillis();
 					if (timeout < finish - start) {
 						break;
 					}
+					if (i + 1 < addresses.length) {
+						// Fail over to the next address before backing off
+						continue;
+					}
 					connectTimeout *= 3;
 					// if (log.isDebugEnabled()) log.debug ("[Connect Retry] " + host + ":" + port + " (" + connectTimeout + ")");
 				}
 			}
+			if (connected != null) {
+				if (ssl) {
+					// Outside the connect retries, a handshake that times out is not retried;
+					// layered with the host name so the session can be resumed
+					connected = NetSecureSocketFactory.getFactory(trustManager, protocols).createSocket(connected, host, port, timeout);
+				}
+				return connected;
+			}
 		} catch (IOException ioe) {
 			throw new SocketException(host + ":" + port + " (secure? " + ssl + ") " + ioe.getMessage());
 		}
@@ -276,6 +278,43 @@ public class NetSocket implements Closeable {
 		return socket == null || socket.isClosed();
 	}
 
+	/**
+	 * Returns true if this socket can no longer be used for a new request:
+	 * it is closed, the peer has closed its side, or unread data is waiting.
+	 * Blocks for at most a millisecond.
+	 * @return true if this socket is stale.
+	 */
+	public final boolean isStale() {
+		final Socket s = socket;
+		final StreamReader r = reader;
+		if (s == null || r == null || s.isClosed() || s.isInputShutdown() || s.isOutputShutdown() || r.isClosed()) {
+			return true;
+		}
+		try {
+			if (r.available() > 0) {
+				return true;
+			}
+			int timeout = s.getSoTimeout();
+			try {
+				s.setSoTimeout(1);
+				r.mark(1);
+				if (r.read() == -1) {
+					return true;
+				}
+				r.reset();
+				return true;
+			} catch (SocketTimeoutException ste) {
+				return false;
+			} finally {
+				if (!s.isClosed()) {
+					s.setSoTimeout(timeout);
+				}
+			}
+		} catch (IOException ioe) {
+			return true;
+		}
+	}
+
 	/**
 	 * Close this socket.
 	 */
@@ -1,6 +1,8 @@
 package core.net;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +44,40 @@ public class NetSocketPipe extends NetServerSocket {
 		}
 	}
 
+	/**
+	 * Starts a pipe in relay mode, relaying the connections on a single selector thread
+	 * rather than on threads of their own.
+	 * @param remoteHost the remote host.
+	 * @param remotePort the remote port.
+	 * @param localPort the local port.
+	 * @return the relay.
+	 */
+	public static NetRelay startRelay(final String remoteHost, final int remotePort, int localPort) throws IOException {
+		final NetRelay relay = new NetRelay("NetSocketPipe-Relay-" + localPort);
+		relay.start();
+		relay.listen(new InetSocketAddress(localPort), new NetRelay.Acceptor() {
+
+			public void accepted(final SocketChannel local) {
+				relay.connect(remoteHost, remotePort, null, new NetRelay.Connector() {
+
+					public void connected(SocketChannel remote) throws IOException {
+						relay.relay(local, remote, null, null, null);
+					}
+
+					public void failed(IOException cause) {
+						if (log.isDebugEnabled()) log.debug("[Pipe] unable to connect to " + remoteHost + ":" + remotePort + ": " + cause.getMessage());
+						try {
+							local.close();
+						} catch (IOException ioe) {
+							// Closing anyway
+						}
+					}
+				});
+			}
+		});
+		return relay;
+	}
+
 	public static void main(String[] args) {
 		try {
 			new NetSocketPipe("localmail.travelfusion.com", 25, 12345, 20);
@@ -0,0 +1,377 @@
+package core.net;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of idle keep-alive sockets.
+ * <p>
+ * Sockets are pooled by host, port, secure flag and proxy URL. A socket is
+ * only handed out again if it is still within its keep-alive time and passes
+ * the {@link NetSocket#isStale()} check, otherwise it is closed and dropped.
+ * <p>
+ * The number of idle sockets is capped per key and in total, the oldest idle
+ * socket is closed first when either cap is reached.
+ */
+public final class NetSocketPool {
+
+	private static final Logger log = LoggerFactory.getLogger(NetSocketPool.class);
+
+	/** The singleton pool. */
+	private static final NetSocketPool POOL = new NetSocketPool();
+
+	/** Indicates if pooling is enabled. */
+	private static volatile boolean enabled = true;
+	/** The maximum idle sockets per key. */
+	private static volatile int maximumIdlePerHost = 8;
+	/** The maximum idle sockets in total. */
+	private static volatile int maximumIdle = 256;
+	/** The maximum time (millis) a socket is kept idle. */
+	private static volatile long maximumIdleMillis = 15000;
+	/** The minimum time (millis) between purges of expired sockets. */
+	private static final long PURGE_INTERVAL = 1000;
+
+	/**
+	 * Returns the singleton pool.
+	 * @return the singleton pool.
+	 */
+	public static NetSocketPool getPool() {
+		return POOL;
+	}
+
+	/**
+	 * Returns true if pooling is enabled.
+	 * @return true if pooling is enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables pooling. Disabling closes all idle sockets.
+	 * @param state true to enable pooling.
+	 */
+	public static void setEnabled(boolean state) {
+		enabled = state;
+		if (!state) {
+			POOL.clear();
+		}
+	}
+
+	/**
+	 * Sets the idle limits.
+	 * @param perHost the maximum idle sockets per key.
+	 * @param total the maximum idle sockets in total.
+	 * @param idleMillis the maximum time (millis) a socket is kept idle.
+	 */
+	public static void setLimits(int perHost, int total, long idleMillis) {
+		if (perHost < 0 || total < 0 || idleMillis < 0) {
+			throw new IllegalArgumentException("perHost=" + perHost + ", total=" + total + ", idleMillis=" + idleMillis);
+		}
+		maximumIdlePerHost = perHost;
+		maximumIdle = total;
+		maximumIdleMillis = idleMillis;
+	}
+
+	/**
+	 * Returns the maximum time (millis) a socket is kept idle.
+	 * @return the maximum idle time.
+	 */
+	public static long getMaximumIdleMillis() {
+		return maximumIdleMillis;
+	}
+
+	/** The idle sockets by key, most recently released last. */
+	private final Map<Key, LinkedList<Idle>> idleMap = new HashMap<Key, LinkedList<Idle>>();
+	/** All idle sockets, oldest released first. */
+	private final LinkedList<Idle> idleList = new LinkedList<Idle>();
+	/** The time of the last purge. */
+	private long lastPurge = 0;
+	/** The number of sockets handed out again. */
+	private long reused = 0;
+	/** The number of requests that found no idle socket. */
+	private long missed = 0;
+	/** The number of idle sockets found stale or expired. */
+	private long discarded = 0;
+
+	/**
+	 * Inaccessible constructor.
+	 */
+	private NetSocketPool() {
+	}
+
+	/**
+	 * Returns an idle socket for the given key, or null if there is none.
+	 * @param key the key.
+	 * @return the socket or null.
+	 */
+	public NetSocket acquire(Key key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			Idle idle;
+			synchronized (this) {
+				purge(false);
+				LinkedList<Idle> list = idleMap.get(key);
+				if (list == null || list.isEmpty()) {
+					missed++;
+					return null;
+				}
+				idle = list.removeLast();
+				if (list.isEmpty()) {
+					idleMap.remove(key);
+				}
+				idleList.remove(idle);
+			}
+
+			// Validate outside the lock, this may block for a millisecond
+			if (idle.hasExpired(System.currentTimeMillis()) || idle.socket.isStale()) {
+				close(idle);
+				continue;
+			}
+			synchronized (this) {
+				reused++;
+			}
+			if (log.isDebugEnabled()) log.debug("[Reused] " + key);
+			return idle.socket;
+		}
+	}
+
+	/**
+	 * Returns the given socket to the pool.
+	 * @param key the key.
+	 * @param socket the socket.
+	 * @param keepAliveMillis the keep-alive time (millis) advertised by the server, or -1 if not known.
+	 */
+	public void release(Key key, NetSocket socket, long keepAliveMillis) {
+		if (key == null || socket == null) {
+			throw new NullPointerException();
+		}
+		long idleMillis = maximumIdleMillis;
+		if (keepAliveMillis >= 0 && keepAliveMillis < idleMillis) {
+			idleMillis = keepAliveMillis;
+		}
+		if (!enabled || idleMillis <= 0 || maximumIdlePerHost == 0 || maximumIdle == 0 || socket.isClosed()) {
+			socket.close();
+			return;
+		}
+		Idle idle = new Idle(key, socket, System.currentTimeMillis() + idleMillis);
+		LinkedList<Idle> toClose = new LinkedList<Idle>();
+		synchronized (this) {
+			LinkedList<Idle> list = idleMap.get(key);
+			if (list == null) {
+				list = new LinkedList<Idle>();
+				idleMap.put(key, list);
+			}
+			list.addLast(idle);
+			idleList.addLast(idle);
+			while (list.size() > maximumIdlePerHost) {
+				Idle oldest = list.removeFirst();
+				idleList.remove(oldest);
+				toClose.add(oldest);
+			}
+			while (idleList.size() > maximumIdle) {
+				toClose.add(removeOldest());
+			}
+		}
+		for (Idle oldest : toClose) {
+			close(oldest);
+		}
+	}
+
+	/**
+	 * Returns the number of idle sockets.
+	 * @return the number of idle sockets.
+	 */
+	public synchronized int idle() {
+		return idleList.size();
+	}
+
+	/**
+	 * Returns the number of sockets handed out again.
+	 * @return the number of sockets reused.
+	 */
+	public synchronized long reused() {
+		return reused;
+	}
+
+	/**
+	 * Returns the number of requests that found no idle socket.
+	 * @return the number of misses.
+	 */
+	public synchronized long missed() {
+		return missed;
+	}
+
+	/**
+	 * Returns the number of idle sockets found stale or expired.
+	 * @return the number of discarded sockets.
+	 */
+	public synchronized long discarded() {
+		return discarded;
+	}
+
+	/**
+	 * Closes all expired idle sockets.
+	 */
+	public void purge() {
+		synchronized (this) {
+			purge(true);
+		}
+	}
+
+	/**
+	 * Closes all idle sockets.
+	 */
+	public void clear() {
+		LinkedList<Idle> toClose;
+		synchronized (this) {
+			toClose = new LinkedList<Idle>(idleList);
+			idleList.clear();
+			idleMap.clear();
+		}
+		for (Idle idle : toClose) {
+			idle.socket.close();
+		}
+	}
+
+	/**
+	 * Removes expired sockets, at most once per purge interval unless forced.
+	 * Must be called holding the lock.
+	 * @param force true to ignore the purge interval.
+	 */
+	private void purge(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - lastPurge < PURGE_INTERVAL) {
+			return;
+		}
+		lastPurge = now;
+		Iterator<Idle> iterator = idleList.iterator();
+		while (iterator.hasNext()) {
+			Idle idle = iterator.next();
+			if (idle.hasExpired(now)) {
+				iterator.remove();
+				LinkedList<Idle> list = idleMap.get(idle.key);
+				if (list != null) {
+					list.remove(idle);
+					if (list.isEmpty()) {
+						idleMap.remove(idle.key);
+					}
+				}
+				discarded++;
+				idle.socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest idle socket. Must be called holding the lock.
+	 * @return the oldest idle socket.
+	 */
+	private Idle removeOldest() {
+		Idle oldest = idleList.removeFirst();
+		LinkedList<Idle> list = idleMap.get(oldest.key);
+		if (list != null) {
+			list.remove(oldest);
+			if (list.isEmpty()) {
+				idleMap.remove(oldest.key);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Close the given idle socket.
+	 * @param idle the idle socket.
+	 */
+	private void close(Idle idle) {
+		synchronized (this) {
+			discarded++;
+		}
+		idle.socket.close();
+	}
+
+	/**
+	 * An idle socket.
+	 */
+	private static final class Idle {
+
+		/** The key. */
+		private final Key key;
+		/** The socket. */
+		private final NetSocket socket;
+		/** The time the socket expires. */
+		private final long expiryTime;
+
+		private Idle(Key key, NetSocket socket, long expiryTime) {
+			this.key = key;
+			this.socket = socket;
+			this.expiryTime = expiryTime;
+		}
+
+		private boolean hasExpired(long now) {
+			return now >= expiryTime;
+		}
+	}
+
+	/**
+	 * A pool key.
+	 */
+	public static final class Key {
+
+		/** The host. */
+		private final String host;
+		/** The port. */
+		private final int port;
+		/** Indicates if the connection is secure. */
+		private final boolean secure;
+		/** The proxy URL, or null for a direct connection. */
+		private final String proxy;
+
+		/**
+		 * Creates a new key.
+		 * @param host the host.
+		 * @param port the port.
+		 * @param secure true if the connection is secure.
+		 * @param proxy the proxy URL, or null for a direct connection.
+		 */
+		public Key(String host, int port, boolean secure, String proxy) {
+			if (host == null) {
+				throw new NullPointerException();
+			}
+			this.host = host.toLowerCase();
+			this.port = port;
+			this.secure = secure;
+			this.proxy = proxy;
+		}
+
+		public int hashCode() {
+			int hash = host.hashCode();
+			hash = 31 * hash + port;
+			hash = 31 * hash + (secure ? 1 : 0);
+			hash = 31 * hash + (proxy == null ? 0 : proxy.hashCode());
+			return hash;
+		}
+
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) object;
+			return port == key.port && secure == key.secure && host.equals(key.host) && (proxy == null ? key.proxy == null : proxy.equals(key.proxy));
+		}
+
+		public String toString() {
+			return (secure ? "https://" : "http://") + host + ":" + port + (proxy == null ? "" : " [Proxy] " + proxy);
+		}
+	}
+}
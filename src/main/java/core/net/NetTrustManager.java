@@ -46,6 +46,8 @@ public final class NetTrustManager implements X509TrustManager {
 
 	/** The trust manager. */
 	private final X509TrustManager sunJSSEX509TrustManager;
+	/** The SSL context. */
+	private final SSLContext context;
 	/** The socket factory. */
 	private final SSLSocketFactory socketFactory;
 	/** Warnings enabled. */
@@ -53,6 +55,14 @@ public final class NetTrustManager implements X509TrustManager {
 	/** Strict validate. */
 	private boolean strictValidation = false;
 
+	/**
+	 * Returns the SSL context.
+	 * @return the SSL context.
+	 */
+	public SSLContext getContext() {
+		return context;
+	}
+
 	/**
 	 * Returns the socket factory.
 	 * @return the socket factory.
@@ -101,7 +111,7 @@ public final class NetTrustManager implements X509TrustManager {
 				KeyManager[] keyManagers = keyFactory.getKeyManagers();
 
 				managers = new TrustManager[]{this};
-				SSLContext context = SSLContext.getInstance("TLS");
+				this.context = SSLContext.getInstance("TLS");
 				context.init(keyManagers, managers, null);
 				this.socketFactory = context.getSocketFactory();
 				return;
@@ -1,19 +1,34 @@
 package core.text;
 
+import java.util.Arrays;
 import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import core.util.UtilList;
-
 /**
  * A selector for selection and extraction of text.
+ * <p>
+ * Selecting text within the selection does not copy it: the selection is a stack of windows
+ * (a start and an end) over the text selected last, and only the extracted text is copied.
  */
 public class Selection implements SelectionOptions {
 
-	/** The list of selected buffers. */
-	private final UtilList bufferList = new UtilList();
-	
+	/** Collapses runs of whitespace for matching. */
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	/** The selected text of each window, the current window last. */
+	private String[] texts = new String[8];
+	/** The start of each window. */
+	private int[] starts = new int[8];
+	/** The end of each window. */
+	private int[] ends = new int[8];
+	/** The number of windows. */
+	private int size = 0;
+	/** The start of the text last found. */
+	private int foundStart = 0;
+	/** The end of the text last found. */
+	private int foundEnd = 0;
+
 	/**
 	 * Selects the given text.
 	 * @param text the text to select.
@@ -22,21 +37,47 @@ public class Selection implements SelectionOptions {
 		if (text == null) {
 			throw new NullPointerException();
 		}
-		bufferList.add(0, text);
+		push(text, 0, text.length());
 	}
 
 	/**
 	 * Deselects the currently selected text.
 	 */
 	public final String deselectText() {
-		return (String) bufferList.remove(0);
+		if (size == 0) {
+			throw new IndexOutOfBoundsException("nothing selected");
+		}
+		String text = getText();
+		size--;
+		texts[size] = null;
+		return text;
 	}
 
 	/**
 	 * Returns the currently selected text.
 	 */
 	public final String getText() {
-		return (String) bufferList.get(0);
+		if (size == 0) {
+			throw new IndexOutOfBoundsException("nothing selected");
+		}
+		int top = size - 1;
+		String text = texts[top];
+		if (starts[top] == 0 && ends[top] == text.length()) {
+			return text;
+		}
+		return text.substring(starts[top], ends[top]);
+	}
+
+	/**
+	 * Returns a view of the currently selected text, valid until the selection next changes.
+	 * @return the view, copied only by its {@link CharSequence#toString()}.
+	 */
+	public final CharSequence getView() {
+		if (size == 0) {
+			throw new IndexOutOfBoundsException("nothing selected");
+		}
+		int top = size - 1;
+		return new Window(texts[top], starts[top], ends[top]);
 	}
 
 	/**
@@ -83,80 +124,122 @@ public class Selection implements SelectionOptions {
 	 * @return the extracted text.
 	 */
 	public final String extractText(String begin, String end, int options) throws SelectionException {
-		if (bufferList.size() == 0) {
+		if (!find(begin, end, options)) {
+			return null;
+		}
+		return texts[size - 1].substring(foundStart, foundEnd);
+	}
+
+	/**
+	 * Selects the given text beginning and ending with the given delimiters.
+	 * @param begin the beginning text.
+	 * @param end the end text.
+	 * @param options the options.
+	 */
+	public final boolean selectText(String begin, String end, int options) throws SelectionException {
+		if (!find(begin, end, options)) {
+			return false;
+		}
+		push(texts[size - 1], foundStart, foundEnd);
+		return true;
+	}
+
+	/**
+	 * Finds the first text beginning and ending with the given delimiters in the current
+	 * window, sets {@link #foundStart} and {@link #foundEnd} to it and, unless no move, moves
+	 * the start of the window past it.
+	 * @return true if found, false if not found and optional.
+	 */
+	private boolean find(String begin, String end, int options) throws SelectionException {
+		if (size == 0) {
 			if (isOptional(options))
-				return null;
+				return false;
 			throw new SelectionException("nothing selected to extract from");
 		}
-		String selection = getText();
-		int beginIndex = 0;
+		int top = size - 1;
+		String selection = texts[top];
+		int start = starts[top];
+		int limit = ends[top];
+		int beginIndex = start;
 		int beginLength = 0;
 		if (begin != null) {
-			if (ignoreCase(options)) {
-				beginIndex = Text.indexOfIgnoreCase(selection, begin, 0);
-			} else {
-				beginIndex = selection.indexOf(begin);
-			}
+			beginIndex = indexOf(selection, begin, start, limit, ignoreCase(options));
 			if (beginIndex == -1) {
 				if (isOptional(options))
-					return null;
+					return false;
 				throw new SelectionException("begin text not found: \"" + begin + "\"");
 			}
 			beginLength = begin.length();
 		}
-		int endIndex = selection.length();
+		int endIndex = limit;
 		int endLength = 0;
 		if (end != null) {
-			if (ignoreCase(options)) {
-				endIndex = Text.indexOfIgnoreCase(selection, end, beginIndex + beginLength);
-			} else {
-				endIndex = selection.indexOf(end, beginIndex + beginLength);
-			}
-			endLength = end.length();
+			endIndex = indexOf(selection, end, beginIndex + beginLength, limit, ignoreCase(options));
 			if (endIndex == -1) {
 				if (isOptional(options))
-					return null;
+					return false;
 				throw new SelectionException("end text not found: \"" + end + "\"");
 			}
 			endLength = end.length();
 		}
-		String extraction;
 		if (includeDelimiters(options)) {
-			extraction = selection.substring(beginIndex, endIndex + endLength);
+			foundStart = beginIndex;
+			foundEnd = endIndex + endLength;
 		} else {
-			extraction = selection.substring(beginIndex + beginLength, endIndex);
+			foundStart = beginIndex + beginLength;
+			foundEnd = endIndex;
 		}
-		String newSelection;
-		if (noMove(options)) {
-			newSelection = selection;
-		} else {
-			newSelection = selection.substring(endIndex + endLength, selection.length());
+		if (!noMove(options)) {
+			starts[top] = endIndex + endLength;
 		}
-		deselectText();
-		selectText(newSelection);
-		return extraction;
+		return true;
 	}
 
 	/**
-	 * Selects the given text beginning and ending with the given delimiters.
-	 * @param begin the beginning text.
-	 * @param end the end text.
-	 * @param options the options.
+	 * Returns the index of the given text within the window of the given text.
+	 * @param text the text to search.
+	 * @param sub the text to search for.
+	 * @param from the start of the window.
+	 * @param to the end of the window.
+	 * @param ignoreCase true to ignore case.
+	 * @return the index, or -1 if not found.
 	 */
-	public final boolean selectText(String begin, String end, int options) throws SelectionException {
-		String extraction = extractText(begin, end, options);
-		if (extraction == null) {
-			return false;
+	private static int indexOf(String text, String sub, int from, int to, boolean ignoreCase) {
+		if (ignoreCase) {
+			int index = Text.indexOfIgnoreCase(new Window(text, from, to), sub, 0);
+			return (index == -1) ? -1 : from + index;
 		}
-		selectText(extraction);
-		return true;
+		int length = sub.length();
+		if (length == 0) {
+			return from;
+		}
+		char first = sub.charAt(0);
+		for (int i = from, last = to - length; i <= last; i++) {
+			if (text.charAt(i) == first && text.regionMatches(i + 1, sub, 1, length - 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void push(String text, int start, int end) {
+		if (size == texts.length) {
+			texts = Arrays.copyOf(texts, size * 2);
+			starts = Arrays.copyOf(starts, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+		}
+		texts[size] = text;
+		starts[size] = start;
+		ends[size] = end;
+		size++;
 	}
 
 	/**
 	 * Clear the selection.
 	 */
 	public void clear() {
-		bufferList.clear();
+		Arrays.fill(texts, 0, size, null);
+		size = 0;
 	}
 	
 	/**
@@ -190,7 +273,7 @@ public class Selection implements SelectionOptions {
 	 */
 	public String matchFirst(Pattern regex)
 	{
-		return matchFirst(regex, getText().replaceAll("\\s+", " "));
+		return matchFirst(regex, WHITESPACE.matcher(getView()).replaceAll(" "));
 	}
 	
 	/**
@@ -201,7 +284,7 @@ public class Selection implements SelectionOptions {
 	 */
 	public Vector<String> match(Pattern regex)
 	{
-		return match(regex, getText().replaceAll("\\s+", " "));
+		return match(regex, WHITESPACE.matcher(getView()).replaceAll(" "));
 	}
 	/**
 	 * Utility method used to search an input string for a given regex and return the first matching instance.
@@ -308,4 +391,43 @@ public class Selection implements SelectionOptions {
 		
 		return input;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * A window over a text, copied only by {@link #toString()}.
+	 */
+	private static final class Window implements CharSequence {
+
+		private final String text;
+		private final int start;
+		private final int end;
+
+		private Window(String text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("index=" + index + ", length=" + (end - start));
+			}
+			return text.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException("from=" + from + ", to=" + to + ", length=" + (end - start));
+			}
+			return new Window(text, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return text.substring(start, end);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package core.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads values into a {@link LoadingCache}.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public abstract class CacheLoader<K, V> {
+
+	/**
+	 * Loads the value for the given key.
+	 * @param key the key.
+	 * @return the value, null values are not cached.
+	 * @throws Exception if the value can not be loaded.
+	 */
+	public abstract V load(K key) throws Exception;
+
+	/**
+	 * Loads the values for the given keys, override to fetch them in one request.
+	 * @param keys the keys.
+	 * @return the values by key, keys without a value may be left out.
+	 * @throws Exception if the values can not be loaded.
+	 */
+	public Map<K, V> loadAll(Collection<? extends K> keys) throws Exception {
+		Map<K, V> values = new LinkedHashMap<K, V>();
+		for (K key : keys) {
+			values.put(key, load(key));
+		}
+		return values;
+	}
+}
@@ -20,9 +20,9 @@ import java.util.Set;
  * will force-expire the entry at the back of the linked list for each put()
  * when it reaches its limit.
  * <p>
- * If the map has time-expired entries, they will only be removed as accessed or
- * when sufficient put() operations have forced them to the back of the linked
- * list.
+ * If the map has time-expired entries, they are removed as accessed, when
+ * sufficient put() operations have forced them to the back of the linked list,
+ * or in the background by the {@link CacheSweeper} shortly after they expire.
  * <p>
  * A time-limited map that is also size-limited does not guarantee to expire the
  * oldest timed entry when its size limit is reached, and may remove unexpired
@@ -31,6 +31,18 @@ import java.util.Set;
  * Entry removal is a constant time operation along with get() and put() to
  * ensure that map performance does not significantly degrade with size. 
  * <p>
+ * If frequency admission is enabled on a size-limited map, new entries enter a
+ * small window at the back of the list. An entry leaving the window only
+ * displaces the entry at the front of the list if it has been used more often
+ * recently, as estimated by a {@link FrequencySketch}, otherwise the new entry
+ * is the one expired. A scan of one-off keys then passes through the window
+ * without flushing the entries that are in frequent use.
+ * <p>
+ * A map given a maximum weight and a {@link CacheWeigher} is bounded by the
+ * total weight of its entries as well as its size, entries are force-expired
+ * from the front of the list until the total is within the maximum. This bounds
+ * a cache of values that vary widely in size by the memory they hold.
+ * <p>
  * This map is an effective clone of {@LinkedHashMap} merged and with small
  * ammendments.
  * 
@@ -39,7 +51,7 @@ import java.util.Set;
  * 
  * @see LinkedHashMap
  */
-public class CacheMap<K, V> implements Map<K, V>, Cloneable {
+public class CacheMap<K, V> implements Map<K, V>, Cloneable, CacheStats.Source {
 
 	/** The default initial capacity - MUST be a power of two. */
 	static final int DEFAULT_INITIAL_CAPACITY = 16;
@@ -120,6 +132,33 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	/** The timeout. */
 	private int timeout = 0;
 
+	/** The weigher (null unless bounded by weight). */
+	private transient CacheWeigher<? super K, ? super V> weigher = null;
+	/** The maximum total weight (zero for unlimited). */
+	private long maximumWeight = 0;
+	/** The total weight of the entries. */
+	private long totalWeight = 0;
+	/** The number of entries evicted to keep within the maximum size or weight. */
+	private long evictions = 0;
+	/** The total weight of the entries evicted. */
+	private long evictedWeight = 0;
+
+	/** The sweeper (held here, the sweeper only holds it weakly). */
+	private transient CacheSweeper.Sweepable sweeper = null;
+	/** The statistics (null unless recorded). */
+	private transient CacheStats stats = null;
+	/** The removal listener. */
+	private transient volatile CacheRemovalListener<K, V> removalListener = null;
+
+	/** The frequency sketch (null unless admission is enabled). */
+	private transient FrequencySketch sketch = null;
+	/** The head of the window, linked between the main entries and the header. */
+	private transient Entry<K, V> windowHeader = null;
+	/** The number of entries in the window. */
+	private transient int windowSize = 0;
+	/** The maximum number of entries in the window. */
+	private transient int windowMaximum = 0;
+
 	// internal utilities
 
 	/**
@@ -161,6 +200,191 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		init();
 	}
 
+	/**
+	 * Enables or disables frequency admission, only applies to a size-limited map.
+	 * 
+	 * @param enable true to enable admission.
+	 */
+	public synchronized void setAdmission(boolean enable) {
+		if (enable == (windowHeader != null)) {
+			return;
+		}
+		if (enable) {
+			if (maximumSize == 0) {
+				throw new IllegalStateException("admission requires a maximum size");
+			}
+			sketch = new FrequencySketch(maximumSize);
+			windowMaximum = Math.max(1, maximumSize / 100);
+			windowSize = 0;
+			windowHeader = new Entry<K, V>(-1, null, null, null);
+			windowHeader.addBefore(header);
+		} else {
+			windowHeader.remove();
+			windowHeader = null;
+			sketch = null;
+			for (Entry<K, V> entry = header.after; entry != header; entry = entry.after) {
+				entry.window = false;
+			}
+			windowSize = 0;
+		}
+	}
+
+	/**
+	 * Bounds this map by the total weight of its entries as well as its maximum size, the
+	 * entries at the front of the list are expired until the total weight is within the
+	 * maximum. An entry is weighed when it is put. The weigher is not serialized, a
+	 * deserialized map is unbounded by weight until this is called again.
+	 * 
+	 * @param maximumWeight the maximum total weight (zero for unlimited).
+	 * @param weigher the weigher, or null to stop weighing entries.
+	 */
+	public synchronized void setMaximumWeight(long maximumWeight, CacheWeigher<? super K, ? super V> weigher) {
+		if (maximumWeight < 0) {
+			throw new IllegalArgumentException("maximumWeight=" + maximumWeight);
+		}
+		if (maximumWeight != 0 && weigher == null) {
+			throw new NullPointerException("weigher");
+		}
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+		totalWeight = 0;
+		for (Entry<K, V> entry = skipWindowHeader(header.after); entry != header; entry = skipWindowHeader(entry.after)) {
+			entry.weight = (weigher == null) ? 0 : weigher.weigh(entry.getKey(), entry.value);
+			totalWeight += entry.weight;
+		}
+		while (isOverLimit() && size > 0) {
+			evictFront();
+		}
+	}
+
+	/**
+	 * Returns the total weight of the entries, zero if not bounded by weight.
+	 * 
+	 * @return the total weight.
+	 */
+	public synchronized long getWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * Returns the maximum total weight.
+	 * 
+	 * @return the maximum weight (zero for unlimited).
+	 */
+	public synchronized long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/**
+	 * Returns the number of entries evicted to keep within the maximum size or weight.
+	 * 
+	 * @return the number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the total weight of the entries evicted.
+	 * 
+	 * @return the evicted weight.
+	 */
+	public synchronized long getEvictedWeight() {
+		return evictedWeight;
+	}
+
+	/**
+	 * Starts recording statistics for this map under the given name, and registers them with
+	 * the {@link CacheRegistry}.
+	 * 
+	 * @param name the name.
+	 * @return the statistics.
+	 */
+	public synchronized CacheStats recordStats(String name) {
+		stats = new CacheStats(name, this);
+		CacheRegistry.register(stats);
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics.
+	 * 
+	 * @return the statistics, or null if not recorded.
+	 */
+	public synchronized CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Copies the entries for a snapshot, front of the list first. Only references are copied
+	 * so the map is locked briefly.
+	 */
+	synchronized void copyEntries(CacheSnapshot.Entries entries) {
+		for (Entry<K, V> entry = skipWindowHeader(header.after); entry != header; entry = skipWindowHeader(entry.after)) {
+			if (entry.key != NULL_KEY) {
+				entries.add(entry.key, entry.value, entry.timeCreated * 1000L);
+			}
+		}
+	}
+
+	/**
+	 * Restores an entry from a snapshot unless the map already has one for the key or it has
+	 * expired, it keeps its original creation time. The entry is linked in creation order
+	 * ahead of any newer entries so expiry still finds the eldest at the front, and it is
+	 * neither counted as a put nor passed through the admission window.
+	 * 
+	 * @return true if restored.
+	 */
+	synchronized boolean restoreEntry(K key, V value, long created) {
+		int timeCreated = (int) (created / 1000);
+		if (timeout != 0 && timeCreated < getTimeNow() - timeout) {
+			return false;
+		}
+		if (getEntry(key) != null) {
+			return false;
+		}
+		if (size >= threshold) {
+			resize(2 * table.length);
+		}
+		K k = maskNull(key);
+		int hash = hash(k.hashCode());
+		int index = indexFor(hash, table.length);
+		modCount++;
+		createEntry(hash, k, value, index);
+
+		// Relink in creation order, outside the window
+		Entry<K, V> entry = table[index];
+		entry.recordRemoval(this);
+		entry.timeCreated = timeCreated;
+		Entry<K, V> next = windowHeader != null ? windowHeader : header;
+		while (next.before != header && next.before.timeCreated > timeCreated) {
+			next = next.before;
+		}
+		entry.addBefore(next);
+		if (isOverLimit()) {
+			removeEntries();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the listener notified as entries are removed.
+	 * 
+	 * @param listener the listener, or null for none.
+	 */
+	public void setRemovalListener(CacheRemovalListener<K, V> listener) {
+		this.removalListener = listener;
+	}
+
+	/**
+	 * Returns true if frequency admission is enabled.
+	 * 
+	 * @return true if admission is enabled.
+	 */
+	public synchronized boolean hasAdmission() {
+		return windowHeader != null;
+	}
+
 	/**
 	 * Returns the number of key-value mappings in this map.
 	 * 
@@ -221,7 +445,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 				if (timeout != 0) {
 					if (entry.hasExpired(timeout, getTimeNow())) {
 						//System.out.println("removing expired entry: " + entry.key + " (" + (getTimeNow() - entry.timeCreated) + " seconds)");
-						removeEntryForKey(key);
+						removeEntry(key, CacheRemovalListener.Cause.EXPIRED);
 						return false;
 					}
 				}
@@ -259,6 +483,8 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	 * specified key.
 	 */
 	public synchronized V put(K key, V value) {
+		if (stats != null)
+			stats.recordPut();
 		if (key == null)
 			return putForNullKey(value);
 		int hash = hash(key.hashCode());
@@ -267,8 +493,11 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 			Object k;
 			if (entry.hash == hash && ((k = entry.key) == key || key.equals(k))) {
 				V oldValue = entry.value;
-				entry.value = value;
+				entry.setValue(this, value);
 				entry.recordAccess(this, true, getTimeNow());
+				if (maximumWeight != 0 && totalWeight > maximumWeight) {
+					removeEntries();
+				}
 				return oldValue;
 			}
 		}
@@ -285,8 +514,11 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		for (Entry<K, V> entry = table[i]; entry != null; entry = entry.next) {
 			if (entry.key == NULL_KEY) {
 				V oldValue = entry.value;
-				entry.value = value;
+				entry.setValue(this, value);
 				entry.recordAccess(this, true, getTimeNow());
+				if (maximumWeight != 0 && totalWeight > maximumWeight) {
+					removeEntries();
+				}
 				return oldValue;
 			}
 		}
@@ -403,10 +635,25 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	 * specified key.
 	 */
 	public synchronized V remove(Object key) {
-		Entry<K, V> e = removeEntryForKey(key);
+		Entry<K, V> e = removeEntry(key, CacheRemovalListener.Cause.REMOVED);
 		return (e == null ? null : e.value);
 	}
 
+	/**
+	 * Removes and returns the entry associated with the specified key and
+	 * notifies the removal listener.
+	 */
+	private final Entry<K, V> removeEntry(Object key, CacheRemovalListener.Cause cause) {
+		Entry<K, V> e = removeEntryForKey(key);
+		if (e != null && stats != null) {
+			stats.recordRemoval(cause);
+		}
+		if (e != null && removalListener != null) {
+			removalListener.entryRemoved(e.getKey(), e.value, cause);
+		}
+		return e;
+	}
+
 	/**
 	 * Removes and returns the entry associated with the specified key in the
 	 * CacheMap. Returns null if the CacheMap contains no mapping for this key.
@@ -423,6 +670,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 			if (e.hash == hash && eq(k, e.key)) {
 				modCount++;
 				size--;
+				totalWeight -= e.weight;
 				if (prev == e)
 					table[i] = next;
 				else
@@ -456,6 +704,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 			if (current.hash == hash && current.equals(entry)) {
 				modCount++;
 				size--;
+				totalWeight -= current.weight;
 				if (prev == current)
 					table[i] = next;
 				else
@@ -487,7 +736,15 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		result.entrySet = null;
 		result.modCount = 0;
 		result.size = 0;
+		result.totalWeight = 0;
+		result.stats = null;
+		result.sketch = null;
+		result.windowHeader = null;
+		result.windowSize = 0;
 		result.init();
+		if (windowHeader != null) {
+			result.setAdmission(true);
+		}
 		result.putAllForCreate(this);
 
 		return result;
@@ -503,6 +760,8 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 
 		private int accessCount;
 		private int timeCreated;
+		private boolean window;
+		private int weight;
 
 		/**
 		 * Create new entry.
@@ -534,6 +793,15 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 			return oldValue;
 		}
 
+		private final void setValue(CacheMap<K, V> map, V newValue) {
+			value = newValue;
+			if (map.weigher != null) {
+				map.totalWeight -= weight;
+				weight = map.weigher.weigh(getKey(), newValue);
+				map.totalWeight += weight;
+			}
+		}
+
 		public final boolean equals(Object o) {
 			if (!(o instanceof Map.Entry))
 				return false;
@@ -591,16 +859,28 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 				this.timeCreated = timeNow;
 			}
 
+			if (map.sketch != null) {
+				map.sketch.increment(hash);
+			}
+
 			// Move to back of queue
 			if (newEntry) {
 				map.modCount++;
 				remove();
 				addBefore(map.header);
+				if (map.windowHeader != null && !window) {
+					window = true;
+					map.windowSize++;
+				}
 			}
 		}
 
 		private final void recordRemoval(CacheMap<K, V> map) {
 			remove();
+			if (window) {
+				window = false;
+				map.windowSize--;
+			}
 		}
 	}
 
@@ -636,7 +916,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		}
 
 		public boolean remove(Object o) {
-			return CacheMap.this.removeEntryForKey(o) != null;
+			return CacheMap.this.removeEntry(o, CacheRemovalListener.Cause.REMOVED) != null;
 		}
 
 		public void clear() {
@@ -711,7 +991,14 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		}
 
 		public boolean remove(Object o) {
-			return removeMapping(o) != null;
+			Entry<K, V> e = removeMapping(o);
+			if (e != null && stats != null) {
+				stats.recordRemoval(CacheRemovalListener.Cause.REMOVED);
+			}
+			if (e != null && removalListener != null) {
+				removalListener.entryRemoved(e.getKey(), e.value, CacheRemovalListener.Cause.REMOVED);
+			}
+			return e != null;
 		}
 
 		public int size() {
@@ -762,6 +1049,10 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		// Read in the threshold, loadfactor, and any hidden stuff
 		s.defaultReadObject();
 
+		// The weigher is not serialized, nor then are the weights or their bound
+		maximumWeight = 0;
+		totalWeight = 0;
+
 		// Read in number of buckets and allocate the bucket array;
 		int numBuckets = s.readInt();
 		table = new Entry[numBuckets];
@@ -927,6 +1218,45 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	private final void init() {
 		header = new Entry<K, V>(-1, null, null, null);
 		header.before = header.after = header;
+		if (timeout != 0) {
+			sweeper = new Sweeper();
+			CacheSweeper.register(sweeper, timeout * 1000L);
+		}
+	}
+
+	/**
+	 * Removes expired entries in the background, held only by the sweeper so it does not
+	 * keep the map alive.
+	 */
+	private final class Sweeper implements CacheSweeper.Sweepable {
+
+		public long sweep(int maximum) {
+			synchronized (CacheMap.this) {
+				int timeNow = getTimeNow();
+				int removed = 0;
+				Entry<K, V> front = windowHeader != null ? windowHeader : header;
+				while (removed < maximum && header.after != front && header.after.hasExpired(timeout, timeNow)) {
+					removeEntry(header.after.key, CacheRemovalListener.Cause.EXPIRED);
+					removed++;
+				}
+				if (windowHeader != null) {
+					while (removed < maximum && windowHeader.after != header && windowHeader.after.hasExpired(timeout, timeNow)) {
+						removeEntry(windowHeader.after.key, CacheRemovalListener.Cause.EXPIRED);
+						removed++;
+					}
+				}
+				if (removed == maximum) {
+					return 0;
+				}
+
+				// The earliest expiry at the front of the list
+				Entry<K, V> eldest = header.after != front ? header.after : (windowHeader != null && windowHeader.after != header ? windowHeader.after : null);
+				if (eldest == null) {
+					return timeout * 1000L;
+				}
+				return (eldest.timeCreated + timeout + 1 - timeNow) * 1000L;
+			}
+		}
 	}
 
 	/**
@@ -937,6 +1267,9 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	private final void transfer(CacheMap.Entry[] newTable) {
 		int newCapacity = newTable.length;
 		for (Entry<K, V> entry = header.after; entry != header; entry = entry.after) {
+			if (entry == windowHeader) {
+				continue;
+			}
 			int index = indexFor(entry.hash, newCapacity);
 			entry.next = newTable[index];
 			newTable[index] = entry;
@@ -955,7 +1288,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		// Overridden to take advantage of faster iterator
 		if (value == null) {
 			for (Entry entry = header.after; entry != header; entry = entry.after)
-				if (entry.value == null)
+				if (entry.value == null && entry != windowHeader)
 					return true;
 		} else {
 			for (Entry entry = header.after; entry != header; entry = entry.after)
@@ -983,6 +1316,8 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 	public synchronized V get(Object key, boolean recordAccess) {
 		Entry<K, V> entry = getEntry(key);
 		if (entry == null) {
+			if (stats != null)
+				stats.recordMiss();
 			return null;
 		}
 
@@ -991,10 +1326,14 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		if (timeout != 0) {
 			if (entry.hasExpired(timeout, timeNow)) {
 				//System.out.println("removing expired entry: " + entry.key + " (" + (getTimeNow() - entry.timeCreated) + " seconds)");
-				removeEntryForKey(key);
+				removeEntry(key, CacheRemovalListener.Cause.EXPIRED);
+				if (stats != null)
+					stats.recordMiss();
 				return null;
 			}
 		}
+		if (stats != null)
+			stats.recordHit();
 
 		if (recordAccess) {
 			entry.recordAccess(this, false, timeNow);
@@ -1011,12 +1350,18 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		for (int i = 0; i < tab.length; i++)
 			tab[i] = null;
 		size = 0;
+		totalWeight = 0;
 
 		header.before = header.after = header;
+		if (windowHeader != null) {
+			windowHeader.addBefore(header);
+			windowSize = 0;
+			sketch.clear();
+		}
 	}
 
 	private abstract class HashIterator<T> implements Iterator<T> {
-		Entry<K, V> nextEntry = header.after;
+		Entry<K, V> nextEntry = skipWindowHeader(header.after);
 		Entry<K, V> lastReturned = null;
 
 		/**
@@ -1048,7 +1393,7 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 				throw new NoSuchElementException();
 
 			Entry<K, V> entry = lastReturned = nextEntry;
-			nextEntry = entry.after;
+			nextEntry = skipWindowHeader(entry.after);
 			return entry;
 		}
 	}
@@ -1071,6 +1416,13 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		}
 	}
 
+	/**
+	 * Returns the given entry, or the entry after it if it is the window header.
+	 */
+	private final Entry<K, V> skipWindowHeader(Entry<K, V> entry) {
+		return entry == windowHeader ? entry.after : entry;
+	}
+
 	// These Overrides alter the behavior of superclass view iterator() methods
 	private final Iterator<K> newKeyIterator() {
 		return new KeyIterator();
@@ -1108,28 +1460,118 @@ public class CacheMap<K, V> implements Map<K, V>, Cloneable {
 		table[bucketIndex] = entry;
 		entry.addBefore(header);
 		size++;
+		if (weigher != null) {
+			entry.weight = weigher.weigh(unmaskNull(key), value);
+			totalWeight += entry.weight;
+		}
+		if (windowHeader != null) {
+			entry.window = true;
+			windowSize++;
+			sketch.increment(hash);
+		}
 	}
 
 	private final int removeEntries() {
 
+		// The window
+		if (windowHeader != null) {
+			return removeEntriesWithAdmission();
+		}
+
 		// The maximum size
+		int removed = 0;
 		if (maximumSize != 0) {
 			if (size > maximumSize && header.after != null) {
 				//System.out.println("removing maximum entry: " + header.after.key + " (" + size + ">" + maximumSize + ")");
-				removeEntryForKey(header.after.key);
-				return 1;
+				evict(header.after);
+				removed++;
 			}
 		}
 
+		// The maximum weight
+		if (maximumWeight != 0) {
+			while (totalWeight > maximumWeight && header.after != header) {
+				evict(header.after);
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			return removed;
+		}
+
 		// The timeouts
 		if (timeout != 0) {
 			int timeNow = getTimeNow();
 			while (header.after != header && header.after.hasExpired(timeout, timeNow)) {
 				//System.out.println("removing expired entry: " + header.after.key + " (" + (getTimeNow() - header.after.timeCreated) + " seconds)");
-				removeEntryForKey(header.after.key);
+				removeEntry(header.after.key, CacheRemovalListener.Cause.EXPIRED);
 			}
 		}
 		return 0;
 	}
 
+	/**
+	 * Returns true if the map is above its maximum size or weight.
+	 */
+	private final boolean isOverLimit() {
+		return (maximumSize != 0 && size > maximumSize) || (maximumWeight != 0 && totalWeight > maximumWeight);
+	}
+
+	/**
+	 * Evicts the front entry.
+	 */
+	private final void evictFront() {
+		Entry<K, V> victim = skipWindowHeader(header.after);
+		if (victim != header) {
+			evict(victim);
+		}
+	}
+
+	/**
+	 * Evicts the given entry to keep within the maximum size or weight.
+	 */
+	private final void evict(Entry<K, V> entry) {
+		evictions++;
+		evictedWeight += entry.weight;
+		removeEntry(entry.key, CacheRemovalListener.Cause.EVICTED);
+	}
+
+	private final int removeEntriesWithAdmission() {
+		int removed = 0;
+
+		// Entries leaving the window compete with the front entry for a place
+		while (windowSize > windowMaximum) {
+			Entry<K, V> candidate = windowHeader.after;
+			candidate.remove();
+			candidate.addBefore(windowHeader);
+			candidate.window = false;
+			windowSize--;
+			if (isOverLimit()) {
+				Entry<K, V> victim = header.after;
+				if (victim != candidate && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+					victim = candidate;
+				}
+				evict(victim);
+				removed++;
+			}
+		}
+		while (isOverLimit()) {
+			Entry<K, V> victim = header.after != windowHeader ? header.after : windowHeader.after;
+			evict(victim);
+			removed++;
+		}
+
+		// The timeouts
+		if (timeout != 0) {
+			int timeNow = getTimeNow();
+			while (header.after != windowHeader && header.after.hasExpired(timeout, timeNow)) {
+				removeEntry(header.after.key, CacheRemovalListener.Cause.EXPIRED);
+			}
+			while (windowHeader.after != header && windowHeader.after.hasExpired(timeout, timeNow)) {
+				removeEntry(windowHeader.after.key, CacheRemovalListener.Cause.EXPIRED);
+			}
+		}
+		return removed;
+	}
+
 }
@@ -0,0 +1,137 @@
+package core.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of named cache statistics.
+ * <p>
+ * Each registered cache is exposed as an MBean named <code>core.util:type=Cache,name=...</code>
+ * on the platform MBean server, and the statistics of every cache can be logged periodically.
+ * A cache registered under a name already in use replaces the previous one. The statistics of
+ * collected caches are dropped whenever the registry is read.
+ */
+public final class CacheRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheRegistry.class);
+
+	/** The statistics by name. */
+	private static final Map<String, CacheStats> STATS = new TreeMap<String, CacheStats>();
+
+	/** The scheduled snapshot, null if not logging. */
+	private static ScheduledFuture<?> snapshot = null;
+
+	/**
+	 * Registers the given statistics.
+	 * @param stats the statistics.
+	 */
+	public static void register(CacheStats stats) {
+		CacheStats previous;
+		synchronized (STATS) {
+			previous = STATS.put(stats.getName(), stats);
+		}
+		if (previous != null) {
+			unregisterBean(previous);
+		}
+		registerBean(stats);
+	}
+
+	/**
+	 * Unregisters the statistics with the given name.
+	 * @param name the name.
+	 * @return the statistics, or null if not registered.
+	 */
+	public static CacheStats unregister(String name) {
+		CacheStats stats;
+		synchronized (STATS) {
+			stats = STATS.remove(name);
+		}
+		if (stats != null) {
+			unregisterBean(stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics with the given name.
+	 * @param name the name.
+	 * @return the statistics, or null if not registered.
+	 */
+	public static CacheStats getStats(String name) {
+		synchronized (STATS) {
+			return STATS.get(name);
+		}
+	}
+
+	/**
+	 * Returns the statistics of every registered cache, ordered by name.
+	 * @return the statistics.
+	 */
+	public static List<CacheStats> getAll() {
+		List<CacheStats> all = new ArrayList<CacheStats>();
+		List<CacheStats> collected = new ArrayList<CacheStats>();
+		synchronized (STATS) {
+			for (Iterator<CacheStats> iterator = STATS.values().iterator(); iterator.hasNext();) {
+				CacheStats stats = iterator.next();
+				if (stats.isCollected()) {
+					iterator.remove();
+					collected.add(stats);
+				} else {
+					all.add(stats);
+				}
+			}
+		}
+		for (CacheStats stats : collected) {
+			unregisterBean(stats);
+		}
+		return all;
+	}
+
+	/**
+	 * Logs the statistics of every registered cache at the given interval.
+	 * @param millis the interval (millis), zero to stop logging.
+	 */
+	public static synchronized void setLogInterval(long millis) {
+		snapshot = MBeans.schedule(snapshot, millis, new Runnable() {
+
+			public void run() {
+				logSnapshot();
+			}
+		});
+	}
+
+	/**
+	 * Logs the statistics of every registered cache.
+	 */
+	public static void logSnapshot() {
+		if (log.isInfoEnabled()) {
+			for (CacheStats stats : getAll()) {
+				log.info("[Cache] " + stats);
+			}
+		}
+	}
+
+	private static String getBeanName(CacheStats stats) {
+		return "core.util:type=Cache,name=" + ObjectName.quote(stats.getName());
+	}
+
+	private static void registerBean(CacheStats stats) {
+		MBeans.register(stats, getBeanName(stats));
+	}
+
+	private static void unregisterBean(CacheStats stats) {
+		MBeans.unregister(getBeanName(stats));
+	}
+
+	private CacheRegistry() {
+	}
+}
@@ -0,0 +1,32 @@
+package core.util;
+
+/**
+ * A listener notified when an entry is removed from a cache.
+ * <p>
+ * Called while the cache is locked, it must be quick and must not use the cache.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public interface CacheRemovalListener<K, V> {
+
+	/**
+	 * The reason an entry was removed.
+	 */
+	enum Cause {
+		/** The entry timed out. */
+		EXPIRED,
+		/** The entry was evicted to keep the cache within its limit. */
+		EVICTED,
+		/** The entry was removed explicitly. */
+		REMOVED
+	}
+
+	/**
+	 * Called when an entry has been removed.
+	 * @param key the key.
+	 * @param value the value.
+	 * @param cause the cause.
+	 */
+	void entryRemoved(K key, V value, Cause cause);
+}
@@ -0,0 +1,373 @@
+package core.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.io.ByteReader;
+import core.io.ByteWriter;
+import core.lang.thread.DaemonThreadFactory;
+
+/**
+ * A snapshot of a {@link CacheMap} in a file, to restart with a warm cache.
+ * <p>
+ * Saving copies references to the entries while the map is locked, then encodes and writes
+ * them outside the lock to a temporary file that replaces the snapshot once complete. Each
+ * entry keeps its creation time, so a restored entry expires when it would have done had the
+ * process not restarted, and entries that expired in the meantime are not restored.
+ * <p>
+ * The file starts with a magic number, the format version and the version given by the owner,
+ * and ends with a checksum. A snapshot that is corrupt, truncated or of another version is
+ * skipped and the cache starts cold. Several snapshots can be loaded in parallel at startup
+ * with {@link #loadAll(Collection)}.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public final class CacheSnapshot<K, V> {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+	/** The magic number. */
+	private static final int MAGIC = 0x434d5331;
+	/** The file format version. */
+	private static final int FORMAT = 1;
+	/** The number of entries per block. */
+	private static final int BLOCK_SIZE = 1024;
+
+	/** The periodic saves. */
+	private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("CacheSnapshot", Thread.MIN_PRIORITY));
+
+	/**
+	 * Encodes keys or values.
+	 */
+	public interface Codec<T> {
+
+		void write(ByteWriter writer, T object) throws IOException;
+
+		T read(ByteReader reader) throws IOException;
+	}
+
+	/** Strings. */
+	public static final Codec<String> STRING = new Codec<String>() {
+
+		public void write(ByteWriter writer, String object) {
+			writer.writeString(object);
+		}
+
+		public String read(ByteReader reader) {
+			return reader.readString();
+		}
+	};
+
+	/** Byte arrays. */
+	public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+
+		public void write(ByteWriter writer, byte[] object) {
+			writer.writeByteArray(object);
+		}
+
+		public byte[] read(ByteReader reader) {
+			return reader.readByteArray();
+		}
+	};
+
+	/**
+	 * Returns a codec using java serialization, for objects with no compact form.
+	 * @return the codec.
+	 */
+	public static <T extends Serializable> Codec<T> serializable() {
+		return new Codec<T>() {
+
+			public void write(ByteWriter writer, T object) throws IOException {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream output = new ObjectOutputStream(bytes);
+				output.writeObject(object);
+				output.close();
+				writer.writeByteArray(bytes.toByteArray());
+			}
+
+			@SuppressWarnings("unchecked")
+			public T read(ByteReader reader) throws IOException {
+				ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(reader.readByteArray()));
+				try {
+					return (T) input.readObject();
+				} catch (ClassNotFoundException cnfe) {
+					throw new IOException("Incompatible snapshot: " + cnfe.getMessage());
+				}
+			}
+		};
+	}
+
+	/**
+	 * Loads the given snapshots in parallel, returning once all are loaded.
+	 * @param snapshots the snapshots.
+	 * @return the number of entries restored.
+	 */
+	public static int loadAll(Collection<? extends CacheSnapshot<?, ?>> snapshots) throws InterruptedException {
+		if (snapshots.isEmpty()) {
+			return 0;
+		}
+		int threads = Math.min(snapshots.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService loaders = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("CacheSnapshot-Loader"));
+		try {
+			List<Future<Integer>> loads = new ArrayList<Future<Integer>>();
+			for (final CacheSnapshot<?, ?> snapshot : snapshots) {
+				loads.add(loaders.submit(new Callable<Integer>() {
+
+					public Integer call() {
+						return snapshot.load();
+					}
+				}));
+			}
+			int restored = 0;
+			for (Future<Integer> load : loads) {
+				try {
+					restored += load.get();
+				} catch (ExecutionException ee) {
+					if (log.isWarnEnabled()) log.warn("Cache snapshot load failed", ee.getCause());
+				}
+			}
+			return restored;
+		} finally {
+			loaders.shutdown();
+		}
+	}
+
+	/** The map. */
+	private final CacheMap<K, V> map;
+	/** The file. */
+	private final File file;
+	/** The version of the keys and values, a snapshot of another version is skipped. */
+	private final int version;
+	/** The key codec. */
+	private final Codec<K> keyCodec;
+	/** The value codec. */
+	private final Codec<V> valueCodec;
+	/** The periodic save, null if not scheduled. */
+	private ScheduledFuture<?> save = null;
+
+	/**
+	 * Creates a new snapshot.
+	 * @param map the map.
+	 * @param file the file.
+	 * @param version the version of the keys and values.
+	 * @param keyCodec the key codec.
+	 * @param valueCodec the value codec.
+	 */
+	public CacheSnapshot(CacheMap<K, V> map, File file, int version, Codec<K> keyCodec, Codec<V> valueCodec) {
+		if (map == null || file == null || keyCodec == null || valueCodec == null) {
+			throw new NullPointerException();
+		}
+		this.map = map;
+		this.file = file;
+		this.version = version;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Returns the file.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Saves the snapshot at the given interval.
+	 * @param millis the interval (millis), zero to stop saving.
+	 */
+	public synchronized void schedule(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("millis=" + millis);
+		}
+		if (save != null) {
+			save.cancel(false);
+			save = null;
+		}
+		if (millis > 0) {
+			save = executor.scheduleWithFixedDelay(new Runnable() {
+
+				public void run() {
+					try {
+						save();
+					} catch (Throwable t) {
+						if (log.isWarnEnabled()) log.warn("Cache snapshot save failed: " + file, t);
+					}
+				}
+			}, millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Saves the snapshot.
+	 * @return the number of entries saved.
+	 */
+	@SuppressWarnings("unchecked")
+	public int save() throws IOException {
+		long start = System.currentTimeMillis();
+		Entries entries = new Entries();
+		map.copyEntries(entries);
+
+		File temporary = new File(file.getPath() + ".tmp");
+		CRC32 checksum = new CRC32();
+		DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536), checksum));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT);
+			output.writeInt(version);
+			output.writeLong(start);
+			for (int offset = 0; offset < entries.size; offset += BLOCK_SIZE) {
+				int count = Math.min(BLOCK_SIZE, entries.size - offset);
+				ByteWriter writer = new ByteWriter(65536);
+				for (int i = offset; i < offset + count; i++) {
+					keyCodec.write(writer, (K) entries.keys.get(i));
+					valueCodec.write(writer, (V) entries.values.get(i));
+					writer.writeNumber(entries.created[i]);
+				}
+				output.writeInt(count);
+				output.writeInt(writer.size());
+				output.write(writer.toByteArray(true), 0, writer.size());
+			}
+			output.writeInt(0);
+			output.writeLong(checksum.getValue());
+		} finally {
+			output.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace snapshot: " + file);
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Unable to rename snapshot: " + temporary);
+		}
+		if (log.isDebugEnabled()) log.debug("[CacheSnapshot] saved " + entries.size + " entries to " + file + " (" + (System.currentTimeMillis() - start) + " millis)");
+		return entries.size;
+	}
+
+	/**
+	 * Loads the snapshot into the map, a missing, corrupt or incompatible snapshot is skipped.
+	 * @return the number of entries restored.
+	 */
+	public int load() {
+		if (!file.exists()) {
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		List<K> keys = new ArrayList<K>();
+		List<V> values = new ArrayList<V>();
+		List<Long> created = new ArrayList<Long>();
+		try {
+			read(keys, values, created);
+		} catch (IOException ioe) {
+			if (log.isWarnEnabled()) log.warn("Skipping cache snapshot: " + file + " (" + ioe.getMessage() + ")");
+			return 0;
+		} catch (RuntimeException re) {
+			if (log.isWarnEnabled()) log.warn("Skipping cache snapshot: " + file, re);
+			return 0;
+		}
+		int restored = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			if (map.restoreEntry(keys.get(i), values.get(i), created.get(i))) {
+				restored++;
+			}
+		}
+		if (log.isInfoEnabled()) log.info("[CacheSnapshot] restored " + restored + " of " + keys.size() + " entries from " + file + " (" + (System.currentTimeMillis() - start) + " millis)");
+		return restored;
+	}
+
+	/**
+	 * Reads and verifies the snapshot, nothing is restored unless the whole file is valid.
+	 */
+	private void read(List<K> keys, List<V> values, List<Long> created) throws IOException {
+		CRC32 checksum = new CRC32();
+		DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 65536), checksum));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException("not a snapshot");
+			}
+			int format = input.readInt();
+			int version = input.readInt();
+			if (format != FORMAT || version != this.version) {
+				throw new IOException("incompatible version " + format + "." + version);
+			}
+			input.readLong();
+			while (true) {
+				int count = input.readInt();
+				if (count == 0) {
+					break;
+				}
+				int length = input.readInt();
+				if (count < 0 || length < 0) {
+					throw new IOException("corrupt block");
+				}
+				byte[] block = new byte[length];
+				input.readFully(block);
+				ByteReader reader = new ByteReader(block);
+				for (int i = 0; i < count; i++) {
+					keys.add(keyCodec.read(reader));
+					values.add(valueCodec.read(reader));
+					created.add(reader.readNumber());
+				}
+			}
+			long expected = checksum.getValue();
+			if (input.readLong() != expected) {
+				throw new IOException("checksum mismatch");
+			}
+		} catch (EOFException eofe) {
+			throw new IOException("truncated");
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * The entries copied from a map.
+	 */
+	static final class Entries {
+
+		private final List<Object> keys = new ArrayList<Object>();
+		private final List<Object> values = new ArrayList<Object>();
+		private long[] created = new long[16];
+		private int size = 0;
+
+		void add(Object key, Object value, long created) {
+			keys.add(key);
+			values.add(value);
+			if (size == this.created.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(this.created, 0, grown, 0, size);
+				this.created = grown;
+			}
+			this.created[size++] = created;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package core.util;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * The statistics of a named cache.
+ * <p>
+ * The counters are striped so recording costs little even when many threads use the cache.
+ * The cache itself is held weakly, the statistics of a collected cache report a size of zero
+ * and are dropped from the {@link CacheRegistry}.
+ */
+public final class CacheStats implements CacheStatsMBean {
+
+	/**
+	 * A cache whose size the statistics report.
+	 */
+	public interface Source {
+
+		/**
+		 * Returns the number of entries.
+		 * @return the size.
+		 */
+		int size();
+
+		/**
+		 * Returns the total weight of the entries, zero if not bounded by weight.
+		 * @return the weight.
+		 */
+		long getWeight();
+	}
+
+	/** The name. */
+	private final String name;
+	/** The cache. */
+	private final WeakReference<Source> source;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter puts = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final StripedCounter expirations = new StripedCounter();
+	private final StripedCounter removals = new StripedCounter();
+	private final StripedCounter loads = new StripedCounter();
+	private final StripedCounter loadFailures = new StripedCounter();
+	private final StripedCounter loadNanos = new StripedCounter();
+
+	/**
+	 * Creates new statistics.
+	 * @param name the cache name.
+	 * @param source the cache.
+	 */
+	public CacheStats(String name, Source source) {
+		if (name == null || source == null) {
+			throw new NullPointerException();
+		}
+		this.name = name;
+		this.source = new WeakReference<Source>(source);
+	}
+
+	/**
+	 * Returns true if the cache has been collected.
+	 * @return true if collected.
+	 */
+	public boolean isCollected() {
+		return source.get() == null;
+	}
+
+	public void recordHit() {
+		hits.increment();
+	}
+
+	public void recordMiss() {
+		misses.increment();
+	}
+
+	public void recordPut() {
+		puts.increment();
+	}
+
+	/**
+	 * Records the removal of an entry.
+	 * @param cause the cause.
+	 */
+	public void recordRemoval(CacheRemovalListener.Cause cause) {
+		switch (cause) {
+			case EVICTED:
+				evictions.increment();
+				break;
+			case EXPIRED:
+				expirations.increment();
+				break;
+			default:
+				removals.increment();
+				break;
+		}
+	}
+
+	/**
+	 * Records a load.
+	 * @param nanos the time the load took (nanos).
+	 * @param success true if the value was loaded.
+	 */
+	public void recordLoad(long nanos, boolean success) {
+		loads.increment();
+		loadNanos.add(nanos);
+		if (!success) {
+			loadFailures.increment();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getSize() {
+		Source cache = source.get();
+		return (cache == null) ? 0 : cache.size();
+	}
+
+	@Override
+	public long getWeight() {
+		Source cache = source.get();
+		return (cache == null) ? 0 : cache.getWeight();
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public int getHitPercent() {
+		long hits = getHits();
+		long requests = hits + getMisses();
+		return (requests == 0) ? 0 : (int) (hits * 100 / requests);
+	}
+
+	@Override
+	public long getPuts() {
+		return puts.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public long getRemovals() {
+		return removals.get();
+	}
+
+	@Override
+	public long getLoads() {
+		return loads.get();
+	}
+
+	@Override
+	public long getLoadFailures() {
+		return loadFailures.get();
+	}
+
+	@Override
+	public double getAverageLoadMillis() {
+		long loads = getLoads();
+		return (loads == 0) ? 0 : loadNanos.get() / 1000000.0 / loads;
+	}
+
+	@Override
+	public void reset() {
+		hits.reset();
+		misses.reset();
+		puts.reset();
+		evictions.reset();
+		expirations.reset();
+		removals.reset();
+		loads.reset();
+		loadFailures.reset();
+		loadNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(name);
+		text.append(": size=").append(getSize());
+		long weight = getWeight();
+		if (weight != 0) {
+			text.append(", weight=").append(weight);
+		}
+		text.append(", hits=").append(getHits());
+		text.append(", misses=").append(getMisses());
+		text.append(" (").append(getHitPercent()).append("%)");
+		text.append(", puts=").append(getPuts());
+		text.append(", evictions=").append(getEvictions());
+		text.append(", expirations=").append(getExpirations());
+		text.append(", removals=").append(getRemovals());
+		long loads = getLoads();
+		if (loads != 0) {
+			text.append(", loads=").append(loads);
+			text.append(", failures=").append(getLoadFailures());
+			text.append(", load=").append(String.format("%.2f", getAverageLoadMillis())).append("ms");
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,35 @@
+package core.util;
+
+/**
+ * The management interface of {@link CacheStats}.
+ */
+public interface CacheStatsMBean {
+
+	String getName();
+
+	int getSize();
+
+	long getWeight();
+
+	long getHits();
+
+	long getMisses();
+
+	int getHitPercent();
+
+	long getPuts();
+
+	long getEvictions();
+
+	long getExpirations();
+
+	long getRemovals();
+
+	long getLoads();
+
+	long getLoadFailures();
+
+	double getAverageLoadMillis();
+
+	void reset();
+}
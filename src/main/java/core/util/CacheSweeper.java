@@ -0,0 +1,117 @@
+package core.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.lang.thread.DaemonThreadFactory;
+
+/**
+ * Removes expired entries from time-limited caches in the background.
+ * <p>
+ * Each registered cache is armed on a timing wheel at the time its next entry expires. When
+ * the deadline fires the cache removes at most a small batch of expired entries and returns
+ * the delay until it should be swept again, so expired entries are reclaimed promptly without
+ * adding work to get() or put() and without holding the cache lock for long. Caches are held
+ * weakly and drop out once collected.
+ */
+public final class CacheSweeper {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheSweeper.class);
+
+	/** The tick duration (millis) of the timing wheel. */
+	private static final long TICK_MILLIS = 250;
+	/** The number of buckets in the timing wheel. */
+	private static final int WHEEL_SIZE = 256;
+	/** The maximum number of entries removed per batch, the cache is locked for one batch. */
+	private static final int BATCH_SIZE = 256;
+	/** The maximum number of batches per sweep. */
+	private static final int MAXIMUM_BATCHES = 16;
+	/** The maximum delay (millis) between sweeps. */
+	private static final long MAXIMUM_DELAY = 60000;
+
+	/* Sweeps run one at a time on a single thread */
+	private static final TimingWheel wheel = new TimingWheel("CacheSweeper", TICK_MILLIS, WHEEL_SIZE, Executors.newSingleThreadExecutor(new DaemonThreadFactory("CacheSweeper", Thread.MIN_PRIORITY)));
+
+	/** Indicates if sweeping is enabled. */
+	private static volatile boolean enabled = true;
+
+	/**
+	 * A cache that can be swept.
+	 */
+	public interface Sweepable {
+
+		/**
+		 * Removes at most the given number of expired entries.
+		 * @param maximum the maximum number of entries to remove.
+		 * @return the delay (millis) until the next sweep, or -1 to stop sweeping.
+		 */
+		long sweep(int maximum);
+	}
+
+	/**
+	 * Enables or disables sweeping, registered caches stop being swept while disabled.
+	 * @param state true to enable sweeping.
+	 */
+	public static void setEnabled(boolean state) {
+		enabled = state;
+	}
+
+	/**
+	 * Registers the given cache, it is first swept after the given delay.
+	 * @param cache the cache.
+	 * @param delay the delay (millis).
+	 */
+	public static void register(Sweepable cache, long delay) {
+		if (cache == null) {
+			throw new NullPointerException();
+		}
+		if (enabled) {
+			new Sweep(cache).schedule(delay);
+		}
+	}
+
+	private CacheSweeper() {
+	}
+
+	/**
+	 * A sweep of one cache.
+	 */
+	private static final class Sweep implements Runnable {
+
+		/** The cache. */
+		private final WeakReference<Sweepable> cache;
+
+		private Sweep(Sweepable cache) {
+			this.cache = new WeakReference<Sweepable>(cache);
+		}
+
+		private void schedule(long delay) {
+			wheel.schedule(this, Math.min(Math.max(delay, 0), MAXIMUM_DELAY));
+		}
+
+		public void run() {
+			if (!enabled) {
+				return;
+			}
+			Sweepable sweepable = cache.get();
+			if (sweepable == null) {
+				return;
+			}
+			long delay = 0;
+			try {
+				for (int i = 0; i < MAXIMUM_BATCHES && delay == 0; i++) {
+					delay = sweepable.sweep(BATCH_SIZE);
+				}
+			} catch (Throwable t) {
+				if (log.isErrorEnabled()) log.error("Cache sweep failed", t);
+				delay = MAXIMUM_DELAY;
+			}
+			if (delay >= 0) {
+				schedule(delay);
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package core.util;
+
+/**
+ * Weighs cache entries, typically by their approximate size in bytes.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public interface CacheWeigher<K, V> {
+
+	/**
+	 * Returns the weight of the given entry, called when the entry is put.
+	 * @param key the key.
+	 * @param value the value.
+	 * @return the weight (zero or more).
+	 */
+	int weigh(K key, V value);
+}
@@ -0,0 +1,534 @@
+package core.util;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent map for caching, with the maximum size and timeout semantics of {@link CacheMap}.
+ * <p>
+ * Mappings are held in a segmented {@link ConcurrentHashMap}, so get() takes no lock and
+ * put() and remove() only lock one segment of the table. The order in which entries are
+ * expired (the order they were last put) is kept in a linked list guarded by a single lock.
+ * Writes link, relink or unlink their entry in the list and apply the size limit before
+ * returning, so the map only exceeds its maximum size by the puts in progress. As with
+ * {@link CacheMap}, reads do not change the order, so they never take the lock.
+ * <p>
+ * Time-expired entries are removed as accessed or when they reach the front of the list,
+ * as with {@link CacheMap}. The views are backed by the map and weakly consistent: they
+ * never throw {@link java.util.ConcurrentModificationException}, but do not iterate in
+ * expiry order.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ *
+ * @see CacheMap
+ */
+public class ConcurrentCacheMap<K, V> extends AbstractMap<K, V> {
+
+	/** The default initial capacity. */
+	static final int DEFAULT_INITIAL_CAPACITY = CacheMap.DEFAULT_INITIAL_CAPACITY;
+	/** The load factor used when none specified in constructor. */
+	static final float DEFAULT_LOAD_FACTOR = CacheMap.DEFAULT_LOAD_FACTOR;
+
+	/** Value representing null keys inside the table. */
+	private static final Object NULL_KEY = new Object();
+
+	private static final int getTimeNow() {
+		return (int) (System.currentTimeMillis() / 1000);
+	}
+
+	/** The table. */
+	private final ConcurrentHashMap<Object, Node<K, V>> table;
+	/** The lock guarding the expiry list. */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** The head of the expiry list, the front is expired first. */
+	private final Node<K, V> header;
+	/** The number of nodes in the expiry list (guarded by the lock). */
+	private int linked = 0;
+
+	/** The maximum size (zero for unlimited). */
+	private final int maximumSize;
+	/** The timeout (seconds). */
+	private final int timeout;
+
+	/** The state-less key set view. */
+	private transient Set<K> keySet = null;
+	/** The state-less value collection view. */
+	private transient Collection<V> values = null;
+	/** The state-less entry set view. */
+	private transient Set<Map.Entry<K, V>> entrySet = null;
+
+	/**
+	 * Constructs an empty map with the specified initial capacity and load factor.
+	 *
+	 * @param initialCapacity The initial capacity.
+	 * @param loadFactor The load factor.
+	 * @param maximumSize the maximum size (zero for unlimited).
+	 * @param timeout the time (millis) after which an entry expires (zero for never).
+	 * @throws IllegalArgumentException if the initial capacity is negative or
+	 * the load factor is nonpositive.
+	 */
+	public ConcurrentCacheMap(int initialCapacity, float loadFactor, int maximumSize, long timeout) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+		}
+		if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+			throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+		}
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("maximumSize=" + maximumSize);
+		}
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout=" + timeout);
+		}
+		this.table = new ConcurrentHashMap<Object, Node<K, V>>(initialCapacity, loadFactor);
+		this.maximumSize = maximumSize;
+		this.timeout = (int) (timeout / 1000);
+		this.header = new Node<K, V>(null, null, 0);
+		this.header.before = this.header.after = this.header;
+	}
+
+	public int size() {
+		return table.size();
+	}
+
+	public boolean isEmpty() {
+		return table.isEmpty();
+	}
+
+	public boolean containsKey(Object key) {
+		return getLive(key) != null;
+	}
+
+	public V get(Object key) {
+		return get(key, true);
+	}
+
+	/**
+	 * Returns the value to which this map maps the specified key.
+	 * @param key the key.
+	 * @param recordAccess ignored, a read does not change the expiry order.
+	 * @return the value, or null if the key is not mapped or its entry has expired.
+	 */
+	public V get(Object key, boolean recordAccess) {
+		Node<K, V> node = getLive(key);
+		return (node == null ? null : node.value);
+	}
+
+	public V put(K key, V value) {
+		Object k = maskNull(key);
+		Node<K, V> node = new Node<K, V>(k, value, getTimeNow());
+		Node<K, V> previous = table.put(k, node);
+		lock.lock();
+		try {
+			if (previous != null) {
+				unlink(previous);
+			}
+			link(node);
+			removeEntries();
+		} finally {
+			lock.unlock();
+		}
+		if (previous == null || previous.hasExpired(timeout, node.timeCreated)) {
+			return null;
+		}
+		return previous.value;
+	}
+
+	public V remove(Object key) {
+		Node<K, V> node = removeNode(key);
+		return (node == null ? null : node.value);
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			table.clear();
+			Node<K, V> node = header.after;
+			while (node != header) {
+				Node<K, V> next = node.after;
+				node.removed = true;
+				node.before = null;
+				node.after = null;
+				node = next;
+			}
+			header.before = header.after = header;
+			linked = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Set<K> keySet() {
+		Set<K> ks = keySet;
+		return (ks != null ? ks : (keySet = new KeySet()));
+	}
+
+	public Collection<V> values() {
+		Collection<V> vs = values;
+		return (vs != null ? vs : (values = new Values()));
+	}
+
+	public Set<Map.Entry<K, V>> entrySet() {
+		Set<Map.Entry<K, V>> es = entrySet;
+		return (es != null ? es : (entrySet = new EntrySet()));
+	}
+
+	/**
+	 * Removes the node for the given key.
+	 * @param key the key.
+	 * @return the node or null.
+	 */
+	private final Node<K, V> removeNode(Object key) {
+		Node<K, V> node = table.remove(maskNull(key));
+		if (node != null) {
+			lock.lock();
+			try {
+				unlink(node);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the live node for the given key, an expired node is removed.
+	 * @param key the key.
+	 * @return the node or null.
+	 */
+	private final Node<K, V> getLive(Object key) {
+		Object k = maskNull(key);
+		Node<K, V> node = table.get(k);
+		if (node == null) {
+			return null;
+		}
+		if (timeout != 0 && node.hasExpired(timeout, getTimeNow())) {
+			if (table.remove(k, node)) {
+				lock.lock();
+				try {
+					unlink(node);
+				} finally {
+					lock.unlock();
+				}
+			}
+			return null;
+		}
+		return node;
+	}
+
+	/**
+	 * Sets the value of the given node's entry, keeping its creation time and its place in
+	 * the expiry list. The value is put if the entry has been removed or replaced since.
+	 * @param node the node.
+	 * @param value the value.
+	 * @return the node replacing the given one, null if the value was put.
+	 */
+	private final Node<K, V> setValue(Node<K, V> node, V value) {
+		Node<K, V> replacement = new Node<K, V>(node.key, value, node.timeCreated);
+		if (!table.replace(node.key, node, replacement)) {
+			put(ConcurrentCacheMap.<K> unmaskNull(node.key), value);
+			return null;
+		}
+		lock.lock();
+		try {
+			Node<K, V> before = node.before;
+			unlink(node);
+			if (before != null && !replacement.removed && table.get(replacement.key) == replacement) {
+				replacement.before = before;
+				replacement.after = before.after;
+				before.after = replacement;
+				replacement.after.before = replacement;
+				linked++;
+			} else {
+				link(replacement);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return replacement;
+	}
+
+	/**
+	 * Links the given node at the back of the expiry list, the lock must be held.
+	 * @param node the node.
+	 */
+	private final void link(Node<K, V> node) {
+		if (node.removed || node.before != null) {
+			return;
+		}
+		// A concurrent remove may have taken the node from the table already
+		if (table.get(node.key) != node) {
+			node.removed = true;
+			return;
+		}
+		node.after = header;
+		node.before = header.before;
+		node.before.after = node;
+		node.after.before = node;
+		linked++;
+	}
+
+	/**
+	 * Unlinks the given node from the expiry list, the lock must be held.
+	 * @param node the node.
+	 */
+	private final void unlink(Node<K, V> node) {
+		node.removed = true;
+		if (node.before != null) {
+			node.before.after = node.after;
+			node.after.before = node.before;
+			node.before = null;
+			node.after = null;
+			linked--;
+		}
+	}
+
+	/**
+	 * Removes entries beyond the maximum size and expired entries at the front of the list, the lock must be held.
+	 */
+	private final void removeEntries() {
+
+		// The maximum size
+		if (maximumSize != 0) {
+			while (linked > maximumSize) {
+				Node<K, V> eldest = header.after;
+				table.remove(eldest.key, eldest);
+				unlink(eldest);
+			}
+		}
+
+		// The timeouts
+		if (timeout != 0) {
+			int timeNow = getTimeNow();
+			while (header.after != header && header.after.hasExpired(timeout, timeNow)) {
+				Node<K, V> eldest = header.after;
+				table.remove(eldest.key, eldest);
+				unlink(eldest);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static final <T> T unmaskNull(Object key) {
+		return (T) (key == NULL_KEY ? null : key);
+	}
+
+	private static final Object maskNull(Object key) {
+		return key == null ? NULL_KEY : key;
+	}
+
+	/**
+	 * An entry, the key, value and creation time of an entry never change, a put creates a new entry.
+	 */
+	private static final class Node<K, V> implements Map.Entry<K, V> {
+
+		private final Object key;
+		private final V value;
+		private final int timeCreated;
+
+		/** The expiry list links (guarded by the lock). */
+		private Node<K, V> before, after;
+		/** Indicates if removed (guarded by the lock). */
+		private boolean removed = false;
+
+		private Node(Object key, V value, int timeCreated) {
+			this.key = key;
+			this.value = value;
+			this.timeCreated = timeCreated;
+		}
+
+		private final boolean hasExpired(int timeout, int timeNow) {
+			return timeout != 0 && timeCreated < timeNow - timeout;
+		}
+
+		public final K getKey() {
+			return ConcurrentCacheMap.<K> unmaskNull(key);
+		}
+
+		public final V getValue() {
+			return value;
+		}
+
+		/**
+		 * Unsupported, the entries handed out by the entry set write through to the map.
+		 * @see WriteThroughEntry
+		 */
+		public final V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public final boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object k1 = getKey();
+			Object k2 = e.getKey();
+			if (k1 == k2 || (k1 != null && k1.equals(k2))) {
+				Object v1 = getValue();
+				Object v2 = e.getValue();
+				if (v1 == v2 || (v1 != null && v1.equals(v2)))
+					return true;
+			}
+			return false;
+		}
+
+		public final int hashCode() {
+			return (key == NULL_KEY ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		public final String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	// Views
+
+	private abstract class NodeIterator<T> implements Iterator<T> {
+		private final Iterator<Node<K, V>> iterator = table.values().iterator();
+		private Node<K, V> lastReturned = null;
+
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		Node<K, V> nextNode() {
+			return lastReturned = iterator.next();
+		}
+
+		public void remove() {
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			if (table.remove(lastReturned.key, lastReturned)) {
+				lock.lock();
+				try {
+					unlink(lastReturned);
+				} finally {
+					lock.unlock();
+				}
+			}
+			lastReturned = null;
+		}
+	}
+
+	/**
+	 * An entry of the entry set, setting its value writes through to the map.
+	 */
+	private final class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The node holding the entry in the map, null once the value was put. */
+		private transient Node<K, V> node;
+
+		private WriteThroughEntry(Node<K, V> node) {
+			super(node.getKey(), node.value);
+			this.node = node;
+		}
+
+		public V setValue(V value) {
+			V previous = super.setValue(value);
+			if (node != null) {
+				node = ConcurrentCacheMap.this.setValue(node, value);
+			} else {
+				put(getKey(), value);
+			}
+			return previous;
+		}
+	}
+
+	private final class KeySet extends AbstractSet<K> {
+		public Iterator<K> iterator() {
+			return new NodeIterator<K>() {
+				public K next() {
+					return nextNode().getKey();
+				}
+			};
+		}
+
+		public int size() {
+			return ConcurrentCacheMap.this.size();
+		}
+
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+		public boolean remove(Object o) {
+			return removeNode(o) != null;
+		}
+
+		public void clear() {
+			ConcurrentCacheMap.this.clear();
+		}
+	}
+
+	private final class Values extends AbstractCollection<V> {
+		public Iterator<V> iterator() {
+			return new NodeIterator<V>() {
+				public V next() {
+					return nextNode().value;
+				}
+			};
+		}
+
+		public int size() {
+			return ConcurrentCacheMap.this.size();
+		}
+
+		public void clear() {
+			ConcurrentCacheMap.this.clear();
+		}
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new NodeIterator<Map.Entry<K, V>>() {
+				public Map.Entry<K, V> next() {
+					return new WriteThroughEntry(nextNode());
+				}
+			};
+		}
+
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Node<K, V> candidate = getLive(e.getKey());
+			return candidate != null && candidate.equals(e);
+		}
+
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object k = maskNull(e.getKey());
+			Node<K, V> candidate = table.get(k);
+			if (candidate == null || !candidate.equals(e) || !table.remove(k, candidate)) {
+				return false;
+			}
+			lock.lock();
+			try {
+				unlink(candidate);
+			} finally {
+				lock.unlock();
+			}
+			return true;
+		}
+
+		public int size() {
+			return ConcurrentCacheMap.this.size();
+		}
+
+		public void clear() {
+			ConcurrentCacheMap.this.clear();
+		}
+	}
+}
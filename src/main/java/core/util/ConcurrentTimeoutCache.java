@@ -0,0 +1,35 @@
+package core.util;
+
+import core.util.time.Milliseconds;
+import core.util.time.Minutes;
+
+/**
+ * A concurrent version of {@link TimeoutCache}.
+ */
+public final class ConcurrentTimeoutCache<K, V> extends ConcurrentCacheMap<K, V> {
+
+	public ConcurrentTimeoutCache(Minutes accessTimeout, Minutes totalTimeout) {
+		super(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, 0, totalTimeout.getMillis());
+	}
+
+	public ConcurrentTimeoutCache(Milliseconds totalTimeout, int maximumSize, boolean notUsed1) {
+		super(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, maximumSize, totalTimeout.getMillis());
+	}
+
+	public ConcurrentTimeoutCache(Milliseconds totalTimeout, int maximumSize, boolean notUsed1, boolean notUsed2) {
+		super(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, maximumSize, totalTimeout.getMillis());
+	}
+
+	public final boolean contains(K key) {
+		return containsKey(key);
+	}
+
+	public final Object[] valuesArray() {
+		return values().toArray();
+	}
+
+	public final Object[] keys() {
+		return keySet().toArray();
+	}
+
+}
@@ -0,0 +1,123 @@
+package core.util;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often a hash has been seen.
+ * <p>
+ * Each hash increments one counter in each of four rows, the estimate is the smallest of
+ * the four. Once the number of increments reaches the sample size every counter is halved,
+ * so the sketch ages and favours recent popularity. A counter saturates at 15.
+ * <p>
+ * Not thread-safe, the owner must synchronize.
+ */
+public final class FrequencySketch {
+
+	/** The row seeds. */
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	/** The mask of the low bit of each counter. */
+	private static final long ONE_MASK = 0x1111111111111111L;
+	/** The mask clearing the high bit of each counter after a shift. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/** The counters, sixteen per long. */
+	private final long[] table;
+	/** The table index mask. */
+	private final int mask;
+	/** The number of increments after which the counters are halved. */
+	private final int sampleSize;
+	/** The increments since the counters were last halved. */
+	private int size = 0;
+
+	/**
+	 * Creates a new sketch.
+	 * @param maximumSize the maximum number of entries in the cache the sketch serves.
+	 */
+	public FrequencySketch(int maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize=" + maximumSize);
+		}
+		int length = 1;
+		while (length < maximumSize && length < (1 << 24)) {
+			length <<= 1;
+		}
+		this.table = new long[length];
+		this.mask = length - 1;
+		this.sampleSize = (maximumSize > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : maximumSize * 10;
+	}
+
+	/**
+	 * Returns the estimated number of times the given hash has been seen (0-15).
+	 * @param hash the hash.
+	 * @return the estimated frequency.
+	 */
+	public int frequency(int hash) {
+		int frequency = 15;
+		for (int row = 0; row < 4; row++) {
+			int index = indexOf(hash, row);
+			int offset = counterOffset(hash, row);
+			int count = (int) ((table[index] >>> offset) & 0xfL);
+			if (count < frequency) {
+				frequency = count;
+			}
+		}
+		return frequency;
+	}
+
+	/**
+	 * Increments the counters of the given hash.
+	 * @param hash the hash.
+	 */
+	public void increment(int hash) {
+		boolean added = false;
+		for (int row = 0; row < 4; row++) {
+			int index = indexOf(hash, row);
+			int offset = counterOffset(hash, row);
+			long value = table[index];
+			if (((value >>> offset) & 0xfL) != 0xfL) {
+				table[index] = value + (1L << offset);
+				added = true;
+			}
+		}
+		if (added && ++size >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Clears the sketch.
+	 */
+	public void clear() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Halves every counter.
+	 */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (odd >>> 2);
+	}
+
+	/**
+	 * Returns the table index of the given hash in the given row.
+	 */
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return ((int) h) & mask;
+	}
+
+	/**
+	 * Returns the bit offset within a long of the counter of the given hash in the given row.
+	 */
+	private int counterOffset(int hash, int row) {
+		int h = hash * 0x9e3779b9;
+		return (((h >>> (row << 3)) & 3) << 2) + (row << 4);
+	}
+}
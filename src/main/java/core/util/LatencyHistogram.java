@@ -0,0 +1,149 @@
+package core.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram, in microseconds.
+ * <p>
+ * The buckets are log-linear as in an HDR histogram: exact up to 16 microseconds, then eight
+ * buckets per doubling, so a percentile is within 12.5% of the recorded value whatever its
+ * magnitude. Recording is a handful of atomic increments and never allocates, reading sums
+ * the buckets and is not an atomic snapshot.
+ */
+public final class LatencyHistogram {
+
+	/** The number of linear sub-buckets per doubling, as a power of two. */
+	private static final int SUB_BITS = 3;
+	/** The values below which each value has its own bucket. */
+	private static final int LINEAR = 1 << (SUB_BITS + 1);
+	/** The largest exponent, values above about 19 hours share the last bucket. */
+	private static final int MAXIMUM_EXPONENT = 36;
+	/** The number of buckets. */
+	private static final int BUCKETS = LINEAR + (MAXIMUM_EXPONENT - SUB_BITS) * (1 << SUB_BITS);
+
+	/** The counts. */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	/** The number of values. */
+	private final StripedCounter count = new StripedCounter();
+	/** The sum of the values. */
+	private final StripedCounter sum = new StripedCounter();
+	/** The largest value. */
+	private final AtomicLong maximum = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * @param micros the latency (microseconds).
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.incrementAndGet(getBucket(micros));
+		count.increment();
+		sum.add(micros);
+		long current;
+		while (micros > (current = maximum.get())) {
+			if (maximum.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records a latency.
+	 * @param nanos the latency (nanoseconds).
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	/**
+	 * Returns the number of values.
+	 * @return the count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the mean.
+	 * @return the mean (microseconds), zero if there are no values.
+	 */
+	public long getMean() {
+		long count = getCount();
+		return (count == 0) ? 0 : sum.get() / count;
+	}
+
+	/**
+	 * Returns the largest value.
+	 * @return the maximum (microseconds).
+	 */
+	public long getMaximum() {
+		return maximum.get();
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the values lie.
+	 * @param percentile the percentile (between 0 and 1).
+	 * @return the value (microseconds), zero if there are no values.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(getUpperBound(i), getMaximum());
+			}
+		}
+		return getMaximum();
+	}
+
+	/**
+	 * Resets the histogram, concurrent records may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		maximum.set(0);
+	}
+
+	private static int getBucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAXIMUM_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return LINEAR + ((exponent - SUB_BITS - 1) << SUB_BITS) + sub;
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = ((bucket - LINEAR) >> SUB_BITS) + SUB_BITS + 1;
+		int sub = (bucket - LINEAR) & ((1 << SUB_BITS) - 1);
+		return ((long) ((1 << SUB_BITS) + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMean() + "us, p50=" + getPercentile(0.5) + "us, p99=" + getPercentile(0.99) + "us, max=" + getMaximum() + "us";
+	}
+}
@@ -0,0 +1,342 @@
+package core.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache that loads missing values.
+ * <p>
+ * Concurrent misses on the same key share a single load: the first thread loads the value
+ * and the others wait for it, so an expired popular key causes one request rather than one
+ * per thread. An entry older than the refresh time is still returned while a background task
+ * reloads it, and a failed refresh keeps the old value until the entry times out.
+ * <p>
+ * Entries are held in a {@link UniversalTimeoutCache} with the given limits.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public class LoadingCache<K, V> implements Cache<K, V> {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadingCache.class);
+
+	/** The entries. */
+	private final UniversalTimeoutCache<K, Loaded<V>> cache;
+	/** The loads in progress by key. */
+	private final ConcurrentHashMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+	/** The default loader. */
+	private final CacheLoader<K, V> loader;
+	/** The time (millis) after a write at which an entry is refreshed, zero for never. */
+	private final long refreshAfterWrite;
+	/** The statistics (null unless recorded). */
+	private volatile CacheStats stats = null;
+
+	/**
+	 * Creates a new loading cache.
+	 * @param accessTimeout the time (millis) after the last access an entry expires, zero for never.
+	 * @param totalTimeout the time (millis) after a write an entry expires, zero for never.
+	 * @param maximumSize the maximum number of entries, zero for unlimited.
+	 * @param refreshAfterWrite the time (millis) after a write an entry is refreshed, zero for never.
+	 * @param loader the default loader, or null to only load with a given loader.
+	 * @throws IllegalArgumentException in case no valid limit provided (greater than 0)
+	 */
+	public LoadingCache(long accessTimeout, long totalTimeout, int maximumSize, long refreshAfterWrite, CacheLoader<K, V> loader) {
+		if (refreshAfterWrite < 0) {
+			throw new IllegalArgumentException("refreshAfterWrite=" + refreshAfterWrite);
+		}
+		this.cache = new UniversalTimeoutCache<K, Loaded<V>>(accessTimeout, totalTimeout, maximumSize);
+		this.refreshAfterWrite = refreshAfterWrite;
+		this.loader = loader;
+	}
+
+	/**
+	 * Starts recording statistics for the cache under the given name, including the loads, and
+	 * registers them with the {@link CacheRegistry}.
+	 * @param name the name.
+	 * @return the statistics.
+	 */
+	public CacheStats recordStats(String name) {
+		stats = cache.recordStats(name);
+		return stats;
+	}
+
+	@Override
+	public V get(K key) {
+		Loaded<V> loaded = cache.get(key);
+		return (loaded != null) ? loaded.value : null;
+	}
+
+	/**
+	 * Returns the value for the given key, loading it with the default loader if missing.
+	 * @param key the key.
+	 * @return the value.
+	 * @throws Exception if the value could not be loaded.
+	 */
+	public V getOrLoad(K key) throws Exception {
+		if (loader == null) {
+			throw new IllegalStateException("no default loader");
+		}
+		return get(key, loader);
+	}
+
+	/**
+	 * Returns the value for the given key, loading it with the given loader if missing.
+	 * @param key the key.
+	 * @param loader the loader.
+	 * @return the value.
+	 * @throws Exception if the value could not be loaded.
+	 */
+	public V get(K key, CacheLoader<K, V> loader) throws Exception {
+		Loaded<V> loaded = cache.get(key);
+		if (loaded != null) {
+			refreshIfDue(key, loaded, loader);
+			return loaded.value;
+		}
+		Load<V> load = new Load<V>();
+		Load<V> existing = loads.putIfAbsent(key, load);
+		if (existing != null) {
+			return existing.await();
+		}
+		long start = System.nanoTime();
+		try {
+			// Loaded by a previous load that finished since the cache was checked
+			loaded = cache.get(key);
+			if (loaded != null) {
+				load.set(loaded.value);
+				return loaded.value;
+			}
+			V value = loader.load(key);
+			recordLoad(start, true);
+			put(key, value);
+			load.set(value);
+			return value;
+		} catch (Throwable t) {
+			recordLoad(start, false);
+			load.fail(t);
+			return load.await();
+		} finally {
+			loads.remove(key, load);
+		}
+	}
+
+	/**
+	 * Returns the values for the given keys, loading the missing values with the default loader.
+	 * @param keys the keys.
+	 * @return the values by key, keys without a value are left out.
+	 * @throws Exception if the values could not be loaded.
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys) throws Exception {
+		if (loader == null) {
+			throw new IllegalStateException("no default loader");
+		}
+		return getAll(keys, loader);
+	}
+
+	/**
+	 * Returns the values for the given keys, the missing values not already being loaded by
+	 * another thread are loaded in one call to the loader.
+	 * @param keys the keys.
+	 * @param loader the loader.
+	 * @return the values by key, keys without a value are left out.
+	 * @throws Exception if the values could not be loaded.
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys, CacheLoader<K, V> loader) throws Exception {
+		Map<K, V> values = new LinkedHashMap<K, V>();
+		Map<K, Load<V>> owned = new LinkedHashMap<K, Load<V>>();
+		Map<K, Load<V>> waiting = new LinkedHashMap<K, Load<V>>();
+		for (K key : keys) {
+			Loaded<V> loaded = cache.get(key);
+			if (loaded != null) {
+				refreshIfDue(key, loaded, loader);
+				if (loaded.value != null) {
+					values.put(key, loaded.value);
+				}
+				continue;
+			}
+			if (owned.containsKey(key) || waiting.containsKey(key)) {
+				continue;
+			}
+			Load<V> load = new Load<V>();
+			Load<V> existing = loads.putIfAbsent(key, load);
+			if (existing == null) {
+				// Loaded by a previous load that finished since the cache was checked
+				loaded = cache.get(key);
+				if (loaded != null) {
+					load.set(loaded.value);
+					loads.remove(key, load);
+					if (loaded.value != null) {
+						values.put(key, loaded.value);
+					}
+					continue;
+				}
+				owned.put(key, load);
+			} else {
+				waiting.put(key, existing);
+			}
+		}
+
+		// Load the keys this thread owns in one batch
+		if (!owned.isEmpty()) {
+			long start = System.nanoTime();
+			try {
+				Map<K, V> loaded = loader.loadAll(new ArrayList<K>(owned.keySet()));
+				recordLoad(start, true);
+				for (Map.Entry<K, Load<V>> entry : owned.entrySet()) {
+					V value = loaded.get(entry.getKey());
+					put(entry.getKey(), value);
+					entry.getValue().set(value);
+					if (value != null) {
+						values.put(entry.getKey(), value);
+					}
+				}
+			} catch (Throwable t) {
+				recordLoad(start, false);
+				for (Load<V> load : owned.values()) {
+					load.fail(t);
+				}
+				owned.values().iterator().next().await();
+			} finally {
+				for (Map.Entry<K, Load<V>> entry : owned.entrySet()) {
+					loads.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		for (Map.Entry<K, Load<V>> entry : waiting.entrySet()) {
+			V value = entry.getValue().await();
+			if (value != null) {
+				values.put(entry.getKey(), value);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (value == null) {
+			return null;
+		}
+		Loaded<V> previous = cache.put(key, new Loaded<V>(value));
+		return (previous != null) ? previous.value : null;
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Returns the number of loads in progress.
+	 * @return the number of loads.
+	 */
+	public int loading() {
+		return loads.size();
+	}
+
+	/**
+	 * Starts a background refresh of the given entry if it is due and not already refreshing.
+	 */
+	private void refreshIfDue(final K key, final Loaded<V> loaded, final CacheLoader<K, V> loader) {
+		if (refreshAfterWrite == 0 || System.currentTimeMillis() - loaded.written < refreshAfterWrite) {
+			return;
+		}
+		synchronized (loaded) {
+			if (loaded.refreshing) {
+				return;
+			}
+			loaded.refreshing = true;
+		}
+		Task task = new Task() {
+
+			public void runTask() {
+				long start = System.nanoTime();
+				try {
+					V value = loader.load(key);
+					recordLoad(start, true);
+					put(key, value);
+				} catch (Throwable t) {
+					recordLoad(start, false);
+					if (log.isDebugEnabled()) log.debug("[Refresh Failed] " + key, t);
+				} finally {
+					// Also when no value was loaded, so the entry is refreshed again when due
+					synchronized (loaded) {
+						loaded.refreshing = false;
+					}
+				}
+			}
+		};
+		try {
+			task.start();
+		} catch (NullExecutorException nee) {
+			// No executor running, refresh on this thread
+			task.run();
+		}
+	}
+
+	private void recordLoad(long start, boolean success) {
+		CacheStats stats = this.stats;
+		if (stats != null) {
+			stats.recordLoad(System.nanoTime() - start, success);
+		}
+	}
+
+	/**
+	 * A loaded value.
+	 */
+	private static final class Loaded<V> {
+
+		private final V value;
+		private final long written = System.currentTimeMillis();
+		private boolean refreshing = false;
+
+		private Loaded(V value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A load in progress, other threads wait for its result.
+	 */
+	private static final class Load<V> {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile V value;
+		private volatile Throwable throwable;
+
+		private void set(V value) {
+			this.value = value;
+			latch.countDown();
+		}
+
+		private void fail(Throwable throwable) {
+			this.throwable = throwable;
+			latch.countDown();
+		}
+
+		private V await() throws Exception {
+			latch.await();
+			if (throwable instanceof Exception) {
+				throw (Exception) throwable;
+			}
+			if (throwable instanceof Error) {
+				throw (Error) throwable;
+			}
+			if (throwable != null) {
+				throw new RuntimeException(throwable);
+			}
+			return value;
+		}
+	}
+}
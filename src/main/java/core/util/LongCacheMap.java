@@ -0,0 +1,369 @@
+package core.util;
+
+import java.util.Arrays;
+
+/**
+ * A cache map keyed by primitive longs.
+ * <p>
+ * Expires entries as {@link CacheMap} does: a map with a maximum size force-expires the entry
+ * at the front of the list on each put once full, and a map with a timeout removes expired
+ * entries as they are accessed, from the front of the list as entries are put, and in the
+ * background by the {@link CacheSweeper}.
+ * <p>
+ * The entries are held in parallel arrays with open addressing (linear probing), the list
+ * is threaded through the slots by index. There are no entry objects and the keys are never
+ * boxed, so the map costs a few words per entry and a lookup touches only a couple of arrays.
+ *
+ * @param <V> the value type.
+ */
+public class LongCacheMap<V> {
+
+	/** The default initial capacity. */
+	static final int DEFAULT_INITIAL_CAPACITY = 16;
+	/** The maximum capacity. */
+	static final int MAXIMUM_CAPACITY = 1 << 30;
+	/** The load factor. */
+	static final float LOAD_FACTOR = 0.75f;
+
+	/** Value representing null values in the slots, an empty slot has no value. */
+	private static final Object NULL_VALUE = new Object();
+
+	private static final int getTimeNow() {
+		return (int) (System.currentTimeMillis() / 1000);
+	}
+
+	/** The keys. */
+	private long[] keys;
+	/** The values, null for an empty slot. */
+	private Object[] values;
+	/** The creation time (seconds) of each entry. */
+	private int[] created;
+	/** The previous slot in the list, the last index is the list header. */
+	private int[] before;
+	/** The next slot in the list, the last index is the list header. */
+	private int[] after;
+	/** The slot index mask. */
+	private int mask;
+	/** The list header. */
+	private int header;
+	/** The size at which the table is resized. */
+	private int threshold;
+	/** The number of entries. */
+	private int size = 0;
+	/** The maximum size (zero for unlimited). */
+	private final int maximumSize;
+	/** The timeout (seconds, zero for none). */
+	private final int timeout;
+	/** The sweeper (held here, the sweeper only holds it weakly). */
+	private final CacheSweeper.Sweepable sweeper;
+
+	/**
+	 * Creates a new map.
+	 * @param initialCapacity the initial capacity.
+	 * @param maximumSize the maximum size (zero for unlimited).
+	 * @param timeout the timeout (millis, zero for none).
+	 */
+	public LongCacheMap(int initialCapacity, int maximumSize, long timeout) {
+		if (initialCapacity < 0 || maximumSize < 0 || timeout < 0) {
+			throw new IllegalArgumentException("initialCapacity=" + initialCapacity + ", maximumSize=" + maximumSize + ", timeout=" + timeout);
+		}
+		if (maximumSize > 0 && initialCapacity > maximumSize) {
+			initialCapacity = maximumSize;
+		}
+		int capacity = 1;
+		while (capacity < initialCapacity / LOAD_FACTOR + 1 && capacity < MAXIMUM_CAPACITY) {
+			capacity <<= 1;
+		}
+		this.maximumSize = maximumSize;
+		this.timeout = (int) (timeout / 1000);
+		allocate(capacity);
+		if (this.timeout != 0) {
+			sweeper = new Sweeper();
+			CacheSweeper.register(sweeper, this.timeout * 1000L);
+		} else {
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Creates a new map.
+	 * @param maximumSize the maximum size (zero for unlimited).
+	 * @param timeout the timeout (millis, zero for none).
+	 */
+	public LongCacheMap(int maximumSize, long timeout) {
+		this(DEFAULT_INITIAL_CAPACITY, maximumSize, timeout);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		created = new int[capacity];
+		before = new int[capacity + 1];
+		after = new int[capacity + 1];
+		mask = capacity - 1;
+		header = capacity;
+		before[header] = after[header] = header;
+		threshold = (capacity == MAXIMUM_CAPACITY) ? Integer.MAX_VALUE : (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static final int hash(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Returns the slot of the given key, or -1 if not present.
+	 */
+	private final int slotOf(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return the size.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the map has no entries.
+	 * @return true if empty.
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns true if the map has an unexpired entry for the given key.
+	 * @param key the key.
+	 * @return true if present.
+	 */
+	public synchronized boolean containsKey(long key) {
+		return getSlot(key) != -1;
+	}
+
+	/**
+	 * Returns the value for the given key.
+	 * @param key the key.
+	 * @return the value, or null if not present or expired.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V get(long key) {
+		int slot = getSlot(key);
+		if (slot == -1) {
+			return null;
+		}
+		Object value = values[slot];
+		return (value == NULL_VALUE) ? null : (V) value;
+	}
+
+	/**
+	 * Returns the slot of the given key, removing the entry if it has expired.
+	 */
+	private final int getSlot(long key) {
+		int slot = slotOf(key);
+		if (slot != -1 && timeout != 0 && created[slot] < getTimeNow() - timeout) {
+			removeSlot(slot);
+			return -1;
+		}
+		return slot;
+	}
+
+	/**
+	 * Puts the given value, the entry moves to the back of the list.
+	 * @param key the key.
+	 * @param value the value.
+	 * @return the previous value, or null if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V put(long key, V value) {
+		Object masked = (value == null) ? NULL_VALUE : value;
+		int timeNow = getTimeNow();
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				Object previous = values[slot];
+				values[slot] = masked;
+				created[slot] = timeNow;
+				unlink(slot);
+				linkLast(slot);
+				return (previous == NULL_VALUE) ? null : (V) previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = masked;
+		created[slot] = timeNow;
+		linkLast(slot);
+		size++;
+		if (removeEntries(timeNow) == 0 && size > threshold) {
+			resize(values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the entry for the given key.
+	 * @param key the key.
+	 * @return the value, or null if not present.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		int slot = slotOf(key);
+		if (slot == -1) {
+			return null;
+		}
+		Object value = values[slot];
+		removeSlot(slot);
+		return (value == NULL_VALUE) ? null : (V) value;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(values, null);
+		before[header] = after[header] = header;
+		size = 0;
+	}
+
+	/**
+	 * Returns the keys, front of the list first.
+	 * @return the keys.
+	 */
+	public synchronized long[] keys() {
+		long[] array = new long[size];
+		int index = 0;
+		for (int slot = after[header]; slot != header; slot = after[slot]) {
+			array[index++] = keys[slot];
+		}
+		return array;
+	}
+
+	/**
+	 * Removes the entries over the maximum size, or expired entries from the front.
+	 * @return the number removed.
+	 */
+	private final int removeEntries(int timeNow) {
+		if (maximumSize != 0 && size > maximumSize) {
+			removeSlot(after[header]);
+			return 1;
+		}
+		int removed = 0;
+		if (timeout != 0) {
+			while (after[header] != header && created[after[header]] < timeNow - timeout) {
+				removeSlot(after[header]);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private final void linkLast(int slot) {
+		int last = before[header];
+		before[slot] = last;
+		after[slot] = header;
+		after[last] = slot;
+		before[header] = slot;
+	}
+
+	private final void unlink(int slot) {
+		after[before[slot]] = after[slot];
+		before[after[slot]] = before[slot];
+	}
+
+	/**
+	 * Removes the entry in the given slot, shifting back the entries after it in its probe
+	 * sequence so no tombstone is left.
+	 */
+	private final void removeSlot(int slot) {
+		unlink(slot);
+		size--;
+		int gap = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (values[next] == null) {
+				break;
+			}
+			int home = hash(keys[next]) & mask;
+			// The entry can move to the gap unless its home lies cyclically after the gap
+			boolean stays = (gap <= next) ? (home > gap && home <= next) : (home > gap || home <= next);
+			if (!stays) {
+				moveSlot(next, gap);
+				gap = next;
+			}
+		}
+		values[gap] = null;
+	}
+
+	private final void moveSlot(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+		created[to] = created[from];
+		before[to] = before[from];
+		after[to] = after[from];
+		after[before[to]] = to;
+		before[after[to]] = to;
+	}
+
+	/**
+	 * Rehashes the entries into a table of the given capacity, keeping the list order.
+	 */
+	private final void resize(int capacity) {
+		if (values.length == MAXIMUM_CAPACITY) {
+			threshold = Integer.MAX_VALUE;
+			return;
+		}
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		int[] oldCreated = created;
+		int[] oldAfter = after;
+		int oldHeader = header;
+		allocate(capacity);
+		for (int old = oldAfter[oldHeader]; old != oldHeader; old = oldAfter[old]) {
+			int slot = hash(oldKeys[old]) & mask;
+			while (values[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[old];
+			values[slot] = oldValues[old];
+			created[slot] = oldCreated[old];
+			linkLast(slot);
+		}
+	}
+
+	/**
+	 * Removes expired entries in the background, held only by the sweeper so it does not
+	 * keep the map alive.
+	 */
+	private final class Sweeper implements CacheSweeper.Sweepable {
+
+		public long sweep(int maximum) {
+			synchronized (LongCacheMap.this) {
+				int timeNow = getTimeNow();
+				int removed = 0;
+				while (removed < maximum && after[header] != header && created[after[header]] < timeNow - timeout) {
+					removeSlot(after[header]);
+					removed++;
+				}
+				if (removed == maximum) {
+					return 0;
+				}
+				if (after[header] == header) {
+					return timeout * 1000L;
+				}
+				return (created[after[header]] + timeout + 1 - timeNow) * 1000L;
+			}
+		}
+	}
+}
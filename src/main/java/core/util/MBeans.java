@@ -0,0 +1,81 @@
+package core.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.lang.thread.Background;
+
+/**
+ * The scaffold shared by the statistics registries: registering their MBeans on the platform
+ * MBean server and logging their snapshots periodically.
+ */
+public final class MBeans {
+
+	private static final Logger log = LoggerFactory.getLogger(MBeans.class);
+
+	/**
+	 * Registers the given MBean, replacing any registered under the same name.
+	 * @param bean the MBean.
+	 * @param name the name.
+	 */
+	public static void register(Object bean, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(bean, objectName);
+		} catch (JMException jme) {
+			if (log.isWarnEnabled()) log.warn("Unable to register MBean: " + name, jme);
+		}
+	}
+
+	/**
+	 * Unregisters the MBean with the given name, if registered.
+	 * @param name the name.
+	 */
+	public static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException jme) {
+			if (log.isDebugEnabled()) log.debug("Unable to unregister MBean: " + name, jme);
+		}
+	}
+
+	/**
+	 * Cancels the given snapshot and schedules the task at the given interval on the
+	 * background timer.
+	 * @param snapshot the scheduled snapshot, null if none.
+	 * @param millis the interval (millis), zero to stop.
+	 * @param task the task, it must not block.
+	 * @return the scheduled snapshot, null if stopped.
+	 */
+	public static ScheduledFuture<?> schedule(ScheduledFuture<?> snapshot, long millis, Runnable task) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("millis=" + millis);
+		}
+		if (snapshot != null) {
+			snapshot.cancel(false);
+		}
+		if (millis == 0) {
+			return null;
+		}
+		return Background.getTimer().scheduleAtFixedRate(task, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	private MBeans() {
+	}
+}
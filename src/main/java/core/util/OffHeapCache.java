@@ -0,0 +1,471 @@
+package core.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.text.Utf8;
+
+/**
+ * A cache of byte arrays held outside the heap.
+ * <p>
+ * The values are appended to a ring of fixed size slabs, allocated as direct buffers or mapped
+ * from a file, so the garbage collector never copies or scans them. Only a small index entry
+ * per key is held on the heap. When the current slab is full the next slab is recycled: the
+ * entries read since it was last recycled are compacted to its start and the rest are evicted,
+ * which approximates least recently used eviction bounded by bytes.
+ * <p>
+ * A file backed cache keeps its entries across restarts, the index is rebuilt from the slabs
+ * when the file is opened. Every record carries its key, so keys are strings. A record that is
+ * replaced or removed is marked dead in place (its key length complemented), so it is not
+ * restored.
+ * <p>
+ * Values larger than a slab are not cached.
+ */
+public class OffHeapCache implements Cache<String, byte[]> {
+
+	private static final Logger log = LoggerFactory.getLogger(OffHeapCache.class);
+
+	/** The slab header magic. */
+	private static final int MAGIC = 0x4f484331;
+	/** The slab header length: magic, limit and generation. */
+	private static final int SLAB_HEADER = 16;
+	/** The record header length: key length (complemented once dead) and value length. */
+	private static final int RECORD_HEADER = 8;
+	/** The slab header offset of the limit. */
+	private static final int LIMIT = 4;
+	/** The slab header offset of the generation. */
+	private static final int GENERATION = 8;
+
+	/** The slabs. */
+	private final ByteBuffer[] slabs;
+	/** The slab size (bytes). */
+	private final int slabSize;
+	/** The index. */
+	private final Map<String, Slot> index = new HashMap<String, Slot>();
+	/** The file channel, null unless file backed. */
+	private final FileChannel channel;
+	/** The slab being appended to. */
+	private int current = 0;
+	/** The generation of the slab being appended to. */
+	private long generation = 0;
+
+	/** The total length of the values. */
+	private long weight = 0;
+	/** The number of hits. */
+	private long hits = 0;
+	/** The number of misses. */
+	private long misses = 0;
+	/** The number of entries evicted. */
+	private long evictions = 0;
+
+	/**
+	 * Creates a new cache in direct memory.
+	 * @param slabs the number of slabs (at least two).
+	 * @param slabSize the slab size (bytes).
+	 */
+	public OffHeapCache(int slabs, int slabSize) {
+		validate(slabs, slabSize);
+		this.slabs = new ByteBuffer[slabs];
+		this.slabSize = slabSize;
+		this.channel = null;
+		for (int i = 0; i < slabs; i++) {
+			this.slabs[i] = ByteBuffer.allocateDirect(slabSize);
+			initSlab(i, 0);
+		}
+	}
+
+	/**
+	 * Creates a new cache mapped from the given file, the entries in the file are kept.
+	 * @param file the file.
+	 * @param slabs the number of slabs (at least two).
+	 * @param slabSize the slab size (bytes).
+	 */
+	public OffHeapCache(File file, int slabs, int slabSize) throws IOException {
+		validate(slabs, slabSize);
+		this.slabs = new ByteBuffer[slabs];
+		this.slabSize = slabSize;
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			for (int i = 0; i < slabs; i++) {
+				this.slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize);
+			}
+		} catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+		load();
+		if (log.isDebugEnabled()) log.debug("[OffHeapCache] loaded " + index.size() + " entries (" + weight + " bytes) from " + file);
+	}
+
+	private static void validate(int slabs, int slabSize) {
+		if (slabs < 2 || slabSize <= SLAB_HEADER + RECORD_HEADER) {
+			throw new IllegalArgumentException("slabs=" + slabs + ", slabSize=" + slabSize);
+		}
+	}
+
+	@Override
+	public synchronized byte[] get(String key) {
+		Slot slot = index.get(key);
+		if (slot == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		slot.accessed = true;
+		return read(slot);
+	}
+
+	/**
+	 * Returns a read-only view of the value for the given key, without copying it onto the heap.
+	 * The view is only valid until the entry is replaced or evicted, copy it to keep it.
+	 * @param key the key.
+	 * @return the view, or null if not cached.
+	 */
+	public synchronized ByteBuffer getBuffer(String key) {
+		Slot slot = index.get(key);
+		if (slot == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		slot.accessed = true;
+		ByteBuffer view = slabs[slot.slab].asReadOnlyBuffer();
+		view.limit(slot.position + slot.length);
+		view.position(slot.position);
+		return view.slice();
+	}
+
+	@Override
+	public synchronized byte[] put(String key, byte[] value) {
+		if (key == null) {
+			throw new NullPointerException("key");
+		}
+		Slot previous = index.remove(key);
+		byte[] previousValue = null;
+		if (previous != null) {
+			previousValue = read(previous);
+			weight -= previous.length;
+			kill(previous);
+		}
+		if (value == null) {
+			return previousValue;
+		}
+
+		byte[] keyBytes = Utf8.toByteArray(key);
+		int length = RECORD_HEADER + keyBytes.length + value.length;
+		if (length > slabSize - SLAB_HEADER) {
+			if (log.isDebugEnabled()) log.debug("[OffHeapCache] value too large to cache: " + key + " (" + value.length + " bytes)");
+			return previousValue;
+		}
+
+		int offset = allocate(length);
+		ByteBuffer slab = slabs[current].duplicate();
+		slab.position(offset);
+		slab.putInt(keyBytes.length);
+		slab.putInt(value.length);
+		slab.put(keyBytes);
+		slab.put(value);
+		slabs[current].putInt(LIMIT, offset + length);
+
+		index.put(key, new Slot(current, offset, offset + RECORD_HEADER + keyBytes.length, value.length));
+		weight += value.length;
+		return previousValue;
+	}
+
+	/**
+	 * Removes the entry for the given key.
+	 * @param key the key.
+	 * @return true if removed.
+	 */
+	public synchronized boolean remove(String key) {
+		Slot slot = index.remove(key);
+		if (slot == null) {
+			return false;
+		}
+		weight -= slot.length;
+		kill(slot);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		index.clear();
+		weight = 0;
+		for (int i = 0; i < slabs.length; i++) {
+			initSlab(i, 0);
+		}
+		current = 0;
+		generation = 0;
+	}
+
+	@Override
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the total length of the cached values.
+	 * @return the weight (bytes).
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of bytes available for records.
+	 * @return the capacity (bytes).
+	 */
+	public long getCapacity() {
+		return (long) slabs.length * (slabSize - SLAB_HEADER);
+	}
+
+	/**
+	 * Returns the number of hits.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of misses.
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of entries evicted.
+	 * @return the number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Writes the slabs of a file backed cache to the file.
+	 */
+	public synchronized void flush() {
+		if (channel != null) {
+			for (ByteBuffer slab : slabs) {
+				((MappedByteBuffer) slab).force();
+			}
+		}
+	}
+
+	/**
+	 * Flushes and closes a file backed cache.
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Marks the record in the given slot dead, so it is not restored from the file.
+	 */
+	private void kill(Slot slot) {
+		slabs[slot.slab].putInt(slot.offset, ~(slot.position - slot.offset - RECORD_HEADER));
+	}
+
+	/**
+	 * Returns the key length of the record at the given offset, dead or not.
+	 */
+	private static int keyLength(ByteBuffer slab, int offset) {
+		int keyLength = slab.getInt(offset);
+		return (keyLength < 0) ? ~keyLength : keyLength;
+	}
+
+	/**
+	 * Returns a copy of the value in the given slot.
+	 */
+	private byte[] read(Slot slot) {
+		byte[] value = new byte[slot.length];
+		ByteBuffer slab = slabs[slot.slab].duplicate();
+		slab.position(slot.position);
+		slab.get(value);
+		return value;
+	}
+
+	/**
+	 * Returns the offset of a record of the given length in the current slab, moving on to
+	 * and recycling the next slab while the current one is full.
+	 */
+	private int allocate(int length) {
+		for (int attempts = 0;; attempts++) {
+			int limit = slabs[current].getInt(LIMIT);
+			if (limit + length <= slabSize) {
+				return limit;
+			}
+			current = (current + 1) % slabs.length;
+			// Read entries get one second chance per pass of the ring
+			recycle(current, attempts < slabs.length);
+		}
+	}
+
+	/**
+	 * Recycles the given slab, compacting the entries read since it was last recycled to its
+	 * start if they are kept and evicting the others.
+	 */
+	private void recycle(int index, boolean keepAccessed) {
+		ByteBuffer slab = slabs[index];
+		int limit = slab.getInt(LIMIT);
+		int read = SLAB_HEADER;
+		int write = SLAB_HEADER;
+		while (read < limit) {
+			boolean dead = slab.getInt(read) < 0;
+			int keyLength = keyLength(slab, read);
+			int valueLength = slab.getInt(read + 4);
+			int length = RECORD_HEADER + keyLength + valueLength;
+			Slot slot = dead ? null : this.index.get(readKey(slab, read + RECORD_HEADER, keyLength));
+			if (slot != null && slot.slab == index && slot.offset == read) {
+				if (keepAccessed && slot.accessed) {
+					move(slab, read, write, length);
+					slot.offset = write;
+					slot.position = write + RECORD_HEADER + keyLength;
+					slot.accessed = false;
+					write += length;
+				} else {
+					this.index.remove(readKey(slab, read + RECORD_HEADER, keyLength));
+					weight -= valueLength;
+					evictions++;
+				}
+			}
+			read += length;
+		}
+		initSlab(index, ++generation);
+		slab.putInt(LIMIT, write);
+	}
+
+	/**
+	 * Copies a record towards the start of the slab, forward in chunks so it may overlap.
+	 */
+	private static void move(ByteBuffer slab, int from, int to, int length) {
+		if (from == to) {
+			return;
+		}
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		ByteBuffer source = slab.duplicate();
+		ByteBuffer target = slab.duplicate();
+		source.position(from);
+		target.position(to);
+		while (length > 0) {
+			int count = Math.min(length, chunk.length);
+			source.get(chunk, 0, count);
+			target.put(chunk, 0, count);
+			length -= count;
+		}
+	}
+
+	private static String readKey(ByteBuffer slab, int position, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer source = slab.duplicate();
+		source.position(position);
+		source.get(bytes);
+		return Utf8.toString(bytes);
+	}
+
+	/**
+	 * Empties the given slab.
+	 */
+	private void initSlab(int index, long generation) {
+		ByteBuffer slab = slabs[index];
+		slab.putInt(0, MAGIC);
+		slab.putInt(LIMIT, SLAB_HEADER);
+		slab.putLong(GENERATION, generation);
+	}
+
+	/**
+	 * Rebuilds the index from the slabs of a file backed cache, oldest slab first so later
+	 * records replace earlier ones.
+	 */
+	private void load() {
+		Integer[] order = new Integer[slabs.length];
+		for (int i = 0; i < slabs.length; i++) {
+			order[i] = i;
+			ByteBuffer slab = slabs[i];
+			int limit = slab.getInt(LIMIT);
+			if (slab.getInt(0) != MAGIC || limit < SLAB_HEADER || limit > slabSize) {
+				initSlab(i, 0);
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			public int compare(Integer slab1, Integer slab2) {
+				long generation1 = slabs[slab1].getLong(GENERATION);
+				long generation2 = slabs[slab2].getLong(GENERATION);
+				return (generation1 < generation2) ? -1 : (generation1 == generation2 ? 0 : 1);
+			}
+		});
+		for (Integer i : order) {
+			ByteBuffer slab = slabs[i];
+			int limit = slab.getInt(LIMIT);
+			int read = SLAB_HEADER;
+			while (read + RECORD_HEADER <= limit) {
+				boolean dead = slab.getInt(read) < 0;
+				int keyLength = keyLength(slab, read);
+				int valueLength = slab.getInt(read + 4);
+				if (valueLength < 0 || (long) read + RECORD_HEADER + keyLength + valueLength > limit) {
+					break;
+				}
+				if (!dead) {
+					String key = readKey(slab, read + RECORD_HEADER, keyLength);
+					Slot previous = index.put(key, new Slot(i, read, read + RECORD_HEADER + keyLength, valueLength));
+					if (previous != null) {
+						// A crash may persist the new record but not the old one's dead mark,
+						// the pages of the file are not written back in order
+						weight -= previous.length;
+						kill(previous);
+					}
+					weight += valueLength;
+				}
+				read += RECORD_HEADER + keyLength + valueLength;
+			}
+			// Drop a partly written record
+			slab.putInt(LIMIT, read);
+			// Append to the newest slab
+			if (slab.getLong(GENERATION) > generation || i == order[0]) {
+				current = i;
+				generation = slab.getLong(GENERATION);
+			}
+		}
+	}
+
+	/**
+	 * The location of a value.
+	 */
+	private static final class Slot {
+
+		/** The slab. */
+		private final int slab;
+		/** The offset of the record. */
+		private int offset;
+		/** The offset of the value. */
+		private int position;
+		/** The length of the value. */
+		private final int length;
+		/** Indicates if the value has been read since the slab was last recycled. */
+		private boolean accessed = false;
+
+		private Slot(int slab, int offset, int position, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.position = position;
+			this.length = length;
+		}
+	}
+}
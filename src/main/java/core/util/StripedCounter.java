@@ -0,0 +1,81 @@
+package core.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells so threads incrementing it concurrently rarely contend.
+ * <p>
+ * Each thread adds to the cell picked by its id, the cells are a cache line apart. Reading the
+ * value sums the cells, so a read is slower than an update and not an atomic snapshot.
+ */
+public final class StripedCounter {
+
+	/** The number of longs between cells, one cache line. */
+	private static final int PADDING = 8;
+	/** The number of cells, a power of two. */
+	private static final int CELLS;
+
+	static {
+		int cells = 1;
+		int processors = Runtime.getRuntime().availableProcessors();
+		while (cells < processors * 2 && cells < 64) {
+			cells <<= 1;
+		}
+		CELLS = cells;
+	}
+
+	/** The cells. */
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+	/**
+	 * Increments the counter.
+	 */
+	public void increment() {
+		cells.incrementAndGet(cell());
+	}
+
+	/**
+	 * Adds to the counter.
+	 * @param amount the amount.
+	 */
+	public void add(long amount) {
+		cells.addAndGet(cell(), amount);
+	}
+
+	/**
+	 * Returns the value.
+	 * @return the sum of the cells.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * Resets the counter to zero, concurrent updates may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < CELLS; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	/**
+	 * Returns the index of the cell for the current thread.
+	 */
+	private static int cell() {
+		int hash = (int) Thread.currentThread().getId();
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		return (hash & (CELLS - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
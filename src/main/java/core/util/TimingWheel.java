@@ -0,0 +1,336 @@
+package core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel.
+ * <p>
+ * Deadlines are hashed into a ring of buckets by the tick they expire on, a deadline more
+ * than one rotation away carries the number of remaining rounds. Arming and cancelling only
+ * add to a queue, so both are constant time and never contend with each other; a single
+ * thread moves queued deadlines into their buckets, unlinks cancelled ones and expires one
+ * bucket per tick. The tasks that expire on a tick are handed to the executor as one batch.
+ * <p>
+ * A deadline fires up to one tick late, never early.
+ */
+public final class TimingWheel {
+
+	private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+	/** The tick duration (millis). */
+	private final long tickMillis;
+	/** The buckets. */
+	private final Timeout[] buckets;
+	/** The bucket index mask. */
+	private final int mask;
+	/** The executor for expired tasks. */
+	private final Executor executor;
+	/** The deadlines waiting to be added to a bucket. */
+	private final ConcurrentLinkedQueue<Timeout> armedQueue = new ConcurrentLinkedQueue<Timeout>();
+	/** The deadlines waiting to be removed from a bucket. */
+	private final ConcurrentLinkedQueue<Timeout> cancelledQueue = new ConcurrentLinkedQueue<Timeout>();
+	/** The tick thread. */
+	private final Thread thread;
+	/** The start time (millis). */
+	private final long startTime;
+	/** The number of ticks processed (only used by the tick thread). */
+	private long tick = 0;
+	/** Indicates if the wheel has been stopped. */
+	private volatile boolean stopped = false;
+
+	/** The number of deadlines armed. */
+	private final AtomicLong armed = new AtomicLong();
+	/** The number of deadlines cancelled. */
+	private final AtomicLong cancelled = new AtomicLong();
+	/** The number of deadlines fired. */
+	private final AtomicLong fired = new AtomicLong();
+
+	/**
+	 * Creates and starts a new timing wheel.
+	 * @param name the name of the tick thread.
+	 * @param tickMillis the tick duration (millis).
+	 * @param size the number of buckets, rounded up to a power of two.
+	 * @param executor the executor for expired tasks.
+	 */
+	public TimingWheel(String name, long tickMillis, int size, Executor executor) {
+		if (tickMillis <= 0 || size <= 0) {
+			throw new IllegalArgumentException("tickMillis=" + tickMillis + ", size=" + size);
+		}
+		if (executor == null) {
+			throw new NullPointerException();
+		}
+		int buckets = 1;
+		while (buckets < size) {
+			buckets <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.buckets = new Timeout[buckets];
+		this.mask = buckets - 1;
+		this.executor = executor;
+		this.startTime = System.currentTimeMillis();
+		this.thread = new Thread(new Runnable() {
+
+			public void run() {
+				runTicks();
+			}
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Schedules the given task.
+	 * @param task the task.
+	 * @param delay the delay (millis).
+	 * @return the deadline, to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		if (stopped) {
+			throw new IllegalStateException("timing wheel stopped");
+		}
+		Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + Math.max(delay, 0));
+		armed.incrementAndGet();
+		armedQueue.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel, pending deadlines never fire.
+	 */
+	public void stop() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	/**
+	 * Returns the number of deadlines armed.
+	 * @return the number armed.
+	 */
+	public long getArmed() {
+		return armed.get();
+	}
+
+	/**
+	 * Returns the number of deadlines cancelled.
+	 * @return the number cancelled.
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Returns the number of deadlines fired.
+	 * @return the number fired.
+	 */
+	public long getFired() {
+		return fired.get();
+	}
+
+	/**
+	 * Returns the number of deadlines neither fired nor cancelled.
+	 * @return the number pending.
+	 */
+	public long getPending() {
+		return armed.get() - cancelled.get() - fired.get();
+	}
+
+	/**
+	 * The tick loop.
+	 */
+	private void runTicks() {
+		while (!stopped) {
+			long deadline = startTime + (tick + 1) * tickMillis;
+			long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException ie) {
+					continue;
+				}
+			}
+			try {
+				removeCancelled();
+				addArmed();
+				expire(buckets[(int) (tick & mask)], deadline);
+			} catch (Throwable t) {
+				if (log.isErrorEnabled()) log.error("Timing wheel tick failed", t);
+			}
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the armed deadlines into their buckets.
+	 */
+	private void addArmed() {
+		// Bounded so a burst of arming can not starve the tick
+		for (int i = 0; i < 100000; i++) {
+			Timeout timeout = armedQueue.poll();
+			if (timeout == null) {
+				break;
+			}
+			if (timeout.state.get() != Timeout.ARMED) {
+				continue;
+			}
+			long expiryTick = (timeout.deadline - startTime) / tickMillis;
+			if (expiryTick < tick) {
+				expiryTick = tick;
+			}
+			timeout.rounds = (expiryTick - tick) / buckets.length;
+			int index = (int) (expiryTick & mask);
+			timeout.bucket = index;
+			timeout.next = buckets[index];
+			if (timeout.next != null) {
+				timeout.next.previous = timeout;
+			}
+			buckets[index] = timeout;
+		}
+	}
+
+	/**
+	 * Unlinks the cancelled deadlines from their buckets.
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledQueue.poll()) != null) {
+			unlink(timeout);
+		}
+	}
+
+	/**
+	 * Unlinks the given deadline from its bucket.
+	 * @param timeout the deadline.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.bucket == -1) {
+			return;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.bucket = -1;
+		timeout.next = null;
+		timeout.previous = null;
+	}
+
+	/**
+	 * Expires the due deadlines in the given bucket and hands their tasks to the executor.
+	 * @param timeout the first deadline in the bucket.
+	 * @param time the time of the tick.
+	 */
+	private void expire(Timeout timeout, long time) {
+		List<Runnable> expired = null;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds <= 0 && timeout.deadline <= time) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(Timeout.ARMED, Timeout.EXPIRED)) {
+					fired.incrementAndGet();
+					if (expired == null) {
+						expired = new ArrayList<Runnable>();
+					}
+					expired.add(timeout.task);
+				}
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+		if (expired != null) {
+			final List<Runnable> batch = expired;
+			executor.execute(new Runnable() {
+
+				public void run() {
+					for (int i = 0; i < batch.size(); i++) {
+						try {
+							batch.get(i).run();
+						} catch (Throwable t) {
+							if (log.isErrorEnabled()) log.error("Timing wheel task failed", t);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * A deadline.
+	 */
+	public static final class Timeout {
+
+		/** Armed. */
+		private static final int ARMED = 0;
+		/** Cancelled. */
+		private static final int CANCELLED = 1;
+		/** Expired. */
+		private static final int EXPIRED = 2;
+
+		/** The wheel. */
+		private final TimingWheel wheel;
+		/** The task. */
+		private final Runnable task;
+		/** The deadline (millis). */
+		private final long deadline;
+		/** The state. */
+		private final AtomicInteger state = new AtomicInteger(ARMED);
+		/** The remaining rotations (only used by the tick thread). */
+		private long rounds;
+		/** The bucket index, or -1 if not in a bucket (only used by the tick thread). */
+		private int bucket = -1;
+		/** The next deadline in the bucket (only used by the tick thread). */
+		private Timeout next;
+		/** The previous deadline in the bucket (only used by the tick thread). */
+		private Timeout previous;
+
+		private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this deadline.
+		 * @return true if cancelled, false if it already fired or was cancelled.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ARMED, CANCELLED)) {
+				return false;
+			}
+			wheel.cancelled.incrementAndGet();
+			wheel.cancelledQueue.add(this);
+			return true;
+		}
+
+		/**
+		 * Returns true if this deadline has been cancelled.
+		 * @return true if cancelled.
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Returns true if this deadline has fired.
+		 * @return true if expired.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+}
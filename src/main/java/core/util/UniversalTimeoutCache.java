@@ -1,6 +1,6 @@
 package core.util;
 
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -8,13 +8,21 @@ import java.util.Map.Entry;
 /**
  * Sync universal timeout cache that allows limitation by access timeout, insertion timeout and size.
  * Backed by LinkedHashMap
+ * <p>
+ * A cache with a timeout is swept by the {@link CacheSweeper}, so expired entries are removed
+ * shortly after they expire even if the cache is not used.
+ * <p>
+ * A cache given a maximum weight and a {@link CacheWeigher} also discards the oldest entries
+ * until the total weight of its entries is within the maximum.
  * @author dmytro
  */
-public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
+public class UniversalTimeoutCache<K, V> implements Cache<K, V>, CacheStats.Source {
 
 	private static final long serialVersionUID = -4001956959383778962L;
 
 	private CacheImpl<K, V> cache;
+	/** The sweeper (held here, the sweeper only holds it weakly). */
+	private CacheSweeper.Sweepable sweeper;
 	
 	/**
 	 * @param totalTimeout milliseconds, if greater than zero, element gets discarded after 
@@ -25,6 +33,7 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 	public UniversalTimeoutCache(long totalTimeout) {
 		validate(0, totalTimeout, 0);	
 		cache = new CacheImpl<K,V>(0, totalTimeout, 0, false);
+		registerSweeper();
 	}
 
 	/**
@@ -43,6 +52,7 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 	public UniversalTimeoutCache(long accessTimeout, long totalTimeout, int maximumSize) {
 		validate(accessTimeout, totalTimeout, maximumSize);		
 		cache = new CacheImpl<K,V>(accessTimeout, totalTimeout, maximumSize, accessTimeout > 0);
+		registerSweeper();
 	}
 	
 	/**
@@ -66,8 +76,72 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 		validate(accessTimeout, totalTimeout, maximumSize);
 		cache = new CacheImpl<K,V>(accessTimeout, totalTimeout, maximumSize, 
 				initialCapacity, loadFactor, accessTimeout > 0);
+		registerSweeper();
 	}
 	
+	/**
+	 * Sets the listener notified as entries are removed.
+	 * @param listener the listener, or null for none.
+	 */
+	public synchronized void setRemovalListener(CacheRemovalListener<K, V> listener) {
+		cache.listener = listener;
+	}
+
+	/**
+	 * Starts recording statistics for the cache under the given name, and registers them with
+	 * the {@link CacheRegistry}.
+	 * @param name the name.
+	 * @return the statistics.
+	 */
+	public synchronized CacheStats recordStats(String name) {
+		cache.stats = new CacheStats(name, this);
+		CacheRegistry.register(cache.stats);
+		return cache.stats;
+	}
+
+	/**
+	 * Returns the statistics.
+	 * @return the statistics, or null if not recorded.
+	 */
+	public synchronized CacheStats getStats() {
+		return cache.stats;
+	}
+
+	/**
+	 * Bounds the cache by the total weight of its entries, the oldest entries are discarded
+	 * until the total weight is within the maximum. An entry is weighed when it is put.
+	 * @param maximumWeight the maximum total weight, zero for unlimited.
+	 * @param weigher the weigher, or null to stop weighing entries.
+	 */
+	public synchronized void setMaximumWeight(long maximumWeight, CacheWeigher<? super K, ? super V> weigher) {
+		if (maximumWeight < 0) {
+			throw new IllegalArgumentException("maximumWeight=" + maximumWeight);
+		}
+		if (maximumWeight != 0 && weigher == null) {
+			throw new NullPointerException("weigher");
+		}
+		cache.setMaximumWeight(maximumWeight, weigher);
+	}
+
+	/**
+	 * Returns the total weight of the entries, zero if not bounded by weight.
+	 * @return the total weight.
+	 */
+	public synchronized long getWeight() {
+		return cache.totalWeight;
+	}
+
+	/**
+	 * Registers the cache with the sweeper if it has a timeout.
+	 */
+	private void registerSweeper() {
+		long delay = cache.nextExpiry(System.currentTimeMillis());
+		if (delay >= 0) {
+			sweeper = new Sweeper<K, V>(this);
+			CacheSweeper.register(sweeper, delay);
+		}
+	}
+
 	private void validate(long accessTimeout, long totalTimeout, int maximumSize){
 		if((totalTimeout <= 0) && (accessTimeout <= 0) && (maximumSize <= 0))
 			throw new IllegalArgumentException("no limiting boundary");
@@ -76,11 +150,21 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 	@Override
 	public synchronized V get(K key) {
 		TimestampedWrapper<V> tw = cache.get(key);
+		if (cache.stats != null) {
+			if (tw != null) {
+				cache.stats.recordHit();
+			} else {
+				cache.stats.recordMiss();
+			}
+		}
 		return (tw != null)? tw.getValue() : null;
 	}
 	
 	@Override
 	public synchronized V put(K key, V value){
+		if (cache.stats != null) {
+			cache.stats.recordPut();
+		}
 		TimestampedWrapper<V> tw = cache.put(key, new TimestampedWrapper<V>(value));
 		return (tw != null)? tw.getValue() : null;
 	}
@@ -95,10 +179,34 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 		return cache.size();
 	}
 	
+	/**
+	 * Removes expired entries in the background, held only by the sweeper so it does not
+	 * keep the cache alive.
+	 */
+	private static final class Sweeper<K, V> implements CacheSweeper.Sweepable {
+		private final UniversalTimeoutCache<K, V> owner;
+
+		Sweeper(UniversalTimeoutCache<K, V> owner) {
+			this.owner = owner;
+		}
+
+		@Override
+		public long sweep(int maximum) {
+			synchronized (owner) {
+				long now = System.currentTimeMillis();
+				if (owner.cache.removeExpired(now, maximum) == maximum) {
+					return 0;
+				}
+				return owner.cache.nextExpiry(now);
+			}
+		}
+	}
+
 	private static final class TimestampedWrapper<V>{
 		private final V v;
 		private final long creationTimestamp;
 		private long lastAccessTimestamp;
+		private int weight;
 		
 		TimestampedWrapper(V v){
 			creationTimestamp = System.currentTimeMillis();
@@ -156,6 +264,11 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 	    private long accessTimeout = 0; 
 		private long totalTimeout = 0; 
 		private int  maximumSize = 0;
+		private CacheRemovalListener<K, V> listener = null;
+		private CacheStats stats = null;
+		private CacheWeigher<? super K, ? super V> weigher = null;
+		private long maximumWeight = 0;
+		private long totalWeight = 0;
 		
 		public CacheImpl(long accessTimeout, long totalTimeout, int maximumSize, boolean promoteOnAccess) {
 			this(accessTimeout, totalTimeout, maximumSize, DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, promoteOnAccess);
@@ -184,6 +297,7 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 					return tw;
 				} else {
 					super.remove(key);
+					notifyRemoved((K) key, tw, CacheRemovalListener.Cause.EXPIRED);
 				}
 			}
 			return null;
@@ -192,10 +306,106 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 		@Override
 		public TimestampedWrapper<V> put(K key, TimestampedWrapper<V> value){
 			TimestampedWrapper<V> v = super.remove(key); //force entry position refresh
+			if (v != null) {
+				totalWeight -= v.weight;
+			}
+			if (weigher != null) {
+				value.weight = weigher.weigh(key, value.getValue());
+				totalWeight += value.weight;
+			}
 			super.put(key, value);
 			return v;
 		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			totalWeight = 0;
+		}
+
+		/**
+		 * Sets the maximum weight, reweighs the entries and discards the oldest if over it.
+		 */
+		void setMaximumWeight(long maximumWeight, CacheWeigher<? super K, ? super V> weigher) {
+			this.maximumWeight = maximumWeight;
+			this.weigher = weigher;
+			totalWeight = 0;
+			for (Entry<K, TimestampedWrapper<V>> entry : entrySet()) {
+				TimestampedWrapper<V> tw = entry.getValue();
+				tw.weight = (weigher == null) ? 0 : weigher.weigh(entry.getKey(), tw.getValue());
+				totalWeight += tw.weight;
+			}
+			removeOverweight();
+		}
+
+		/**
+		 * Discards the oldest entries until the total weight is within the maximum.
+		 */
+		private void removeOverweight() {
+			if (maximumWeight <= 0) {
+				return;
+			}
+			Iterator<Entry<K, TimestampedWrapper<V>>> iterator = entrySet().iterator();
+			while (totalWeight > maximumWeight && iterator.hasNext()) {
+				Entry<K, TimestampedWrapper<V>> entry = iterator.next();
+				iterator.remove();
+				notifyRemoved(entry.getKey(), entry.getValue(), CacheRemovalListener.Cause.EVICTED);
+			}
+		}
 		
+		/**
+		 * Removes at most the given number of expired entries from the front.
+		 * @return the number removed.
+		 */
+		int removeExpired(long now, int maximum) {
+			int removed = 0;
+			Iterator<Entry<K, TimestampedWrapper<V>>> iterator = entrySet().iterator();
+			while (removed < maximum && iterator.hasNext()) {
+				Entry<K, TimestampedWrapper<V>> entry = iterator.next();
+				if (!isExpired(entry.getValue(), now)) {
+					break;
+				}
+				iterator.remove();
+				notifyRemoved(entry.getKey(), entry.getValue(), CacheRemovalListener.Cause.EXPIRED);
+				removed++;
+			}
+			return removed;
+		}
+
+		/**
+		 * Returns the delay (millis) until the eldest entry expires, or -1 if no timeout.
+		 */
+		long nextExpiry(long now) {
+			if (accessTimeout <= 0 && totalTimeout <= 0) {
+				return -1;
+			}
+			if (isEmpty()) {
+				return (accessTimeout > 0 && (totalTimeout <= 0 || accessTimeout < totalTimeout)) ? accessTimeout : totalTimeout;
+			}
+			TimestampedWrapper<V> eldest = values().iterator().next();
+			long expiry = Long.MAX_VALUE;
+			if (accessTimeout > 0) {
+				expiry = eldest.getLastAccessTimestamp() + accessTimeout;
+			}
+			if (totalTimeout > 0) {
+				expiry = Math.min(expiry, eldest.getCreationTimestamp() + totalTimeout);
+			}
+			return Math.max(expiry + 1 - now, 0);
+		}
+
+		/**
+		 * Accounts for an entry removed from the map and notifies the listener.
+		 */
+		void notifyRemoved(K key, TimestampedWrapper<V> tw, CacheRemovalListener.Cause cause) {
+			totalWeight -= tw.weight;
+			if (stats != null) {
+				stats.recordRemoval(cause);
+			}
+			if (listener != null) {
+				listener.entryRemoved(key, tw.getValue(), cause);
+			}
+		}
+
 		@Override
 		protected boolean removeEldestEntry(java.util.Map.Entry<K, TimestampedWrapper<V> > eldest) {
 			if((size() > 0) && ((accessTimeout > 0)||(totalTimeout > 0))){
@@ -205,24 +415,28 @@ public class UniversalTimeoutCache<K, V> implements Cache<K, V>{
 				int size = size() - 1;
 				int num = 0;
 				
-				HashSet<K> keysToRemove = new HashSet<K>();  
-				for(Entry<K, TimestampedWrapper<V>> entry:entrySet()){
+				Iterator<Entry<K, TimestampedWrapper<V>>> iterator = entrySet().iterator();
+				while (iterator.hasNext()) {
 					//just inserted element is already in map(first one), should not iterate over it
 					if(++num == size) break; 
 					
+					Entry<K, TimestampedWrapper<V>> entry = iterator.next();
 					if(isExpired(entry.getValue(), now)){
-						keysToRemove.add(entry.getKey());
+						iterator.remove();
+						notifyRemoved(entry.getKey(), entry.getValue(), CacheRemovalListener.Cause.EXPIRED);
 					} else {
 						break;
 					}
 					
 				}
-				keySet().removeAll(keysToRemove);
 			}
 			
 			if((maximumSize > 0) && (size() > maximumSize)){
-				remove(keySet().iterator().next());
+				Entry<K, TimestampedWrapper<V>> entry = entrySet().iterator().next();
+				remove(entry.getKey());
+				notifyRemoved(entry.getKey(), entry.getValue(), CacheRemovalListener.Cause.EVICTED);
 			}
+			removeOverweight();
 			
 			return false;
 		}
@@ -2,13 +2,11 @@ package core.util;
 
 import java.io.Closeable;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import core.lang.thread.DaemonThreadFactory;
 import core.lang.thread.ThreadPool;
 import core.lang.thread.ThreadPool.Worker;
 import core.nonblocking.NonBlockingRequestThreadManagerFactory;
@@ -23,7 +21,15 @@ public class WatchDog {
 	private static final Logger log = LoggerFactory.getLogger(WatchDog.class);
 	private static final Logger monitorLog = LoggerFactory.getLogger(WatchDog.class.getName() + ".Monitor");
 
-	private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	/** The tick duration (millis) of the timing wheel. */
+	private static final long TICK_MILLIS = 10;
+	/** The number of buckets in the timing wheel, one rotation takes about 5 seconds. */
+	private static final int WHEEL_SIZE = 512;
+	/** The number of threads that run timed out watches. */
+	private static final int TIMEOUT_THREADS = 2;
+
+	/* Timed out watches close sockets and take stack traces, so they run off the tick thread */
+	private static final TimingWheel wheel = new TimingWheel("WatchDog", TICK_MILLIS, WHEEL_SIZE, Executors.newFixedThreadPool(TIMEOUT_THREADS, new DaemonThreadFactory("WatchDog")));
 	/* Just stub around Info */
 	private static final Info stubInfo = new Info() {
 		@Override public void cancel() { }
@@ -61,8 +67,7 @@ public class WatchDog {
 		if (log.isDebugEnabled()) log.debug("Task " + taskName + " is registered for watching (timeout: " + timeout + "ms)");
 		
 		final TaskKiller wdworker = new TaskKiller(timeout, thread, terminateThread, closeable, taskName);
-		final ScheduledFuture<?> future = executor.schedule(wdworker, timeout, TimeUnit.MILLISECONDS);
-		wdworker.setFuture(future);
+		wdworker.setFuture(wheel.schedule(wdworker, timeout));
 		return wdworker;
 	}
 
@@ -84,11 +89,34 @@ public class WatchDog {
 		if (monitorLog.isDebugEnabled()) monitorLog.debug("WatchDog.Monitor: Task " + taskName + " is registered for monitoring (timeout: " + timeout + "ms)");
 		
 		final TaskMonitor wdworker = new TaskMonitor(timeout, thread, taskName);
-		final ScheduledFuture<?> future = executor.schedule(wdworker, timeout, TimeUnit.MILLISECONDS);
-		wdworker.setFuture(future);
+		wdworker.setFuture(wheel.schedule(wdworker, timeout));
 		return wdworker;
 	}
 
+	/**
+	 * Returns the number of watches armed.
+	 * @return the number of watches armed.
+	 */
+	public static long getArmed() {
+		return wheel.getArmed();
+	}
+
+	/**
+	 * Returns the number of watches cancelled before they timed out.
+	 * @return the number of watches cancelled.
+	 */
+	public static long getCancelled() {
+		return wheel.getCancelled();
+	}
+
+	/**
+	 * Returns the number of watches that timed out.
+	 * @return the number of watches fired.
+	 */
+	public static long getFired() {
+		return wheel.getFired();
+	}
+
 	private static String resolveTaskName() {
 		final Thread thread = Thread.currentThread();
 		String name = null;
@@ -136,7 +164,7 @@ public class WatchDog {
 		protected volatile long timeout;
 		private volatile boolean cancelled = false;
 		private volatile boolean isTimedOut = false;
-		private volatile ScheduledFuture<?> future;
+		private volatile TimingWheel.Timeout future;
 		
 		public AbstractWatchDogWorker(long timeout, Thread thread, String taskName) {
 			this.timeout = timeout;
@@ -169,7 +197,7 @@ public class WatchDog {
 		@Override
 		public void cancel() {
 			if (future != null) {
-				future.cancel(false);
+				future.cancel();
 			}
 			if (!(isTimedOut || cancelled)) {
 				doCancel();
@@ -187,7 +215,7 @@ public class WatchDog {
 			return timeout;
 		}
 
-		public void setFuture(ScheduledFuture<?> future) {
+		public void setFuture(TimingWheel.Timeout future) {
 			this.future = future;
 		}
 	}
@@ -0,0 +1,301 @@
+package engine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import core.net.NetUrl;
+
+/**
+ * The health of a proxy, fed by the downloads sent through it.
+ * <p>
+ * Tracks the smoothed latency and error rate and the requests in flight, and trips a circuit
+ * breaker after consecutive failures: the proxy then gets no traffic until the breaker's
+ * cool down has passed, after which a single probe request is let through (half open). A
+ * successful probe closes the breaker, a failed one opens it again for twice as long.
+ * @see ProxyManager
+ */
+public final class ProxyHealth {
+
+	private static final Logger log = LoggerFactory.getLogger(ProxyHealth.class);
+
+	/** The health of each proxy, by host and port. */
+	private static final Map<String, ProxyHealth> HEALTH = new ConcurrentHashMap<String, ProxyHealth>();
+
+	/** The state of the breaker. */
+	public enum State {
+		/** The proxy gets traffic. */
+		CLOSED,
+		/** The proxy gets no traffic. */
+		OPEN,
+		/** The proxy gets a single probe request. */
+		HALF_OPEN
+	}
+
+	/** The consecutive failures that open the breaker. */
+	private static volatile int failureThreshold = 5;
+	/** The time (millis) the breaker first stays open for. */
+	private static volatile long minimumOpen = 10000;
+	/** The maximum time (millis) the breaker stays open for. */
+	private static volatile long maximumOpen = 300000;
+
+	/** The weight of a new sample in the smoothed latency and error rate. */
+	private static final double ALPHA = 0.1;
+
+	/**
+	 * Sets when the breakers open and for how long.
+	 * @param failures the consecutive failures that open a breaker.
+	 * @param minimum the time (millis) a breaker first stays open for.
+	 * @param maximum the maximum time (millis) a breaker stays open for.
+	 */
+	public static void setBreaker(int failures, long minimum, long maximum) {
+		if (failures < 1 || minimum < 0 || maximum < minimum) {
+			throw new IllegalArgumentException("failures=" + failures + ", minimum=" + minimum + ", maximum=" + maximum);
+		}
+		failureThreshold = failures;
+		minimumOpen = minimum;
+		maximumOpen = maximum;
+	}
+
+	/**
+	 * Returns the health of the given proxy.
+	 * @param proxy the proxy.
+	 * @return the health.
+	 */
+	public static ProxyHealth get(NetUrl proxy) {
+		String key = proxy.getHost().toLowerCase() + ':' + proxy.getPort();
+		ProxyHealth health = HEALTH.get(key);
+		if (health == null) {
+			health = new ProxyHealth(key);
+			ProxyHealth existing = ((ConcurrentHashMap<String, ProxyHealth>) HEALTH).putIfAbsent(key, health);
+			if (existing != null) {
+				health = existing;
+			}
+		}
+		return health;
+	}
+
+	/** The proxy (host and port). */
+	private final String proxy;
+	/** The state of the breaker. */
+	private State state = State.CLOSED;
+	/** The smoothed latency (millis), zero until the first success. */
+	private double latency = 0;
+	/** The smoothed error rate. */
+	private double errorRate = 0;
+	/** The requests in flight. */
+	private int inFlight = 0;
+	/** The consecutive failures. */
+	private int failures = 0;
+	/** The time (millis) the breaker stays open until. */
+	private long openUntil = 0;
+	/** The time (millis) the breaker last stayed open for. */
+	private long openFor = 0;
+	/** Indicates if the probe of a half open breaker is claimed or in flight. */
+	private boolean probing = false;
+	/** The time (millis) the probe was claimed, zero once it is sent. */
+	private long probeClaimed = 0;
+	/** The number of requests. */
+	private long requests = 0;
+	/** The number of failed requests. */
+	private long failed = 0;
+
+	private ProxyHealth(String proxy) {
+		this.proxy = proxy;
+	}
+
+	/**
+	 * Returns the proxy.
+	 * @return the host and port.
+	 */
+	public String getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Returns true if the proxy may be sent a request now, a half open breaker lets through
+	 * one probe at a time: the probe is claimed here, in the same check that lets it through.
+	 * @param now the time (millis).
+	 * @return true if acquired.
+	 */
+	synchronized boolean acquire(long now) {
+		switch (getState(now)) {
+			case CLOSED:
+				return true;
+			case HALF_OPEN:
+				if (probing) {
+					return false;
+				}
+				probing = true;
+				probeClaimed = now;
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private State getState(long now) {
+		if (state == State.OPEN && now >= openUntil) {
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+		// A probe claimed but never sent is released after the shortest cool down
+		if (state == State.HALF_OPEN && probing && probeClaimed != 0 && now - probeClaimed >= minimumOpen) {
+			probing = false;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the cost of sending a request through the proxy, the lower the better: the
+	 * latency scaled by the requests in flight and the error rate.
+	 * @return the cost.
+	 */
+	synchronized double getCost() {
+		return (latency + 1) * (inFlight + 1) / Math.max(0.05, 1 - errorRate);
+	}
+
+	/**
+	 * Returns the time (millis) the breaker stays open until.
+	 * @return the time, zero if never opened.
+	 */
+	synchronized long getOpenUntil() {
+		return openUntil;
+	}
+
+	/**
+	 * Records a request sent through the proxy, call {@link #success(long)} or {@link #failure()} once complete.
+	 */
+	public synchronized void start() {
+		inFlight++;
+		requests++;
+		if (getState(System.currentTimeMillis()) == State.HALF_OPEN) {
+			probing = true;
+			probeClaimed = 0;
+		}
+	}
+
+	/**
+	 * Records a request that completed.
+	 * @param millis the time (millis) taken.
+	 */
+	public synchronized void success(long millis) {
+		inFlight--;
+		latency = (latency == 0) ? millis : latency * (1 - ALPHA) + millis * ALPHA;
+		errorRate = errorRate * (1 - ALPHA);
+		failures = 0;
+		if (state != State.CLOSED) {
+			if (log.isInfoEnabled()) log.info("[Proxy Health] " + proxy + " recovered");
+			state = State.CLOSED;
+			probing = false;
+			openFor = 0;
+		}
+	}
+
+	/**
+	 * Records a request that failed through the proxy.
+	 */
+	public synchronized void failure() {
+		inFlight--;
+		failed++;
+		errorRate = errorRate * (1 - ALPHA) + ALPHA;
+		failures++;
+		long now = System.currentTimeMillis();
+		State current = getState(now);
+		if (current == State.HALF_OPEN || (current == State.CLOSED && failures >= failureThreshold)) {
+			openFor = (openFor == 0) ? minimumOpen : Math.min(maximumOpen, openFor * 2);
+			openUntil = now + openFor;
+			state = State.OPEN;
+			probing = false;
+			if (log.isWarnEnabled()) log.warn("[Proxy Health] " + proxy + " unavailable for " + openFor + " millis after " + failures + " failures");
+		}
+	}
+
+	/**
+	 * Records a request abandoned before it completed, which says nothing about the proxy.
+	 */
+	public synchronized void abandon() {
+		inFlight--;
+		requests--;
+		probing = false;
+	}
+
+	/**
+	 * Returns a snapshot of the health.
+	 * @return the snapshot.
+	 */
+	public synchronized Snapshot getSnapshot() {
+		return new Snapshot(proxy, getState(System.currentTimeMillis()), (long) latency, errorRate, inFlight, requests, failed);
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+	/**
+	 * The health of a proxy at a point in time.
+	 */
+	public static final class Snapshot {
+
+		private final String proxy;
+		private final State state;
+		private final long latency;
+		private final double errorRate;
+		private final int inFlight;
+		private final long requests;
+		private final long failed;
+
+		private Snapshot(String proxy, State state, long latency, double errorRate, int inFlight, long requests, long failed) {
+			this.proxy = proxy;
+			this.state = state;
+			this.latency = latency;
+			this.errorRate = errorRate;
+			this.inFlight = inFlight;
+			this.requests = requests;
+			this.failed = failed;
+		}
+
+		/** @return the proxy (host and port). */
+		public String getProxy() {
+			return proxy;
+		}
+
+		/** @return the state of the breaker. */
+		public State getState() {
+			return state;
+		}
+
+		/** @return the smoothed latency (millis). */
+		public long getLatency() {
+			return latency;
+		}
+
+		/** @return the smoothed error rate (between 0 and 1). */
+		public double getErrorRate() {
+			return errorRate;
+		}
+
+		/** @return the requests in flight. */
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		/** @return the number of requests. */
+		public long getRequests() {
+			return requests;
+		}
+
+		/** @return the number of failed requests. */
+		public long getFailed() {
+			return failed;
+		}
+
+		@Override
+		public String toString() {
+			return proxy + " (" + state + ", latency=" + latency + "ms, errorRate=" + Math.round(errorRate * 100) + "%, inFlight=" + inFlight + ", requests=" + requests + ", failed=" + failed + ")";
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package engine;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import core.net.NetUrl;
 import core.util.ConfigClass;
 import core.util.Random;
@@ -9,6 +12,10 @@ import core.xml.XmlException;
 
 /**
  * A Proxy Manager.
+ * <p>
+ * Proxies are chosen by their {@link ProxyHealth}, fed by the downloads sent through them:
+ * of two proxies picked at random, the one with the lower cost (latency scaled by requests
+ * in flight and error rate) is chosen, and proxies whose circuit breaker is open are skipped.
  */
 public class ProxyManager implements ConfigClass {
 
@@ -24,11 +31,75 @@ public class ProxyManager implements ConfigClass {
 	}
 
 	/**
-	 * Returns a random proxy.
-	 * @return a random proxy.
+	 * Returns a proxy, the better of two available proxies picked at random. If no proxy is
+	 * available the one whose breaker closes first is returned.
+	 * @return a proxy.
 	 */
 	public NetUrl getRandomProxy() {
-		return (NetUrl) Random.getRandom().nextElement(proxyList);
+		int proxies = proxyList.size();
+		if (proxies <= 1) {
+			return (NetUrl) Random.getRandom().nextElement(proxyList);
+		}
+		long now = System.currentTimeMillis();
+		Random random = Random.getRandom();
+		int first = random.nextInt(proxies);
+		int second = random.nextInt(proxies - 1);
+		if (second >= first) {
+			second++;
+		}
+		NetUrl chosen = choose(getProxy(first), getProxy(second), now);
+		if (chosen != null) {
+			return chosen;
+		}
+
+		// Both unavailable, look for any available proxy
+		NetUrl fallback = null;
+		long closes = Long.MAX_VALUE;
+		for (int i = 0; i < proxies; i++) {
+			NetUrl proxy = getProxy((first + i) % proxies);
+			ProxyHealth health = ProxyHealth.get(proxy);
+			if (health.acquire(now)) {
+				return proxy;
+			}
+			if (health.getOpenUntil() < closes) {
+				closes = health.getOpenUntil();
+				fallback = proxy;
+			}
+		}
+		return fallback;
+	}
+
+	/**
+	 * Returns the available proxy with the lower cost, or null if neither is available. Only
+	 * the proxy returned is acquired, so a half open breaker's probe is claimed by one caller.
+	 */
+	private static NetUrl choose(NetUrl proxy1, NetUrl proxy2, long now) {
+		ProxyHealth health1 = ProxyHealth.get(proxy1);
+		ProxyHealth health2 = ProxyHealth.get(proxy2);
+		if (health2.getCost() < health1.getCost()) {
+			NetUrl proxy = proxy1;
+			proxy1 = proxy2;
+			proxy2 = proxy;
+			ProxyHealth health = health1;
+			health1 = health2;
+			health2 = health;
+		}
+		if (health1.acquire(now)) {
+			return proxy1;
+		}
+		return health2.acquire(now) ? proxy2 : null;
+	}
+
+	/**
+	 * Returns a snapshot of the health of every proxy.
+	 * @return the snapshots.
+	 */
+	public List<ProxyHealth.Snapshot> getSnapshot() {
+		List<ProxyHealth.Snapshot> snapshot = new ArrayList<ProxyHealth.Snapshot>(proxyList.size());
+		for (int i = 0; i < proxyList.size(); i++) {
+			snapshot.add(ProxyHealth.get(getProxy(i)).getSnapshot());
+		}
+		return snapshot;
 	}
 
 	/**
@@ -40,6 +111,17 @@ public class ProxyManager implements ConfigClass {
 		return (NetUrl) proxyList.get(index);
 	}
 
+	/**
+	 * Adds the given proxy.
+	 * @param url the proxy (host and port).
+	 */
+	public void addProxy(NetUrl url) {
+		if (url == null) {
+			throw new NullPointerException();
+		}
+		proxyList.add(url);
+	}
+
 	/**
 	 * Parse this manager from the given xml.
 	 * @param xml the xml.
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.net.URL;
 import java.text.ParseException;
 
@@ -22,12 +23,16 @@ import core.html.HtmlFormWriter;
 import core.http.HttpContent;
 import core.http.HttpCookie;
 import core.http.HttpCookieList;
+import core.http.HttpDownloadListener;
 import core.http.HttpDownloader;
 import core.http.HttpHeader;
 import core.http.HttpHeaderList;
+import core.http.HttpMetrics;
 import core.http.HttpMessageHeaderList;
 import core.http.HttpQuery;
 import core.http.HttpQueryContainer;
+import core.http.HttpResponseCache;
+import core.http.HttpTransferStats;
 import core.http.HttpVersionList;
 import core.http.browser.HttpBrowserFactory;
 import core.http.exception.HttpBadRequestException;
@@ -41,11 +46,12 @@ import core.http.response.HttpResponseHeaderList;
 import core.io.CompressedObject;
 import core.io.ConnectTimeoutException;
 import core.io.DownloadTimeoutException;
-import core.io.Gzip;
 import core.io.StageTimeoutException;
 import core.io.StreamReader;
-import core.io.TimeoutException;
+import core.io.file.DumpWriter;
+import core.io.file.ReplayArchive;
 import core.io.file.TextFile;
+import core.lang.thread.Background;
 import core.mime.MimeTypes;
 import core.net.HttpsProtocol;
 import core.net.NetUrl;
@@ -85,12 +91,32 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 	private boolean debugEnabled = WebSpiderConfig.isDebugEnabled();
 	/** The HTTP downloader. */
 	private HttpDownloader downloader = null;
+	/** The response cache, null if responses are not cached. */
+	private HttpResponseCache responseCache = null;
+	/** The proxies hedged requests are sent through, null to send them as the request. */
+	private ProxyManager hedgeProxies = null;
 	protected long totalDurationOfDownloads = 0;
 	protected long totalNumberOfDownloads = 0;
 	protected long totalBytesSent = 0;
 	protected long totalBytesReceived = 0;
 	protected long totalGZipTime = 0;
 
+	/** The time (millis) the dump writer is given to write its queue at shutdown. */
+	private static final long DUMP_CLOSE_MILLIS = 5000;
+	/** The dump writer, created when first used. */
+	private static DumpWriter dumpWriter = null;
+	/** The archive responses are captured to, opened when first used. */
+	private static ReplayArchive.Writer captureArchive = null;
+	/** The path of the capture archive. */
+	private static String captureArchivePath = null;
+	/** Indicates if the capture archive is closed at shutdown. */
+	private static boolean captureArchiveHook = false;
+	/** The archive responses are replayed from, opened when first used. */
+	private static ReplayArchive replayArchive = null;
+
+	/** The fingerprint of the request being downloaded, before any redirect. */
+	private long requestFingerprint = 0;
+
 	/** The dowloads from file. */
 	private boolean fileDownloads = false;
 	/** File writing disabled? */
@@ -791,81 +817,6 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 				logReadTimeoutPerSupplier(timeout);
 				throw s;
 			}
-			HttpResponse response = getDownloader().getResponse();
-
-			if (response.getHeaderList().contains("Content-Encoding") && response.getHeaderList().getHeader("Content-Encoding").getValue().contains("gzip")) {
-				try {
-//					if (log.isDebugEnabled()) log.debug("[GZIP] Started Decompression");
-					byte[] responseContentPreGunzip = response.getContent().toByteArray();
-					long gzipStartTime = System.currentTimeMillis();
-					// We need to pass the current stage timeout to the decompression; gunzip might take long time to finish
-					timeout = checkStageTimeout();
-					if (readTimeout > 0) {
-						timeout = Math.min(readTimeout * 1000, timeout);
-					}
-					byte[] responseContentPostGunzip = new Gzip().decompress(timeout, responseContentPreGunzip);
-					long gzipEndTime = System.currentTimeMillis();
-
-//					if (ScheduledQuickStatsLogger.quickStatsLoggingIsEnabled) {
-//						QuickStatsEngine2.engine.SUPPLIER_GUNZIP_TIME.logEvent(gzipEndTime - gzipStartTime);
-//						QuickStatsEngine2.engine.SUPPLIER_GUNZIP_DATA_SIZE_PRE_GUNZIP.logEvent(responseContentPreGunzip.length);
-//						QuickStatsEngine2.engine.SUPPLIER_GUNZIP_DATA_SIZE_POST_GUNZIP.logEvent(responseContentPostGunzip.length);
-//					}
-
-					response.setContent(responseContentPostGunzip, response.getHeaderList().getHeader("Content-Type").getValue());
-					
-//					totalGZipTime += (System.currentTimeMillis() - gzipStartTime);
-//					int sizeAfterDecompress = response.getContent().length();
-//					int sizeSaving = sizeAfterDecompress - sizeBeforeDecompress;
-//					if (log.isDebugEnabled()) log.debug("[GZIP] Finished Decompression");
-//					if (log.isDebugEnabled()) log.debug("[GZIP] Compressed Size: " + responseContentPreGunzip.length);
-//					if (log.isDebugEnabled()) log.debug("[GZIP] Decompressed Size: " + responseContentPostGunzip.length);
-//					if (log.isDebugEnabled()) log.debug("[GZIP] Saving: " + sizeSaving);
-					getDownloader().getResponse().getHeaderList().removeHeader("Content-Encoding");
-				} catch (TimeoutException te) {
-					// This exception may be thrown by the decompression process
-					int st = getStageTimeout();
-					logStageTimeoutPerSupplier(st);
-					throw new StageTimeoutException("Stage timed out (Stage timeout: " + st + " ms). Error: " + te.getMessage());
-				} catch (Throwable t) {
-					if (log.isDebugEnabled()) log.debug("exception", t);
-					
-//					StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-//					int max=40, i;
-//			        StringBuilder sb = new StringBuilder("GZIP error 3 - ");
-//			        for (i=1 ; i<Math.min(stackTraceElements.length, 15); i++)
-//				    {
-//			        	StackTraceElement ste = stackTraceElements[i];
-//			            String classname = ste.getClassName();
-//			            sb.append(classname.length()<max ? classname : classname.substring(classname.length()-max));
-//			            sb.append(':').append(ste.getLineNumber()).append('<');
-//			        }
-//			        if(i<stackTraceElements.length-1){
-//			        	sb.append("...");
-//			        }else{
-//			        	sb.setLength(sb.length()-1);
-//			        }
-//			        QuickStatsEngine2.engine.MISC_ERRORS.logEvent(sb.toString());
-					
-					String message = t.getMessage();
-					if (message == null) message = "";
-					if (message.length() > 60) message = message.substring(0, 60);
-//					QuickStatsEngine2.engine.MISC_ERRORS.logEvent("GZIP error 2 - " + getSpiderName() + message);
-					try {
-						message += ":"+getDownloader().getRequest().getUrl().getNetUrl().toString(true);
-					} catch (Throwable tt2) {message += "Error Getting URL.....";}
-					if (message.length() > 90) message = message.substring(0, 90);
-//					QuickStatsEngine2.engine.MISC_ERRORS.logEvent("GZIP error 2 - " + getSpiderName() + message);
-				}
-			} else {
-				if (log.isDebugEnabled()) {
-					if (enableCompression) {
-						if (log.isDebugEnabled()) log.debug("[GZIP] Not Supported");
-					} else {
-						if (log.isDebugEnabled()) log.debug("[GZIP] Is Disabled");
-					}
-				}
-			}
 //		} 
 /*		finally {
 			try {
@@ -885,6 +836,44 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 	 * @return the downloaded html.
 	 */
 	private final HttpContent download(int readTimeout, String filename) throws IOException, HttpException {
+		prepareDownload();
+		if (fileDownloads) {
+			downloadFromFile(filename);
+		} else
+			download(readTimeout);
+		refererUrl = getDownloader().getRequest().getUrl().getNetUrl();
+		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Referer] " + refererUrl.toString(true));
+		// Redirects
+		NetUrl newRefererUrl = refererUrl;
+		int i = 0;
+		final boolean limitRedirects = maxRedirect != -1;
+		while (getDownloader().isRedirectResponse() && redirectsEnabled) {
+			if (limitRedirects && (i >= maxRedirect)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Maximum redirects (" + maxRedirect + ") reached, stopping.");
+				}
+				throw new HttpMaxRedirectsException("Maximum redirects(" + maxRedirect + ") reached");
+			}
+
+			HttpHeader header = getDownloader().getResponse().getHeaderList().getHeader(HttpResponseHeaderList.HEADER_LOCATION);
+			HttpHeader headerRefresh = getDownloader().getResponse().getHeaderList().getHeader(HttpResponseHeaderList.HEADER_REFRESH);
+			if (header != null) locationHeader = header.getValue();
+			if (headerRefresh != null && refreshRedirectionDisabled) break;
+
+			setRedirectRequest();
+			download(readTimeout);
+			newRefererUrl = getDownloader().getRequest().getUrl().getNetUrl();
+			i++;
+
+		}
+		refererUrl = newRefererUrl;
+		return downloadCompleted(filename);
+	}
+
+	/**
+	 * Prepares the request held by the downloader: proxy, cookies, referer and multipart content.
+	 */
+	private final void prepareDownload() throws IOException {
 		if (!proxyDisabled && proxyUrl != null) getDownloader().setProxyUrl(proxyUrl);
 		if (!proxyDisabled && phpProxyUrl != null) getDownloader().setPHPProxyUrl(phpProxyUrl);
 		if (getCookieList().size() > 0) getCookieList().setCookiesIn(getDownloader().getRequest());
@@ -913,71 +902,258 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 		}
 		if (getHttpRequest().getMethod().equals(METHOD_POST))
 			if (getHttpRequest().getContent().length() == 0) getHttpRequest().getHeaderList().set(new HttpHeader(HttpMessageHeaderList.HEADER_CONTENT_LENGTH, "0"));
-		if (fileDownloads) {
-			if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Warn]  loading from " + filename + ".http");
-			byte[] bytes = readFileToByteArray(filename + ".http");
-			HttpResponse response = new HttpResponse();
-			response.readFrom(new StreamReader(bytes), "File download: " + this.getSpiderName());
-			getDownloader().setResponse(response);
-		} else
-			download(readTimeout);
-		refererUrl = getDownloader().getRequest().getUrl().getNetUrl();
-		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Referer] " + refererUrl.toString(true));
-		// Redirects
-		NetUrl newRefererUrl = refererUrl;
-		int i = 0;
-		final boolean limitRedirects = maxRedirect != -1;
-		while (getDownloader().isRedirectResponse() && redirectsEnabled) {
-			if (limitRedirects && (i >= maxRedirect)) {
-				if (log.isDebugEnabled()) {
-					log.debug("Maximum redirects (" + maxRedirect + ") reached, stopping.");
-				}
-				throw new HttpMaxRedirectsException("Maximum redirects(" + maxRedirect + ") reached");
+		if (WebSpiderConfig.getCaptureArchive() != null || WebSpiderConfig.getReplayArchive() != null) {
+			HttpRequest request = getDownloader().getRequest();
+			requestFingerprint = ReplayArchive.fingerprint(request.getMethod().toString(), request.getUrl().getNetUrl().toString(true), request.getContent().toByteArray());
+		}
+	}
+
+	/**
+	 * Loads the response from the given file instead of downloading it.
+	 * @param filename the filename.
+	 */
+	private final void downloadFromFile(String filename) throws IOException {
+		HttpResponse response = new HttpResponse();
+		ReplayArchive archive = getReplayArchive();
+		if (archive != null) {
+			// By request, then by name as the request may hold a session id or timestamp
+			ByteBuffer data = archive.get(getSpiderName(), getStageName(), requestFingerprint);
+			if (data == null) {
+				data = archive.getByName(getSpiderName(), getStageName(), filename + ".http");
+			}
+			if (data != null) {
+				if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Warn]  replaying " + filename + ".http from " + archive.getPath());
+				response.readFrom(new StreamReader(ReplayArchive.newInputStream(data)), "Archive download: " + this.getSpiderName());
+				getDownloader().setResponse(response);
+				return;
 			}
+		}
+		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Warn]  loading from " + filename + ".http");
+		byte[] bytes = readFileToByteArray(filename + ".http");
+		response.readFrom(new StreamReader(bytes), "File download: " + this.getSpiderName());
+		getDownloader().setResponse(response);
+	}
 
-			HttpHeader header = getDownloader().getResponse().getHeaderList().getHeader(HttpResponseHeaderList.HEADER_LOCATION);
-			HttpHeader headerRefresh = getDownloader().getResponse().getHeaderList().getHeader(HttpResponseHeaderList.HEADER_REFRESH);
-			if (header != null) locationHeader = header.getValue();
-			if (headerRefresh != null && refreshRedirectionDisabled) break;
+	/**
+	 * Returns the archive responses are replayed from, shared by every spider.
+	 * @return the archive, null if none.
+	 */
+	private static synchronized ReplayArchive getReplayArchive() throws IOException {
+		String path = WebSpiderConfig.getReplayArchive();
+		if (path == null) {
+			return null;
+		}
+		if (replayArchive == null || !replayArchive.getPath().equals(path)) {
+			replayArchive = new ReplayArchive(path);
+			if (log.isInfoEnabled()) log.info("[Replay] " + replayArchive);
+		}
+		return replayArchive;
+	}
+
+	/**
+	 * Appends the response to the capture archive, if capturing.
+	 * @param filename the filename.
+	 * @param http the response.
+	 */
+	private final void captureResponse(String filename, byte[] http) {
+		String path = WebSpiderConfig.getCaptureArchive();
+		if (path == null || fileDownloads) {
+			return;
+		}
+		try {
+			getCaptureArchive(path).append(getSpiderName(), getStageName(), requestFingerprint, filename + ".http", http);
+		} catch (IOException ioe) {
+			if (log.isWarnEnabled()) log.warn("[Capture] unable to capture " + filename + ".http: " + ioe.getMessage());
+		}
+	}
 
-			if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Http Response Redirect]\n" + getDownloader().getResponse().toString(false));
-			if (cookiesAreEnabled()) getCookieList().getCookiesFrom(getDownloader().getResponse());
-			HttpRequest redirect = getDownloader().getRedirectRequest(getCookieList());
-			redirect.getVersion().set(httpVersion);
-			// Authorization
-			HttpHeader authorizationHeader = getDownloader().getRequest().getHeaderList().getHeader(HttpRequestHeaderList.HEADER_AUTHORIZATION);
-			if (authorizationHeader != null) redirect.getHeaderList().add(authorizationHeader);
-
-			// url contains a space! encode it!
-			if (redirect.getUrl().getNetUrl().getQuery().indexOf(' ') != -1) {
-				HttpQuery query = new HttpQuery(redirect.getUrl(), httpQueryCharset, false);
-				redirect.getUrl().getNetUrl().setQuery(query.toString());
+	/**
+	 * Returns the archive responses are captured to, shared by every spider.
+	 * @param path the path.
+	 * @return the archive.
+	 */
+	private static synchronized ReplayArchive.Writer getCaptureArchive(String path) throws IOException {
+		if (captureArchive == null || !path.equals(captureArchivePath)) {
+			closeCaptureArchive();
+			captureArchive = new ReplayArchive.Writer(path);
+			captureArchivePath = path;
+			if (!captureArchiveHook) {
+				captureArchiveHook = true;
+				Runtime.getRuntime().addShutdownHook(new Thread("WebSpider-CaptureArchive") {
+
+					@Override
+					public void run() {
+						try {
+							closeCaptureArchive();
+						} catch (IOException ioe) {
+							if (log.isWarnEnabled()) log.warn("[Capture] unable to close archive: " + ioe.getMessage());
+						}
+					}
+				});
 			}
-			if (enableCompression) {
-				redirect.setHeader(HttpRequestHeaderList.HEADER_ACCEPT_ENCODING, "gzip");
+		}
+		return captureArchive;
+	}
+
+	/**
+	 * Closes the capture archive, writing its index, it is otherwise closed when the VM shuts
+	 * down. An archive left open is still readable, its index is rebuilt when opened.
+	 */
+	public static synchronized void closeCaptureArchive() throws IOException {
+		if (captureArchive != null) {
+			try {
+				captureArchive.close();
+			} finally {
+				captureArchive = null;
+				captureArchivePath = null;
 			}
-			getDownloader().setRequest(redirect);
-			if (refererUrl != null) setHttpHeader(HttpRequestHeaderList.HEADER_REFERER, refererUrl.toString(true));
-			if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Http Request Redirect]\n" + redirect);
-			if (!proxyDisabled && proxyUrl != null) getDownloader().setProxyUrl(proxyUrl);
-			if (!proxyDisabled && phpProxyUrl != null) getDownloader().setPHPProxyUrl(phpProxyUrl);
-			download(readTimeout);
-			newRefererUrl = getDownloader().getRequest().getUrl().getNetUrl();
-			i++;
+		}
+	}
+
+	/**
+	 * Sets the request to follow the redirect response held by the downloader.
+	 * @return the redirect request.
+	 */
+	private final HttpRequest setRedirectRequest() throws IOException {
+		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Http Response Redirect]\n" + getDownloader().getResponse().toString(false));
+		if (cookiesAreEnabled()) getCookieList().getCookiesFrom(getDownloader().getResponse(), getDownloader().getRequest());
+		HttpRequest redirect = getDownloader().getRedirectRequest(getCookieList());
+		redirect.getVersion().set(httpVersion);
+		// Authorization
+		HttpHeader authorizationHeader = getDownloader().getRequest().getHeaderList().getHeader(HttpRequestHeaderList.HEADER_AUTHORIZATION);
+		if (authorizationHeader != null) redirect.getHeaderList().add(authorizationHeader);
 
+		// url contains a space! encode it!
+		if (redirect.getUrl().getNetUrl().getQuery().indexOf(' ') != -1) {
+			HttpQuery query = new HttpQuery(redirect.getUrl(), httpQueryCharset, false);
+			redirect.getUrl().getNetUrl().setQuery(query.toString());
 		}
-		refererUrl = newRefererUrl;
+		if (enableCompression) {
+			redirect.setHeader(HttpRequestHeaderList.HEADER_ACCEPT_ENCODING, "gzip");
+		}
+		getDownloader().setRequest(redirect);
+		if (refererUrl != null) setHttpHeader(HttpRequestHeaderList.HEADER_REFERER, refererUrl.toString(true));
+		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Http Request Redirect]\n" + redirect);
+		if (!proxyDisabled && proxyUrl != null) getDownloader().setProxyUrl(proxyUrl);
+		if (!proxyDisabled && phpProxyUrl != null) getDownloader().setPHPProxyUrl(phpProxyUrl);
+		return redirect;
+	}
+
+	/**
+	 * Takes the cookies from the final response and writes the debug files.
+	 * @param filename the filename.
+	 * @return the content.
+	 */
+	private final HttpContent downloadCompleted(String filename) throws IOException {
 		// Cookies
-		if (cookiesAreEnabled()) getCookieList().getCookiesFrom(getDownloader().getResponse());
+		if (cookiesAreEnabled()) getCookieList().getCookiesFrom(getDownloader().getResponse(), getDownloader().getRequest());
 		// Response
 		if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Http Response]\n" + getDownloader().getResponse().toString(false));
 		byte[] http = getDownloader().getResponse().writeToByteArray();
+		captureResponse(filename, http);
 		writeFile(filename + ".http", http);
 		byte[] content = getDownloader().getResponse().getContent().toByteArray();
 		writeFile(filename, content);
 		return getDownloader().getResponse().getContent();
 	}
 
+	/**
+	 * Downloads the HTTP response on the non-blocking request threads and returns as soon as the request is queued.
+	 * Cookies, referer, redirects and debug files are handled as by {@link #downloadHttpToByteArray(int, String)}, then
+	 * {@link #nonBlockingDownloadCompleted(HttpContent)} or {@link #nonBlockingDownloadFailed(Throwable)} is called on a
+	 * background worker, so the spider must not touch its downloader until then.
+	 * Refresh header redirects are not followed as that would sleep on the non-blocking thread.
+	 * If readTimeout is less then or equals to 0 then timeout from system variable will be used. If greater then 0 - the lowest of both will be used.
+	 * @param readTimeout the read timeout in seconds.
+	 * @param filename the filename.
+	 */
+	protected final void downloadNonBlocking(int readTimeout, final String filename) throws Exception {
+		prepareDownload();
+		if (fileDownloads) {
+			downloadFromFile(filename);
+			nonBlockingDownloadCompleted(downloadCompleted(filename));
+			return;
+		}
+		int timeout = checkStageTimeout();
+		if (readTimeout > 0) {
+			timeout = Math.min(readTimeout * 1000, timeout);
+		}
+		if (debugEnabled && log.isDebugEnabled()) log.debug("[Download Non-Blocking " + timeout + "ms] " + getDownloader().getRequest().getUrl().getNetUrl().toString(true));
+		final NetUrl firstUrl = getDownloader().getRequest().getUrl().getNetUrl();
+		final int downloadTimeout = timeout;
+		getDownloader().downloadNonBlocking(timeout, getHttpsProtocols(), new HttpDownloadListener() {
+
+			/** The number of redirects followed. */
+			private int redirects = 0;
+
+			public HttpRequest getRedirectRequest(HttpDownloader downloader) throws Exception {
+				if (!redirectsEnabled) {
+					return null;
+				}
+				if (maxRedirect != -1 && redirects >= maxRedirect) {
+					throw new HttpMaxRedirectsException("Maximum redirects(" + maxRedirect + ") reached");
+				}
+				HttpHeader header = downloader.getResponse().getHeaderList().getHeader(HttpResponseHeaderList.HEADER_LOCATION);
+				if (header == null) {
+					return null;
+				}
+				locationHeader = header.getValue();
+				if (redirects == 0) {
+					refererUrl = firstUrl;
+				}
+				redirects++;
+				return setRedirectRequest();
+			}
+
+			public void downloadCompleted(final HttpDownloader downloader) {
+				// Files, cookies and the capture archive are written off the non-blocking thread
+				Background.getWorkers().execute(new Runnable() {
+
+					public void run() {
+						try {
+							refererUrl = downloader.getRequest().getUrl().getNetUrl();
+							nonBlockingDownloadCompleted(WebSpider.this.downloadCompleted(filename));
+						} catch (Throwable t) {
+							nonBlockingDownloadFailed(t);
+						} finally {
+							multipartBoundary = null;
+						}
+					}
+				});
+			}
+
+			public void downloadFailed(HttpDownloader downloader, final Throwable throwable) {
+				Background.getWorkers().execute(new Runnable() {
+
+					public void run() {
+						multipartBoundary = null;
+						if (throwable instanceof ConnectTimeoutException) {
+							logConnectTimeoutPerSupplier(Math.min(downloadTimeout, HttpDownloader.CONNECTION_TIMEOUT));
+						} else if (throwable instanceof SocketTimeoutException || throwable instanceof DownloadTimeoutException) {
+							logReadTimeoutPerSupplier(downloadTimeout);
+						}
+						nonBlockingDownloadFailed(throwable);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Called on a background worker once {@link #downloadNonBlocking(int, String)} has completed.
+	 * @param content the content.
+	 */
+	protected void nonBlockingDownloadCompleted(HttpContent content) {
+	}
+
+	/**
+	 * Called on a background worker if {@link #downloadNonBlocking(int, String)} failed.
+	 * @param throwable the cause.
+	 */
+	protected void nonBlockingDownloadFailed(Throwable throwable) {
+		setThrowable(throwable);
+	}
+
 	public InputStream download(String url) throws IOException {
 		return new URL(url).openStream();
 	}
@@ -1401,6 +1577,18 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 		return WebSpiderConfig.getLogsDirectory() + className;
 	}
 
+	/**
+	 * Returns the name of the stage: the directory for file I/O, relative to the logs directory.
+	 * @return the name of the stage.
+	 */
+	private String getStageName() {
+		String directory = getDirectory();
+		if (directory.startsWith(WebSpiderConfig.getLogsDirectory())) {
+			directory = directory.substring(WebSpiderConfig.getLogsDirectory().length());
+		}
+		return directory;
+	}
+
 	/**
 	 * Returns the downloader.
 	 * @return the downloader.
@@ -1409,6 +1597,37 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 		return downloader;
 	}
 
+	/**
+	 * Sets the cache the responses to GET requests are served from and stored in, only set
+	 * this for pages that do not depend on the session.
+	 * @param cache the cache, null to not cache responses.
+	 */
+	public void setResponseCache(HttpResponseCache cache) {
+		this.responseCache = cache;
+		if (downloader != null) {
+			downloader.setResponseCache(cache);
+		}
+	}
+
+	/**
+	 * Returns the response cache.
+	 * @return the cache, null if responses are not cached.
+	 */
+	public HttpResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets the proxies hedged requests are sent through, see {@link core.http.HttpHedging}.
+	 * @param proxies the proxies, null to send hedges as the request.
+	 */
+	public void setHedgeProxies(ProxyManager proxies) {
+		this.hedgeProxies = proxies;
+		if (downloader != null) {
+			downloader.setHedgeProxies(proxies);
+		}
+	}
+
 	/**
 	 * Returns the HTML form.
 	 * @return the HTML form.
@@ -1698,10 +1917,21 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 	
 	private void logReadTimeoutPerSupplier(int readTimeout) {
 //		logTimeoutPerSupplier(QuickStatsEngine2.engine.SUPPLIER_READ_TIMEOUTS, readTimeout);
+		getTransferStats().recordReadTimeout();
 	}
 
 	private void logConnectTimeoutPerSupplier(int connectTimeout) {
 //		logTimeoutPerSupplier(QuickStatsEngine2.engine.SUPPLIER_CONNECT_TIMEOUTS, connectTimeout);
+		getTransferStats().recordConnectTimeout();
+	}
+
+	/**
+	 * Returns the transfer statistics of this supplier to the host of the current request.
+	 * @return the statistics.
+	 */
+	private HttpTransferStats getTransferStats() {
+		HttpRequest request = (downloader == null) ? null : downloader.getRequest();
+		return HttpMetrics.get(getSpiderName(), request == null ? null : request.getUrl().getNetUrl().getHost());
 	}
 
 /*	private void logSupplierBandwidth() {
@@ -1847,11 +2077,12 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 		downloader.getBrowser().setHeaders(request);
 		downloader.setHttpHeaders(request);
 		downloader.setRequest(request);
+		downloader.setResponseCache(responseCache);
+		downloader.setHedgeProxies(hedgeProxies);
 //		if (proxyCloudRequest) {
 //			downloader.setProxyCloudRequest(proxyCloudUsagePool, getSpiderName());
 //		}
-		// Tell the downloader not to carry out the download if we are using the
-		// non-blocking functionality.
+		// Non-blocking handlers download without the response cache or hedging
 		if (this instanceof NonBlockingRequestHandler) {
 			downloader.setNonBlocking();
 		}
@@ -2589,6 +2820,11 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 	public final void writeFile(String filename, byte[] data) throws IOException {
 		if (fileWritingIsDisabled()) {
 			if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[File Writing Disabled]");
+		} else if (WebSpiderConfig.isDumpEnabled()) {
+			String name = getStageName() + "/" + filename;
+			if (!getDumpWriter().write(name, data)) {
+				if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Dump Dropped] \"" + name + "\"");
+			}
 		} else {
 			String path = getAndCreateDirectory() + "/" + filename;
 			if (debugIsEnabled()) if (log.isDebugEnabled()) log.debug("[Write File] \"" + path + "\"");
@@ -2596,6 +2832,45 @@ public abstract class WebSpider extends Task implements Runnable, SelectionOptio
 		}
 	}
 
+	/**
+	 * Returns the writer of the dump segments, shared by every spider.
+	 * @return the dump writer.
+	 */
+	private static synchronized DumpWriter getDumpWriter() {
+		if (dumpWriter == null) {
+			dumpWriter = new DumpWriter(WebSpiderConfig.getLogsDirectory(), "webspider");
+			final DumpWriter writer = dumpWriter;
+			Runtime.getRuntime().addShutdownHook(new Thread("WebSpider-DumpWriter") {
+
+				@Override
+				public void run() {
+					try {
+						writer.close(DUMP_CLOSE_MILLIS);
+					} catch (InterruptedException ie) {
+						// Exiting anyway
+					}
+				}
+			});
+		}
+		return dumpWriter;
+	}
+
+	/**
+	 * Closes the dump writer once its queued records are written, a later dump opens a new one.
+	 * The writer is otherwise closed when the VM shuts down.
+	 * @param millis the time (millis) to wait for the writer.
+	 */
+	public static void closeDumpWriter(long millis) throws InterruptedException {
+		DumpWriter writer;
+		synchronized (WebSpider.class) {
+			writer = dumpWriter;
+			dumpWriter = null;
+		}
+		if (writer != null) {
+			writer.close(millis);
+		}
+	}
+
 	/**
 	 * Writes a file from the given text.
 	 * @param filename the filename.
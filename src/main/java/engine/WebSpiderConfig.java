@@ -13,6 +13,12 @@ public final class WebSpiderConfig {
 	private static String logsDirectory = "logs/webspider/";
 	/** Download from file enabled. */
 	private static boolean downloadFromFileEnabled = false;
+	/** Files written to dump segments rather than one file each. */
+	private static volatile boolean dumpEnabled = false;
+	/** The archive responses are captured to, null if none. */
+	private static volatile String captureArchive = null;
+	/** The archive responses are replayed from, null if none. */
+	private static volatile String replayArchive = null;
 	/** Enable GZIP. */
 	private static boolean gzipEnabled = false;
 	/** the number of redirects webspider is allowed to follow for a single request */
@@ -58,6 +64,60 @@ public final class WebSpiderConfig {
 		return fileWritingDisabled;
 	}
 
+	/**
+	 * Returns true if files are written asynchronously to dump segments.
+	 * @return true if dump enabled.
+	 * @see core.io.file.DumpWriter
+	 */
+	public static boolean isDumpEnabled() {
+		return dumpEnabled;
+	}
+
+	/**
+	 * Sets whether files are written asynchronously to dump segments, rather than one file
+	 * each on the spider's thread.
+	 * @param enabled true to enable.
+	 */
+	public static void setDumpEnabled(boolean enabled) {
+		dumpEnabled = enabled;
+	}
+
+	/**
+	 * Returns the path of the archive downloaded responses are captured to.
+	 * @return the path, null if not capturing.
+	 * @see core.io.file.ReplayArchive
+	 */
+	public static String getCaptureArchive() {
+		return captureArchive;
+	}
+
+	/**
+	 * Sets the path of the archive downloaded responses are captured to, for replaying later
+	 * with {@link #setReplayArchive(String)}.
+	 * @param path the path, null to stop capturing.
+	 */
+	public static void setCaptureArchive(String path) {
+		captureArchive = path;
+	}
+
+	/**
+	 * Returns the path of the archive responses are replayed from when downloading from file.
+	 * @return the path, null if replaying from files.
+	 * @see core.io.file.ReplayArchive
+	 */
+	public static String getReplayArchive() {
+		return replayArchive;
+	}
+
+	/**
+	 * Sets the path of the archive responses are replayed from when downloading from file,
+	 * rather than one file per response.
+	 * @param path the path, null to replay from files.
+	 */
+	public static void setReplayArchive(String path) {
+		replayArchive = path;
+	}
+
 	/**
 	 * Returns true if download from file enabled.
 	 * @return true if download from file enabled.
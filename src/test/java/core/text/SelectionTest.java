@@ -0,0 +1,203 @@
+package core.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the windows of {@link Selection} against a selection that copies the text at every
+ * step, as Selection did before it kept windows.
+ */
+public class SelectionTest extends TestCase {
+
+	/** The characters random texts and delimiters are made of. */
+	private static final String ALPHABET = "abAB<> \n";
+	/** The pattern matched against the selection. */
+	private static final Pattern PATTERN = Pattern.compile("a[^<]*b|(A) ", Pattern.MULTILINE);
+
+	public void testNestedSelection() throws SelectionException {
+		Selection selection = new Selection();
+		selection.selectText("<a><b>one</b><b>two</b></a>");
+		assertTrue(selection.selectText("<a>", "</a>", SelectionOptions.NO_MOVE));
+		assertEquals("one", selection.extractText("<b>", "</b>", 0));
+		assertEquals("<b>two</b>", selection.getText());
+		assertTrue(selection.selectText("<B>", "</B>", SelectionOptions.IGNORE_CASE));
+		assertEquals("two", selection.deselectText());
+		assertEquals("", selection.getText());
+		assertEquals("", selection.deselectText());
+		assertEquals("<a><b>one</b><b>two</b></a>", selection.getText());
+	}
+
+	public void testOptions() throws SelectionException {
+		Selection selection = new Selection();
+		selection.selectText("x[1]y[2]");
+		assertNull(selection.extractText("[", "}", SelectionOptions.OPTIONAL));
+		assertEquals("[1]", selection.extractText("[", "]", SelectionOptions.INCLUDE_DELIMITERS | SelectionOptions.NO_MOVE));
+		assertEquals("x[1]y[2]", selection.getText());
+		assertEquals("1", selection.extractText("[", "]", 0));
+		assertEquals("y[2]", selection.getView().toString());
+		try {
+			selection.extractText("[", "}", 0);
+			fail("end text found");
+		} catch (SelectionException se) {
+			// Expected
+		}
+	}
+
+	public void testRandomAgainstCopies() {
+		Random random = new Random(1);
+		for (int test = 0; test < 20000; test++) {
+			String text = randomText(random, random.nextInt(60));
+			Selection selection = new Selection();
+			CopySelection copies = new CopySelection();
+			selection.selectText(text);
+			copies.selectText(text);
+			StringBuilder steps = new StringBuilder(text);
+			for (int step = 0; step < 8; step++) {
+				String begin = random.nextInt(4) == 0 ? null : randomText(random, 1 + random.nextInt(2));
+				String end = random.nextInt(4) == 0 ? null : randomText(random, 1 + random.nextInt(2));
+				int options = random.nextInt(16);
+				int operation = random.nextInt(6);
+				String expected = apply(copies, operation, begin, end, options);
+				String actual = apply(selection, operation, begin, end, options);
+				steps.append("\n").append(operation).append(" ").append(begin).append(" ").append(end).append(" ").append(options);
+				assertEquals(steps.toString(), expected, actual);
+			}
+		}
+	}
+
+	private static String apply(Object selection, int operation, String begin, String end, int options) {
+		try {
+			if (selection instanceof Selection) {
+				Selection windows = (Selection) selection;
+				switch (operation) {
+					case 0:
+						return String.valueOf(windows.selectText(begin, end, options));
+					case 1:
+						return windows.extractText(begin, end, options);
+					case 2:
+						return windows.deselectText();
+					case 3:
+						return windows.getText();
+					case 4:
+						return windows.matchFirst(PATTERN);
+					default:
+						return windows.match(PATTERN).toString();
+				}
+			}
+			CopySelection copies = (CopySelection) selection;
+			switch (operation) {
+				case 0:
+					return String.valueOf(copies.selectText(begin, end, options));
+				case 1:
+					return copies.extractText(begin, end, options);
+				case 2:
+					return copies.deselectText();
+				case 3:
+					return copies.getText();
+				case 4:
+					return copies.matchFirst(PATTERN);
+				default:
+					return copies.match(PATTERN).toString();
+			}
+		} catch (SelectionException se) {
+			return "SelectionException";
+		} catch (RuntimeException re) {
+			return "RuntimeException";
+		}
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * A selection that keeps a stack of copies of the text.
+	 */
+	private static final class CopySelection {
+
+		private final List<String> texts = new ArrayList<String>();
+
+		private void selectText(String text) {
+			texts.add(0, text);
+		}
+
+		private String deselectText() {
+			return texts.remove(0);
+		}
+
+		private String getText() {
+			return texts.get(0);
+		}
+
+		private String extractText(String begin, String end, int options) throws SelectionException {
+			boolean optional = (options & SelectionOptions.OPTIONAL) != 0;
+			boolean ignoreCase = (options & SelectionOptions.IGNORE_CASE) != 0;
+			if (texts.isEmpty()) {
+				if (optional) {
+					return null;
+				}
+				throw new SelectionException("nothing selected to extract from");
+			}
+			String text = getText();
+			int beginIndex = 0;
+			int beginLength = 0;
+			if (begin != null) {
+				beginIndex = ignoreCase ? Text.indexOfIgnoreCase(text, begin, 0) : text.indexOf(begin);
+				if (beginIndex == -1) {
+					if (optional) {
+						return null;
+					}
+					throw new SelectionException("begin text not found: \"" + begin + "\"");
+				}
+				beginLength = begin.length();
+			}
+			int endIndex = text.length();
+			int endLength = 0;
+			if (end != null) {
+				endIndex = ignoreCase ? Text.indexOfIgnoreCase(text, end, beginIndex + beginLength) : text.indexOf(end, beginIndex + beginLength);
+				if (endIndex == -1) {
+					if (optional) {
+						return null;
+					}
+					throw new SelectionException("end text not found: \"" + end + "\"");
+				}
+				endLength = end.length();
+			}
+			String extraction;
+			if ((options & SelectionOptions.INCLUDE_DELIMITERS) != 0) {
+				extraction = text.substring(beginIndex, endIndex + endLength);
+			} else {
+				extraction = text.substring(beginIndex + beginLength, endIndex);
+			}
+			if ((options & SelectionOptions.NO_MOVE) == 0) {
+				texts.set(0, text.substring(endIndex + endLength));
+			}
+			return extraction;
+		}
+
+		private boolean selectText(String begin, String end, int options) throws SelectionException {
+			String extraction = extractText(begin, end, options);
+			if (extraction == null) {
+				return false;
+			}
+			selectText(extraction);
+			return true;
+		}
+
+		private String matchFirst(Pattern pattern) {
+			return new Selection().matchFirst(pattern, getText().replaceAll("\\s+", " "));
+		}
+
+		private List<String> match(Pattern pattern) {
+			return new Selection().match(pattern, getText().replaceAll("\\s+", " "));
+		}
+	}
+}